@@ -25,9 +25,12 @@
 <jsp:useBean id="locks" scope="request" type="java.util.Map<java.lang.String, jetbrains.buildServer.sharedResources.model.Lock>"/>
 <jsp:useBean id="bean" scope="request" type="jetbrains.buildServer.sharedResources.pages.beans.EditFeatureBean"/>
 <jsp:useBean id="inherited" scope="request" type="java.lang.Boolean"/>
+<jsp:useBean id="releaseAfterStep" scope="request" type="java.util.Map<java.lang.String, java.lang.String>"/>
+<jsp:useBean id="steps" scope="request" type="java.util.Map<java.lang.String, java.lang.String>"/>
 
 
 <c:set var="locksFeatureParamKey" value="<%=FeatureParams.LOCKS_FEATURE_PARAM_KEY%>"/>
+<c:set var="releaseAfterStepParamKey" value="<%=FeatureParams.RELEASE_AFTER_STEP_PARAM_KEY%>"/>
 <c:set var="PARAM_RESOURCE_NAME" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_NAME%>"/>
 <c:set var="PARAM_PROJECT_ID" value="<%=SharedResourcesPluginConstants.WEB.PARAM_PROJECT_ID%>"/>
 <c:set var="PARAM_RESOURCE_TYPE" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE%>"/>
@@ -68,7 +71,11 @@ BS.LocksUtil = {
   },
 
   lockToString: function (lock) {
-    return lock.name + " " + lock.type + " " + (lock.value ? lock.value : "") + "\n";
+    return lock.name + " " + lock.type + (lock.units > 1 ? ":" + lock.units : "") + " " + (lock.value ? lock.value : "") + "\n";
+  },
+
+  releaseAfterStepToString: function (lock) {
+    return lock.releaseAfterStep ? lock.name + " " + lock.releaseAfterStep + "\n" : "";
   },
 
   lockToTableRow: function (lock) {
@@ -82,11 +89,18 @@ BS.LocksUtil = {
         if (lock.value) {
           result.description = "Specific Value: " + lock.value;
         } else {
-          result.description = "Any Value";
+          result.description = lock.units > 1 ? "Any " + lock.units + " Values" : "Any Value";
         }
       }
     } else {
       result.description = this.locksDisplay[lock.type];
+      if (lock.units > 1) {
+        result.description += " (" + lock.units + " units)";
+      }
+    }
+    if (lock.releaseAfterStep) {
+      var stepName = BS.SharedResourcesFeatureDialog.steps[lock.releaseAfterStep];
+      result.description += ", released after step: " + (stepName ? stepName : lock.releaseAfterStep + " (step not found)");
     }
     result.parameter = "teamcity.locks." + lock.type + "." + lock.name;
     return result;
@@ -105,6 +119,7 @@ BS.SharedResourcesFeatureDialog = {
   resources: {}, // map of resources: <resource_name, Resource>
   locks: {}, // map of locks: <lock_name, Lock>
   invalid: {}, // map of invalid locks <lock_name, Lock>
+  steps: {}, // map of build steps: <step_id, step_name>
   canEdit: true,
 
   inherited: false,
@@ -113,15 +128,18 @@ BS.SharedResourcesFeatureDialog = {
     var tableBody = $j('#locksTaken tbody:last');
     var parametersAnchor = $j('#paramsList');
     var textArea = $j('#${locksFeatureParamKey}');
+    var releaseAfterStepTextArea = $j('#${releaseAfterStepParamKey}');
 
     tableBody.children().remove();
     parametersAnchor.children().remove();
     var locks = this.sortObject(this.locks);
     var textAreaContent = "";
+    var releaseAfterStepContent = "";
     var needRendering = false;
     for (var key in locks) {
       if (locks.hasOwnProperty(key)) {
         textAreaContent += BS.LocksUtil.lockToString(locks[key]);
+        releaseAfterStepContent += BS.LocksUtil.releaseAfterStepToString(locks[key]);
         // if we have invalid lock - do not render it in the table
         if (!this.invalid[key]) {
           this.renderSingleValidRow(tableBody, parametersAnchor, key);
@@ -143,6 +161,7 @@ BS.SharedResourcesFeatureDialog = {
 
     this.renderInvalidLocks();
     textArea.val($j.trim(textAreaContent));
+    releaseAfterStepTextArea.val($j.trim(releaseAfterStepContent));
     if (this.inherited) {
       BS.Util.hide('addNewLock');
     } else {
@@ -278,6 +297,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     // filter available resources
     this.fillAvailableResources();
     this.fillAvailableResourcesDropdown();
+    this.fillSteps("");
     // sync state (resources / no resources)
     this.displayResourceChooser();
     // sync state (resource type => locks type (quoted => read/write; custom=>ALL/ANY/SPECIFIC))
@@ -306,6 +326,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
       var self = $j(this);
       self.prop("selected", self.val() === lockName);
     });
+    this.fillSteps(currentLock.releaseAfterStep);
     this.displayResourceChooser();
     this.chooseResource();
     // set values
@@ -342,6 +363,23 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     this.bindCtrlEnterHandler(this.submit.bind(this));
   },
 
+  fillSteps: function (selectedStepId) {
+    var stepsDropdown = $j('#newLockReleaseAfterStep');
+    stepsDropdown.children().remove();
+    stepsDropdown.append($j("<option>").attr('value', '').text('-- When the build finishes --'));
+    var steps = BS.SharedResourcesFeatureDialog.steps;
+    for (var key in steps) {
+      if (steps.hasOwnProperty(key)) {
+        //noinspection JSCheckFunctionSignatures
+        stepsDropdown.append($j("<option>").attr('value', key).text(steps[key]));
+      }
+    }
+    $j('#newLockReleaseAfterStep option').each(function () {
+      var self = $j(this);
+      self.prop("selected", self.val() === (selectedStepId ? selectedStepId : ''));
+    });
+  },
+
   fillAvailableResourcesDropdown: function () {
     var resourceDropdown = $j('#lockFromResources');
     resourceDropdown.children().remove();
@@ -454,6 +492,10 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
         lock.type = "writeLock";
       }
     }
+    var releaseAfterStep = $j('#newLockReleaseAfterStep option:selected').val();
+    if (releaseAfterStep) {
+      lock.releaseAfterStep = releaseAfterStep;
+    }
     if (this.editMode) {
       delete BS.SharedResourcesFeatureDialog.locks[this.currentLockName];
     }
@@ -493,6 +535,10 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   </c:choose>
   rs['<bs:escapeForJs text="${item.name}"/>'] = rc; // push resource to map
   </c:forEach>
+  /* load build steps into javascript */
+  <c:forEach var="item" items="${steps}">
+  self.steps['<bs:escapeForJs text="${item.key}"/>'] = '<bs:escapeForJs text="${item.value}"/>';
+  </c:forEach>
   /* load locks into javascript */
   var locks = self.locks;
   var lc;
@@ -501,6 +547,10 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.units = ${item.value.units};
+  <c:if test="${not empty releaseAfterStep[item.key]}">
+  lc.releaseAfterStep = '<bs:escapeForJs text="${releaseAfterStep[item.key]}"/>';
+  </c:if>
   locks['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
   self.inherited = ${inherited};
@@ -512,6 +562,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.units = ${item.value.units};
   invalid['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
 
@@ -571,6 +622,14 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
               <span class="smallNote">Select value of custom resource to lock</span>
             </td>
           </tr>
+
+          <tr id="row_ReleaseAfterStep">
+            <th style="white-space: nowrap"><label for="newLockReleaseAfterStep">Release lock:</label></th>
+            <td>
+              <forms:select name="newLockReleaseAfterStep" id="newLockReleaseAfterStep" style="width: 90%"/>
+              <span class="smallNote">Select the build step, after which the lock is released, so other builds can take it before this build finishes</span>
+            </td>
+          </tr>
         </table>
       </div>
       <div id="lockFromResources_No">
@@ -622,6 +681,13 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   </td>
 </tr>
 
+<tr style="display: none">
+  <th>Release after step</th>
+  <td>
+    <props:multilineProperty name="${releaseAfterStepParamKey}" linkTitle="steps" cols="49" rows="5" expanded="${false}"/>
+  </td>
+</tr>
+
 <tr style="display: none" id="invalidLocksRow">
   <td colspan="2">
     <div class="attentionComment" id="invalidLocksMessage" style="width: 97%">
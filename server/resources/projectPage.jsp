@@ -181,7 +181,7 @@
   <%-- custom resource--%>
   <c:when test="${type == type_custom}">
   myValues = [];
-  <c:forEach items="${item.values}" var="val">
+  <c:forEach items="${item.valueDefinitions}" var="val">
   myValues.push('<bs:escapeForJs text="${val}"/>');
   </c:forEach>
   r['customValues'] = myValues;
@@ -70,7 +70,7 @@
                       <div id="${containerId}" style="display:none">
                         <bs:out value="Resource with custom values: "/>
                         <ul>
-                          <c:forEach items="${rc.values}" var="val">
+                          <c:forEach items="${rc.valueDefinitions}" var="val">
                             <li><bs:out value="${val}"/></li>
                           </c:forEach>
                         </ul>
@@ -103,7 +103,9 @@
                   <c:when test="${rc.type == CUSTOM}">
                     <c:choose>
                       <c:when test="${lock.type.name == TYPE_READ}">
-                        Locked value: <code><bs:out value="${lock.value}"/></code><br/>
+                        <c:forEach items="${lock.values}" var="value">
+                          Locked value: <code><bs:out value="${value}"/></code><br/>
+                        </c:forEach>
                       </c:when>
                       <c:otherwise>
                         <bs:out value="All custom values were locked"/>
@@ -111,10 +113,16 @@
                     </c:choose>
                   </c:when>
                   <c:otherwise>
-                    <bs:out value="${lock.type.descriptiveName}"/><br/>
+                    <bs:out value="${lock.type.descriptiveName}"/><c:if test="${lock.units > 1}"> (${lock.units} units)</c:if><br/>
                   </c:otherwise>
                 </c:choose>
               </c:forEach>
+              <c:if test="${ur.released}">
+                <span class="grayNote"><bs:out value="Released before the build finished"/></span>
+              </c:if>
+              <c:if test="${ur.leaseExpired}">
+                <span class="grayNote"><bs:out value="Lease expired"/></span>
+              </c:if>
             </td>
           </tr>
         </c:forEach>
@@ -57,6 +57,10 @@ public class SharedResourcesPluginConstants {
 
     String ACTIONS = "/sharedResourcesActions.html";
 
+    String FORECAST = "/sharedResourcesForecast.html";
+
+    String DIAGNOSTICS = "/sharedResourcesDiagnostics.html";
+
     String PARAM_PROJECT_ID = "project_id";
     String PARAM_OLD_RESOURCE_NAME = "old_resource_name";
 
@@ -68,6 +72,13 @@ public class SharedResourcesPluginConstants {
     String PARAM_RESOURCE_VALUES = "resource_values";
     String PARAM_RESOURCE_QUOTA = "resource_quota";
 
+    /**
+     * Lease settings and agents of the values are changed only if they are sent with the edit request, empty value clears them
+     */
+    String PARAM_RESOURCE_LEASE_TIMEOUT = "resource_leaseTimeout";
+    String PARAM_RESOURCE_LEASE_ACTION = "resource_leaseAction";
+    String PARAM_RESOURCE_VALUE_AGENTS = "resource_valueAgents";
+
     String ACTION_MESSAGE_KEY = "resourceActionResultMessage";
   }
 
@@ -77,6 +88,18 @@ public class SharedResourcesPluginConstants {
     String QUOTA = "quota";
     String VALUES = "values";
     String ENABLED = "enabled";
+    /**
+     * Maximum time in minutes the build can hold locks on the resource
+     */
+    String LEASE_TIMEOUT = "leaseTimeout";
+    /**
+     * Action applied to the build, that holds locks on the resource longer than the lease timeout
+     */
+    String LEASE_ACTION = "leaseAction";
+    /**
+     * Agents, that can use values of the custom resource. One {@code value => agents} mapping per line
+     */
+    String VALUE_AGENTS = "valueAgents";
   }
 
   public static Comparator<String> RESOURCE_NAMES_COMPARATOR = String::compareToIgnoreCase;
@@ -16,21 +16,101 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
-import java.util.HashSet;
-import java.util.Set;
+import gnu.trove.TLongObjectHashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.AdmissionPlan;
+import jetbrains.buildServer.sharedResources.server.runtime.AgentMatches;
+import jetbrains.buildServer.sharedResources.server.runtime.LockForecasts;
 import jetbrains.buildServer.sharedResources.server.runtime.ResourceAffinity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class DistributionData {
 
-  private Set<String> fairSet = new HashSet<>();
-
   private ResourceAffinity myResourceAffinity = new ResourceAffinity();
 
-  public Set<String> getFairSet() {
-    return fairSet;
-  }
+  /**
+   * Matches of the agents against agent requirements of custom resource values
+   */
+  @NotNull
+  private final AgentMatches myAgentMatches = new AgentMatches();
+
+  /**
+   * Locks taken by running builds at the start of the distribution cycle
+   * together with the locks of the builds distributed during the cycle
+   */
+  @Nullable
+  private Map<Resource, TakenLock> myTakenLocks;
+
+  /**
+   * Distributed builds, which locks are already added to {@code myTakenLocks}
+   */
+  @NotNull
+  private final TLongObjectHashMap<BuildPromotionEx> myDistributedPromotions = new TLongObjectHashMap<>();
+
+  /**
+   * Resolved locks of the composite build chain nodes, that have their locks stored
+   */
+  @NotNull
+  private final TLongObjectHashMap<Map<Resource, Lock>> myChainNodeLocks = new TLongObjectHashMap<>();
+
+  /**
+   * Admission decisions for queued builds, computed at the start of the cycle, if admission planner is enabled
+   */
+  @Nullable
+  private AdmissionPlan myAdmissionPlan;
+
+  /**
+   * Availability predictions for blocked locks, created when the first build of the cycle is blocked
+   */
+  @Nullable
+  private LockForecasts myLockForecasts;
 
   public ResourceAffinity getResourceAffinity() {
     return myResourceAffinity;
   }
+
+  @NotNull
+  public AgentMatches getAgentMatches() {
+    return myAgentMatches;
+  }
+
+  @Nullable
+  public Map<Resource, TakenLock> getTakenLocks() {
+    return myTakenLocks;
+  }
+
+  public void setTakenLocks(@NotNull final Map<Resource, TakenLock> takenLocks) {
+    myTakenLocks = takenLocks;
+  }
+
+  @NotNull
+  public TLongObjectHashMap<BuildPromotionEx> getDistributedPromotions() {
+    return myDistributedPromotions;
+  }
+
+  @NotNull
+  public TLongObjectHashMap<Map<Resource, Lock>> getChainNodeLocks() {
+    return myChainNodeLocks;
+  }
+
+  @Nullable
+  public AdmissionPlan getAdmissionPlan() {
+    return myAdmissionPlan;
+  }
+
+  public void setAdmissionPlan(@NotNull final AdmissionPlan admissionPlan) {
+    myAdmissionPlan = admissionPlan;
+  }
+
+  @Nullable
+  public LockForecasts getLockForecasts() {
+    return myLockForecasts;
+  }
+
+  public void setLockForecasts(@NotNull final LockForecasts lockForecasts) {
+    myLockForecasts = lockForecasts;
+  }
 }
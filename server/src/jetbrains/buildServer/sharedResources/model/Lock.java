@@ -16,6 +16,10 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -28,6 +32,12 @@ public class Lock {
   @NotNull
   private static final String NO_VALUE = "";
 
+  /**
+   * Separates values of a lock, that holds several values of custom resource.
+   * Values of custom resource are defined line by line, so they never contain the separator
+   */
+  public static final char VALUES_SEPARATOR = '\n';
+
   /**
    * Name of the lock
    */
@@ -46,10 +56,31 @@ public class Lock {
   @NotNull
   private final String myValue;
 
+  /**
+   * Number of units of the resource quota, consumed by the lock
+   */
+  private final int myUnits;
+
+  /**
+   * Time in milliseconds the taken lock was acquired by the build, {@code 0} if unknown.
+   * Runtime state of the taken lock, is not written into the report of used resources
+   */
+  private final transient long myAcquired;
+
   public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value) {
+    this(name, type, value, 1);
+  }
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value, final int units) {
+    this(name, type, value, units, 0);
+  }
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value, final int units, final long acquired) {
     myName = name;
     myType = type;
     myValue = value;
+    myUnits = units;
+    myAcquired = acquired;
   }
 
   public Lock(@NotNull final String name, @NotNull final LockType type) {
@@ -65,7 +96,18 @@ public class Lock {
    * @return copy of combined lock definition and custom value
    */
   public static Lock createFrom(@NotNull final Lock from, @NotNull final String value) {
-    return new Lock(from.getName(), from.getType(), value);
+    return new Lock(from.getName(), from.getType(), value, from.getUnits(), from.getAcquired());
+  }
+
+  /**
+   * Creates copy of taken lock with given acquisition time
+   *
+   * @param from taken lock
+   * @param acquired time in milliseconds the lock was acquired
+   * @return copy of the lock
+   */
+  public static Lock acquiredAt(@NotNull final Lock from, final long acquired) {
+    return new Lock(from.getName(), from.getType(), from.getValue(), from.getUnits(), acquired);
   }
 
   @NotNull
@@ -83,6 +125,66 @@ public class Lock {
     return myValue;
   }
 
+  /**
+   * Returns values of custom resource, held by the lock.
+   * Lock on several values ({@code ANY n} lock) holds all of them in its value
+   *
+   * @return held values, empty list for locks without value
+   */
+  @NotNull
+  public List<String> getValues() {
+    return splitValues(myValue);
+  }
+
+  /**
+   * Splits value of the lock into separate values of custom resource
+   *
+   * @param value value of the lock
+   * @return values of custom resource
+   */
+  @NotNull
+  public static List<String> splitValues(@NotNull final String value) {
+    if (value.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (value.indexOf(VALUES_SEPARATOR) < 0) {
+      return Collections.singletonList(value);
+    }
+    return StringUtil.split(value, true, VALUES_SEPARATOR);
+  }
+
+  /**
+   * Joins several values of custom resource into a single lock value
+   *
+   * @param values values of custom resource
+   * @return value of the lock
+   */
+  @NotNull
+  public static String joinValues(@NotNull final Collection<String> values) {
+    return StringUtil.join(values, String.valueOf(VALUES_SEPARATOR));
+  }
+
+  /**
+   * Returns number of units of the resource quota, consumed by the lock.
+   * For {@code ANY} locks on custom resources it is the number of values to hold
+   *
+   * @return number of units, {@code 1} by default
+   */
+  public int getUnits() {
+    // locks deserialized from reports, written before units were introduced, have no units
+    return myUnits > 0 ? myUnits : 1;
+  }
+
+  /**
+   * Returns time the taken lock was acquired by the build.
+   * Acquisition time is not a part of the lock identity
+   *
+   * @return time in milliseconds, {@code 0} if unknown, e.g. for lock definitions
+   */
+  public long getAcquired() {
+    return myAcquired;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -90,7 +192,8 @@ public class Lock {
     Lock lock = (Lock) o;
     return myName.equals(lock.myName)
             && myType == lock.myType
-            && myValue.equals(lock.myValue);
+            && myValue.equals(lock.myValue)
+            && getUnits() == lock.getUnits();
 
   }
 
@@ -99,6 +202,7 @@ public class Lock {
     int result = myName.hashCode();
     result = 31 * result + myType.hashCode();
     result = 31 * result + myValue.hashCode();
+    result = 31 * result + getUnits();
     return result;
   }
 
@@ -108,6 +212,7 @@ public class Lock {
             "myName='" + myName + '\'' +
             ", myType=" + myType +
             ", myValue='" + myValue + '\'' +
+            ", myUnits=" + getUnits() +
             '}';
   }
 }
@@ -16,18 +16,28 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIterator;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TObjectIntHashMap;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Class {@code TakenLock}.
  *
  * For each resource, instance of this class contains locks that are acquired
  *
+ * Locks are kept as a ledger keyed by promotion id together with lock counts, consumed units and counts of locked values,
+ * so availability checks do not have to iterate over holders.
+ * Maps of read and write locks are built only when requested and are cached until the next modification
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class TakenLock {
@@ -35,11 +45,38 @@ public class TakenLock {
   @NotNull
   private final Resource myResource;
 
+  /**
+   * Promotion id -> lock, held by the promotion
+   */
   @NotNull
-  private final Map<BuildPromotionEx, String> myReadLocks = new HashMap<>();
+  private final TLongObjectHashMap<HeldLock> myHeldLocks = new TLongObjectHashMap<>();
 
+  /**
+   * Locked value -> number of holders of the value. Empty values are not counted,
+   * lock on several values counts each of them
+   */
   @NotNull
-  private final Map<BuildPromotionEx, String> myWriteLocks = new HashMap<>();
+  private final TObjectIntHashMap<String> myValueCounts = new TObjectIntHashMap<>();
+
+  private int myReadCount;
+
+  private int myWriteCount;
+
+  /**
+   * Overall number of quota units, consumed by holders
+   */
+  private int myUnits;
+
+  /**
+   * Number of changes of the held locks
+   */
+  private int myVersion;
+
+  @Nullable
+  private Map<BuildPromotionEx, String> myReadLocks;
+
+  @Nullable
+  private Map<BuildPromotionEx, String> myWriteLocks;
 
   public TakenLock(@NotNull final Resource resource) {
     myResource = resource;
@@ -49,29 +86,87 @@ public class TakenLock {
                    @NotNull final Map<BuildPromotionEx, String> readLocks,
                    @NotNull final Map<BuildPromotionEx, String> writeLocks) {
     myResource = resource;
-    myReadLocks.putAll(readLocks);
-    myWriteLocks.putAll(writeLocks);
+    readLocks.forEach((promotion, value) -> add(promotion, LockType.READ, value, 1));
+    writeLocks.forEach((promotion, value) -> add(promotion, LockType.WRITE, value, 1));
+  }
+
+  /**
+   * Creates a copy of the given {@code TakenLock}
+   *
+   * @param other taken lock to copy
+   */
+  public TakenLock(@NotNull final TakenLock other) {
+    this(other.myResource, other);
+  }
+
+  /**
+   * Creates a copy of the given {@code TakenLock} for the changed definition of its resource
+   *
+   * @param resource current definition of the resource
+   * @param other taken lock to copy
+   */
+  public TakenLock(@NotNull final Resource resource, @NotNull final TakenLock other) {
+    myResource = resource;
+    other.myHeldLocks.forEachValue(heldLock -> {
+      add(heldLock.myPromotion, heldLock.myType, heldLock.myValue, heldLock.myUnits);
+      return true;
+    });
   }
 
   public void addLock(@NotNull final BuildPromotionEx info, @NotNull final Lock lock) {
-    switch (lock.getType()) {
-      case READ:
-        myReadLocks.put(info, lock.getValue());
-        break;
-      case WRITE:
-        myWriteLocks.put(info, lock.getValue());
-        break;
+    add(info, lock.getType(), lock.getValue(), lock.getUnits());
+  }
+
+  /**
+   * Removes all locks held by given promotion
+   *
+   * @param info build promotion to remove locks for
+   */
+  public void removeLock(@NotNull final BuildPromotionEx info) {
+    removeLock(info.getId());
+  }
+
+  /**
+   * Removes all locks held by promotion with given id
+   *
+   * @param promotionId id of build promotion to remove locks for
+   */
+  public void removeLock(final long promotionId) {
+    final HeldLock removed = myHeldLocks.remove(promotionId);
+    if (removed != null) {
+      if (removed.myType == LockType.READ) {
+        myReadCount--;
+      } else {
+        myWriteCount--;
+      }
+      myUnits -= removed.myUnits;
+      myVersion++;
+      for (String value : removed.myValues) {
+        final int count = myValueCounts.get(value) - 1;
+        if (count > 0) {
+          myValueCounts.put(value, count);
+        } else {
+          myValueCounts.remove(value);
+        }
+      }
+      resetViews();
     }
   }
 
   @NotNull
   public Map<BuildPromotionEx, String> getReadLocks() {
-    return Collections.unmodifiableMap(myReadLocks);
+    if (myReadLocks == null) {
+      myReadLocks = Collections.unmodifiableMap(collect(LockType.READ));
+    }
+    return myReadLocks;
   }
 
   @NotNull
   public Map<BuildPromotionEx, String> getWriteLocks() {
-    return Collections.unmodifiableMap(myWriteLocks);
+    if (myWriteLocks == null) {
+      myWriteLocks = Collections.unmodifiableMap(collect(LockType.WRITE));
+    }
+    return myWriteLocks;
   }
 
   /**
@@ -90,15 +185,192 @@ public class TakenLock {
    * @return overall locks count
    */
   public int getLocksCount() {
-    return myReadLocks.size() + myWriteLocks.size();
+    return myReadCount + myWriteCount;
+  }
+
+  /**
+   * Gets overall locks count, ignoring locks held by given promotions
+   *
+   * @param excluded ids of promotions, which locks should be ignored
+   * @return overall locks count of other promotions
+   */
+  public int getLocksCount(@Nullable final TLongHashSet excluded) {
+    return getLocksCount() - countExcluded(excluded, null, null);
+  }
+
+  /**
+   * Gets overall number of quota units, consumed by locks
+   *
+   * @return number of consumed units
+   */
+  public int getUnits() {
+    return myUnits;
+  }
+
+  /**
+   * Gets number of quota units, consumed by locks, ignoring locks held by given promotions
+   *
+   * @param excluded ids of promotions, which locks should be ignored
+   * @return number of units consumed by other promotions
+   */
+  public int getUnits(@Nullable final TLongHashSet excluded) {
+    int result = myUnits;
+    if (excluded != null && !myHeldLocks.isEmpty()) {
+      final TLongIterator it = excluded.iterator();
+      while (it.hasNext()) {
+        final HeldLock heldLock = myHeldLocks.get(it.next());
+        if (heldLock != null) {
+          result -= heldLock.myUnits;
+        }
+      }
+    }
+    return result;
   }
 
   public boolean hasReadLocks() {
-    return !myReadLocks.isEmpty();
+    return myReadCount > 0;
+  }
+
+  public boolean hasReadLocks(@Nullable final TLongHashSet excluded) {
+    return myReadCount - countExcluded(excluded, LockType.READ, null) > 0;
   }
 
   public boolean hasWriteLocks() {
-    return !myWriteLocks.isEmpty();
+    return myWriteCount > 0;
+  }
+
+  public boolean hasWriteLocks(@Nullable final TLongHashSet excluded) {
+    return myWriteCount - countExcluded(excluded, LockType.WRITE, null) > 0;
+  }
+
+  /**
+   * Checks whether given value is locked by some promotion
+   *
+   * @param value value to check
+   * @param excluded ids of promotions, which locks should be ignored
+   * @return {@code true} if value is locked by promotion that is not excluded
+   */
+  public boolean isValueLocked(@NotNull final String value, @Nullable final TLongHashSet excluded) {
+    return myValueCounts.get(value) - countExcluded(excluded, null, value) > 0;
+  }
+
+  /**
+   * Gets number of locks, holding given value
+   *
+   * @param value value of custom resource
+   * @return number of holders of the value
+   */
+  public int getValueCount(@NotNull final String value) {
+    return myValueCounts.get(value);
+  }
+
+  /**
+   * Adds numbers of holders of the locked values to the given counts
+   *
+   * @param counts value -> number of holders
+   */
+  public void addValueCounts(@NotNull final TObjectIntHashMap<String> counts) {
+    myValueCounts.forEachEntry((value, count) -> {
+      counts.put(value, counts.get(value) + count);
+      return true;
+    });
+  }
+
+  /**
+   * @return number of changes of the held locks, used to detect that values computed from them are outdated
+   */
+  public int getVersion() {
+    return myVersion;
+  }
+
+  public boolean isEmpty() {
+    return myHeldLocks.isEmpty();
   }
 
+  private void add(@NotNull final BuildPromotionEx promotion,
+                   @NotNull final LockType type,
+                   @NotNull final String value,
+                   final int units) {
+    removeLock(promotion.getId());
+    myHeldLocks.put(promotion.getId(), new HeldLock(promotion, type, value, units));
+    myUnits += units;
+    myVersion++;
+    if (type == LockType.READ) {
+      myReadCount++;
+    } else {
+      myWriteCount++;
+    }
+    for (String heldValue : Lock.splitValues(value)) {
+      myValueCounts.put(heldValue, myValueCounts.get(heldValue) + 1);
+    }
+    resetViews();
+  }
+
+  private int countExcluded(@Nullable final TLongHashSet excluded, @Nullable final LockType type, @Nullable final String value) {
+    if (excluded == null || excluded.isEmpty() || myHeldLocks.isEmpty()) {
+      return 0;
+    }
+    int result = 0;
+    final TLongIterator it = excluded.iterator();
+    while (it.hasNext()) {
+      final HeldLock heldLock = myHeldLocks.get(it.next());
+      if (heldLock != null && (type == null || heldLock.myType == type)) {
+        if (value == null) {
+          result++;
+        } else {
+          for (String heldValue : heldLock.myValues) {
+            if (value.equals(heldValue)) {
+              result++;
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private Map<BuildPromotionEx, String> collect(@NotNull final LockType type) {
+    final Map<BuildPromotionEx, String> result = new HashMap<>();
+    myHeldLocks.forEachValue(heldLock -> {
+      if (heldLock.myType == type) {
+        result.put(heldLock.myPromotion, heldLock.myValue);
+      }
+      return true;
+    });
+    return result;
+  }
+
+  private void resetViews() {
+    myReadLocks = null;
+    myWriteLocks = null;
+  }
+
+  private static final class HeldLock {
+
+    @NotNull
+    private final BuildPromotionEx myPromotion;
+
+    @NotNull
+    private final LockType myType;
+
+    @NotNull
+    private final String myValue;
+
+    @NotNull
+    private final List<String> myValues;
+
+    private final int myUnits;
+
+    private HeldLock(@NotNull final BuildPromotionEx promotion,
+                     @NotNull final LockType type,
+                     @NotNull final String value,
+                     final int units) {
+      myPromotion = promotion;
+      myType = type;
+      myValue = value;
+      myValues = Lock.splitValues(value);
+      myUnits = units;
+    }
+  }
 }
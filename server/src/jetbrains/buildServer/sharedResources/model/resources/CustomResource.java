@@ -16,33 +16,61 @@
 
 package jetbrains.buildServer.sharedResources.model.resources;
 
+import gnu.trove.TIntHashSet;
+import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.*;
 
 /**
  * Class {@code CustomResource}
  *
  * Represents resource with custom value space
  *
+ * Value space is defined by value definitions, that can contain ranges of values.
+ * Ranges are expanded lazily, see {@link ValueSpace}
+ *
+ * Values can be bound to agents. Agent requirement of the value limits agents, the build
+ * that holds the value can run on. Values without requirements can be used on any agent
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class CustomResource extends AbstractResource {
 
+  /**
+   * Separates value from its agent requirement in {@code valueAgents} parameter
+   */
+  @NotNull
+  static final String VALUE_AGENTS_SEPARATOR = " => ";
+
+  /**
+   * Value definitions, as specified by the user
+   */
   @NotNull
   private final List<String> myValues;
 
+  /**
+   * Value -> requirement for the agents, that can use the value. Can be {@code null} for deserialized resources
+   */
+  @Nullable
+  private final Map<String, String> myValueAgents;
+
+  /**
+   * Value space built from value definitions on first access, as resources are also created by deserialization
+   */
+  @Nullable
+  private transient volatile ValueSpace myValueSpace;
+
   private CustomResource(@NotNull final String id,
                          @NotNull final String projectId,
                          @NotNull final String name,
                          @NotNull final List<String> values,
+                         @NotNull final Map<String, String> valueAgents,
                          boolean state) {
     super(id, projectId, name, ResourceType.CUSTOM, state);
     myValues = new ArrayList<>(values);
+    myValueAgents = new LinkedHashMap<>(valueAgents);
   }
 
   @NotNull
@@ -50,20 +78,125 @@ public class CustomResource extends AbstractResource {
                                           @NotNull final String projectId,
                                           @NotNull final String name,
                                           @NotNull final List<String> values,
+                                          @NotNull final Map<String, String> valueAgents,
                                           boolean state) {
-    return new CustomResource(id, projectId, name, values, state);
+    return new CustomResource(id, projectId, name, values, valueAgents, state);
   }
 
+  /**
+   * Returns values of the resource with ranges expanded.
+   * Values of ranges are computed on access, {@code indexOf} and {@code contains} are computed arithmetically
+   *
+   * @return unmodifiable list of values
+   */
   @NotNull
   public List<String> getValues() {
+    return getValueSpace().asList();
+  }
+
+  /**
+   * Returns value definitions of the resource, as specified by the user
+   *
+   * @return unmodifiable list of value definitions
+   */
+  @NotNull
+  public List<String> getValueDefinitions() {
     return Collections.unmodifiableList(myValues);
   }
 
+  /**
+   * Checks whether value space of the resource contains given value
+   *
+   * @param value value to check
+   * @return {@code true} if resource contains the value
+   */
+  public boolean containsValue(@NotNull final String value) {
+    return getValueSpace().indexOf(value) != -1;
+  }
+
+  /**
+   * Returns occurrence number of the value at given position among equal values of the resource.
+   * For values {@code [a, b, a]} occurrences are {@code [0, 0, 1]}
+   *
+   * @param position position in {@link #getValues()}
+   * @return zero based occurrence number of the value
+   */
+  public int getOccurrence(final int position) {
+    return getValueSpace().getOccurrence(position);
+  }
+
+  /**
+   * Returns positions in {@link #getValues()}, occupied by given numbers of value instances.
+   * Instances of a value occupy its first occurrences
+   *
+   * @param counts value -> number of occupied instances of the value
+   * @return occupied positions
+   */
+  @NotNull
+  public TIntHashSet getPositions(@NotNull final TObjectIntHashMap<String> counts) {
+    return getValueSpace().getPositions(counts);
+  }
+
+  /**
+   * Returns position in {@link #getValues()} of the given occurrence of the value
+   *
+   * @param value value of the resource
+   * @param occurrence zero based occurrence number of the value
+   * @return position of the occurrence, {@code -1} if the value occurs fewer times
+   */
+  public int getPosition(@NotNull final String value, final int occurrence) {
+    return getValueSpace().getPosition(value, occurrence);
+  }
+
+  /**
+   * Returns requirement for the agents, that can use given value
+   *
+   * @param value value of the resource
+   * @return agent requirement or {@code null} if the value can be used on any agent
+   */
+  @Nullable
+  public String getAgentRequirement(@NotNull final String value) {
+    return myValueAgents == null ? null : myValueAgents.get(value);
+  }
+
+  /**
+   * @return {@code true} if some values of the resource are bound to agents
+   */
+  public boolean hasAgentRequirements() {
+    return myValueAgents != null && !myValueAgents.isEmpty();
+  }
+
+  /**
+   * Checks whether given value definition describes a range of values.
+   * Ranges are marked with {@code range:}, e.g. {@code range:db-slot-[1..5000]}
+   *
+   * @param definition value definition
+   * @return {@code true} if definition is a valid range
+   */
+  public static boolean isRange(@NotNull final String definition) {
+    return ValueSpace.isRange(definition);
+  }
+
   @NotNull
   @Override
   public Map<String, String> getParameters() {
     final Map<String, String> result = super.getParameters();
-    result.put("values", myValues.stream().collect(Collectors.joining("\n")));
+    result.put("values", String.join("\n", myValues));
+    if (hasAgentRequirements()) {
+      final StringJoiner valueAgents = new StringJoiner("\n");
+      myValueAgents.forEach((value, requirement) -> valueAgents.add(value + VALUE_AGENTS_SEPARATOR + requirement));
+      result.put("valueAgents", valueAgents.toString());
+    }
+    return result;
+  }
+
+  @NotNull
+  private ValueSpace getValueSpace() {
+    ValueSpace result = myValueSpace;
+    if (result == null) {
+      result = new ValueSpace(myValues);
+      myValueSpace = result;
+    }
     return result;
   }
 }
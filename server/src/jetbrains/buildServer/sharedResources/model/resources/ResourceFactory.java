@@ -16,6 +16,8 @@
 
 package jetbrains.buildServer.sharedResources.model.resources;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
@@ -68,7 +70,26 @@ public class ResourceFactory {
    */
   @NotNull
   public static Resource newCustomResource(@NotNull final String id, @NotNull final String projectId, @NotNull final String name, @NotNull final List<String> values, boolean state) {
-    return CustomResource.newCustomResource(id, projectId, name, values, state);
+    return CustomResource.newCustomResource(id, projectId, name, values, Collections.emptyMap(), state);
+  }
+
+  /**
+   * Creates new custom resource with specified value space and values bound to agents
+   *
+   * @param name name of the resource
+   * @param values values
+   * @param valueAgents requirements for the agents, that can use the values, in format {@code <value, requirement>}
+   * @param state state of the resource
+   * @return new custom resource with specified value space
+   */
+  @NotNull
+  public static Resource newCustomResource(@NotNull final String id,
+                                           @NotNull final String projectId,
+                                           @NotNull final String name,
+                                           @NotNull final List<String> values,
+                                           @NotNull final Map<String, String> valueAgents,
+                                           boolean state) {
+    return CustomResource.newCustomResource(id, projectId, name, values, valueAgents, state);
   }
 
   @Nullable
@@ -95,11 +116,35 @@ public class ResourceFactory {
       if (!isEmptyOrSpaces(valuesStr)) {
         List<String> values = split(valuesStr, true, '\r', '\n');
         if (!values.isEmpty()) {
-          result = CustomResource.newCustomResource(descriptor.getId(), descriptor.getProjectId(), name, values, resourceState);
+          result = CustomResource.newCustomResource(descriptor.getId(), descriptor.getProjectId(), name, values, parseValueAgents(parameters.get(VALUE_AGENTS)), resourceState);
         }
       }
     }
     return result;
   }
 
+  /**
+   * Parses {@code value => agents} mappings of custom resource. Malformed lines are ignored
+   *
+   * @param valueAgentsStr mappings, one per line
+   * @return requirements for the agents in format {@code <value, requirement>}
+   */
+  @NotNull
+  private static Map<String, String> parseValueAgents(@Nullable final String valueAgentsStr) {
+    if (isEmptyOrSpaces(valueAgentsStr)) {
+      return Collections.emptyMap();
+    }
+    final Map<String, String> result = new LinkedHashMap<>();
+    for (String line : split(valueAgentsStr, true, '\r', '\n')) {
+      final int idx = line.indexOf(CustomResource.VALUE_AGENTS_SEPARATOR.trim());
+      if (idx > 0) {
+        final String value = line.substring(0, idx).trim();
+        final String requirement = line.substring(idx + CustomResource.VALUE_AGENTS_SEPARATOR.trim().length()).trim();
+        if (!value.isEmpty() && !requirement.isEmpty()) {
+          result.put(value, requirement);
+        }
+      }
+    }
+    return result;
+  }
 }
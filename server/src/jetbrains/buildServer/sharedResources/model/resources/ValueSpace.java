@@ -0,0 +1,407 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.model.resources;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TObjectIntHashMap;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Class {@code ValueSpace}
+ *
+ * Value space of the custom resource, lazily expanded from value definitions.
+ *
+ * Every definition is either a single value or a range of values.
+ * Ranges are marked with {@code range:} and are defined as {@code range:prefix[from..to]suffix},
+ * e.g. {@code range:db-slot-[1..5000]}, or as plain numeric ranges, e.g. {@code range:30000..39999}.
+ * Zero padded bounds, e.g. {@code range:agent-[001..100]}, produce zero padded values.
+ * Definitions without the marker are always single values, so existing values like {@code x[1..3]} keep their meaning
+ *
+ * Positions and lookups in ranges are computed arithmetically, values of ranges are never stored.
+ * Positions of single values are indexed once per value space
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class ValueSpace {
+
+  @NotNull
+  static final String RANGE_MARKER = "range:";
+
+  @NotNull
+  private static final Pattern BRACKET_RANGE = Pattern.compile("^(.*)\\[(\\d+)\\.\\.(\\d+)](.*)$");
+
+  @NotNull
+  private static final Pattern NUMERIC_RANGE = Pattern.compile("^(\\d+)\\.\\.(\\d+)$");
+
+  @NotNull
+  private final Segment[] mySegments;
+
+  /**
+   * Index of the first value of every segment in the value space
+   */
+  @NotNull
+  private final int[] myOffsets;
+
+  private final int mySize;
+
+  /**
+   * Single value -> positions of the value in the value space, in ascending order
+   */
+  @NotNull
+  private final Map<String, int[]> mySinglePositions;
+
+  /**
+   * Indexes of range segments in ascending order
+   */
+  @NotNull
+  private final int[] myRanges;
+
+  @NotNull
+  private final List<String> myValues = new AbstractList<String>() {
+    @Override
+    public String get(final int index) {
+      return ValueSpace.this.get(index);
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+
+    @Override
+    public int indexOf(final Object o) {
+      return o instanceof String ? ValueSpace.this.indexOf((String)o) : -1;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+      return indexOf(o) != -1;
+    }
+  };
+
+  ValueSpace(@NotNull final List<String> definitions) {
+    mySegments = new Segment[definitions.size()];
+    myOffsets = new int[definitions.size()];
+    final Map<String, TIntArrayList> singlePositions = new HashMap<>();
+    final TIntArrayList ranges = new TIntArrayList();
+    long size = 0;
+    for (int i = 0; i < mySegments.length; i++) {
+      Segment segment = parseRange(definitions.get(i));
+      if (segment == null || size + segment.size() > Integer.MAX_VALUE) {
+        segment = new Segment(definitions.get(i));
+      }
+      mySegments[i] = segment;
+      myOffsets[i] = (int)size;
+      if (segment.myValue != null) {
+        singlePositions.computeIfAbsent(segment.myValue, it -> new TIntArrayList(1)).add((int)size);
+      } else {
+        ranges.add(i);
+      }
+      size += segment.size();
+    }
+    mySize = (int)size;
+    mySinglePositions = new HashMap<>(singlePositions.size());
+    singlePositions.forEach((value, positions) -> mySinglePositions.put(value, positions.toNativeArray()));
+    myRanges = ranges.toNativeArray();
+  }
+
+  /**
+   * Checks whether given value definition describes a range of values
+   *
+   * @param definition value definition
+   * @return {@code true} if definition is a valid range
+   */
+  static boolean isRange(@NotNull final String definition) {
+    return parseRange(definition) != null;
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  @NotNull
+  String get(final int index) {
+    if (index < 0 || index >= mySize) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mySize);
+    }
+    // segments are never empty, so offsets are strictly increasing
+    int segment = Arrays.binarySearch(myOffsets, index);
+    if (segment < 0) {
+      segment = -segment - 2;
+    }
+    return mySegments[segment].get(index - myOffsets[segment]);
+  }
+
+  /**
+   * Returns position of the first occurrence of the value
+   *
+   * @param value value to look for
+   * @return position of the value or {@code -1} if value space does not contain the value
+   */
+  int indexOf(@NotNull final String value) {
+    final int[] singles = mySinglePositions.get(value);
+    int result = singles == null ? -1 : singles[0];
+    for (int range : myRanges) {
+      if (result != -1 && myOffsets[range] > result) {
+        break;
+      }
+      final int local = mySegments[range].indexOf(value);
+      if (local != -1) {
+        return myOffsets[range] + local;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns occurrence number of the value at given position among equal values.
+   * Every segment contains a value at most once, so occurrence number is the number
+   * of preceding segments that contain the same value
+   *
+   * @param index position of the value
+   * @return zero based occurrence number of the value
+   */
+  int getOccurrence(final int index) {
+    final String value = get(index);
+    final int[] singles = mySinglePositions.get(value);
+    int result = 0;
+    if (singles != null) {
+      final int found = Arrays.binarySearch(singles, index);
+      result = found < 0 ? -found - 1 : found;
+    }
+    for (int i = 0; i < myRanges.length && myOffsets[myRanges[i]] + mySegments[myRanges[i]].size() <= index; i++) {
+      if (mySegments[myRanges[i]].indexOf(value) != -1) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns positions, occupied by given numbers of value instances.
+   * Instances of a value occupy its first occurrences in the value space
+   *
+   * @param counts value -> number of occupied instances of the value
+   * @return occupied positions
+   */
+  @NotNull
+  TIntHashSet getPositions(@NotNull final TObjectIntHashMap<String> counts) {
+    final TIntHashSet result = new TIntHashSet();
+    counts.forEachEntry((value, count) -> {
+      final int[] singles = mySinglePositions.get(value);
+      int single = 0;
+      int range = 0;
+      // merge ascending positions of single values and of ranges, containing the value
+      for (int added = 0; added < count; added++) {
+        int rangePosition = -1;
+        while (range < myRanges.length && rangePosition == -1) {
+          final int local = mySegments[myRanges[range]].indexOf(value);
+          if (local != -1) {
+            rangePosition = myOffsets[myRanges[range]] + local;
+          } else {
+            range++;
+          }
+        }
+        final int singlePosition = singles != null && single < singles.length ? singles[single] : -1;
+        if (singlePosition == -1 && rangePosition == -1) {
+          break;
+        }
+        if (rangePosition == -1 || singlePosition != -1 && singlePosition < rangePosition) {
+          result.add(singlePosition);
+          single++;
+        } else {
+          result.add(rangePosition);
+          range++;
+        }
+      }
+      return true;
+    });
+    return result;
+  }
+
+  /**
+   * Returns position of the given occurrence of the value in the value space
+   *
+   * @param value value to find
+   * @param occurrence zero based occurrence number of the value
+   * @return position of the occurrence, {@code -1} if the value occurs fewer times
+   */
+  int getPosition(@NotNull final String value, final int occurrence) {
+    final int[] singles = mySinglePositions.get(value);
+    int single = 0;
+    int range = 0;
+    // merge ascending positions of single values and of ranges, containing the value
+    for (int found = 0; ; found++) {
+      int rangePosition = -1;
+      while (range < myRanges.length && rangePosition == -1) {
+        final int local = mySegments[myRanges[range]].indexOf(value);
+        if (local != -1) {
+          rangePosition = myOffsets[myRanges[range]] + local;
+        } else {
+          range++;
+        }
+      }
+      final int singlePosition = singles != null && single < singles.length ? singles[single] : -1;
+      if (singlePosition == -1 && rangePosition == -1) {
+        return -1;
+      }
+      final int position;
+      if (rangePosition == -1 || singlePosition != -1 && singlePosition < rangePosition) {
+        position = singlePosition;
+        single++;
+      } else {
+        position = rangePosition;
+        range++;
+      }
+      if (found == occurrence) {
+        return position;
+      }
+    }
+  }
+
+  /**
+   * @return unmodifiable view of the values. Values of ranges are computed on access
+   */
+  @NotNull
+  List<String> asList() {
+    return myValues;
+  }
+
+  @Nullable
+  private static Segment parseRange(@NotNull final String definition) {
+    if (!definition.startsWith(RANGE_MARKER)) {
+      return null;
+    }
+    final String range = definition.substring(RANGE_MARKER.length());
+    String prefix = "";
+    String suffix = "";
+    String from;
+    String to;
+    Matcher m = NUMERIC_RANGE.matcher(range);
+    if (m.matches()) {
+      from = m.group(1);
+      to = m.group(2);
+    } else {
+      m = BRACKET_RANGE.matcher(range);
+      if (!m.matches()) {
+        return null;
+      }
+      prefix = m.group(1);
+      from = m.group(2);
+      to = m.group(3);
+      suffix = m.group(4);
+    }
+    if (from.length() > 9 || to.length() > 9) {
+      return null;
+    }
+    final int fromValue = Integer.parseInt(from);
+    final int toValue = Integer.parseInt(to);
+    if (fromValue > toValue) {
+      return null;
+    }
+    final int width = from.length() > 1 && from.charAt(0) == '0' ? from.length() : 0;
+    return new Segment(prefix, fromValue, toValue, width, suffix);
+  }
+
+  /**
+   * Single value or range of values
+   */
+  private static final class Segment {
+
+    @Nullable
+    private final String myValue;
+
+    @NotNull
+    private final String myPrefix;
+
+    @NotNull
+    private final String mySuffix;
+
+    private final int myFrom;
+
+    private final int myTo;
+
+    /**
+     * Width of zero padded numbers, {@code 0} if numbers are not padded
+     */
+    private final int myWidth;
+
+    private Segment(@NotNull final String value) {
+      myValue = value;
+      myPrefix = "";
+      mySuffix = "";
+      myFrom = 0;
+      myTo = 0;
+      myWidth = 0;
+    }
+
+    private Segment(@NotNull final String prefix, final int from, final int to, final int width, @NotNull final String suffix) {
+      myValue = null;
+      myPrefix = prefix;
+      mySuffix = suffix;
+      myFrom = from;
+      myTo = to;
+      myWidth = width;
+    }
+
+    private long size() {
+      return myValue != null ? 1 : (long)myTo - myFrom + 1;
+    }
+
+    @NotNull
+    private String get(final int index) {
+      if (myValue != null) {
+        return myValue;
+      }
+      final String number = Integer.toString(myFrom + index);
+      final StringBuilder sb = new StringBuilder(myPrefix.length() + Math.max(number.length(), myWidth) + mySuffix.length());
+      sb.append(myPrefix);
+      for (int i = number.length(); i < myWidth; i++) {
+        sb.append('0');
+      }
+      return sb.append(number).append(mySuffix).toString();
+    }
+
+    private int indexOf(@NotNull final String value) {
+      if (myValue != null) {
+        return myValue.equals(value) ? 0 : -1;
+      }
+      final int end = value.length() - mySuffix.length();
+      if (end <= myPrefix.length() || !value.startsWith(myPrefix) || !value.endsWith(mySuffix)) {
+        return -1;
+      }
+      final int length = end - myPrefix.length();
+      if (length > 9 || length < myWidth || length > Math.max(myWidth, 1) && value.charAt(myPrefix.length()) == '0') {
+        return -1;
+      }
+      int number = 0;
+      for (int i = myPrefix.length(); i < end; i++) {
+        final char c = value.charAt(i);
+        if (c < '0' || c > '9') {
+          return -1;
+        }
+        number = number * 10 + (c - '0');
+      }
+      return number < myFrom || number > myTo ? -1 : number - myFrom;
+    }
+  }
+}
@@ -32,6 +32,7 @@ import jetbrains.buildServer.controllers.admin.projects.EditableBuildTypeSetting
 import jetbrains.buildServer.serverSide.BuildTypeSettings;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildRunnerDescriptor;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
@@ -116,6 +117,7 @@ public class EditFeatureController extends BaseController {
 
     final String buildFeatureId = request.getParameter("featureId");
     final Map<String, Lock> locks = new HashMap<>();
+    final Map<String, String> releaseAfterStep = new HashMap<>();
     // map of all visible resources from this project and its subtree
     final List<Resource> projectResources = myResources.getResources(project);
     final Set<String> available = projectResources.stream().map(Resource::getName).collect(Collectors.toSet());
@@ -132,6 +134,7 @@ public class EditFeatureController extends BaseController {
         if (buildFeatureId.equals(descriptor.getId())) {
           // we have feature that we need to edit
           locks.putAll(f.getLockedResources());
+          releaseAfterStep.putAll(f.getReleaseAfterStep());
           invalidLocks.addAll(myInspector.inspect(project, f).keySet());
           inherited =  bfb.isInherited();
           String originExternalId = bfb.getOriginExternalId();
@@ -167,7 +170,21 @@ public class EditFeatureController extends BaseController {
     model.put("inherited", inherited);
     model.put("invalidLocks", invalidLocksMap);
     model.put("locks", locks);
+    model.put("releaseAfterStep", releaseAfterStep);
+    model.put("steps", getSteps(buildTypeSettings));
     model.put("bean", bean);
     return result;
   }
+
+  /**
+   * @return names of the build steps, the locks can be released after, in format {@code <StepId, StepName>}
+   */
+  @NotNull
+  private static Map<String, String> getSteps(@NotNull final BuildTypeSettings settings) {
+    final Map<String, String> result = new LinkedHashMap<>();
+    for (SBuildRunnerDescriptor runner: settings.getBuildRunners()) {
+      result.put(runner.getId(), StringUtil.isEmptyOrSpaces(runner.getName()) ? runner.getRunType().getDisplayName() : runner.getName());
+    }
+    return result;
+  }
 }
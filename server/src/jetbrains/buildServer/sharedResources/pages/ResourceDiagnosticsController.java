@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.pages;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.LeaseMonitor;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Serves runtime diagnostics of the plugin as JSON.
+ *
+ * {@code expiredLeases} lists resources, held by running builds longer than their lease allows,
+ * only resources from the projects the user can view are reported.
+ * Optional {@code project_id} parameter limits them to the resources defined in given project.
+ * {@code storage} contains counters of the storage of taken locks, it is server-wide
+ * and is reported only to users, who can view server settings
+ */
+public class ResourceDiagnosticsController extends BaseController {
+
+  @NotNull
+  private final LeaseMonitor myLeaseMonitor;
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final SecurityContext mySecurityContext;
+
+  public ResourceDiagnosticsController(@NotNull final WebControllerManager controllerManager,
+                                       @NotNull final LeaseMonitor leaseMonitor,
+                                       @NotNull final LocksStorage locksStorage,
+                                       @NotNull final SecurityContext securityContext) {
+    myLeaseMonitor = leaseMonitor;
+    myLocksStorage = locksStorage;
+    mySecurityContext = securityContext;
+    controllerManager.registerController(SharedResourcesPluginConstants.WEB.DIAGNOSTICS, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request,
+                                  @NotNull final HttpServletResponse response) throws IOException {
+    final String projectId = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_PROJECT_ID);
+    final AuthorityHolder authorityHolder = mySecurityContext.getAuthorityHolder();
+    final List<Map.Entry<Resource, Integer>> expired =
+      myLeaseMonitor.getExpiredLeases().entrySet().stream()
+                    .filter(it -> projectId == null || projectId.equals(it.getKey().getProjectId()))
+                    .filter(it -> authorityHolder.isPermissionGrantedForProject(it.getKey().getProjectId(), Permission.VIEW_PROJECT))
+                    .sorted(Comparator.comparing(it -> it.getKey().getName()))
+                    .collect(Collectors.toList());
+
+    final JsonArray expiredLeases = new JsonArray();
+    for (Map.Entry<Resource, Integer> entry : expired) {
+      final Resource resource = entry.getKey();
+      final JsonObject item = new JsonObject();
+      item.addProperty("id", resource.getId());
+      item.addProperty("name", resource.getName());
+      item.addProperty("projectId", resource.getProjectId());
+      item.addProperty("builds", entry.getValue());
+      expiredLeases.add(item);
+    }
+    final JsonObject result = new JsonObject();
+    result.add("expiredLeases", expiredLeases);
+    if (authorityHolder.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+      final JsonObject storage = new JsonObject();
+      myLocksStorage.getStatistics().forEach(storage::addProperty);
+      result.add("storage", storage);
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().write(result.toString());
+    return null;
+  }
+}
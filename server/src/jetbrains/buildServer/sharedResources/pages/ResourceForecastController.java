@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.pages;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.AvailabilityForecast;
+import jetbrains.buildServer.sharedResources.server.runtime.AvailabilityForecaster;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Serves predicted availability of locked resources as JSON.
+ *
+ * Only resources from the projects the user can view are reported.
+ * Optional {@code project_id} parameter limits the result to the resources defined in given project.
+ * {@code availableIn} is in seconds, {@code -1} means there is no estimate
+ */
+public class ResourceForecastController extends BaseController {
+
+  @NotNull
+  private final AvailabilityForecaster myForecaster;
+
+  @NotNull
+  private final SecurityContext mySecurityContext;
+
+  public ResourceForecastController(@NotNull final WebControllerManager controllerManager,
+                                    @NotNull final AvailabilityForecaster forecaster,
+                                    @NotNull final SecurityContext securityContext) {
+    myForecaster = forecaster;
+    mySecurityContext = securityContext;
+    controllerManager.registerController(SharedResourcesPluginConstants.WEB.FORECAST, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request,
+                                  @NotNull final HttpServletResponse response) throws IOException {
+    final String projectId = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_PROJECT_ID);
+    final AuthorityHolder authorityHolder = mySecurityContext.getAuthorityHolder();
+    final AvailabilityForecast forecast = myForecaster.getForecast();
+    final List<AvailabilityForecast.ResourceAvailability> availabilities =
+      forecast.getAvailabilities().stream()
+              .filter(it -> projectId == null || projectId.equals(it.getResource().getProjectId()))
+              .filter(it -> authorityHolder.isPermissionGrantedForProject(it.getResource().getProjectId(), Permission.VIEW_PROJECT))
+              .sorted(Comparator.comparing(it -> it.getResource().getName()))
+              .collect(Collectors.toList());
+
+    final JsonArray resources = new JsonArray();
+    for (AvailabilityForecast.ResourceAvailability availability : availabilities) {
+      final Resource resource = availability.getResource();
+      final JsonObject item = new JsonObject();
+      item.addProperty("id", resource.getId());
+      item.addProperty("name", resource.getName());
+      item.addProperty("projectId", resource.getProjectId());
+      item.addProperty("holders", availability.getHolders());
+      item.addProperty("waiting", availability.getWaiting());
+      item.addProperty("availableIn", availability.getAvailableIn());
+      resources.add(item);
+    }
+    final JsonObject result = new JsonObject();
+    result.addProperty("computed", forecast.getComputed());
+    result.add("resources", resources);
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().write(result.toString());
+    return null;
+  }
+}
@@ -125,6 +125,33 @@ public class ResourceHelper {
     return resource;
   }
 
+  /**
+   * Gets parameters of the edited resource. Lease settings and agents of the values are included only if they are sent with the request,
+   * otherwise they are kept as they are. Sent empty value clears the setting
+   *
+   * @param resource resource from request
+   * @param request edit request
+   * @return parameters of the project feature to update
+   */
+  @NotNull
+  public Map<String, String> getEditedParameters(@NotNull final Resource resource, @NotNull final HttpServletRequest request) {
+    final Map<String, String> result = resource.getParameters();
+    putIfSent(request, SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE_TIMEOUT, SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_TIMEOUT, result);
+    putIfSent(request, SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE_ACTION, SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_ACTION, result);
+    putIfSent(request, SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_VALUE_AGENTS, SharedResourcesPluginConstants.ProjectFeatureParameters.VALUE_AGENTS, result);
+    return result;
+  }
+
+  private static void putIfSent(@NotNull final HttpServletRequest request,
+                                @NotNull final String requestParameter,
+                                @NotNull final String featureParameter,
+                                @NotNull final Map<String, String> result) {
+    final String value = request.getParameter(requestParameter);
+    if (value != null) {
+      result.put(featureParameter, value.trim());
+    }
+  }
+
   @NotNull
   public Resource getResourceInState(@NotNull final String projectId, @NotNull final Resource resource, final boolean state) {
     Resource result;
@@ -138,7 +165,7 @@ public class ResourceHelper {
       }
     } else {
       final CustomResource cr = (CustomResource) resource;
-      result = ResourceFactory.newCustomResource(resource.getId(), projectId, resource.getName(), cr.getValues(), state);
+      result = ResourceFactory.newCustomResource(resource.getId(), projectId, resource.getName(), cr.getValueDefinitions(), state);
     }
     return result;
   }
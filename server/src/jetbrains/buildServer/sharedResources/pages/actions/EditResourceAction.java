@@ -83,7 +83,7 @@ public final class EditResourceAction extends BaseResourceAction implements Cont
           return;
         }
         boolean selfPersisted = false;
-        myProjectFeatures.updateFeature(project, resource.getId(), resource.getParameters());
+        myProjectFeatures.updateFeature(project, resource.getId(), myResourceHelper.getEditedParameters(resource, request));
         ConfigAction cause = myConfigActionFactory.createAction(project, "'" + resource.getName() + "' shared resource was updated");
         if (changedName) {
           // my resource can be used only in my build configurations or in build configurations in my subtree
@@ -22,8 +22,8 @@ import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.parameters.AbstractBuildParametersProvider;
 import jetbrains.buildServer.serverSide.parameters.BuildParametersProvider;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import org.jetbrains.annotations.NotNull;
 
@@ -39,7 +39,7 @@ import org.jetbrains.annotations.NotNull;
 public class BuildFeatureParametersProvider extends AbstractBuildParametersProvider implements BuildParametersProvider {
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
+  private final LockPlans myLockPlans;
 
   @NotNull
   private final LocksStorage myStorage;
@@ -47,10 +47,10 @@ public class BuildFeatureParametersProvider extends AbstractBuildParametersProvi
   @NotNull
   private final Locks myLocks;
 
-  public BuildFeatureParametersProvider(@NotNull final SharedResourcesFeatures features,
+  public BuildFeatureParametersProvider(@NotNull final LockPlans lockPlans,
                                         @NotNull final Locks locks,
                                         @NotNull final LocksStorage storage) {
-    myFeatures = features;
+    myLockPlans = lockPlans;
     myLocks = locks;
     myStorage = storage;
   }
@@ -69,9 +69,10 @@ public class BuildFeatureParametersProvider extends AbstractBuildParametersProvi
     final Map<String, String> result = new HashMap<>();
     final SBuildType buildType = build.getBuildType();
     if (buildType != null) {
-      myLocks.fromBuildFeaturesAsMap(myFeatures.searchForFeatures(buildType))
-             .values()
-             .forEach(lock -> result.put(myLocks.asBuildParameter(lock), lock.getValue()));
+      myLockPlans.getPlan(buildType)
+                 .getLocks()
+                 .values()
+                 .forEach(lock -> result.put(myLocks.asBuildParameter(lock), lock.getValue()));
     }
     return result;
   }
@@ -22,13 +22,14 @@ import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
@@ -45,25 +46,25 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
 public class ConfigurationInspector {
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
+  private final LockPlans myLockPlans;
 
   @NotNull
   private final Resources myResources;
 
-  public ConfigurationInspector(@NotNull final SharedResourcesFeatures features,
+  public ConfigurationInspector(@NotNull final LockPlans lockPlans,
                                 @NotNull final Resources resources) {
-    myFeatures = features;
+    myLockPlans = lockPlans;
     myResources = resources;
   }
 
   @NotNull
   public Map<Lock, String> inspect(@NotNull final SBuildType type) {
-    return getInvalidLocks(type.getProject(), myFeatures.searchForFeatures(type));
+    return getInvalidLocks(type.getProject(), myLockPlans.getPlan(type).getLocks());
   }
 
   @NotNull
   public Map<Lock, String> inspect(@NotNull final SProject project, @NotNull final SharedResourcesFeature feature) {
-    return getInvalidLocks(project, Collections.singleton(feature));
+    return getInvalidLocks(project, feature.getLockedResources());
   }
 
   /**
@@ -163,13 +164,12 @@ public class ConfigurationInspector {
   private static final String OK = "OK";
 
   private Map<Lock, String> getInvalidLocks(@NotNull final SProject project,
-                                            @NotNull final Collection<SharedResourcesFeature> features) {
+                                            @NotNull final Map<String, Lock> requestedLocks) {
     final Map<Lock, String> result = new HashMap<>();
-    final Map<String, Lock> locks = new HashMap<>();
-    features.stream().map(SharedResourcesFeature::getLockedResources).forEach(locks::putAll);
-    if (locks.isEmpty()) {
+    if (requestedLocks.isEmpty()) {
       return result;
     }
+    final Map<String, Lock> locks = new HashMap<>(requestedLocks);
     final List<SProject> path = project.getProjectPath();
     final ListIterator<SProject> iterator = path.listIterator(path.size());
     while (iterator.hasPrevious() && !locks.isEmpty()) {
@@ -224,7 +224,7 @@ public class ConfigurationInspector {
   private String tryMatch(@NotNull final Resource r, @NotNull final Lock lock) {
     if (!"".equals(lock.getValue())) {
       if (ResourceType.CUSTOM == r.getType()) {
-        if (!((CustomResource) r).getValues().contains(lock.getValue())) {
+        if (!((CustomResource) r).containsValue(lock.getValue())) {
           // values domain does not contain required value
           return "Resource '" + lock.getName() + "' does not contain required value '" + lock.getValue() + "'";
         }
@@ -233,6 +233,25 @@ public class ConfigurationInspector {
         return "Resource '" + lock.getName() + "' has wrong type: expected 'custom' got " + (((QuotedResource) r).isInfinite() ? "'infinite'" : "'quoted'");
       }
     }
+    if (lock.getUnits() > 1) {
+      if (ResourceType.CUSTOM == r.getType()) {
+        // several values can be requested only by ANY lock
+        if (lock.getType() != LockType.READ || !"".equals(lock.getValue())) {
+          return "Only lock on any value of resource '" + lock.getName() + "' can request several values";
+        }
+        final int size = ((CustomResource) r).getValues().size();
+        if (lock.getUnits() > size) {
+          // lock can never be acquired
+          return "Lock on resource '" + lock.getName() + "' requires " + lock.getUnits() + " values, but resource has " + size;
+        }
+      } else {
+        final QuotedResource quoted = (QuotedResource) r;
+        if (!quoted.isInfinite() && lock.getUnits() > quoted.getQuota()) {
+          // lock can never be acquired
+          return "Lock on resource '" + lock.getName() + "' requires " + lock.getUnits() + " units, but quota is " + quoted.getQuota();
+        }
+      }
+    }
     return OK;
   }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import com.intellij.openapi.util.text.StringUtil;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.server.runtime.AvailabilityForecast.UNKNOWN;
+
+/**
+ * Wait reason of the build, that is waiting for locked resources.
+ *
+ * Stores ids of unavailable resources and of the build promotions holding them, together with predicted
+ * availability of the resources and time the build has been waiting in the write lock queues, rounded to minutes.
+ * Description is rendered on the first call of {@link #getDescription()}.
+ * Reasons are equal if they describe the same blocked state
+ */
+public final class LocksWaitReason implements WaitReason {
+
+  /**
+   * Blocked locks, sorted by lock name
+   */
+  @NotNull
+  private final BlockedLock[] myBlockedLocks;
+
+  private final int myHashCode;
+
+  @Nullable
+  private volatile String myDescription;
+
+  private LocksWaitReason(@NotNull final BlockedLock[] blockedLocks) {
+    myBlockedLocks = blockedLocks;
+    myHashCode = Arrays.hashCode(blockedLocks);
+  }
+
+  /**
+   * Creates wait reason for given unavailable locks
+   *
+   * @param takenLocks locks, taken by running and distributed builds
+   * @param unavailableLocks locks, that cannot be acquired by the build, in format {@code <Resource, Lock>}
+   * @return wait reason for unavailable locks
+   */
+  @NotNull
+  public static LocksWaitReason create(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                       @NotNull final Map<Resource, Lock> unavailableLocks) {
+    return create(takenLocks, unavailableLocks, null, null);
+  }
+
+  /**
+   * Creates wait reason for given unavailable locks, that mentions predicted availability of the resources
+   *
+   * @param takenLocks locks, taken by running and distributed builds
+   * @param unavailableLocks locks, that cannot be acquired by the build, in format {@code <Resource, Lock>}
+   * @param availableIn predicted time in seconds until the unavailable locks can be taken, {@code -1} if there is no estimate
+   * @param waited time in milliseconds the build has been waiting in the write lock queues of the resources
+   * @return wait reason for unavailable locks
+   */
+  @NotNull
+  public static LocksWaitReason create(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                       @NotNull final Map<Resource, Lock> unavailableLocks,
+                                       @Nullable final Map<Resource, Long> availableIn,
+                                       @Nullable final Map<Resource, Long> waited) {
+    final BlockedLock[] blockedLocks = new BlockedLock[unavailableLocks.size()];
+    int i = 0;
+    for (Map.Entry<Resource, Lock> entry : unavailableLocks.entrySet()) {
+      final String resourceId = entry.getKey().getId();
+      final Long seconds = availableIn == null ? null : availableIn.get(entry.getKey());
+      final Long waitTime = waited == null ? null : waited.get(entry.getKey());
+      blockedLocks[i++] = new BlockedLock(entry.getValue().getName(), resourceId, takenLocks.get(entry.getKey()),
+                                          seconds == null ? UNKNOWN : toMinutes(seconds),
+                                          waitTime == null ? UNKNOWN : TimeUnit.MILLISECONDS.toMinutes(waitTime));
+    }
+    Arrays.sort(blockedLocks, Comparator.comparing(it -> it.myLockName));
+    return new LocksWaitReason(blockedLocks);
+  }
+
+  @NotNull
+  @Override
+  public String getDescription() {
+    String result = myDescription;
+    if (result == null) {
+      result = render();
+      myDescription = result;
+    }
+    return result;
+  }
+
+  @NotNull
+  private String render() {
+    final StringBuilder builder = new StringBuilder("Build is waiting for the following ");
+    builder.append(myBlockedLocks.length > 1 ? "resources " : "resource ");
+    builder.append("to become available: ");
+    for (int i = 0; i < myBlockedLocks.length; i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      myBlockedLocks[i].render(builder);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Rounds predicted time up to minutes, so reasons of the builds stay equal while the prediction changes within a minute
+   */
+  private static long toMinutes(final long seconds) {
+    return seconds == UNKNOWN ? UNKNOWN : (seconds + 59) / 60;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    final LocksWaitReason that = (LocksWaitReason)o;
+    return myHashCode == that.myHashCode && Arrays.equals(myBlockedLocks, that.myBlockedLocks);
+  }
+
+  @Override
+  public int hashCode() {
+    return myHashCode;
+  }
+
+  @Override
+  public String toString() {
+    return getDescription();
+  }
+
+  /**
+   * Lock, that cannot be acquired, together with the build promotions holding the resource
+   */
+  private static final class BlockedLock {
+
+    @NotNull
+    private final String myLockName;
+
+    @NotNull
+    private final String myResourceId;
+
+    /**
+     * Holders of the resource, sorted by promotion id
+     */
+    @NotNull
+    private final BuildPromotionEx[] myHolders;
+
+    @NotNull
+    private final long[] myHolderIds;
+
+    /**
+     * Predicted time in minutes until the resource becomes available, {@code -1} if there is no prediction
+     */
+    private final long myAvailableIn;
+
+    /**
+     * Time in full minutes the build has been waiting in the write lock queue of the resource, {@code -1} if it does not wait in the queue
+     */
+    private final long myWaited;
+
+    private BlockedLock(@NotNull final String lockName,
+                        @NotNull final String resourceId,
+                        @Nullable final TakenLock takenLock,
+                        final long availableIn,
+                        final long waited) {
+      myLockName = lockName;
+      myResourceId = resourceId;
+      myAvailableIn = availableIn;
+      myWaited = waited;
+      if (takenLock == null) {
+        myHolders = new BuildPromotionEx[0];
+      } else {
+        final Set<BuildPromotionEx> readHolders = takenLock.getReadLocks().keySet();
+        final Set<BuildPromotionEx> writeHolders = takenLock.getWriteLocks().keySet();
+        myHolders = new BuildPromotionEx[readHolders.size() + writeHolders.size()];
+        int i = 0;
+        for (BuildPromotionEx holder : readHolders) {
+          myHolders[i++] = holder;
+        }
+        for (BuildPromotionEx holder : writeHolders) {
+          myHolders[i++] = holder;
+        }
+        Arrays.sort(myHolders, Comparator.comparingLong(BuildPromotionEx::getId));
+      }
+      myHolderIds = new long[myHolders.length];
+      for (int i = 0; i < myHolders.length; i++) {
+        myHolderIds[i] = myHolders[i].getId();
+      }
+    }
+
+    private void render(@NotNull final StringBuilder builder) {
+      builder.append(myLockName);
+      final Set<String> buildTypeNames = new TreeSet<>();
+      for (BuildPromotionEx holder : myHolders) {
+        final BuildTypeEx bt = holder.getBuildType();
+        if (bt != null) {
+          buildTypeNames.add(bt.getExtendedFullName());
+        }
+      }
+      final List<String> details = new ArrayList<>(3);
+      if (!buildTypeNames.isEmpty()) {
+        details.add("locked by " + String.join(", ", buildTypeNames));
+      }
+      if (myWaited > 0) {
+        details.add("waiting in the queue for " + myWaited + " " + StringUtil.pluralize("minute", (int)myWaited));
+      }
+      if (myAvailableIn == 0) {
+        details.add("expected to be available in less than a minute");
+      } else if (myAvailableIn != UNKNOWN) {
+        details.add("expected to be available in about " + myAvailableIn + " " + StringUtil.pluralize("minute", (int)myAvailableIn));
+      }
+      if (!details.isEmpty()) {
+        builder.append(" (");
+        builder.append(String.join("; ", details));
+        builder.append(")");
+      }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final BlockedLock that = (BlockedLock)o;
+      return myAvailableIn == that.myAvailableIn
+             && myWaited == that.myWaited
+             && myLockName.equals(that.myLockName)
+             && myResourceId.equals(that.myResourceId)
+             && Arrays.equals(myHolderIds, that.myHolderIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (31 * (31 * myLockName.hashCode() + myResourceId.hashCode()) + Arrays.hashCode(myHolderIds)) + Long.hashCode(myAvailableIn)) + Long.hashCode(myWaited);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.buildLog.ServiceMessageTranslator;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Releases locks of the running build before the build finishes.
+ *
+ * Scope of the lock is usually configured in the build feature and the lock is released after the configured step,
+ * see {@link StepLocksReleaser}. Build can also end the scope of the locks explicitly with service message
+ * {@code ##teamcity[releaseSharedResource name='<resource name>']}.
+ * Message without name releases all locks of the build.
+ * Released locks are removed from {@link LocksStorage}, so waiting builds can take them on the next distribution
+ */
+public class ReleaseLocksMessageTranslator implements ServiceMessageTranslator {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ReleaseLocksMessageTranslator.class.getName());
+
+  @NotNull
+  public static final String MESSAGE_NAME = "releaseSharedResource";
+
+  @NotNull
+  public static final String NAME_ATTRIBUTE = "name";
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final BuildUsedResourcesReport myBuildUsedResourcesReport;
+
+  public ReleaseLocksMessageTranslator(@NotNull final LocksStorage locksStorage,
+                                       @NotNull final BuildUsedResourcesReport buildUsedResourcesReport) {
+    myLocksStorage = locksStorage;
+    myBuildUsedResourcesReport = buildUsedResourcesReport;
+  }
+
+  @NotNull
+  @Override
+  public String getServiceMessageName() {
+    return MESSAGE_NAME;
+  }
+
+  @NotNull
+  @Override
+  public List<BuildMessage1> translate(@NotNull final SRunningBuild runningBuild,
+                                       @NotNull final BuildMessage1 originalMessage,
+                                       @NotNull final ServiceMessage serviceMessage) {
+    final BuildPromotionEx promotion = (BuildPromotionEx)runningBuild.getBuildPromotion();
+    String name = serviceMessage.getArgument();
+    if (name == null) {
+      name = serviceMessage.getAttributes().get(NAME_ATTRIBUTE);
+    }
+    final Collection<String> lockNames;
+    if (StringUtil.isEmptyOrSpaces(name)) {
+      lockNames = myLocksStorage.load(promotion).keySet();
+    } else {
+      lockNames = Collections.singleton(name.trim());
+    }
+    if (lockNames.isEmpty()) {
+      return Collections.singletonList(DefaultMessagesInfo.createTextMessage("Build holds no locks on shared resources"));
+    }
+    final Map<String, Lock> released = myLocksStorage.release(promotion, lockNames);
+    if (released.isEmpty()) {
+      return Collections.singletonList(DefaultMessagesInfo.createTextMessage("Build holds no lock on shared resource '" + name + "'"));
+    }
+    myBuildUsedResourcesReport.markReleased(promotion, released.keySet());
+    final List<String> names = new ArrayList<>(released.keySet());
+    Collections.sort(names);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Build promotion " + promotion.getId() + " released locks on " + names);
+    }
+    return Collections.singletonList(DefaultMessagesInfo.createTextMessage("Released locks on shared resources: " + StringUtil.join(names, ", ")));
+  }
+}
@@ -16,12 +16,16 @@
 
 package jetbrains.buildServer.sharedResources.server;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.*;
 import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
@@ -31,12 +35,17 @@ import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
-import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.runtime.AdmissionPlan;
+import jetbrains.buildServer.sharedResources.server.runtime.AgentMatches;
+import jetbrains.buildServer.sharedResources.server.runtime.AdmissionPlanner;
+import jetbrains.buildServer.sharedResources.server.runtime.AvailabilityForecaster;
 import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
+import jetbrains.buildServer.sharedResources.server.runtime.LockForecasts;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueue;
 import jetbrains.buildServer.sharedResources.server.runtime.ResourceAffinity;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
 import org.jetbrains.annotations.NotNull;
@@ -55,10 +64,7 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   private static final Logger LOG = Logger.getInstance(SharedResourcesAgentsFilter.class.getName());
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
-
-  @NotNull
-  private final Locks myLocks;
+  private final LockPlans myLockPlans;
 
   @NotNull
   private final TakenLocks myTakenLocks;
@@ -75,43 +81,80 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   @NotNull
   private final Resources myResources;
 
-  public SharedResourcesAgentsFilter(@NotNull final SharedResourcesFeatures features,
-                                     @NotNull final Locks locks,
+  @NotNull
+  private final AdmissionPlanner myPlanner;
+
+  @NotNull
+  private final AvailabilityForecaster myForecaster;
+
+  @NotNull
+  private final ResourceWaitQueue myWaitQueue;
+
+  /**
+   * Wait reasons of blocked builds. Reasons are kept while the queue refers to them
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private final Interner<LocksWaitReason> myWaitReasons = Interners.newWeakInterner();
+
+  public SharedResourcesAgentsFilter(@NotNull final LockPlans lockPlans,
                                      @NotNull final TakenLocks takenLocks,
                                      @NotNull final RunningBuildsManagerEx runningBuildsManager,
                                      @NotNull final ConfigurationInspector inspector,
                                      @NotNull final LocksStorage locksStorage,
-                                     @NotNull final Resources resources) {
-    myFeatures = features;
-    myLocks = locks;
+                                     @NotNull final Resources resources,
+                                     @NotNull final AdmissionPlanner planner,
+                                     @NotNull final AvailabilityForecaster forecaster,
+                                     @NotNull final ResourceWaitQueue waitQueue) {
+    myLockPlans = lockPlans;
     myTakenLocks = takenLocks;
     myRunningBuildsManager = runningBuildsManager;
     myInspector = inspector;
     myLocksStorage = locksStorage;
     myResources = resources;
+    myPlanner = planner;
+    myForecaster = forecaster;
+    myWaitQueue = waitQueue;
   }
 
   @NotNull
   @Override
   public AgentsFilterResult filterAgents(@NotNull final AgentsFilterContext context) {
-    final DistributionDataAccessor accessor = new DistributionDataAccessor(context);
-
     final QueuedBuildInfo queuedBuild = context.getStartingBuild();
+    final BuildPromotionEx myPromotion = (BuildPromotionEx) queuedBuild.getBuildPromotionInfo();
+    final boolean checkChain = TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && myPromotion.isPartOfBuildChain();
+    final List<BuildPromotionEx> depPromos = checkChain ? myPromotion.getDependentCompositePromotions() : Collections.emptyList();
+    if (depPromos.isEmpty() && !usesSharedResources(myPromotion)) {
+      // neither the build nor composite builds it belongs to can take locks
+      return new AgentsFilterResult();
+    }
+
+    final DistributionDataAccessor accessor = new DistributionDataAccessor(context);
     final Map<QueuedBuildInfo, SBuildAgent> canBeStarted = context.getDistributedBuilds();
     final List<RunningBuildEx> runningBuilds = myRunningBuildsManager.getRunningBuildsEx();
 
     final AtomicReference<Map<Resource,TakenLock>> takenLocks = new AtomicReference<>();
+    // agents, compatible with the values of custom resources allocated for the build
+    final Set<SBuildAgent> agents = new LinkedHashSet<>(context.getAgentsForStartingBuild());
     // get or create our collection of resources
     WaitReason reason = null;
-    final BuildPromotionEx myPromotion = (BuildPromotionEx) queuedBuild.getBuildPromotionInfo();
     actualizeResourceAffinity(accessor.getResourceAffinity(), canBeStarted.keySet(), runningBuilds);
 
-    if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && myPromotion.isPartOfBuildChain()) {
+    if (myPlanner.isEnabled() && !context.isEmulationMode()) {
+      // decision for the build is precomputed for the whole queue once per distribution cycle
+      reason = getAdmissionPlan(accessor, runningBuilds, canBeStarted, takenLocks).getWaitReason(myPromotion.getId());
+      if (reason != null) {
+        final AgentsFilterResult result = new AgentsFilterResult();
+        result.setWaitReason(reason);
+        return result;
+      }
+    }
+
+    if (checkChain) {
       LOG.debug("Queued build is part of build chain");
-      final List<BuildPromotionEx> depPromos = myPromotion.getDependentCompositePromotions();
       if (depPromos.isEmpty()) {
         LOG.debug("Queued build does not have dependent composite promotions");
-        reason = processSingleBuild(myPromotion, accessor, runningBuilds, canBeStarted, takenLocks, myPromotion, context.isEmulationMode());
+        reason = processSingleBuild(myPromotion, accessor, runningBuilds, canBeStarted, takenLocks, myPromotion, agents, context.isEmulationMode());
       } else {
         LOG.debug("Queued build does have " + depPromos.size() + " dependent composite " + StringUtil.pluralize("promotion", depPromos.size()));
         // contains resources and locks that are INSIDE of the build chain
@@ -119,19 +162,13 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
         final Map<String, Map<String, Resource>> chainResources = new HashMap<>(); // projectID -> {name, resource}
         // first - get top of the chain. Builds that are already running.
         // they have locks already taken
+        // resolved locks of the nodes are kept for the whole distribution cycle and shared by all members of the chain
+        final TLongObjectHashMap<Map<Resource, Lock>> chainNodeLocks = accessor.getChainNodeLocks();
         depPromos.stream()
                  .filter(it -> it.getProjectId() != null)
-                 .forEach(promo -> {
-                   if (myLocksStorage.locksStored(promo)) {
-                     LOG.debug("build promotion" + promo.getId() + " is running. Loading locks");
-                     final Map<String, Lock> currentNodeLocks = myLocksStorage.load(promo);
-                     if (!currentNodeLocks.isEmpty()) {
-                       chainResources.computeIfAbsent(promo.getProjectId(), myResources::getResourcesMap);
-                       // if there are locks - resolve locks against resources according to project hierarchy of composite build
-                       resolve(chainLocks, chainResources.get(promo.getProjectId()), promo, currentNodeLocks);
-                     }
-                   }
-                 });
+                 .forEach(promo -> getNodeLocks(chainNodeLocks, promo).forEach(
+                   (resource, lock) -> chainLocks.computeIfAbsent(resource, k -> new HashMap<>()).put(promo, lock)
+                 ));
 
         // rest are queued builds.
         // make sure queued builds can start.
@@ -143,15 +180,15 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
         for (SQueuedBuild compositeQueuedBuild : queued) {
           final SBuildType compositeQueuedBuildType = getBuildTypeSafe(compositeQueuedBuild);
           if (compositeQueuedBuildType == null) continue;
-          final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(compositeQueuedBuildType);
-          if (!features.isEmpty()) {
-            final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
+          final LockPlan plan = myLockPlans.getPlan(compositeQueuedBuildType);
+          if (plan.hasFeatures()) {
+            final Map<String, Lock> locksToTake = plan.getLocks();
             if (!locksToTake.isEmpty()) {
               // resolve locks that build wants to take against actual resources
               chainResources.computeIfAbsent(compositeQueuedBuildType.getProjectId(), myResources::getResourcesMap);
               reason = processBuildInChain(accessor, runningBuilds, canBeStarted, takenLocks,
                                            chainResources.get(compositeQueuedBuildType.getProjectId()),
-                                           chainLocks, locksToTake, compositeQueuedBuild.getBuildPromotion(), context.isEmulationMode());
+                                           chainLocks, locksToTake, compositeQueuedBuild.getBuildPromotion(), null, context.isEmulationMode());
               if (reason != null) {
                 if (LOG.isDebugEnabled()) {
                   LOG.debug("Firing precondition for queued build [" + compositeQueuedBuild + "] with reason: [" + reason.getDescription() + "]");
@@ -168,33 +205,56 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
           if (promoBuildType != null) {
             final String projectId = promoBuildType.getProjectId();
             chainResources.computeIfAbsent(projectId, myResources::getResourcesMap);
-            final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(promoBuildType);
+            final LockPlan plan = myLockPlans.getPlan(promoBuildType);
 
-            if (!features.isEmpty()) {
+            if (plan.hasFeatures()) {
               reason = checkForInvalidLocks(promoBuildType);
             }
-            final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
+            final Map<String, Lock> locksToTake = plan.getLocks();
             if (!locksToTake.isEmpty()) {
-              reason = processBuildInChain(accessor, runningBuilds, canBeStarted, takenLocks, chainResources.get(projectId), chainLocks, locksToTake, myPromotion, context.isEmulationMode());
+              reason = processBuildInChain(accessor, runningBuilds, canBeStarted, takenLocks, chainResources.get(projectId), chainLocks, locksToTake, myPromotion, agents, context.isEmulationMode());
             }
           }
         }
       }
     } else {
-      reason = processSingleBuild(myPromotion, accessor, runningBuilds, canBeStarted, takenLocks, myPromotion, context.isEmulationMode());
+      reason = processSingleBuild(myPromotion, accessor, runningBuilds, canBeStarted, takenLocks, myPromotion, agents, context.isEmulationMode());
+    }
+    if (reason == null && !context.isEmulationMode()) {
+      // grant is recorded only when the build has passed all its locks,
+      // builds that are still blocked on some locks keep their tickets
+      myWaitQueue.granted(myPromotion);
     }
     final AgentsFilterResult result = new AgentsFilterResult();
     result.setWaitReason(reason);
+    if (reason == null && agents.size() < context.getAgentsForStartingBuild().size()) {
+      result.setFilteredConnectedAgents(agents);
+    }
     return result;
   }
 
+  private boolean usesSharedResources(@NotNull final BuildPromotionEx promotion) {
+    final SBuildType buildType = promotion.getBuildType();
+    return buildType != null && myLockPlans.getPlan(buildType).hasFeatures();
+  }
+
+  /**
+   * Clears resource affinity of the builds that were processed by the plugin but are not distributed.
+   * Distributed builds can be removed from the distribution by other extensions later in the cycle,
+   * so affinity is checked against current distributed builds on every call, as it is done for taken locks
+   */
   private void actualizeResourceAffinity(@NotNull final ResourceAffinity resourceAffinity,
                                          @NotNull final Collection<QueuedBuildInfo> canBeStarted,
                                          @NotNull final Collection<RunningBuildEx> runningBuilds) {
-    resourceAffinity.actualize(Stream.concat(
-      canBeStarted.stream().map(QueuedBuildInfo::getBuildPromotionInfo).map(BuildPromotionInfo::getId),
-      runningBuilds.stream().map(SRunningBuild::getBuildPromotion).map(BuildPromotion::getId)
-    ).collect(Collectors.toSet()));
+    resourceAffinity.actualize(() -> {
+      final TLongHashSet result = new TLongHashSet(canBeStarted.size());
+      canBeStarted.forEach(it -> result.add(it.getBuildPromotionInfo().getId()));
+      return result;
+    }, () -> {
+      final TLongHashSet result = new TLongHashSet(runningBuilds.size());
+      runningBuilds.forEach(it -> result.add(it.getBuildPromotion().getId()));
+      return result;
+    });
   }
 
   @Nullable
@@ -214,17 +274,18 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
                                          @NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
                                          @NotNull final Map<String, Lock> locksToTake,
                                          @NotNull final BuildPromotion buildPromotion,
+                                         @Nullable final Set<SBuildAgent> agents,
                                          boolean emulationMode) {
     final String projectId = buildPromotion.getProjectId();
     WaitReason reason = null;
     if (projectId != null) {
-      gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks);
+      gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks, accessor);
       final Map<Resource, Lock> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks.get(), accessor, chainNodeResources, chainLocks, buildPromotion);
       if (!unavailableLocks.isEmpty()) {
-        reason = createWaitReason(takenLocks.get(), unavailableLocks);
+        reason = createWaitReason(accessor, takenLocks.get(), unavailableLocks, buildPromotion);
       } else {
-        storeResourcesAffinity((BuildPromotionEx)buildPromotion, projectId, takenLocks.get(), locksToTake.values(), accessor, emulationMode); // assign ANY locks here
-        // if we are here, then the build will pass on to be started
+        reason = storeResourcesAffinity((BuildPromotionEx)buildPromotion, projectId, takenLocks.get(), locksToTake.values(), accessor, agents, emulationMode); // assign ANY locks here
+        // if we are here and there is no reason, then the build will pass on to be started
       }
     }
     return reason;
@@ -236,28 +297,29 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
                                         @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
                                         @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks,
                                         @NotNull final BuildPromotion promotion,
+                                        @Nullable final Set<SBuildAgent> agents,
                                         final boolean emulationMode) {
     final String projectId = buildPromotion.getProjectId();
     final SBuildType buildType = buildPromotion.getBuildType();
     WaitReason reason = null;
     if (buildType != null && projectId != null) {
-      final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
-      if (!features.isEmpty()) {
+      final LockPlan plan = myLockPlans.getPlan(buildType);
+      if (plan.hasFeatures()) {
         reason = checkForInvalidLocks(buildType);
         if (reason == null) {
           // Collection<Lock> ---> Collection<ResolvedLock> (i.e. lock against resolved resource. With project and so on)
-          final Collection<Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features).values();
+          final Collection<Lock> locksToTake = plan.getLocks().values();
           if (!locksToTake.isEmpty()) {
-            gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks);
+            gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks, accessor);
             // Collection<Lock> --> Collection<ResolvedLock>. For quoted - number of insufficient quotes, for custom -> custom values
             final Map<Resource, Lock> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks.get(), projectId, accessor, promotion);
             if (!unavailableLocks.isEmpty()) {
-              reason = createWaitReason(takenLocks.get(), unavailableLocks);
+              reason = createWaitReason(accessor, takenLocks.get(), unavailableLocks, promotion);
               if (LOG.isDebugEnabled()) {
                 LOG.debug("Firing precondition for queued build [" + buildPromotion.getQueuedBuild() + "] with reason: [" + reason.getDescription() + "]");
               }
             } else {
-              storeResourcesAffinity(buildPromotion, projectId, takenLocks.get(), locksToTake, accessor, emulationMode); // assign ANY locks here
+              reason = storeResourcesAffinity(buildPromotion, projectId, takenLocks.get(), locksToTake, accessor, agents, emulationMode); // assign ANY locks here
             }
           }
         }
@@ -266,129 +328,249 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
     return reason;
   }
 
-  private void storeResourcesAffinity(@NotNull final BuildPromotionEx promotion,
-                                      @NotNull final String projectId,
-                                      @NotNull final Map<Resource, TakenLock> takenLocks,
-                                      @NotNull final Collection<Lock> locksToTake,
-                                      @NotNull final DistributionDataAccessor accessor,
-                                      final boolean emulationMode) {
+  /**
+   * Assigns values of custom resources to the build.
+   *
+   * Values bound to agents are chosen together with the agents: every chosen value narrows given agents
+   * to the ones, that can use it. If no free values can be used on any of the agents, the build has to wait
+   *
+   * @param agents agents for the build, narrowed to the agents compatible with chosen values.
+   *               {@code null} if agents of the build should not be taken into account
+   * @return wait reason if values compatible with the agents can not be assigned, {@code null} otherwise
+   */
+  @Nullable
+  private WaitReason storeResourcesAffinity(@NotNull final BuildPromotionEx promotion,
+                                            @NotNull final String projectId,
+                                            @NotNull final Map<Resource, TakenLock> takenLocks,
+                                            @NotNull final Collection<Lock> locksToTake,
+                                            @NotNull final DistributionDataAccessor accessor,
+                                            @Nullable final Set<SBuildAgent> agents,
+                                            final boolean emulationMode) {
     final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
     final Map<String, String> affinityMap = new HashMap<>();
-    locksToTake.stream()
-               .filter(lock -> LockType.READ == lock.getType())
-               .forEach(lock -> {
-                 Resource r = resources.get(lock.getName());
-                 if (r instanceof CustomResource) {
-                   if (StringUtil.isEmptyOrSpaces(lock.getValue())) {
-                     // if lock is ANY lock -> choose next available value
-                     final String next = getNextAvailableValue((CustomResource)r, takenLocks, promotion, accessor);
-                     if (StringUtil.isEmptyOrSpaces(next)) {
-                       LOG.warn("Failed to allocate values for promotion: " + promotion + ", resource: " + r);
-                     }
-                     affinityMap.put(r.getId(), next);
-                   } else {
-                     // if lock is SPECIFIC lock - choose lock value
-                     affinityMap.put(r.getId(), lock.getValue());
-                   }
-                 }
-               });
+    final AgentMatches agentMatches = accessor.getAgentMatches();
+    for (Lock lock : locksToTake) {
+      if (LockType.READ != lock.getType()) {
+        continue;
+      }
+      final Resource r = resources.get(lock.getName());
+      if (!(r instanceof CustomResource)) {
+        continue;
+      }
+      final CustomResource resource = (CustomResource)r;
+      final Set<SBuildAgent> compatibleAgents = agents != null && resource.hasAgentRequirements() ? agents : null;
+      if (StringUtil.isEmptyOrSpaces(lock.getValue())) {
+        // if lock is ANY lock -> choose next available values
+        final String next = getNextAvailableValues(resource, takenLocks, promotion, accessor, lock.getUnits(), compatibleAgents, agentMatches);
+        if (StringUtil.isEmptyOrSpaces(next)) {
+          if (compatibleAgents != null) {
+            return new SimpleWaitReason("No free values of resource " + resource.getName() + " can be used on available agents");
+          }
+          LOG.warn("Failed to allocate values for promotion: " + promotion + ", resource: " + r);
+        }
+        affinityMap.put(r.getId(), next);
+      } else {
+        // if lock is SPECIFIC lock - choose lock value
+        if (compatibleAgents != null) {
+          for (String value : Lock.splitValues(lock.getValue())) {
+            final String requirement = resource.getAgentRequirement(value);
+            if (requirement != null) {
+              compatibleAgents.removeIf(agent -> !agentMatches.matches(requirement, agent));
+            }
+          }
+          if (compatibleAgents.isEmpty()) {
+            return new SimpleWaitReason("Value " + lock.getValue() + " of resource " + resource.getName() + " can not be used on available agents");
+          }
+        }
+        affinityMap.put(r.getId(), lock.getValue());
+      }
+    }
     if (!affinityMap.isEmpty() && !emulationMode) {
       // store assigned values in affinity set to be used by other builds inside current distribution cycle
       accessor.getResourceAffinity().store(promotion, affinityMap);
       // store assigned value from resource affinity inside build promotion
       affinityMap.forEach((resourceId, value) -> promotion.setAttribute(getReservedResourceAttributeKey(resourceId), value));
     }
+    return null;
   }
 
-  private String getNextAvailableValue(@NotNull final CustomResource resource,
-                                       @NotNull final Map<Resource, TakenLock> takenLocks,
-                                       @NotNull final BuildPromotion promotion,
-                                       @NotNull final DistributionDataAccessor accessor) {
-    final List<String> values = new ArrayList<>(resource.getValues());
-    // remove all values reserved by other builds in current distribution cycle
-    accessor.getResourceAffinity().getOtherAssignedValues(resource, promotion).forEach(values::remove);
-    // remove values from taken locks
+  /**
+   * Chooses free values of custom resource for the {@code ANY} lock
+   *
+   * @param resource custom resource
+   * @param takenLocks locks, taken in current distribution cycle
+   * @param promotion promotion to choose values for
+   * @param accessor accessor for distribution data of current cycle
+   * @param count number of values to choose
+   * @param agents agents to choose compatible values for, narrowed to the agents that can use chosen values.
+   *               {@code null} if values can be chosen regardless of the agents
+   * @param agentMatches matches of the agents against agent requirements in current distribution cycle
+   * @return chosen values joined into a single lock value, empty string if there are not enough free values
+   */
+  @NotNull
+  private String getNextAvailableValues(@NotNull final CustomResource resource,
+                                        @NotNull final Map<Resource, TakenLock> takenLocks,
+                                        @NotNull final BuildPromotion promotion,
+                                        @NotNull final DistributionDataAccessor accessor,
+                                        final int count,
+                                        @Nullable final Set<SBuildAgent> agents,
+                                        @NotNull final AgentMatches agentMatches) {
+    final List<String> values = resource.getValues();
     final TakenLock takenLock = takenLocks.get(resource);
-    if (takenLock != null) {
-      takenLock.getReadLocks().values().forEach(values::remove);
+    final List<String> result = new ArrayList<>(count);
+    // agents are narrowed on a copy, as values may turn out to be insufficient
+    final Set<SBuildAgent> compatibleAgents = agents == null ? null : new LinkedHashSet<>(agents);
+    // agents are narrowed once per requirement: narrowed agents keep matching applied requirements
+    // and never start matching rejected ones
+    final Set<String> appliedRequirements = new HashSet<>();
+    final Set<String> rejectedRequirements = new HashSet<>();
+    // instances of the values, held by running builds and reserved by other builds in current distribution cycle,
+    // occupy first occurrences of the values. Values are computed only for free positions
+    final TIntHashSet occupied = accessor.getResourceAffinity().getOtherOccupiedPositions(resource, takenLock, promotion);
+    for (int i = 0; i < values.size() && result.size() < count; i++) {
+      if (!occupied.contains(i)) {
+        final String value = values.get(i);
+        final String requirement = compatibleAgents == null ? null : resource.getAgentRequirement(value);
+        if (requirement != null && !appliedRequirements.contains(requirement)) {
+          if (rejectedRequirements.contains(requirement)) {
+            continue;
+          }
+          final List<SBuildAgent> valueAgents = compatibleAgents.stream()
+                                                                .filter(agent -> agentMatches.matches(requirement, agent))
+                                                                .collect(Collectors.toList());
+          if (valueAgents.isEmpty()) {
+            rejectedRequirements.add(requirement);
+            continue;
+          }
+          compatibleAgents.retainAll(valueAgents);
+          appliedRequirements.add(requirement);
+        }
+        result.add(value);
+      }
+    }
+    if (result.size() < count) {
+      return "";
+    }
+    if (agents != null) {
+      agents.retainAll(compatibleAgents);
     }
-    return values.isEmpty() ? "" : values.iterator().next();
+    return Lock.joinValues(result);
+  }
+
+  @NotNull
+  private AdmissionPlan getAdmissionPlan(@NotNull final DistributionDataAccessor accessor,
+                                         @NotNull final List<RunningBuildEx> runningBuilds,
+                                         @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
+                                         @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks) {
+    AdmissionPlan result = accessor.getAdmissionPlan();
+    if (result == null) {
+      gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks, accessor);
+      final TLongHashSet distributed = new TLongHashSet(canBeStarted.size());
+      canBeStarted.keySet().forEach(it -> distributed.add(it.getBuildPromotionInfo().getId()));
+      result = myPlanner.plan(takenLocks.get(), distributed);
+      accessor.setAdmissionPlan(result);
+    }
+    return result;
   }
 
   /**
-   * Gathers information about running and distributed build from runtime
+   * Gathers information about running and distributed build from runtime.
+   * Taken locks are kept in distribution data for the whole distribution cycle
    *
    * @param runningBuilds local running build reference
    * @param canBeStarted distributor output
    * @param takenLocks local taken locks reference
+   * @param accessor accessor for distribution data of current cycle
    */
   private void gatherRuntimeInfo(@NotNull final List<RunningBuildEx> runningBuilds,
                                  @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
-                                 @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks) {
+                                 @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks,
+                                 @NotNull final DistributionDataAccessor accessor) {
     if (takenLocks.get() == null) {
-      takenLocks.set(myTakenLocks.collectTakenLocks(runningBuilds, canBeStarted.keySet()));
+      takenLocks.set(myTakenLocks.getTakenLocks(runningBuilds, canBeStarted.keySet(), accessor));
+    }
+  }
+
+  /**
+   * Returns locks, taken by given node of the build chain, resolved against resources.
+   * Locks are resolved once per distribution cycle, when the node has its locks stored
+   *
+   * @param chainNodeLocks resolved locks of the chain nodes in current distribution cycle
+   * @param promo build promotion of the current node
+   * @return resolved locks of the node. Empty map, if the node has not taken its locks yet
+   */
+  @NotNull
+  private Map<Resource, Lock> getNodeLocks(@NotNull final TLongObjectHashMap<Map<Resource, Lock>> chainNodeLocks,
+                                           @NotNull final BuildPromotionEx promo) {
+    Map<Resource, Lock> result = chainNodeLocks.get(promo.getId());
+    if (result == null) {
+      if (!myLocksStorage.locksStored(promo)) {
+        // node has not started yet. It will be resolved when it takes its locks
+        return Collections.emptyMap();
+      }
+      LOG.debug("build promotion" + promo.getId() + " is running. Loading locks");
+      final Map<String, Lock> currentNodeLocks = myLocksStorage.load(promo);
+      if (currentNodeLocks.isEmpty()) {
+        result = Collections.emptyMap();
+      } else {
+        // if there are locks - resolve locks against resources according to project hierarchy of composite build
+        result = resolve(myResources.getResourcesMap(Objects.requireNonNull(promo.getProjectId())), currentNodeLocks);
+      }
+      chainNodeLocks.put(promo.getId(), result);
     }
+    return result;
   }
 
   /**
    * Resolves lock names into resources for given node of the build chain
    *
-   * @param chainLocks locks already obtained by the build chain
    * @param nodeResources actual resources for the project of current node
-   * @param promo build promotion of the current node
    * @param nodeLocks locks requested by the current node in the build chain
+   * @return locks of the node in format {@code <Resource, Lock>}
    */
-  private void resolve(@NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
-                       @NotNull final Map<String, Resource> nodeResources,
-                       @NotNull final BuildPromotionEx promo,
-                       @NotNull final Map<String, Lock> nodeLocks) {
+  @NotNull
+  private Map<Resource, Lock> resolve(@NotNull final Map<String, Resource> nodeResources,
+                                      @NotNull final Map<String, Lock> nodeLocks) {
+    final Map<Resource, Lock> result = new HashMap<>();
     nodeLocks.forEach((name, lock) -> {
       Resource resource = nodeResources.get(name);
       if (resource == null) {
         // todo: handle. this should not happen as configuration inspector should prevent this
         throw new RuntimeException("Invalid configuration!");
       }
-      // here list instead of set as we need to know how much quota we should ignore
-      chainLocks.computeIfAbsent(resource, k -> new HashMap<>()).put(promo, lock);
+      result.put(resource, lock);
     });
+    return result;
   }
 
+  /**
+   * Creates wait reason for unavailable locks.
+   * Equal blocked states share the same instance, so the description of the state is rendered once
+   */
   @NotNull
-  private WaitReason createWaitReason(@NotNull final Map<Resource, TakenLock> takenLocks,
-                                      @NotNull final Map<Resource, Lock> unavailableLocks) {
-    final StringBuilder builder = new StringBuilder("Build is waiting for the following ");
-    builder.append(unavailableLocks.size() > 1 ? "resources " : "resource ");
-    builder.append("to become available: ");
-    final Set<String> lockDescriptions = new HashSet<>();
+  private WaitReason createWaitReason(@NotNull final DistributionDataAccessor accessor,
+                                      @NotNull final Map<Resource, TakenLock> takenLocks,
+                                      @NotNull final Map<Resource, Lock> unavailableLocks,
+                                      @NotNull final BuildPromotion promotion) {
+    // predictions are computed once per distribution cycle and are shared by the blocked builds of the cycle
+    LockForecasts forecasts = accessor.getLockForecasts();
+    if (forecasts == null) {
+      forecasts = myForecaster.forecastLocks(takenLocks);
+      accessor.setLockForecasts(forecasts);
+    }
+    final Map<Resource, Long> availableIn = new HashMap<>();
+    final Map<Resource, Long> waited = new HashMap<>();
     for (Map.Entry<Resource, Lock> entry : unavailableLocks.entrySet()) {
-      final StringBuilder description = new StringBuilder();
-      final Set<String> buildTypeNames = new HashSet<>();
-      final TakenLock takenLock = takenLocks.get(entry.getKey());
-      if (takenLock != null) {
-        for (BuildPromotionEx promotion : takenLock.getReadLocks().keySet()) {
-          BuildTypeEx bt = promotion.getBuildType();
-          if (bt != null) {
-            buildTypeNames.add(bt.getExtendedFullName());
-          }
-        }
-        for (BuildPromotionEx promotion : takenLock.getWriteLocks().keySet()) {
-          BuildTypeEx bt = promotion.getBuildType();
-          if (bt != null) {
-            buildTypeNames.add(bt.getExtendedFullName());
-          }
-        }
+      final Resource resource = entry.getKey();
+      if (resource.isEnabled()) {
+        availableIn.put(resource, forecasts.getAvailableIn(resource, entry.getValue(), promotion));
       }
-      description.append(entry.getValue().getName());
-      if (!buildTypeNames.isEmpty()) {
-        description.append(" (locked by ");
-        description.append(buildTypeNames.stream().sorted().collect(Collectors.joining(", ")));
-        description.append(")");
+      final long waitTime = forecasts.getWaitTime(resource, promotion);
+      if (waitTime >= 0) {
+        waited.put(resource, waitTime);
       }
-      lockDescriptions.add(description.toString());
     }
-    builder.append(StringUtil.join(lockDescriptions, ", "));
-    final String reasonDescription = builder.toString();
-    return new SimpleWaitReason(reasonDescription);
+    return myWaitReasons.intern(LocksWaitReason.create(takenLocks, unavailableLocks, availableIn, waited));
   }
 
   @Nullable
@@ -28,9 +28,9 @@ import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.util.StringUtil;
@@ -52,7 +52,7 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   private final Object o = new Object();
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
+  private final LockPlans myLockPlans;
 
   @NotNull
   private final Locks myLocks;
@@ -66,12 +66,12 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   @NotNull
   private final BuildUsedResourcesReport myBuildUsedResourcesReport;
 
-  public SharedResourcesContextProcessor(@NotNull final SharedResourcesFeatures features,
+  public SharedResourcesContextProcessor(@NotNull final LockPlans lockPlans,
                                          @NotNull final Locks locks,
                                          @NotNull final Resources resources,
                                          @NotNull final LocksStorage locksStorage,
                                          @NotNull final BuildUsedResourcesReport buildUsedResourcesReport) {
-    myFeatures = features;
+    myLockPlans = lockPlans;
     myLocks = locks;
     myResources = resources;
     myLocksStorage = locksStorage;
@@ -140,7 +140,7 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
         for (Map.Entry<String, CustomResource> entry : myCustomResources.entrySet()) {
           if (entry.getValue().isEnabled()) {
             // get value space for current resources
-            final List<String> values = new ArrayList<>(entry.getValue().getValues());
+            final List<String> values = entry.getValue().getValues();
             final String name = entry.getKey();
             final Lock currentLock = locks.get(name);
             final String paramName = myLocks.asBuildParameter(currentLock);
@@ -158,6 +158,8 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
                 currentValue = currentLock.getValue();
               }
               myTakenValues.put(currentLock, currentValue);
+              // several values of ANY lock are exposed the same way as values of ALL lock
+              currentValue = StringUtil.join(Lock.splitValues(currentValue), ";");
             } else { // ALL lock
               currentValue = StringUtil.join(values, ";");
             }
@@ -173,7 +175,8 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   private Map<String, Lock> extractLocks(@NotNull final BuildPromotion buildPromotion) {
     final Map<String, Lock> result = new HashMap<>();
     if (buildPromotion.getBuildType() != null) {
-      result.putAll(myLocks.fromBuildFeaturesAsMap(myFeatures.searchForFeatures(buildPromotion.getBuildType())));
+      // stored locks must match actual settings of the build, cached plan may miss changes that are not persisted yet
+      result.putAll(myLockPlans.getActualPlan(buildPromotion.getBuildType()).getLocks());
     }
     return result;
   }
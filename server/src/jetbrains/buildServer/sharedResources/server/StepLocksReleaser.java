@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.messages.BlockData;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
+import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Releases locks of the running build after the build steps, configured for the locks, finish.
+ *
+ * Step of the lock is configured in the build feature ({@link SharedResourcesFeature#getReleaseAfterStep()}).
+ * End of the step is detected by the closed build step block in the build log, the step is resolved by its position in the block name.
+ * Build can release its locks explicitly with service message, see {@link ReleaseLocksMessageTranslator}
+ */
+public class StepLocksReleaser {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(StepLocksReleaser.class.getName());
+
+  @NotNull
+  private static final Pattern STEP_BLOCK = Pattern.compile("Step (\\d+)/(\\d+)(?::|$)");
+
+  @NotNull
+  private final LockPlans myLockPlans;
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final BuildUsedResourcesReport myBuildUsedResourcesReport;
+
+  public StepLocksReleaser(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                           @NotNull final LockPlans lockPlans,
+                           @NotNull final LocksStorage locksStorage,
+                           @NotNull final BuildUsedResourcesReport buildUsedResourcesReport) {
+    myLockPlans = lockPlans;
+    myLocksStorage = locksStorage;
+    myBuildUsedResourcesReport = buildUsedResourcesReport;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void messageReceived(@NotNull final SRunningBuild build, @NotNull final BuildMessage1 message) {
+        if (DefaultMessagesInfo.MSG_BLOCK_END.equals(message.getTypeId()) && message.getValue() instanceof BlockData) {
+          final BlockData block = (BlockData)message.getValue();
+          if (DefaultMessagesInfo.BLOCK_TYPE_BUILD_STEP.equals(block.getBlockType())) {
+            stepFinished(build, block.getBlockName());
+          }
+        }
+      }
+    });
+  }
+
+  void stepFinished(@NotNull final SRunningBuild build, @NotNull final String blockName) {
+    final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotion();
+    final SBuildType buildType = promotion.getBuildType();
+    if (buildType == null || !myLocksStorage.locksStored(promotion)) {
+      return;
+    }
+    final Map<String, String> releaseAfterStep = myLockPlans.getPlan(buildType).getReleaseAfterStep();
+    if (releaseAfterStep.isEmpty()) {
+      return;
+    }
+    final String stepId = getStepId(blockName, buildType);
+    if (stepId == null) {
+      return;
+    }
+    final List<String> lockNames = new ArrayList<>();
+    releaseAfterStep.forEach((lockName, afterStep) -> {
+      if (stepId.equals(afterStep)) {
+        lockNames.add(lockName);
+      }
+    });
+    if (lockNames.isEmpty()) {
+      return;
+    }
+    final Map<String, Lock> released = myLocksStorage.release(promotion, lockNames);
+    if (released.isEmpty()) {
+      return;
+    }
+    myBuildUsedResourcesReport.markReleased(promotion, released.keySet());
+    final List<String> names = new ArrayList<>(released.keySet());
+    Collections.sort(names);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Build promotion " + promotion.getId() + " released locks on " + names + " after step '" + blockName + "'");
+    }
+    build.addBuildMessage(DefaultMessagesInfo.createTextMessage("Released locks on shared resources after step '" + blockName + "': " + StringUtil.join(names, ", ")));
+  }
+
+  /**
+   * Build step block is prefixed with the position of the step among the enabled steps, i.e. {@code Step 2/5: Deploy}.
+   * Names of the steps are not unique, so the step is resolved by its position only.
+   * If the number of enabled steps has changed since the build started, the step can not be resolved
+   *
+   * @return id of the finished step or {@code null} if the step can not be resolved
+   */
+  @Nullable
+  static String getStepId(@NotNull final String blockName, @NotNull final SBuildType buildType) {
+    final Matcher matcher = STEP_BLOCK.matcher(blockName);
+    if (!matcher.lookingAt()) {
+      return null;
+    }
+    final int index;
+    final int total;
+    try {
+      index = Integer.parseInt(matcher.group(1));
+      total = Integer.parseInt(matcher.group(2));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    final List<SBuildRunnerDescriptor> steps = new ArrayList<>();
+    for (SBuildRunnerDescriptor runner : buildType.getBuildRunners()) {
+      if (buildType.isEnabled(runner.getId())) {
+        steps.add(runner);
+      }
+    }
+    if (total != steps.size() || index < 1 || index > total) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Failed to resolve step '" + blockName + "' among " + steps.size() + " enabled steps of build type " + buildType.getExternalId());
+      }
+      return null;
+    }
+    return steps.get(index - 1).getId();
+  }
+}
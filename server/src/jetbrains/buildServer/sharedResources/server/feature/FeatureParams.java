@@ -35,6 +35,20 @@ public interface FeatureParams {
   @NotNull
   String LOCKS_FEATURE_PARAM_KEY = "locks-param";
 
+  /**
+   * Key in feature parameters collection, that contains build steps, after which the locks are released.
+   * Each line is in format {@code <lock name> <step id>}
+   */
+  @NotNull
+  String RELEASE_AFTER_STEP_PARAM_KEY = "release-after-step-param";
+
+  /**
+   * Key in feature parameters collection, that contains lease timeouts of the locks, overriding lease timeouts of the resources.
+   * Each line is in format {@code <lock name> <timeout in minutes>}, zero timeout disables the lease of the lock
+   */
+  @NotNull
+  String LEASE_TIMEOUT_PARAM_KEY = "lease-timeout-param";
+
   /**
    * Provides description for build feature parameters to be shown in UI
    * @param params build feature parameters
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.sharedResources.server.feature;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Pre-parsed locks of a build type or template.
+ *
+ * Plan is immutable and can be shared between threads
+ *
+ * @see LockPlans
+ */
+public final class LockPlan {
+
+  @NotNull
+  public static final LockPlan EMPTY = new LockPlan(false, Collections.emptyMap());
+
+  private final boolean myHasFeatures;
+
+  @NotNull
+  private final Map<String, Lock> myLocks;
+
+  @NotNull
+  private final Map<String, String> myReleaseAfterStep;
+
+  @NotNull
+  private final Map<String, Long> myLeaseTimeouts;
+
+  public LockPlan(final boolean hasFeatures, @NotNull final Map<String, Lock> locks) {
+    this(hasFeatures, locks, Collections.emptyMap(), Collections.emptyMap());
+  }
+
+  public LockPlan(final boolean hasFeatures,
+                  @NotNull final Map<String, Lock> locks,
+                  @NotNull final Map<String, String> releaseAfterStep,
+                  @NotNull final Map<String, Long> leaseTimeouts) {
+    myHasFeatures = hasFeatures;
+    myLocks = locks.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(locks));
+    myReleaseAfterStep = releaseAfterStep.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(releaseAfterStep));
+    myLeaseTimeouts = leaseTimeouts.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(leaseTimeouts));
+  }
+
+  /**
+   * @return {@code true} if build type or template has enabled shared resources build features
+   */
+  public boolean hasFeatures() {
+    return myHasFeatures;
+  }
+
+  /**
+   * Returns locks, defined in all enabled shared resources features.
+   * Format is the same as in {@link Locks#fromBuildFeaturesAsMap(java.util.Collection)}
+   *
+   * @return unmodifiable map of locks in format {@code <LockName, Lock>}
+   */
+  @NotNull
+  public Map<String, Lock> getLocks() {
+    return myLocks;
+  }
+
+  /**
+   * Returns steps, after which the locks are released, defined in all enabled shared resources features.
+   * If the lock is defined in several features, the first one wins
+   *
+   * @return unmodifiable map in format {@code <LockName, StepId>}
+   */
+  @NotNull
+  public Map<String, String> getReleaseAfterStep() {
+    return myReleaseAfterStep;
+  }
+
+  /**
+   * Returns lease timeouts of the locks, overriding lease timeouts of the resources, defined in all enabled shared resources features.
+   * If the lock is defined in several features, the first one wins
+   *
+   * @return unmodifiable map of timeouts in minutes in format {@code <LockName, Timeout>}
+   */
+  @NotNull
+  public Map<String, Long> getLeaseTimeouts() {
+    return myLeaseTimeouts;
+  }
+}
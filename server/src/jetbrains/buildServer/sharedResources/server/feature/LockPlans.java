@@ -0,0 +1,46 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.sharedResources.server.feature;
+
+import jetbrains.buildServer.serverSide.BuildTypeSettings;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Provides compiled lock plans for build types and templates
+ */
+public interface LockPlans {
+
+  /**
+   * Returns lock plan for given build type or template.
+   *
+   * Plans are cached and recompiled after the settings are persisted or reloaded from disk
+   *
+   * @param settings build type or template
+   * @return lock plan of the settings
+   */
+  @NotNull
+  LockPlan getPlan(@NotNull final BuildTypeSettings settings);
+
+  /**
+   * Compiles lock plan from the current state of the settings, including changes that are not persisted yet,
+   * and replaces the cached one
+   *
+   * @param settings build type or template
+   * @return lock plan of the settings
+   */
+  @NotNull
+  LockPlan getActualPlan(@NotNull final BuildTypeSettings settings);
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.sharedResources.server.feature;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.sharedResources.server.SharedResourcesBuildFeature.FEATURE_TYPE;
+
+public class LockPlansImpl implements LockPlans {
+
+  @NotNull
+  private final SharedResourcesFeatures myFeatures;
+
+  @NotNull
+  private final Locks myLocks;
+
+  /**
+   * Compiled plans. Settings are compared by identity, entries are dropped together with settings objects.
+   * Entry is valid while its generation is the current one
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private final Cache<BuildTypeSettings, CompiledPlan> myPlans = CacheBuilder.newBuilder().weakKeys().build();
+
+  /**
+   * Generation of the settings, incremented every time the settings are persisted or reloaded
+   */
+  @NotNull
+  private final AtomicLong myGeneration = new AtomicLong();
+
+  public LockPlansImpl(@NotNull final SharedResourcesFeatures features,
+                       @NotNull final Locks locks,
+                       @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    myFeatures = features;
+    myLocks = locks;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildTypePersisted(@NotNull final SBuildType buildType) {
+        invalidate();
+      }
+
+      @Override
+      public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+        myPlans.invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate buildTemplate) {
+        // template changes affect all build types, that are based on the template
+        invalidate();
+      }
+
+      @Override
+      public void projectPersisted(@NotNull final String projectId) {
+        invalidate();
+      }
+
+      @Override
+      public void projectRestored(@NotNull final String projectId) {
+        // settings were reloaded from disk
+        invalidate();
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public LockPlan getPlan(@NotNull final BuildTypeSettings settings) {
+    final long generation = myGeneration.get();
+    final CompiledPlan compiled = myPlans.getIfPresent(settings);
+    if (compiled != null && compiled.myGeneration == generation) {
+      return compiled.myPlan;
+    }
+    return compileAndCache(settings, generation);
+  }
+
+  @NotNull
+  @Override
+  public LockPlan getActualPlan(@NotNull final BuildTypeSettings settings) {
+    return compileAndCache(settings, myGeneration.get());
+  }
+
+  /**
+   * Plan is stamped with the generation, read before compilation.
+   * If the settings change while the plan is compiled, the plan is already outdated, when it is cached,
+   * and is compiled again on the next request
+   */
+  @NotNull
+  private LockPlan compileAndCache(@NotNull final BuildTypeSettings settings, final long generation) {
+    final LockPlan plan = compile(settings);
+    myPlans.put(settings, new CompiledPlan(generation, plan));
+    return plan;
+  }
+
+  private void invalidate() {
+    myGeneration.incrementAndGet();
+  }
+
+  @NotNull
+  private LockPlan compile(@NotNull final BuildTypeSettings settings) {
+    boolean hasEnabledFeatures = false;
+    for (SBuildFeatureDescriptor descriptor : settings.getBuildFeatures()) {
+      if (FEATURE_TYPE.equals(descriptor.getType()) && settings.isEnabled(descriptor.getId())) {
+        hasEnabledFeatures = true;
+        break;
+      }
+    }
+    if (!hasEnabledFeatures) {
+      return LockPlan.EMPTY;
+    }
+    final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(settings);
+    final Map<String, String> releaseAfterStep = new HashMap<>();
+    final Map<String, Long> leaseTimeouts = new HashMap<>();
+    for (SharedResourcesFeature feature : features) {
+      feature.getReleaseAfterStep().forEach(releaseAfterStep::putIfAbsent);
+      feature.getLeaseTimeouts().forEach(leaseTimeouts::putIfAbsent);
+    }
+    return new LockPlan(!features.isEmpty(), myLocks.fromBuildFeaturesAsMap(features), releaseAfterStep, leaseTimeouts);
+  }
+
+  /**
+   * Lock plan together with the generation of the settings it was compiled from
+   */
+  private static final class CompiledPlan {
+
+    private final long myGeneration;
+
+    @NotNull
+    private final LockPlan myPlan;
+
+    private CompiledPlan(final long generation, @NotNull final LockPlan plan) {
+      myGeneration = generation;
+      myPlan = plan;
+    }
+  }
+}
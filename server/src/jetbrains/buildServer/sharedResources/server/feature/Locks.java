@@ -66,6 +66,42 @@ public interface Locks {
   @NotNull
   String asFeatureParameter(@NotNull final Collection<Lock> locks);
 
+  /**
+   * Parses build steps, after which the locks are released instead of the build finish
+   *
+   * @param parameters parameters of the build feature
+   * @return map of step ids in format {@code <LockName, StepId>}
+   */
+  @NotNull
+  Map<String, String> releaseAfterStepFromFeatureParameters(@NotNull final Map<String, String> parameters);
+
+  /**
+   * Serializes build steps, after which the locks are released, to build feature param
+   *
+   * @param releaseAfterStep step ids in format {@code <LockName, StepId>}
+   * @return {@code String} that represents given steps
+   */
+  @NotNull
+  String asReleaseAfterStepParameter(@NotNull final Map<String, String> releaseAfterStep);
+
+  /**
+   * Parses lease timeouts of the locks, that override lease timeouts of the resources
+   *
+   * @param parameters parameters of the build feature
+   * @return map of timeouts in minutes in format {@code <LockName, Timeout>}
+   */
+  @NotNull
+  Map<String, Long> leaseTimeoutsFromFeatureParameters(@NotNull final Map<String, String> parameters);
+
+  /**
+   * Serializes lease timeouts of the locks to build feature param
+   *
+   * @param leaseTimeouts timeouts in minutes in format {@code <LockName, Timeout>}
+   * @return {@code String} that represents given timeouts
+   */
+  @NotNull
+  String asLeaseTimeoutParameter(@NotNull final Map<String, Long> leaseTimeouts);
+
   /**
    * Converts given lock into build parameter
    * @param lock lock to convert
@@ -24,7 +24,9 @@ import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LEASE_TIMEOUT_PARAM_KEY;
 import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.RELEASE_AFTER_STEP_PARAM_KEY;
 
 /**
  * Created with IntelliJ IDEA.
@@ -33,6 +35,8 @@ import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams
  */
 public final class LocksImpl implements Locks {
 
+  private static final char UNITS_SEPARATOR = ':';
+
   @NotNull
   @Override
   public Map<String, Lock> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor) {
@@ -81,7 +85,11 @@ public final class LocksImpl implements Locks {
       final StringBuilder builder = new StringBuilder();
       for (Lock lock: locks) {
         builder.append(lock.getName()).append(" ");
-        builder.append(lock.getType()).append(" ");
+        builder.append(lock.getType());
+        if (lock.getUnits() > 1) {
+          builder.append(UNITS_SEPARATOR).append(lock.getUnits());
+        }
+        builder.append(" ");
         builder.append(lock.getValue()).append("\n");
       }
       result = builder.substring(0, builder.length() - 1);
@@ -89,10 +97,76 @@ public final class LocksImpl implements Locks {
     return result;
   }
 
+  @NotNull
+  @Override
+  public Map<String, String> releaseAfterStepFromFeatureParameters(@NotNull final Map<String, String> parameters) {
+    return lockSettingsFromFeatureParameter(parameters.get(RELEASE_AFTER_STEP_PARAM_KEY));
+  }
+
+  @NotNull
+  @Override
+  public String asReleaseAfterStepParameter(@NotNull final Map<String, String> releaseAfterStep) {
+    return asLockSettingsParameter(releaseAfterStep);
+  }
+
+  @NotNull
+  @Override
+  public Map<String, Long> leaseTimeoutsFromFeatureParameters(@NotNull final Map<String, String> parameters) {
+    final Map<String, Long> result = new LinkedHashMap<>();
+    lockSettingsFromFeatureParameter(parameters.get(LEASE_TIMEOUT_PARAM_KEY)).forEach((name, timeout) -> {
+      try {
+        final long minutes = Long.parseLong(timeout);
+        if (minutes >= 0) {
+          result.put(name, minutes);
+        }
+      } catch (NumberFormatException ignored) {
+      }
+    });
+    return result;
+  }
+
+  @NotNull
+  @Override
+  public String asLeaseTimeoutParameter(@NotNull final Map<String, Long> leaseTimeouts) {
+    return asLockSettingsParameter(leaseTimeouts);
+  }
+
   // END interface Locks
 
   // utility methods
 
+  /**
+   * Parses settings of the locks, one {@code <lock name> <setting>} per line.
+   * Lock name may contain spaces, setting may not
+   */
+  @NotNull
+  private static Map<String, String> lockSettingsFromFeatureParameter(@Nullable final String str) {
+    if (StringUtil.isEmptyOrSpaces(str)) {
+      return Collections.emptyMap();
+    }
+    final Map<String, String> result = new LinkedHashMap<>();
+    for (String line: StringUtil.split(str, true, '\n')) {
+      final String trimmed = line.trim();
+      final int s = trimmed.lastIndexOf(' ');
+      if (s > 0) {
+        result.put(trimmed.substring(0, s).trim(), trimmed.substring(s + 1));
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String asLockSettingsParameter(@NotNull final Map<String, ?> settings) {
+    final StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, ?> entry: settings.entrySet()) {
+      if (builder.length() > 0) {
+        builder.append("\n");
+      }
+      builder.append(entry.getKey()).append(" ").append(entry.getValue());
+    }
+    return builder.toString();
+  }
+
   /**
    * Converts given locks to a {@code String} that is suitable to
    * exposure as a build parameter name
@@ -127,6 +201,13 @@ public final class LocksImpl implements Locks {
     return result;
   }
 
+  /**
+   * Parses single lock in format {@code <name> <type>[:<units>] [<value>]}.
+   * Lock with invalid units takes a single unit
+   *
+   * @param str serialized lock
+   * @return parsed lock or {@code null} if the lock has no type
+   */
   @Nullable
   private Lock getSingleLockFromString(@NotNull final String str) {
     // get location of Type
@@ -143,15 +224,36 @@ public final class LocksImpl implements Locks {
     if (type != null) {
       final String name = str.substring(0, t).trim();
       int m = str.indexOf(' ', t + 1);
-      // lock is valid
+      // malformed units do not drop the lock, it takes a single unit
+      final int units = Math.max(1, parseUnits(str.substring(t + type.getName().length(), m > 0 ? m : str.length())));
       if (m > 0) {
         // values
-        result = new Lock(name, type, str.substring(m + 1).trim());
+        result = new Lock(name, type, str.substring(m + 1).trim(), units);
       } else {
         // no values
-        result = new Lock(name, type);
+        result = new Lock(name, type, "", units);
       }
     }
     return result;
   }
+
+  /**
+   * Parses units suffix of the lock type
+   *
+   * @param suffix part of the lock type after its name, i.e. {@code ":8"}
+   * @return number of units, {@code 1} if no units are specified, {@code -1} if units are invalid
+   */
+  private static int parseUnits(@NotNull final String suffix) {
+    if (suffix.isEmpty()) {
+      return 1;
+    }
+    if (suffix.charAt(0) != UNITS_SEPARATOR) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(suffix.substring(1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
 }
@@ -37,7 +37,7 @@ public interface Resources {
    * which makes this method a convenient single point, where we acquire project by project id
    *
    * @param projectId id oof the current project
-   * @return map of resources in format {@code resource_name -> resource}
+   * @return unmodifiable map of resources in format {@code resource_name -> resource}
    */
   @NotNull
   Map<String, Resource> getResourcesMap(@NotNull final String projectId);
@@ -77,7 +77,7 @@ public interface Resources {
    * Duplicates are excluded on every level of project hierarchy
    *
    * @param project project to get resources for
-   * @return project's resources with inheritance
+   * @return unmodifiable list of project's resources with inheritance
    */
   @NotNull
   List<Resource> getResources(@NotNull final SProject project);
@@ -16,8 +16,9 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SProject;
@@ -39,6 +40,12 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   private final ProjectManager myProjectManager;
 
+  /**
+   * Resources, resolved in project tree. Projects are compared by identity, entries are dropped together with project objects
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private final Cache<SProject, ResolvedResources> myResolved = CacheBuilder.newBuilder().weakKeys().build();
 
   public ResourcesImpl(@NotNull final ProjectManager projectManager,
                        @NotNull final ResourceProjectFeatures resourceProjectFeatures) {
@@ -51,8 +58,7 @@ public final class ResourcesImpl implements Resources {
   public Map<String, Resource> getResourcesMap(@NotNull final String projectId) {
     final SProject project = myProjectManager.findProjectById(projectId);
     if (project != null) {
-      return getResources(project).stream()
-                                  .collect(Collectors.toMap(Resource::getName, Function.identity()));
+      return resolve(project).myResourcesMap;
     } else {
       return Collections.emptyMap();
     }
@@ -71,7 +77,12 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   @Override
   public List<Resource> getOwnResources(@NotNull final SProject project) {
-    return myFeatures.getOwnFeatures(project).stream()
+    return getOwnResources(myFeatures.getOwnFeatures(project));
+  }
+
+  @NotNull
+  private static List<Resource> getOwnResources(@NotNull final List<ResourceProjectFeature> ownFeatures) {
+    return ownFeatures.stream()
                      .map(ResourceProjectFeature::getResource)
                      .filter(Objects::nonNull)
                      .collect(Collectors.groupingBy(Resource::getName)).values().stream() // collect by name
@@ -94,22 +105,87 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   @Override
   public List<Resource> getResources(@NotNull final SProject project) {
-    final Set<String> names = new HashSet<>();
-    final Set<Resource> result = new HashSet<>();
-    final List<SProject> path = project.getProjectPath();
-    final ListIterator<SProject> it = path.listIterator(path.size());
-    while (it.hasPrevious()) {
-      final Set<Resource> filtered = getOwnResources(it.previous()).stream()
-                                                                   .filter(data -> !names.contains(data.getName()))
-                                                                   .collect(Collectors.toSet());
-      result.addAll(filtered);
-      names.addAll(filtered.stream().map(Resource::getName).collect(Collectors.toSet()));
-    }
-    return new ArrayList<>(result);
+    return resolve(project).myResources;
   }
 
   @Override
   public int getCount(@NotNull final SProject project) {
     return getResources(project).size();
   }
+
+  /**
+   * Returns resources, resolved in the tree of the given project.
+   * Own features of every project in path are requested each time, cached resolution is reused
+   * only when path and own features of all projects in it are the same.
+   * Change in some project invalidates resolution of its subtree only
+   *
+   * @param project project to resolve resources for
+   * @return resolved resources
+   */
+  @NotNull
+  private ResolvedResources resolve(@NotNull final SProject project) {
+    final List<SProject> path = project.getProjectPath();
+    final List<List<ResourceProjectFeature>> ownFeatures = new ArrayList<>(path.size());
+    for (SProject p : path) {
+      ownFeatures.add(myFeatures.getOwnFeatures(p));
+    }
+    ResolvedResources resolved = myResolved.getIfPresent(project);
+    if (resolved == null || !resolved.matches(path, ownFeatures)) {
+      resolved = new ResolvedResources(path, ownFeatures);
+      myResolved.put(project, resolved);
+    }
+    return resolved;
+  }
+
+  private static final class ResolvedResources {
+
+    /**
+     * Ids of projects in path. Projects themselves are not referenced to let cache keys be collected
+     */
+    @NotNull
+    private final String[] myProjectIds;
+
+    /**
+     * Own features of projects in path, compared by identity
+     */
+    @NotNull
+    private final List<List<ResourceProjectFeature>> myOwnFeatures;
+
+    @NotNull
+    private final List<Resource> myResources;
+
+    @NotNull
+    private final Map<String, Resource> myResourcesMap;
+
+    private ResolvedResources(@NotNull final List<SProject> path,
+                              @NotNull final List<List<ResourceProjectFeature>> ownFeatures) {
+      myProjectIds = new String[path.size()];
+      for (int i = 0; i < path.size(); i++) {
+        myProjectIds[i] = path.get(i).getProjectId();
+      }
+      myOwnFeatures = ownFeatures;
+      final Map<String, Resource> resources = new LinkedHashMap<>();
+      // resources defined in subprojects override resources with the same name from ancestors
+      for (int i = ownFeatures.size() - 1; i >= 0; i--) {
+        for (Resource resource : getOwnResources(ownFeatures.get(i))) {
+          resources.putIfAbsent(resource.getName(), resource);
+        }
+      }
+      myResourcesMap = Collections.unmodifiableMap(resources);
+      myResources = Collections.unmodifiableList(new ArrayList<>(resources.values()));
+    }
+
+    private boolean matches(@NotNull final List<SProject> path,
+                            @NotNull final List<List<ResourceProjectFeature>> ownFeatures) {
+      if (path.size() != myProjectIds.length) {
+        return false;
+      }
+      for (int i = 0; i < myProjectIds.length; i++) {
+        if (!myProjectIds[i].equals(path.get(i).getProjectId()) || myOwnFeatures.get(i) != ownFeatures.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
 }
@@ -36,6 +36,24 @@ public interface SharedResourcesFeature {
   @NotNull
   Map<String, Lock> getLockedResources();
 
+  /**
+   * Gets build steps, after which the locks of the feature are released.
+   * Locks without a step are held until the build finishes
+   *
+   * @return map of step ids. Map format is {@code <LockName, StepId>}
+   */
+  @NotNull
+  Map<String, String> getReleaseAfterStep();
+
+  /**
+   * Gets lease timeouts of the locks of the feature, that override lease timeouts of the resources.
+   * Zero timeout disables the lease of the lock
+   *
+   * @return map of timeouts in minutes. Map format is {@code <LockName, Timeout>}
+   */
+  @NotNull
+  Map<String, Long> getLeaseTimeouts();
+
   /**
    * Updates lock inside build feature
    *
@@ -18,6 +18,7 @@ package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.BuildTypeSettings;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
@@ -25,7 +26,9 @@ import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import org.jetbrains.annotations.NotNull;
 
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LEASE_TIMEOUT_PARAM_KEY;
 import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.RELEASE_AFTER_STEP_PARAM_KEY;
 
 /**
  * Created with IntelliJ IDEA.
@@ -57,6 +60,18 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
     return Collections.unmodifiableMap(myLockedResources);
   }
 
+  @NotNull
+  @Override
+  public Map<String, String> getReleaseAfterStep() {
+    return myLocks.releaseAfterStepFromFeatureParameters(myDescriptor.getParameters());
+  }
+
+  @NotNull
+  @Override
+  public Map<String, Long> getLeaseTimeouts() {
+    return myLocks.leaseTimeoutsFromFeatureParameters(myDescriptor.getParameters());
+  }
+
   @Override
   public boolean updateLock(@NotNull final BuildTypeSettings settings,
                             @NotNull final String oldName,
@@ -64,17 +79,35 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
     boolean result = false;
     final Lock lock = myLockedResources.remove(oldName);
     if (lock != null) {
-      // save its type
+      // save its type, value and units
       result = true;
       final LockType lockType = lock.getType();
       final String lockValue = lock.getValue();
       // add lock with new resource name and saved type
-      myLockedResources.put(newName, new Lock(newName, lockType, lockValue));
+      myLockedResources.put(newName, new Lock(newName, lockType, lockValue, lock.getUnits()));
       // serialize locks
       final String locksAsString = myLocks.asFeatureParameter(myLockedResources.values());
       // update build feature parameters
       final Map<String, String> newParams = new HashMap<>(myDescriptor.getParameters());
       newParams.put(LOCKS_FEATURE_PARAM_KEY, locksAsString);
+      // keep the step the lock is released after
+      if (newParams.containsKey(RELEASE_AFTER_STEP_PARAM_KEY)) {
+        final Map<String, String> releaseAfterStep = new LinkedHashMap<>(myLocks.releaseAfterStepFromFeatureParameters(newParams));
+        final String stepId = releaseAfterStep.remove(oldName);
+        if (stepId != null) {
+          releaseAfterStep.put(newName, stepId);
+          newParams.put(RELEASE_AFTER_STEP_PARAM_KEY, myLocks.asReleaseAfterStepParameter(releaseAfterStep));
+        }
+      }
+      // keep the lease timeout of the lock
+      if (newParams.containsKey(LEASE_TIMEOUT_PARAM_KEY)) {
+        final Map<String, Long> leaseTimeouts = new LinkedHashMap<>(myLocks.leaseTimeoutsFromFeatureParameters(newParams));
+        final Long timeout = leaseTimeouts.remove(oldName);
+        if (timeout != null) {
+          leaseTimeouts.put(newName, timeout);
+          newParams.put(LEASE_TIMEOUT_PARAM_KEY, myLocks.asLeaseTimeoutParameter(leaseTimeouts));
+        }
+      }
       // update build feature
       settings.updateBuildFeature(myDescriptor.getId(), myDescriptor.getType(), newParams);
     }
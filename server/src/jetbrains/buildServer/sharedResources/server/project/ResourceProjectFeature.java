@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.sharedResources.server.project;
 
+import java.util.Map;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,4 +32,11 @@ public interface ResourceProjectFeature {
   @Nullable
   Resource getResource();
 
+  /**
+   * Parameters of the project feature, including the ones that are not part of the resource definition
+   *
+   * @return parameters of the feature
+   */
+  @NotNull
+  Map<String, String> getParameters();
 }
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.sharedResources.server.project;
 
+import java.util.Map;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
@@ -49,4 +50,10 @@ public class ResourceProjectFeatureImpl implements ResourceProjectFeature {
   public String getId() {
     return myDescriptor.getId();
   }
+
+  @NotNull
+  @Override
+  public Map<String, String> getParameters() {
+    return myDescriptor.getParameters();
+  }
 }
@@ -36,6 +36,14 @@ public interface ResourceProjectFeatures {
   SProjectFeatureDescriptor addFeature(@NotNull final SProject project,
                   @NotNull final Map<String, String> featureParameters);
 
+  /**
+   * Replaces parameters of the resource feature. Lease settings and agents of the values, that are not
+   * present in the given parameters, are kept from the existing feature. Present empty values clear them
+   *
+   * @param project project of the feature
+   * @param id id of the feature
+   * @param featureParameters new parameters of the feature
+   */
   void updateFeature(@NotNull final SProject project,
                      @NotNull final String id,
                      @NotNull final Map<String, String> featureParameters);
@@ -16,16 +16,19 @@
 
 package jetbrains.buildServer.sharedResources.server.project;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.*;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.FEATURE_TYPE;
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_ACTION;
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_TIMEOUT;
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.VALUE_AGENTS;
 
 /**
  * Created with IntelliJ IDEA.
@@ -34,6 +37,16 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
  */
 public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
 
+  @NotNull
+  private static final String[] KEPT_PARAMETERS = {LEASE_TIMEOUT, LEASE_ACTION, VALUE_AGENTS};
+
+  /**
+   * Parsed own features of projects. Projects are compared by identity, entries are dropped together with project objects
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private final Cache<SProject, OwnFeatures> myOwnFeatures = CacheBuilder.newBuilder().weakKeys().build();
+
   @Override
   public SProjectFeatureDescriptor addFeature(@NotNull final SProject project,
                                               @NotNull final Map<String, String> featureParameters) {
@@ -55,16 +68,34 @@ public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
                             @NotNull final Map<String, String> featureParameters) {
     final SProjectFeatureDescriptor descriptor = getFeatureById(project, id);
     if (descriptor != null) {
-      project.updateFeature(id, FEATURE_TYPE, featureParameters);
+      // lease settings and agents of the values are kept unless the update explicitly sets or clears them
+      final Map<String, String> parameters = new HashMap<>(featureParameters);
+      for (String name : KEPT_PARAMETERS) {
+        final String value = parameters.get(name);
+        if (value == null) {
+          final String kept = descriptor.getParameters().get(name);
+          if (kept != null) {
+            parameters.put(name, kept);
+          }
+        } else if (StringUtil.isEmptyOrSpaces(value)) {
+          parameters.remove(name);
+        }
+      }
+      project.updateFeature(id, FEATURE_TYPE, parameters);
     }
   }
 
   @NotNull
   @Override
   public List<ResourceProjectFeature> getOwnFeatures(@NotNull final SProject project) {
-    return getResourceFeatures(project).stream()
-                                       .map(ResourceProjectFeatureImpl::new)
-                                       .collect(Collectors.toList());
+    final Collection<SProjectFeatureDescriptor> descriptors = getResourceFeatures(project);
+    OwnFeatures ownFeatures = myOwnFeatures.getIfPresent(project);
+    // features are parsed again only if some descriptor of the project was added, removed or changed
+    if (ownFeatures == null || !ownFeatures.matches(descriptors)) {
+      ownFeatures = new OwnFeatures(descriptors);
+      myOwnFeatures.put(project, ownFeatures);
+    }
+    return ownFeatures.myFeatures;
   }
 
   @Nullable
@@ -79,4 +110,49 @@ public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
   private Collection<SProjectFeatureDescriptor> getResourceFeatures(@NotNull final SProject project) {
     return project.getOwnFeaturesOfType(FEATURE_TYPE);
   }
+
+  /**
+   * Parsed features together with the state of descriptors they were parsed from.
+   * Returned list of features is immutable and is the same instance until descriptors change
+   */
+  private static final class OwnFeatures {
+
+    @NotNull
+    private final String[] myIds;
+
+    @NotNull
+    private final Map<String, String>[] myParameters;
+
+    @NotNull
+    private final List<ResourceProjectFeature> myFeatures;
+
+    @SuppressWarnings("unchecked")
+    private OwnFeatures(@NotNull final Collection<SProjectFeatureDescriptor> descriptors) {
+      myIds = new String[descriptors.size()];
+      myParameters = new Map[descriptors.size()];
+      final List<ResourceProjectFeature> features = new ArrayList<>(descriptors.size());
+      int i = 0;
+      for (SProjectFeatureDescriptor descriptor : descriptors) {
+        myIds[i] = descriptor.getId();
+        myParameters[i] = new HashMap<>(descriptor.getParameters());
+        features.add(new ResourceProjectFeatureImpl(descriptor));
+        i++;
+      }
+      myFeatures = Collections.unmodifiableList(features);
+    }
+
+    private boolean matches(@NotNull final Collection<SProjectFeatureDescriptor> descriptors) {
+      if (descriptors.size() != myIds.length) {
+        return false;
+      }
+      int i = 0;
+      for (SProjectFeatureDescriptor descriptor : descriptors) {
+        if (!myIds[i].equals(descriptor.getId()) || !myParameters[i].equals(descriptor.getParameters())) {
+          return false;
+        }
+        i++;
+      }
+      return true;
+    }
+  }
 }
@@ -24,9 +24,11 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
@@ -67,6 +69,62 @@ public class BuildUsedResourcesReport {
         LOG.warn("Resource with name " + lock.getName() + " was not found for used resources report for build promotion with id " + promo.getId());
       }
     });
+    write(promo, usedResources);
+  }
+
+  /**
+   * Marks resources with given names as released before the build finished
+   *
+   * @param promo build promotion that released the locks
+   * @param resourceNames names of released resources
+   */
+  public void markReleased(@NotNull final BuildPromotionEx promo,
+                           @NotNull final Collection<String> resourceNames) {
+    mark(promo, resourceNames, usedResource -> usedResource.setReleased(true));
+  }
+
+  /**
+   * Marks resources with given names as held longer than their lease allows
+   *
+   * @param promo build promotion that holds the locks
+   * @param resourceNames names of resources with expired lease
+   */
+  public void markLeaseExpired(@NotNull final BuildPromotionEx promo,
+                               @NotNull final Collection<String> resourceNames) {
+    mark(promo, resourceNames, usedResource -> usedResource.setLeaseExpired(true));
+  }
+
+  private void mark(@NotNull final BuildPromotionEx promo,
+                    @NotNull final Collection<String> resourceNames,
+                    @NotNull final Consumer<UsedResource> marker) {
+    final File artifact = new File(promo.getArtifactsDirectory(), ARTIFACT_PATH);
+    if (resourceNames.isEmpty() || !artifact.isFile()) return;
+    final List<UsedResource> usedResources = read(artifact, "build promotion with id " + promo.getId());
+    boolean changed = false;
+    for (UsedResource usedResource : usedResources) {
+      if (resourceNames.contains(usedResource.getResource().getName())) {
+        marker.accept(usedResource);
+        changed = true;
+      }
+    }
+    if (changed) {
+      write(promo, usedResources);
+    }
+  }
+
+  public List<UsedResource> load(@NotNull final SBuild build) {
+    final File artifact = new File(build.getArtifactsDirectory(), ARTIFACT_PATH);
+    if (artifact.isFile()) {
+      return read(artifact, "build with id " + build.getBuildId());
+    }
+    return Collections.emptyList();
+  }
+
+  public boolean exists(@NotNull final SBuild build) {
+    return new File(build.getArtifactsDirectory(), ARTIFACT_PATH).isFile();
+  }
+
+  private void write(@NotNull final BuildPromotionEx promo, @NotNull final List<UsedResource> usedResources) {
     final File artifact = new File(promo.getArtifactsDirectory(), ARTIFACT_PATH);
     try {
       if (FileUtil.createParentDirs(artifact)) {
@@ -79,19 +137,16 @@ public class BuildUsedResourcesReport {
     }
   }
 
-  public List<UsedResource> load(@NotNull final SBuild build) {
-    final File artifact = new File(build.getArtifactsDirectory(), ARTIFACT_PATH);
-    if (artifact.isFile()) {
-      try (FileReader reader = new FileReader(artifact)) {
-        return mySerializer.read(reader);
-      } catch(IOException | JsonParseException e) {
-        LOG.warnAndDebugDetails("Failed to load stored resources and locks from " + artifact.getPath() + " for build with id " + build.getBuildId(), e);
+  @NotNull
+  private List<UsedResource> read(@NotNull final File artifact, @NotNull final String owner) {
+    try (FileReader reader = new FileReader(artifact)) {
+      final List<UsedResource> result = mySerializer.read(reader);
+      if (result != null) {
+        return result;
       }
+    } catch(IOException | JsonParseException e) {
+      LOG.warnAndDebugDetails("Failed to load stored resources and locks from " + artifact.getPath() + " for " + owner, e);
     }
     return Collections.emptyList();
   }
-
-  public boolean exists(@NotNull final SBuild build) {
-    return new File(build.getArtifactsDirectory(), ARTIFACT_PATH).isFile();
-  }
 }
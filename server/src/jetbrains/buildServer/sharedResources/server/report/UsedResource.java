@@ -34,6 +34,16 @@ public class UsedResource {
   @NotNull
   private final Collection<Lock> myLocks;
 
+  /**
+   * Whether locks on the resource were released before the build finished
+   */
+  private boolean myReleased;
+
+  /**
+   * Whether the build held locks on the resource longer than the lease of the resource allows
+   */
+  private boolean myLeaseExpired;
+
   UsedResource(@NotNull final Resource resource,
                @NotNull final Collection<Lock> locks) {
     myResource = resource;
@@ -49,4 +59,20 @@ public class UsedResource {
   public Collection<Lock> getLocks() {
     return myLocks;
   }
+
+  public boolean isReleased() {
+    return myReleased;
+  }
+
+  void setReleased(final boolean released) {
+    myReleased = released;
+  }
+
+  public boolean isLeaseExpired() {
+    return myLeaseExpired;
+  }
+
+  void setLeaseExpired(final boolean leaseExpired) {
+    myLeaseExpired = leaseExpired;
+  }
 }
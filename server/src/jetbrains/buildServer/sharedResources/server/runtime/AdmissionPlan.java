@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
+import java.util.Collection;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.serverSide.buildDistribution.SimpleWaitReason;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Admission decisions for queued builds, computed by {@link AdmissionPlanner} once per distribution cycle.
+ *
+ * Builds, that were not planned (i.e. builds without locks, builds of composite build chains or builds,
+ * that appeared in the queue after the plan was computed) are considered admitted,
+ * but are not ordered by the plan
+ */
+public final class AdmissionPlan {
+
+  /**
+   * Promotion id -> wait reason of the build, that is deferred by the plan
+   */
+  @NotNull
+  private final TLongObjectHashMap<WaitReason> myDeferred = new TLongObjectHashMap<>();
+
+  /**
+   * Ids of promotions, admitted by the plan
+   */
+  @NotNull
+  private final TLongHashSet myAdmitted = new TLongHashSet();
+
+  void admit(final long promotionId) {
+    myAdmitted.add(promotionId);
+  }
+
+  void defer(final long promotionId, @NotNull final Collection<Resource> resources) {
+    myDeferred.put(promotionId, new SimpleWaitReason(
+      "Build is waiting for the following " + (resources.size() > 1 ? "resources" : "resource") + " according to the admission plan: "
+      + resources.stream().map(Resource::getName).sorted().collect(Collectors.joining(", "))
+    ));
+  }
+
+  /**
+   * Checks whether the build with given promotion id is admitted to take its locks in current distribution cycle
+   *
+   * @param promotionId id of the build promotion
+   * @return {@code true} if the build is admitted or was not planned
+   */
+  public boolean isAdmitted(final long promotionId) {
+    return !myDeferred.containsKey(promotionId);
+  }
+
+  /**
+   * Checks whether the build with given promotion id was ordered by the plan
+   *
+   * @param promotionId id of the build promotion
+   * @return {@code true} if the build was admitted or deferred by the plan
+   */
+  public boolean isPlanned(final long promotionId) {
+    return myAdmitted.contains(promotionId) || myDeferred.containsKey(promotionId);
+  }
+
+  /**
+   * Returns wait reason of the build, deferred by the plan
+   *
+   * @param promotionId id of the build promotion
+   * @return wait reason or {@code null} if the build is admitted
+   */
+  @Nullable
+  public WaitReason getWaitReason(final long promotionId) {
+    return myDeferred.get(promotionId);
+  }
+
+  public int getAdmittedCount() {
+    return myAdmitted.size();
+  }
+
+  public int getDeferredCount() {
+    return myDeferred.size();
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongLongHashMap;
+import java.util.*;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Computes admission decisions for the whole build queue at the start of the distribution cycle.
+ *
+ * Queued builds are packed into free capacity of the resources in queue order. Build, that does not fit,
+ * is deferred without blocking the builds behind it, so large write requests do not leave resources idle
+ * while smaller requests could run. Build, that stays deferred for longer than
+ * {@code teamcity.sharedResources.planner.starvationTimeout} milliseconds, is planned first
+ * and reserves resources it waits for, so they are drained for it.
+ *
+ * Planner is disabled by default and is enabled by {@code teamcity.sharedResources.planner.enabled} property.
+ * While the cycle is planned, the planner replaces {@link ResourceWaitQueue} for the planned builds,
+ * builds that are not planned keep waiting in the queue
+ */
+public class AdmissionPlanner {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AdmissionPlanner.class.getName());
+
+  @NotNull
+  static final String ENABLED_PROPERTY = "teamcity.sharedResources.planner.enabled";
+
+  @NotNull
+  static final String STARVATION_TIMEOUT_PROPERTY = "teamcity.sharedResources.planner.starvationTimeout";
+
+  private static final long DEFAULT_STARVATION_TIMEOUT = 10 * 60 * 1000L;
+
+  @NotNull
+  private final BuildQueue myBuildQueue;
+
+  @NotNull
+  private final LockPlans myLockPlans;
+
+  @NotNull
+  private final Resources myResources;
+
+  /**
+   * Promotion id -> time the build was deferred for the first time
+   */
+  @NotNull
+  private TLongLongHashMap myDeferredSince = new TLongLongHashMap();
+
+  public AdmissionPlanner(@NotNull final BuildQueue buildQueue,
+                          @NotNull final LockPlans lockPlans,
+                          @NotNull final Resources resources) {
+    myBuildQueue = buildQueue;
+    myLockPlans = lockPlans;
+    myResources = resources;
+  }
+
+  public boolean isEnabled() {
+    return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+  }
+
+  /**
+   * Computes admission plan for the builds in the queue
+   *
+   * @param takenLocks locks, taken at the moment of planning
+   * @param distributed ids of promotions, that are already distributed in current cycle. Their locks are in {@code takenLocks}
+   * @return admission plan
+   */
+  @NotNull
+  public synchronized AdmissionPlan plan(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                         @NotNull final TLongHashSet distributed) {
+    final long now = System.currentTimeMillis();
+    final long starvationTimeout = TeamCityProperties.getLong(STARVATION_TIMEOUT_PROPERTY, DEFAULT_STARVATION_TIMEOUT);
+    final List<Request> starving = new ArrayList<>();
+    final List<Request> regular = new ArrayList<>();
+    final Map<String, Map<String, Resource>> cachedResources = new HashMap<>();
+    for (SQueuedBuild queuedBuild : myBuildQueue.getItems()) {
+      final BuildPromotionEx promotion = (BuildPromotionEx)queuedBuild.getBuildPromotion();
+      if (distributed.contains(promotion.getId())) {
+        continue;
+      }
+      final Request request = createRequest(promotion, cachedResources);
+      if (request == null) {
+        continue;
+      }
+      if (myDeferredSince.containsKey(request.myPromotionId)) {
+        request.myDeferredSince = myDeferredSince.get(request.myPromotionId);
+        (now - request.myDeferredSince >= starvationTimeout ? starving : regular).add(request);
+      } else {
+        request.myDeferredSince = now;
+        regular.add(request);
+      }
+    }
+
+    final Map<Resource, Capacity> capacities = new HashMap<>();
+    final AdmissionPlan result = new AdmissionPlan();
+    final TLongLongHashMap deferredSince = new TLongLongHashMap();
+    for (Request request : starving) {
+      if (!tryAdmit(request, capacities, takenLocks, result, deferredSince)) {
+        // drain resources for the starving build
+        request.myLocks.keySet().forEach(resource -> getCapacity(capacities, takenLocks, resource).reserve(request.myPromotionId));
+      }
+    }
+    for (Request request : regular) {
+      tryAdmit(request, capacities, takenLocks, result, deferredSince);
+    }
+    myDeferredSince = deferredSince;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Admission plan: " + result.getAdmittedCount() + " admitted, " + result.getDeferredCount() + " deferred, "
+                + starving.size() + " starving build(s)");
+    }
+    return result;
+  }
+
+  private boolean tryAdmit(@NotNull final Request request,
+                           @NotNull final Map<Resource, Capacity> capacities,
+                           @NotNull final Map<Resource, TakenLock> takenLocks,
+                           @NotNull final AdmissionPlan plan,
+                           @NotNull final TLongLongHashMap deferredSince) {
+    final List<Resource> blocking = new ArrayList<>();
+    request.myLocks.forEach((resource, lock) -> {
+      if (!getCapacity(capacities, takenLocks, resource).fits(request.myPromotionId, lock)) {
+        blocking.add(resource);
+      }
+    });
+    if (blocking.isEmpty()) {
+      request.myLocks.forEach((resource, lock) -> capacities.get(resource).take(lock));
+      plan.admit(request.myPromotionId);
+      return true;
+    }
+    plan.defer(request.myPromotionId, blocking);
+    deferredSince.put(request.myPromotionId, request.myDeferredSince);
+    return false;
+  }
+
+  @Nullable
+  private Request createRequest(@NotNull final BuildPromotionEx promotion,
+                                @NotNull final Map<String, Map<String, Resource>> cachedResources) {
+    final SBuildType buildType = promotion.getBuildType();
+    if (buildType == null) {
+      return null;
+    }
+    final Map<String, Lock> locks = myLockPlans.getPlan(buildType).getLocks();
+    if (locks.isEmpty()) {
+      return null;
+    }
+    if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED)
+        && promotion.isPartOfBuildChain() && !promotion.getDependentCompositePromotions().isEmpty()) {
+      // locks of composite build chains are checked against the chain
+      return null;
+    }
+    final Map<String, Resource> resources = cachedResources.computeIfAbsent(buildType.getProjectId(), myResources::getResourcesMap);
+    final Map<Resource, Lock> resolved = new HashMap<>();
+    locks.forEach((name, lock) -> {
+      final Resource resource = resources.get(name);
+      if (resource != null && resource.isEnabled()) {
+        resolved.put(resource, lock);
+      }
+    });
+    return resolved.isEmpty() ? null : new Request(promotion.getId(), resolved);
+  }
+
+  @NotNull
+  private static Capacity getCapacity(@NotNull final Map<Resource, Capacity> capacities,
+                                      @NotNull final Map<Resource, TakenLock> takenLocks,
+                                      @NotNull final Resource resource) {
+    return capacities.computeIfAbsent(resource, r -> new Capacity(r, takenLocks.get(r)));
+  }
+
+  /**
+   * Locks, requested by the queued build
+   */
+  private static final class Request {
+
+    private final long myPromotionId;
+
+    @NotNull
+    private final Map<Resource, Lock> myLocks;
+
+    private long myDeferredSince;
+
+    private Request(final long promotionId, @NotNull final Map<Resource, Lock> locks) {
+      myPromotionId = promotionId;
+      myLocks = locks;
+    }
+  }
+
+  /**
+   * Capacity of the resource, left for the builds planned in current cycle
+   */
+  private static final class Capacity {
+
+    @Nullable
+    private final TakenLock myTakenLock;
+
+    /**
+     * Free units of quoted resource or free values of custom resource
+     */
+    private int myFree;
+
+    private boolean myUsed;
+
+    private boolean myExclusive;
+
+    /**
+     * Specific values of custom resource, taken by planned builds
+     */
+    @NotNull
+    private final Set<String> myTakenValues = new HashSet<>();
+
+    /**
+     * Id of starving promotion, the resource is reserved for. {@code -1} if the resource is not reserved
+     */
+    private long myReservedFor = -1;
+
+    private Capacity(@NotNull final Resource resource, @Nullable final TakenLock takenLock) {
+      myTakenLock = takenLock;
+      final int units = takenLock == null ? 0 : takenLock.getUnits();
+      if (resource instanceof CustomResource) {
+        myFree = ((CustomResource)resource).getValues().size() - units;
+      } else {
+        final QuotedResource quoted = (QuotedResource)resource;
+        myFree = quoted.isInfinite() ? Integer.MAX_VALUE : quoted.getQuota() - units;
+      }
+      myUsed = takenLock != null && !takenLock.isEmpty();
+      myExclusive = takenLock != null && takenLock.hasWriteLocks();
+    }
+
+    private boolean fits(final long promotionId, @NotNull final Lock lock) {
+      if (myReservedFor != -1 && myReservedFor != promotionId) {
+        return false;
+      }
+      if (lock.getType() == LockType.WRITE) {
+        return !myUsed;
+      }
+      if (myExclusive || myFree < lock.getUnits()) {
+        return false;
+      }
+      final String value = lock.getValue();
+      return value.isEmpty() || !myTakenValues.contains(value) && (myTakenLock == null || myTakenLock.getValueCount(value) == 0);
+    }
+
+    private void take(@NotNull final Lock lock) {
+      myUsed = true;
+      if (lock.getType() == LockType.WRITE) {
+        myExclusive = true;
+        myFree = 0;
+      } else {
+        if (myFree != Integer.MAX_VALUE) {
+          myFree -= lock.getUnits();
+        }
+        if (!lock.getValue().isEmpty()) {
+          myTakenValues.add(lock.getValue());
+        }
+      }
+    }
+
+    private void reserve(final long promotionId) {
+      if (myReservedFor == -1) {
+        myReservedFor = promotionId;
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TIntHashSet;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.concurrent.NotThreadSafe;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Matches of the agents against agent requirements of the values of custom resources, kept for the distribution cycle.
+ *
+ * Each requirement is parsed once per cycle and each agent is matched against it once per cycle,
+ * so that agent parameters and pools are not read again for every free value and every starting build
+ */
+@NotThreadSafe
+public class AgentMatches {
+
+  @NotNull
+  private final Map<String, Matches> myMatches = new HashMap<>();
+
+  /**
+   * @param requirement agent requirement of the value, see {@link AgentRequirement}
+   * @param agent agent to match
+   * @return {@code true} if the agent can use values with given requirement
+   */
+  public boolean matches(@NotNull final String requirement, @NotNull final SBuildAgent agent) {
+    return myMatches.computeIfAbsent(requirement, Matches::new).matches(agent);
+  }
+
+  private static final class Matches {
+
+    @NotNull
+    private final AgentRequirement myRequirement;
+
+    /**
+     * Ids of the agents, matched against the requirement
+     */
+    @NotNull
+    private final TIntHashSet myChecked = new TIntHashSet();
+
+    /**
+     * Ids of the agents, that match the requirement
+     */
+    @NotNull
+    private final TIntHashSet myMatched = new TIntHashSet();
+
+    private Matches(@NotNull final String requirement) {
+      myRequirement = AgentRequirement.parse(requirement);
+    }
+
+    private boolean matches(@NotNull final SBuildAgent agent) {
+      final int id = agent.getId();
+      if (myChecked.add(id) && myRequirement.matches(agent)) {
+        myMatched.add(id);
+      }
+      return myMatched.contains(id);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Requirement for the agents, that can use value of the custom resource.
+ *
+ * Requirement is a comma separated list of alternatives, agent matches the requirement if it matches any of them:
+ * <ul>
+ *   <li>{@code pool:<pool name or id>} - agent belongs to the pool</li>
+ *   <li>{@code param:<name>=<value>} - agent reports parameter with given value</li>
+ *   <li>agent name, {@code *} matches any sequence of characters</li>
+ * </ul>
+ */
+public final class AgentRequirement {
+
+  @NotNull
+  private static final String POOL_PREFIX = "pool:";
+
+  @NotNull
+  private static final String PARAM_PREFIX = "param:";
+
+  @NotNull
+  private final List<Predicate<SBuildAgent>> myAlternatives;
+
+  private AgentRequirement(@NotNull final List<Predicate<SBuildAgent>> alternatives) {
+    myAlternatives = alternatives;
+  }
+
+  @NotNull
+  public static AgentRequirement parse(@NotNull final String requirement) {
+    final List<Predicate<SBuildAgent>> alternatives = new ArrayList<>();
+    for (String alternative : StringUtil.split(requirement, true, ',')) {
+      final String item = alternative.trim();
+      if (item.isEmpty()) {
+        continue;
+      }
+      if (item.startsWith(POOL_PREFIX)) {
+        final String pool = item.substring(POOL_PREFIX.length()).trim();
+        alternatives.add(agent -> pool.equals(String.valueOf(agent.getAgentPoolId())) || pool.equals(agent.getAgentPool().getName()));
+      } else if (item.startsWith(PARAM_PREFIX)) {
+        final String param = item.substring(PARAM_PREFIX.length());
+        final int idx = param.indexOf('=');
+        final String name = (idx == -1 ? param : param.substring(0, idx)).trim();
+        final String value = idx == -1 ? null : param.substring(idx + 1).trim();
+        alternatives.add(agent -> {
+          final String actual = agent.getAvailableParameters().get(name);
+          return actual != null && (value == null || value.equals(actual));
+        });
+      } else {
+        final Pattern pattern = toPattern(item);
+        alternatives.add(agent -> pattern.matcher(agent.getName()).matches());
+      }
+    }
+    return new AgentRequirement(alternatives);
+  }
+
+  public boolean matches(@NotNull final SBuildAgent agent) {
+    for (Predicate<SBuildAgent> alternative : myAlternatives) {
+      if (alternative.test(agent)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @NotNull
+  private static Pattern toPattern(@NotNull final String wildcard) {
+    final StringBuilder result = new StringBuilder();
+    int start = 0;
+    int idx;
+    while ((idx = wildcard.indexOf('*', start)) != -1) {
+      result.append(Pattern.quote(wildcard.substring(start, idx))).append(".*");
+      start = idx + 1;
+    }
+    result.append(Pattern.quote(wildcard.substring(start)));
+    return Pattern.compile(result.toString(), Pattern.CASE_INSENSITIVE);
+  }
+}
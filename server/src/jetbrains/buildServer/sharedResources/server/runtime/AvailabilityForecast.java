@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Predicted availability of the locked resources at the moment of computation.
+ *
+ * Contains entries only for the resources, that were locked when the forecast was computed
+ */
+public final class AvailabilityForecast {
+
+  public static final long UNKNOWN = DurationEstimates.UNKNOWN;
+
+  private final long myComputed;
+
+  /**
+   * Resource id -> availability of the resource
+   */
+  @NotNull
+  private final Map<String, ResourceAvailability> myAvailabilities;
+
+  AvailabilityForecast(final long computed, @NotNull final Map<String, ResourceAvailability> availabilities) {
+    myComputed = computed;
+    myAvailabilities = availabilities;
+  }
+
+  /**
+   * @return time the forecast was computed at, in milliseconds
+   */
+  public long getComputed() {
+    return myComputed;
+  }
+
+  @NotNull
+  public Collection<ResourceAvailability> getAvailabilities() {
+    return Collections.unmodifiableCollection(myAvailabilities.values());
+  }
+
+  @Nullable
+  public ResourceAvailability getAvailability(@NotNull final String resourceId) {
+    return myAvailabilities.get(resourceId);
+  }
+
+  /**
+   * Gets predicted time until the resource becomes available
+   *
+   * @param resourceId id of the resource
+   * @return time in seconds, {@code 0} if resource was not locked, {@code -1} if there is no estimate
+   */
+  public long getAvailableIn(@NotNull final String resourceId) {
+    final ResourceAvailability availability = myAvailabilities.get(resourceId);
+    return availability == null ? 0 : availability.getAvailableIn();
+  }
+
+  public static final class ResourceAvailability {
+
+    @NotNull
+    private final Resource myResource;
+
+    private final int myHolders;
+
+    private final int myWaiting;
+
+    private final long myAvailableIn;
+
+    ResourceAvailability(@NotNull final Resource resource, final int holders, final int waiting, final long availableIn) {
+      myResource = resource;
+      myHolders = holders;
+      myWaiting = waiting;
+      myAvailableIn = availableIn;
+    }
+
+    @NotNull
+    public Resource getResource() {
+      return myResource;
+    }
+
+    /**
+     * @return number of builds, holding locks on the resource
+     */
+    public int getHolders() {
+      return myHolders;
+    }
+
+    /**
+     * @return number of builds, waiting in the write lock queue of the resource
+     */
+    public int getWaiting() {
+      return myWaiting;
+    }
+
+    /**
+     * @return predicted time in seconds until the resource becomes available, {@code -1} if there is no estimate
+     */
+    public long getAvailableIn() {
+      return myAvailableIn;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Predicts when locked resources become available.
+ *
+ * Lock is predicted to become available when enough of the current holders finish to free requested quota units or values.
+ * Holders are released in order of their estimated finish. If some builds hold tickets in {@link ResourceWaitQueue}
+ * of the resource before the requesting build, all holders have to finish first,
+ * and then the waiting builds run one after another.
+ * Durations are taken from {@link DurationEstimates}; if some of the required ones are not known, availability is not predicted.
+ *
+ * Agents filter predicts availability of the blocked locks with {@link LockForecasts}, created once per distribution cycle.
+ * Latest forecast of all resources is kept for the API and is recomputed from {@link TakenLocksIndex}
+ * when it gets older than a few seconds
+ */
+public class AvailabilityForecaster {
+
+  private static final long MAX_AGE = 5 * 1000L;
+
+  /**
+   * Id of the promotion, that does not hold tickets in the queue
+   */
+  private static final long NOT_WAITING = -1L;
+
+  @NotNull
+  private final TakenLocksIndex myTakenLocksIndex;
+
+  @NotNull
+  private final ResourceWaitQueue myWaitQueue;
+
+  @Nullable
+  private volatile AvailabilityForecast myLatest;
+
+  public AvailabilityForecaster(@NotNull final TakenLocksIndex takenLocksIndex,
+                                @NotNull final ResourceWaitQueue waitQueue) {
+    myTakenLocksIndex = takenLocksIndex;
+    myWaitQueue = waitQueue;
+  }
+
+  /**
+   * Returns recent forecast for the locks, taken by running builds
+   *
+   * @return availability forecast
+   */
+  @NotNull
+  public AvailabilityForecast getForecast() {
+    final AvailabilityForecast latest = myLatest;
+    if (latest != null && System.currentTimeMillis() - latest.getComputed() < MAX_AGE) {
+      return latest;
+    }
+    return forecast(myTakenLocksIndex.getTakenLocks());
+  }
+
+  /**
+   * Computes forecast for given taken locks.
+   * Resource is considered available, when a new build can take a read lock on a single unit or value of it
+   *
+   * @param takenLocks locks, taken at the moment of computation
+   * @return availability forecast
+   */
+  @NotNull
+  public AvailabilityForecast forecast(@NotNull final Map<Resource, TakenLock> takenLocks) {
+    final LockForecasts forecasts = forecastLocks(takenLocks);
+    final Map<String, AvailabilityForecast.ResourceAvailability> availabilities = new HashMap<>();
+    for (Map.Entry<Resource, TakenLock> entry : takenLocks.entrySet()) {
+      final Resource resource = entry.getKey();
+      final TakenLock takenLock = entry.getValue();
+      if (takenLock.isEmpty()) {
+        continue;
+      }
+      final LockForecasts.ResourceForecast forecast = forecasts.getForecast(resource);
+      final long availableIn = forecast.getAvailableIn(new Lock(resource.getName(), LockType.READ), NOT_WAITING);
+      availabilities.put(resource.getId(), new AvailabilityForecast.ResourceAvailability(resource, takenLock.getLocksCount(), forecast.getWaitingCount(), availableIn));
+    }
+    final AvailabilityForecast result = new AvailabilityForecast(System.currentTimeMillis(), availabilities);
+    myLatest = result;
+    return result;
+  }
+
+  /**
+   * Creates predictions for the locks, blocked in the distribution cycle
+   *
+   * @param takenLocks locks, taken at the start of the cycle
+   * @return lock predictions, computed on demand and kept for the whole cycle
+   */
+  @NotNull
+  public LockForecasts forecastLocks(@NotNull final Map<Resource, TakenLock> takenLocks) {
+    return new LockForecasts(myWaitQueue, takenLocks);
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.sharedResources.server.runtime.DurationEstimates.UNKNOWN;
+
+/**
+ * Decides whether read lock can be granted to the build ahead of the builds, waiting for write lock on the resource.
+ *
+ * Build is backfilled if it is estimated to finish before the current holders of the resource release it,
+ * so the build, waiting for write lock, is not delayed. Durations are taken from {@link DurationEstimates}.
+ * Builds without estimates are never backfilled and block backfilling of others.
+ *
+ * Backfilling is disabled by default and is enabled by {@code teamcity.sharedResources.backfill.enabled} property
+ */
+public class BackfillPolicy {
+
+  @NotNull
+  static final String ENABLED_PROPERTY = "teamcity.sharedResources.backfill.enabled";
+
+  public boolean isEnabled() {
+    return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+  }
+
+  /**
+   * Checks whether given build can take read lock on the resource ahead of the builds, waiting for write lock
+   *
+   * @param takenLock locks, taken on the resource
+   * @param candidate build, requesting read lock
+   * @return {@code true} if backfilling is enabled and the build is estimated to finish before current holders of the resource
+   */
+  public boolean canBackfill(@NotNull final TakenLock takenLock, @NotNull final BuildPromotion candidate) {
+    if (!isEnabled() || takenLock.isEmpty()) {
+      return false;
+    }
+    final long duration = DurationEstimates.getDuration(candidate);
+    if (duration == UNKNOWN) {
+      return false;
+    }
+    final long readersRelease = DurationEstimates.getReleaseTime(takenLock.getReadLocks().keySet());
+    final long writersRelease = DurationEstimates.getReleaseTime(takenLock.getWriteLocks().keySet());
+    return readersRelease != UNKNOWN && writersRelease != UNKNOWN && duration <= Math.max(readersRelease, writersRelease);
+  }
+}
@@ -16,11 +16,17 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import java.util.Set;
+import gnu.trove.TLongObjectHashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.DistributionData;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class DistributionDataAccessor {
 
@@ -29,19 +35,64 @@ public class DistributionDataAccessor {
 
   private DistributionData myData;
 
+  private final boolean myEmulationMode;
+
   public DistributionDataAccessor(@NotNull AgentsFilterContext context) {
     myData = (DistributionData)context.getCustomData(DISTRIBUTION_DATA_KEY);
     if (myData == null) {
       myData = new DistributionData();
       context.setCustomData(DISTRIBUTION_DATA_KEY, myData);
     }
+    myEmulationMode = context.isEmulationMode();
   }
 
-  public Set<String> getFairSet() {
-    return myData.getFairSet();
+  public boolean isEmulationMode() {
+    return myEmulationMode;
   }
 
   public ResourceAffinity getResourceAffinity() {
     return myData.getResourceAffinity();
   }
+
+  @NotNull
+  public AgentMatches getAgentMatches() {
+    return myData.getAgentMatches();
+  }
+
+  @Nullable
+  public Map<Resource, TakenLock> getTakenLocks() {
+    return myData.getTakenLocks();
+  }
+
+  public void setTakenLocks(@NotNull final Map<Resource, TakenLock> takenLocks) {
+    myData.setTakenLocks(takenLocks);
+  }
+
+  @NotNull
+  public TLongObjectHashMap<BuildPromotionEx> getDistributedPromotions() {
+    return myData.getDistributedPromotions();
+  }
+
+  @NotNull
+  public TLongObjectHashMap<Map<Resource, Lock>> getChainNodeLocks() {
+    return myData.getChainNodeLocks();
+  }
+
+  @Nullable
+  public AdmissionPlan getAdmissionPlan() {
+    return myData.getAdmissionPlan();
+  }
+
+  public void setAdmissionPlan(@NotNull final AdmissionPlan admissionPlan) {
+    myData.setAdmissionPlan(admissionPlan);
+  }
+
+  @Nullable
+  public LockForecasts getLockForecasts() {
+    return myData.getLockForecasts();
+  }
+
+  public void setLockForecasts(@NotNull final LockForecasts lockForecasts) {
+    myData.setLockForecasts(lockForecasts);
+  }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Collection;
+import jetbrains.buildServer.serverSide.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Estimates of build durations, used to predict when holders release resources.
+ *
+ * Remaining time of running builds is computed from their duration estimates, duration of queued builds
+ * is taken from the estimates of the build queue. All times are in seconds
+ */
+final class DurationEstimates {
+
+  static final long UNKNOWN = -1;
+
+  private DurationEstimates() {
+  }
+
+  /**
+   * Computes time, after which all given holders of the resource are estimated to release it
+   *
+   * @param holders holders of the resource
+   * @return time in seconds or {@code -1} if some holder has no estimate
+   */
+  static long getReleaseTime(@NotNull final Collection<? extends BuildPromotion> holders) {
+    long result = 0;
+    for (BuildPromotion holder : holders) {
+      final long timeLeft = getTimeLeft(holder);
+      if (timeLeft == UNKNOWN) {
+        return UNKNOWN;
+      }
+      result = Math.max(result, timeLeft);
+    }
+    return result;
+  }
+
+  /**
+   * Estimates time left until given holder of the resource finishes
+   *
+   * @param holder running build or build, distributed in current cycle
+   * @return time in seconds or {@code -1} if there is no estimate
+   */
+  static long getTimeLeft(@NotNull final BuildPromotion holder) {
+    final SBuild build = holder.getAssociatedBuild();
+    if (build instanceof SRunningBuild) {
+      final SRunningBuild runningBuild = (SRunningBuild)build;
+      final long estimate = runningBuild.getDurationEstimate();
+      return estimate < 0 ? UNKNOWN : Math.max(0, estimate - runningBuild.getElapsedTime());
+    }
+    // build is distributed in current cycle, but is not started yet
+    return getDuration(holder);
+  }
+
+  /**
+   * Estimates duration of the build, that is not started yet.
+   * Duration of a single previous build is not used, as it may have failed or been stopped early
+   *
+   * @param promotion build promotion
+   * @return time in seconds or {@code -1} if the build queue has no estimate for the build
+   */
+  static long getDuration(@NotNull final BuildPromotion promotion) {
+    final SQueuedBuild queuedBuild = promotion.getQueuedBuild();
+    if (queuedBuild == null) {
+      return UNKNOWN;
+    }
+    final BuildEstimates estimates = queuedBuild.getBuildEstimates();
+    final TimeInterval interval = estimates == null ? null : estimates.getTimeInterval();
+    final Long duration = interval == null ? null : interval.getDurationSeconds();
+    return duration == null || duration < 0 ? UNKNOWN : duration;
+  }
+}
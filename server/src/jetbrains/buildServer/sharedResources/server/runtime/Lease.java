@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_ACTION;
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_TIMEOUT;
+
+/**
+ * Maximum time the build can hold locks on the resource, together with the action applied when the time is over.
+ *
+ * Lease is defined by {@code leaseTimeout} (in minutes) and {@code leaseAction} parameters of the resource.
+ * Resources without own lease settings use {@code teamcity.sharedResources.lease.timeout}
+ * and {@code teamcity.sharedResources.lease.action} properties. Default action is {@link LeaseAction#WARN}.
+ * Lock can override the timeout of the resource in the build feature, see {@link #forLock}
+ */
+public final class Lease {
+
+  @NotNull
+  static final String DEFAULT_TIMEOUT_PROPERTY = "teamcity.sharedResources.lease.timeout";
+
+  @NotNull
+  static final String DEFAULT_ACTION_PROPERTY = "teamcity.sharedResources.lease.action";
+
+  private final long myTimeoutMinutes;
+
+  @NotNull
+  private final LeaseAction myAction;
+
+  Lease(final long timeoutMinutes, @NotNull final LeaseAction action) {
+    myTimeoutMinutes = timeoutMinutes;
+    myAction = action;
+  }
+
+  /**
+   * Reads lease settings from the parameters of the resource
+   *
+   * @param parameters parameters of the resource project feature
+   * @return lease of the resource or {@code null} if locks on the resource are not limited in time
+   */
+  @Nullable
+  public static Lease fromParameters(@NotNull final Map<String, String> parameters) {
+    final String timeoutStr = parameters.get(LEASE_TIMEOUT);
+    long timeout;
+    if (timeoutStr == null) {
+      timeout = TeamCityProperties.getLong(DEFAULT_TIMEOUT_PROPERTY, 0);
+    } else {
+      try {
+        timeout = Long.parseLong(timeoutStr.trim());
+      } catch (NumberFormatException e) {
+        timeout = 0;
+      }
+    }
+    if (timeout <= 0) {
+      return null;
+    }
+    final String actionStr = parameters.get(LEASE_ACTION);
+    if (actionStr == null) {
+      return new Lease(timeout, getDefaultAction());
+    }
+    final LeaseAction action = LeaseAction.fromString(actionStr);
+    return new Lease(timeout, action == null ? LeaseAction.WARN : action);
+  }
+
+  /**
+   * Creates lease of the lock, which timeout overrides the timeout of the resource.
+   * Action of the resource lease is kept, locks on resources without lease use the default action
+   *
+   * @param resourceLease lease of the resource, {@code null} if locks on the resource are not limited in time
+   * @param timeoutMinutes timeout of the lock, {@code 0} disables the lease of the lock
+   * @return lease of the lock or {@code null} if the lock is not limited in time
+   */
+  @Nullable
+  public static Lease forLock(@Nullable final Lease resourceLease, final long timeoutMinutes) {
+    if (timeoutMinutes <= 0) {
+      return null;
+    }
+    return new Lease(timeoutMinutes, resourceLease == null ? getDefaultAction() : resourceLease.getAction());
+  }
+
+  @NotNull
+  private static LeaseAction getDefaultAction() {
+    final LeaseAction action = LeaseAction.fromString(TeamCityProperties.getProperty(DEFAULT_ACTION_PROPERTY));
+    return action == null ? LeaseAction.WARN : action;
+  }
+
+  public long getTimeoutMinutes() {
+    return myTimeoutMinutes;
+  }
+
+  @NotNull
+  public LeaseAction getAction() {
+    return myAction;
+  }
+
+  /**
+   * @param elapsedSeconds time in seconds the locks are held
+   * @return {@code true} if the lease is over
+   */
+  public boolean isExpired(final long elapsedSeconds) {
+    return elapsedSeconds >= myTimeoutMinutes * 60;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Action, applied to the running build, that holds locks on the resource longer than the lease allows
+ */
+public enum LeaseAction {
+
+  /**
+   * Build gets a warning in the build log, locks stay taken
+   */
+  WARN("warn"),
+
+  /**
+   * Locks on the resource are released, the build keeps running
+   */
+  RELEASE("release"),
+
+  /**
+   * Build is stopped
+   */
+  STOP("stop");
+
+  @NotNull
+  private final String myName;
+
+  LeaseAction(@NotNull final String name) {
+    myName = name;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  @Nullable
+  public static LeaseAction fromString(@Nullable final String str) {
+    for (LeaseAction action : values()) {
+      if (action.myName.equalsIgnoreCase(str)) {
+        return action;
+      }
+    }
+    return null;
+  }
+}
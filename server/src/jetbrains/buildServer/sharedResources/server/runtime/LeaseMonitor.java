@@ -0,0 +1,263 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongObjectHashMap;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TimeService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Applies {@link Lease} of the resources to the running builds, that hold locks on them.
+ *
+ * Running builds are checked every {@code teamcity.sharedResources.lease.checkInterval} seconds.
+ * Lease of the lock starts when the lock is acquired, acquisition time is stored together with the taken locks
+ * and survives server restarts. Locks without acquisition time are considered to be acquired at the start of the build.
+ * Lease timeout of the resource can be overridden for the lock in the build feature, see {@link LockPlan#getLeaseTimeouts()}.
+ * Expired lease is handled once per build and resource:
+ * depending on {@link LeaseAction} the build gets a warning, the lock is released or the build is stopped.
+ * Expired leases are marked in the used resources report and are counted per resource until the holder finishes
+ */
+public class LeaseMonitor {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(LeaseMonitor.class.getName());
+
+  @NotNull
+  static final String CHECK_INTERVAL_PROPERTY = "teamcity.sharedResources.lease.checkInterval";
+
+  private static final long DEFAULT_CHECK_INTERVAL = 60;
+
+  @NotNull
+  private final RunningBuildsManagerEx myRunningBuildsManager;
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final Resources myResources;
+
+  @NotNull
+  private final ProjectManager myProjectManager;
+
+  @NotNull
+  private final ResourceProjectFeatures myProjectFeatures;
+
+  @NotNull
+  private final LockPlans myLockPlans;
+
+  @NotNull
+  private final BuildUsedResourcesReport myReport;
+
+  @NotNull
+  private final TimeService myTimeService;
+
+  /**
+   * Promotion id -> resources, which leases have expired for the promotion
+   */
+  @NotNull
+  private final TLongObjectHashMap<Set<Resource>> myExpired = new TLongObjectHashMap<>();
+
+  public LeaseMonitor(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                      @NotNull final RunningBuildsManagerEx runningBuildsManager,
+                      @NotNull final LocksStorage locksStorage,
+                      @NotNull final Resources resources,
+                      @NotNull final ProjectManager projectManager,
+                      @NotNull final ResourceProjectFeatures projectFeatures,
+                      @NotNull final LockPlans lockPlans,
+                      @NotNull final BuildUsedResourcesReport report,
+                      @NotNull final TimeService timeService) {
+    myRunningBuildsManager = runningBuildsManager;
+    myLocksStorage = locksStorage;
+    myResources = resources;
+    myProjectManager = projectManager;
+    myProjectFeatures = projectFeatures;
+    myLockPlans = lockPlans;
+    myReport = report;
+    myTimeService = timeService;
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      @Nullable
+      private ScheduledExecutorService myExecutor;
+
+      @Override
+      public void serverStartup() {
+        final long interval = TeamCityProperties.getLong(CHECK_INTERVAL_PROPERTY, DEFAULT_CHECK_INTERVAL);
+        myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+          final Thread thread = new Thread(r, "Shared resources lease monitor");
+          thread.setDaemon(true);
+          return thread;
+        });
+        myExecutor.scheduleWithFixedDelay(() -> {
+          try {
+            check();
+          } catch (Exception e) {
+            LOG.warnAndDebugDetails("Failed to check leases of shared resource locks", e);
+          }
+        }, interval, interval, TimeUnit.SECONDS);
+      }
+
+      @Override
+      public void serverShutdown() {
+        if (myExecutor != null) {
+          myExecutor.shutdownNow();
+        }
+      }
+
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        forget(build.getBuildPromotion().getId());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        forget(build.getBuildPromotion().getId());
+      }
+    });
+  }
+
+  /**
+   * Gets resources, held by running builds longer than their lease allows
+   *
+   * @return number of builds with expired lease in format {@code <Resource, count>}
+   */
+  @NotNull
+  public synchronized Map<Resource, Integer> getExpiredLeases() {
+    final Map<Resource, Integer> result = new HashMap<>();
+    myExpired.forEachValue(resources -> {
+      resources.forEach(resource -> result.merge(resource, 1, Integer::sum));
+      return true;
+    });
+    return result;
+  }
+
+  /**
+   * Checks leases of the locks, held by running builds
+   */
+  void check() {
+    final Map<Resource, Lease> leases = new HashMap<>();
+    for (RunningBuildEx build : myRunningBuildsManager.getRunningBuildsEx()) {
+      final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotion();
+      final String projectId = promotion.getProjectId();
+      if (projectId == null || !myLocksStorage.locksStored(promotion)) {
+        continue;
+      }
+      final Map<String, Lock> locks = myLocksStorage.load(promotion);
+      if (locks.isEmpty()) {
+        continue;
+      }
+      final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
+      final SBuildType buildType = promotion.getBuildType();
+      final Map<String, Long> leaseTimeouts = buildType == null ? Collections.emptyMap() : myLockPlans.getPlan(buildType).getLeaseTimeouts();
+      final long now = myTimeService.now();
+      final long started = now - TimeUnit.SECONDS.toMillis(build.getElapsedTime());
+      final Map<LeaseAction, Map<String, Lease>> expired = new EnumMap<>(LeaseAction.class);
+      for (Lock lock : locks.values()) {
+        final String name = lock.getName();
+        final Resource resource = resources.get(name);
+        if (resource == null || isExpired(promotion.getId(), resource)) {
+          continue;
+        }
+        Lease lease = leases.computeIfAbsent(resource, this::getLease);
+        final Long lockTimeout = leaseTimeouts.get(name);
+        if (lockTimeout != null) {
+          lease = Lease.forLock(lease, lockTimeout);
+        }
+        final long acquired = lock.getAcquired() > 0 ? lock.getAcquired() : started;
+        if (lease != null && lease.isExpired(TimeUnit.MILLISECONDS.toSeconds(now - acquired))) {
+          markExpired(promotion.getId(), resource);
+          expired.computeIfAbsent(lease.getAction(), it -> new TreeMap<>()).put(name, lease);
+        }
+      }
+      expired.forEach((action, expiredLeases) -> apply(build, action, expiredLeases));
+    }
+  }
+
+  private void apply(@NotNull final RunningBuildEx build,
+                     @NotNull final LeaseAction action,
+                     @NotNull final Map<String, Lease> expiredLeases) {
+    final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotion();
+    final StringBuilder message = new StringBuilder("Lease of the locks on shared resources has expired: ");
+    final StringJoiner joiner = new StringJoiner(", ");
+    expiredLeases.forEach((name, lease) -> joiner.add(name + " (" + lease.getTimeoutMinutes() + " min)"));
+    message.append(joiner.toString());
+    LOG.info(message + " for build promotion " + promotion.getId() + ", action: " + action.getName());
+    myReport.markLeaseExpired(promotion, expiredLeases.keySet());
+    switch (action) {
+      case WARN:
+        build.addBuildMessage(DefaultMessagesInfo.createTextMessage(message.toString(), Status.WARNING));
+        break;
+      case RELEASE:
+        myLocksStorage.release(promotion, expiredLeases.keySet());
+        build.addBuildMessage(DefaultMessagesInfo.createTextMessage(message.append(". Locks were released").toString(), Status.WARNING));
+        break;
+      case STOP:
+        build.stop(null, message.toString());
+        break;
+    }
+  }
+
+  @Nullable
+  private Lease getLease(@NotNull final Resource resource) {
+    final SProject project = myProjectManager.findProjectById(resource.getProjectId());
+    if (project != null) {
+      for (ResourceProjectFeature feature : myProjectFeatures.getOwnFeatures(project)) {
+        if (resource.getId().equals(feature.getId())) {
+          return Lease.fromParameters(feature.getParameters());
+        }
+      }
+    }
+    return Lease.fromParameters(Collections.emptyMap());
+  }
+
+  private synchronized boolean isExpired(final long promotionId, @NotNull final Resource resource) {
+    final Set<Resource> resources = myExpired.get(promotionId);
+    return resources != null && resources.contains(resource);
+  }
+
+  private synchronized void markExpired(final long promotionId, @NotNull final Resource resource) {
+    Set<Resource> resources = myExpired.get(promotionId);
+    if (resources == null) {
+      resources = new HashSet<>();
+      myExpired.put(promotionId, resources);
+    }
+    resources.add(resource);
+  }
+
+  private synchronized void forget(final long promotionId) {
+    myExpired.remove(promotionId);
+  }
+}
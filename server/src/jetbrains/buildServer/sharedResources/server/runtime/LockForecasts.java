@@ -0,0 +1,259 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import java.util.*;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.server.runtime.DurationEstimates.UNKNOWN;
+
+/**
+ * Predictions of availability of the locks, computed once per distribution cycle.
+ *
+ * State of the resource (estimated finish of the holders and durations of the builds, waiting in {@link ResourceWaitQueue})
+ * is computed, when the resource is looked up for the first time. Prediction for every requested lock is computed once
+ * and is shared by all builds of the cycle, that request the same lock and have the same number of tickets ahead of them
+ */
+public class LockForecasts {
+
+  @NotNull
+  private final ResourceWaitQueue myWaitQueue;
+
+  @NotNull
+  private final Map<Resource, TakenLock> myTakenLocks;
+
+  @NotNull
+  private final Map<Resource, ResourceForecast> myForecasts = new HashMap<>();
+
+  /**
+   * @param waitQueue queue of the builds, waiting for write locks
+   * @param takenLocks locks, taken at the start of the cycle
+   */
+  public LockForecasts(@NotNull final ResourceWaitQueue waitQueue,
+                       @NotNull final Map<Resource, TakenLock> takenLocks) {
+    myWaitQueue = waitQueue;
+    myTakenLocks = takenLocks;
+  }
+
+  /**
+   * Predicts when the lock, requested by the build, becomes available
+   *
+   * @param resource locked resource
+   * @param lock lock, requested by the build
+   * @param promotion build, that requests the lock
+   * @return time in seconds or {@code -1} if there is no estimate
+   */
+  public long getAvailableIn(@NotNull final Resource resource,
+                             @NotNull final Lock lock,
+                             @NotNull final BuildPromotion promotion) {
+    return getForecast(resource).getAvailableIn(lock, promotion.getId());
+  }
+
+  /**
+   * Gets time the build has been waiting for write lock on the resource
+   *
+   * @param resource locked resource
+   * @param promotion build, that requests the lock
+   * @return time in milliseconds, {@code -1} if the build does not hold a ticket for the resource
+   */
+  public long getWaitTime(@NotNull final Resource resource, @NotNull final BuildPromotion promotion) {
+    return getForecast(resource).getWaitTime(promotion.getId(), System.currentTimeMillis());
+  }
+
+  @NotNull
+  ResourceForecast getForecast(@NotNull final Resource resource) {
+    ResourceForecast result = myForecasts.get(resource);
+    if (result == null) {
+      final TakenLock takenLock = myTakenLocks.get(resource);
+      result = new ResourceForecast(resource, takenLock == null ? new TakenLock(resource) : takenLock, myWaitQueue.getTickets(resource.getId()));
+      myForecasts.put(resource, result);
+    }
+    return result;
+  }
+
+  /**
+   * Forecast for a single resource
+   */
+  static final class ResourceForecast {
+
+    @NotNull
+    private final Resource myResource;
+
+    @NotNull
+    private final TakenLock myTakenLock;
+
+    @NotNull
+    private final List<ResourceWaitQueue.Ticket> myTickets;
+
+    /**
+     * Promotion id -> position of its ticket in the queue
+     */
+    @NotNull
+    private final TLongIntHashMap myTicketPositions;
+
+    /**
+     * Requested lock -> prediction for the build without tickets ahead of it
+     */
+    @NotNull
+    private final Map<Lock, Long> myReleaseTimes = new HashMap<>();
+
+    /**
+     * Holders, sorted by their estimated finish
+     */
+    @Nullable
+    private List<Release> myReleases;
+
+    /**
+     * Number of tickets ahead -> time after which all holders and the builds with these tickets release the resource
+     */
+    @Nullable
+    private long[] myQueued;
+
+    private ResourceForecast(@NotNull final Resource resource,
+                             @NotNull final TakenLock takenLock,
+                             @NotNull final List<ResourceWaitQueue.Ticket> tickets) {
+      myResource = resource;
+      myTakenLock = takenLock;
+      myTickets = tickets;
+      myTicketPositions = new TLongIntHashMap(tickets.size());
+      for (int i = 0; i < tickets.size(); i++) {
+        myTicketPositions.put(tickets.get(i).getPromotionId(), i);
+      }
+    }
+
+    int getWaitingCount() {
+      return myTickets.size();
+    }
+
+    long getWaitTime(final long promotionId, final long now) {
+      return myTicketPositions.containsKey(promotionId) ? myTickets.get(myTicketPositions.get(promotionId)).getWaitTime(now) : -1;
+    }
+
+    /**
+     * @param lock requested lock
+     * @param promotionId id of the build, that requests the lock. Builds without tickets wait for all tickets
+     * @return time in seconds or {@code -1} if there is no estimate
+     */
+    long getAvailableIn(@NotNull final Lock lock, final long promotionId) {
+      final int ahead = myTicketPositions.containsKey(promotionId) ? myTicketPositions.get(promotionId) : myTickets.size();
+      if (ahead == 0) {
+        return myReleaseTimes.computeIfAbsent(lock, this::getReleaseTime);
+      }
+      // builds, waiting for write lock, hold the resource one after another after all current holders finish
+      return getQueued()[ahead];
+    }
+
+    @NotNull
+    private long[] getQueued() {
+      if (myQueued == null) {
+        final List<Release> releases = getReleases();
+        myQueued = new long[myTickets.size() + 1];
+        myQueued[0] = releases.isEmpty() ? 0 : releases.get(releases.size() - 1).myTimeLeft;
+        for (int i = 0; i < myTickets.size(); i++) {
+          final long duration = myQueued[i] == UNKNOWN ? UNKNOWN : DurationEstimates.getDuration(myTickets.get(i).getPromotion());
+          myQueued[i + 1] = duration == UNKNOWN ? UNKNOWN : myQueued[i] + duration;
+        }
+      }
+      return myQueued;
+    }
+
+    @NotNull
+    private List<Release> getReleases() {
+      if (myReleases == null) {
+        final List<Release> releases = new ArrayList<>();
+        myTakenLock.getReadLocks().keySet().forEach(holder -> releases.add(new Release(holder.getId(), DurationEstimates.getTimeLeft(holder))));
+        myTakenLock.getWriteLocks().keySet().forEach(holder -> releases.add(new Release(holder.getId(), DurationEstimates.getTimeLeft(holder))));
+        // holders without estimates finish last
+        releases.sort(Comparator.comparingLong(it -> it.myTimeLeft == UNKNOWN ? Long.MAX_VALUE : it.myTimeLeft));
+        myReleases = releases;
+      }
+      return myReleases;
+    }
+
+    /**
+     * Releases holders in order of their estimated finish until the lock fits
+     *
+     * @return time in seconds, after which the lock fits, or {@code -1} if there is no estimate
+     */
+    private long getReleaseTime(@NotNull final Lock lock) {
+      final TLongHashSet released = new TLongHashSet();
+      if (fits(lock, released)) {
+        return 0;
+      }
+      for (Release release : getReleases()) {
+        if (release.myTimeLeft == UNKNOWN) {
+          return UNKNOWN;
+        }
+        released.add(release.myPromotionId);
+        if (fits(lock, released)) {
+          return release.myTimeLeft;
+        }
+      }
+      // lock does not fit even into the free resource, e.g. the value is reserved for another build
+      return UNKNOWN;
+    }
+
+    /**
+     * Checks whether the lock can be taken, when given holders release the resource.
+     * Follows the checks of {@link TakenLocksImpl}, except for the wait queue and value affinity
+     */
+    private boolean fits(@NotNull final Lock lock, @NotNull final TLongHashSet released) {
+      if (myTakenLock.hasWriteLocks(released)) {
+        return false;
+      }
+      if (ResourceType.QUOTED.equals(myResource.getType())) {
+        final QuotedResource quoted = (QuotedResource)myResource;
+        if (!quoted.isInfinite() && myTakenLock.getUnits(released) + lock.getUnits() > quoted.getQuota()) {
+          return false;
+        }
+        return lock.getType() == LockType.READ || !myTakenLock.hasReadLocks(released);
+      }
+      if (ResourceType.CUSTOM.equals(myResource.getType())) {
+        if (lock.getType() == LockType.WRITE) {
+          return !myTakenLock.hasReadLocks(released);
+        }
+        // every held value consumes one unit
+        return myTakenLock.getUnits(released) + lock.getUnits() <= ((CustomResource)myResource).getValues().size()
+               && ("".equals(lock.getValue()) || !myTakenLock.isValueLocked(lock.getValue(), released));
+      }
+      return true;
+    }
+  }
+
+  private static final class Release {
+
+    private final long myPromotionId;
+
+    private final long myTimeLeft;
+
+    private Release(final long promotionId, final long timeLeft) {
+      myPromotionId = promotionId;
+      myTimeLeft = timeLeft;
+    }
+  }
+}
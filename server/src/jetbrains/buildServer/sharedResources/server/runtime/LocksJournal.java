@@ -0,0 +1,334 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Append-only journal of the locks, taken by running builds.
+ *
+ * Every change of the locks of a build is appended to the journal as a checksummed record.
+ * Actual locks are kept in memory, indexed by promotion id, and are restored by replaying the journal on open.
+ * Replay stops at the first incomplete or corrupted record, the rest of the file is discarded.
+ * When most of the records describe builds that are gone, the journal is compacted into a new file,
+ * that replaces the journal. Journal stays open for appending if the compaction fails.
+ *
+ * Record format: {@code <payload length: int><crc32 of payload: int><payload>}, payload is
+ * {@code <operation: byte><promotion id: long>[<locks count: int>(<name><type><value><units: int><acquired: long>)*]},
+ * strings are written as {@code <length: int><UTF-8 bytes>}
+ */
+final class LocksJournal implements Closeable {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(LocksJournal.class.getName());
+
+  private static final int MAGIC = 0x53524a33; // SRJ3
+
+  private static final byte OP_PUT = 1;
+
+  private static final byte OP_REMOVE = 2;
+
+  /**
+   * Journal is not compacted while it contains less records
+   */
+  private static final int COMPACTION_THRESHOLD = 1000;
+
+  @NotNull
+  private final File myFile;
+
+  private final boolean mySync;
+
+  @NotNull
+  private final TLongObjectHashMap<Map<String, Lock>> myIndex = new TLongObjectHashMap<>();
+
+  @Nullable
+  private FileChannel myChannel;
+
+  /**
+   * Number of records in the journal file
+   */
+  private int myRecords;
+
+  /**
+   * @param file journal file
+   * @param sync whether every record should be forced to the storage device
+   */
+  LocksJournal(@NotNull final File file, final boolean sync) {
+    myFile = file;
+    mySync = sync;
+  }
+
+  /**
+   * Replays existing journal and opens it for appending
+   *
+   * @throws IOException if journal can not be opened
+   */
+  synchronized void open() throws IOException {
+    FileUtil.createParentDirs(myFile);
+    long validLength = 0;
+    if (myFile.isFile() && myFile.length() > 0) {
+      validLength = replay();
+    }
+    myChannel = FileChannel.open(myFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    if (validLength == 0) {
+      myChannel.truncate(0);
+      myChannel.write(ByteBuffer.allocate(4).putInt(0, MAGIC));
+    } else if (validLength < myChannel.size()) {
+      LOG.warn("Discarding " + (myChannel.size() - validLength) + " bytes of incomplete records in " + myFile.getAbsolutePath());
+      myChannel.truncate(validLength);
+    }
+    myChannel.position(myChannel.size());
+    compactIfNeeded();
+  }
+
+  @Nullable
+  synchronized Map<String, Lock> get(final long promotionId) {
+    return myIndex.get(promotionId);
+  }
+
+  @NotNull
+  synchronized long[] getPromotionIds() {
+    return myIndex.keys();
+  }
+
+  synchronized void put(final long promotionId, @NotNull final Map<String, Lock> locks) throws IOException {
+    append(putRecord(promotionId, locks));
+    myIndex.put(promotionId, Collections.unmodifiableMap(new HashMap<>(locks)));
+  }
+
+  synchronized void remove(final long promotionId) throws IOException {
+    if (myIndex.containsKey(promotionId)) {
+      append(removeRecord(promotionId));
+      myIndex.remove(promotionId);
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Removes locks of all builds, except given ones
+   *
+   * @param promotionIds ids of the promotions to keep
+   */
+  synchronized void retain(@NotNull final TLongHashSet promotionIds) throws IOException {
+    for (long id : myIndex.keys()) {
+      if (!promotionIds.contains(id)) {
+        append(removeRecord(id));
+        myIndex.remove(id);
+      }
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Forces appended records to the storage device and closes the journal. Records can not be appended after the journal is closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    final FileChannel channel = myChannel;
+    myChannel = null;
+    if (channel != null) {
+      try {
+        channel.force(false);
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * @return length of the valid part of the journal
+   */
+  private long replay() throws IOException {
+    long result = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)))) {
+      if (in.readInt() != MAGIC) {
+        LOG.warn("Unknown format of the journal " + myFile.getAbsolutePath() + ", journal is discarded");
+        return 0;
+      }
+      result = 4;
+      while (true) {
+        final int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        final int checksum = in.readInt();
+        if (length <= 0 || length > in.available()) {
+          break;
+        }
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (checksum(payload) != checksum) {
+          break;
+        }
+        apply(payload);
+        myRecords++;
+        result += 8 + length;
+      }
+    } catch (EOFException ignored) {
+      // incomplete record is discarded
+    }
+    return result;
+  }
+
+  private void apply(@NotNull final byte[] payload) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    final byte op = in.readByte();
+    final long promotionId = in.readLong();
+    if (op == OP_PUT) {
+      final int count = in.readInt();
+      final Map<String, Lock> locks = new HashMap<>(count);
+      for (int i = 0; i < count; i++) {
+        final String name = readString(in);
+        final LockType type = LockType.byName(readString(in));
+        final String value = readString(in);
+        final int units = in.readInt();
+        final long acquired = in.readLong();
+        if (type != null) {
+          locks.put(name, new Lock(name, type, value, units, acquired));
+        }
+      }
+      myIndex.put(promotionId, Collections.unmodifiableMap(locks));
+    } else if (op == OP_REMOVE) {
+      myIndex.remove(promotionId);
+    }
+  }
+
+  private void append(@NotNull final byte[] payload) throws IOException {
+    if (myChannel == null) {
+      throw new IOException("Journal " + myFile.getAbsolutePath() + " is not open");
+    }
+    write(myChannel, payload);
+    if (mySync) {
+      myChannel.force(false);
+    }
+    myRecords++;
+  }
+
+  private void compactIfNeeded() {
+    if (myRecords < COMPACTION_THRESHOLD || myRecords < 2 * myIndex.size()) {
+      return;
+    }
+    final File compacted = new File(myFile.getPath() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.allocate(4).putInt(0, MAGIC));
+        for (long id : myIndex.keys()) {
+          write(channel, putRecord(id, myIndex.get(id)));
+        }
+        channel.force(false);
+      }
+      swap(compacted);
+      myRecords = myIndex.size();
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to compact journal " + myFile.getAbsolutePath() + ", records are appended to the existing journal", e);
+      FileUtil.delete(compacted);
+    }
+  }
+
+  /**
+   * Replaces the journal with the compacted file. The journal is reopened for appending whether the file was replaced or not
+   */
+  private void swap(@NotNull final File compacted) throws IOException {
+    final FileChannel channel = myChannel;
+    myChannel = null;
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+      Files.move(compacted.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      myChannel = FileChannel.open(myFile.toPath(), StandardOpenOption.WRITE);
+      myChannel.position(myChannel.size());
+    }
+  }
+
+  private static void write(@NotNull final FileChannel channel, @NotNull final byte[] payload) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+    buffer.putInt(payload.length).putInt(checksum(payload)).put(payload);
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @NotNull
+  private static byte[] putRecord(final long promotionId, @NotNull final Map<String, Lock> locks) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(OP_PUT);
+    out.writeLong(promotionId);
+    out.writeInt(locks.size());
+    for (Lock lock : locks.values()) {
+      writeString(out, lock.getName());
+      writeString(out, lock.getType().getName());
+      writeString(out, lock.getValue());
+      out.writeInt(lock.getUnits());
+      out.writeLong(lock.getAcquired());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(@NotNull final DataOutputStream out, @NotNull final String str) throws IOException {
+    final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Invalid string length " + length);
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @NotNull
+  private static byte[] removeRecord(final long promotionId) {
+    return ByteBuffer.allocate(9).put(OP_REMOVE).putLong(promotionId).array();
+  }
+
+  private static int checksum(@NotNull final byte[] payload) {
+    final CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    return (int)crc.getValue();
+  }
+}
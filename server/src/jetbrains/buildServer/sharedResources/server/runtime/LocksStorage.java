@@ -20,6 +20,7 @@ import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -38,6 +39,17 @@ public interface LocksStorage {
    */
   void store(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<Lock, String> takenLocks);
 
+  /**
+   * Releases taken locks of the running build before the build finishes.
+   * Remaining locks are stored again and listeners are notified about them
+   *
+   * @param buildPromotion build promotion to release locks for
+   * @param lockNames names of the locks to release
+   * @return released locks in format {@code <Name, Lock>}
+   */
+  @NotNull
+  Map<String, Lock> release(@NotNull final BuildPromotion buildPromotion, @NotNull final Collection<String> lockNames);
+
   /**
    * Loads taken locks
    *
@@ -56,4 +68,19 @@ public interface LocksStorage {
    */
   boolean locksStored(@NotNull final BuildPromotion buildPromotion);
 
+  /**
+   * Registers listener to be notified about stored locks
+   *
+   * @param listener listener to add
+   */
+  void addListener(@NotNull final LocksStorageListener listener);
+
+  /**
+   * Returns current counters of the storage, e.g. number of pending writes
+   *
+   * @return counters in format {@code <name, value>}
+   */
+  @NotNull
+  Map<String, Number> getStatistics();
+
 }
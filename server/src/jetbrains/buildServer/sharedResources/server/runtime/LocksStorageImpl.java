@@ -18,17 +18,23 @@ package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.Striped;
 import com.intellij.openapi.diagnostic.Logger;
 import gnu.trove.TLongHashSet;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -43,6 +49,27 @@ import org.jetbrains.annotations.Nullable;
  * Class {@code LocksStorageImpl}
  * <p>
  * Implements storage for taken locks during build execution
+ * <p>
+ * By default taken locks are stored in the artifacts directory of the build.
+ * With {@code teamcity.sharedResources.locksStorage.journal.enabled} taken locks of running builds
+ * are kept in the {@link LocksJournal} in the plugin data directory instead,
+ * and the file in the artifacts is written only when the build finishes.
+ * <p>
+ * Otherwise, files in the artifacts are written behind by {@link LocksWriteBehind}, unless
+ * {@code teamcity.sharedResources.locksStorage.writeBehind.enabled} is {@code false}.
+ * Cache and exists set are updated synchronously, pending writes are flushed when the build finishes
+ * and when the server shuts down, the journal is closed after the pending writes are flushed. Failed background writes stay pending and are retried,
+ * locks of the running build are served from the pending write until it succeeds.
+ * <p>
+ * On server startup taken locks of running builds are loaded into the cache in parallel,
+ * so that {@link #locksStored} is correct for the builds started before the restart
+ * <p>
+ * {@link #locksStored} and {@link #load} do not take any locks. Ids of promotions with stored locks
+ * are published as an immutable snapshot, which is replaced by writers.
+ * Striped locks only serialize modifications of the same promotion
+ * <p>
+ * Cached locks of promotions with stored locks are never evicted by size, they are removed when the build finishes.
+ * Only locks loaded for other promotions are limited by {@code teamcity.sharedResources.locksStorage.cacheSize}
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
@@ -60,18 +87,34 @@ public class LocksStorageImpl implements LocksStorage {
   @NotNull
   private static final String MY_ENCODING = "UTF-8";
 
-  /**
-   * Contains the set of build ids, that contain taken locks that are stored
-   * Added to avoid calling of {@code CacheLoader} for the items that were not stored
-   */
   @NotNull
-  private final TLongHashSet existsSet = new TLongHashSet();
+  static final String JOURNAL_ENABLED_PROPERTY = "teamcity.sharedResources.locksStorage.journal.enabled";
+
+  @NotNull
+  private static final String JOURNAL_SYNC_PROPERTY = "teamcity.sharedResources.locksStorage.journal.sync";
+
+  @NotNull
+  private static final String JOURNAL_FILE_NAME = "taken_locks.journal";
+
+  @NotNull
+  private static final String WRITE_BEHIND_ENABLED_PROPERTY = "teamcity.sharedResources.locksStorage.writeBehind.enabled";
+
+  @NotNull
+  private static final String WRITE_BEHIND_CAPACITY_PROPERTY = "teamcity.sharedResources.locksStorage.writeBehind.capacity";
+
+  @NotNull
+  static final String CACHE_SIZE_PROPERTY = "teamcity.sharedResources.locksStorage.cacheSize";
+
+  @NotNull
+  private static final String WARM_UP_THREADS_PROPERTY = "teamcity.sharedResources.locksStorage.warmUp.threads";
 
   /**
-   * Global lock for cache/exists set modification
+   * Contains the set of build ids, that contain taken locks that are stored
+   * Added to avoid calling of {@code CacheLoader} for the items that were not stored.
+   * Published set is never modified, writers replace it with the modified copy
    */
   @NotNull
-  private final ReadWriteLock myGlobalLock = new ReentrantReadWriteLock(true);
+  private final AtomicReference<TLongHashSet> existsSet = new AtomicReference<>(new TLongHashSet());
 
   @SuppressWarnings("UnstableApiUsage")
   @NotNull
@@ -81,10 +124,73 @@ public class LocksStorageImpl implements LocksStorage {
   @NotNull
   private final Striped<java.util.concurrent.locks.Lock> myGuards = Striped.lazyWeakLock(TeamCityProperties.getInteger("teamcity.sharedResources.locksStorage.stripedSize", 300));
 
+  @NotNull
+  private final EventDispatcher<LocksStorageListener> myListeners = EventDispatcher.create(LocksStorageListener.class);
+
+  /**
+   * Journal of taken locks, {@code null} if locks are stored in the artifacts
+   */
+  @Nullable
+  private final LocksJournal myJournal;
+
+  /**
+   * Background writer of the files in the artifacts, {@code null} if files are written synchronously
+   */
+  @Nullable
+  private final LocksWriteBehind myWriteBehind;
+
+  /**
+   * Duration of the warm-up in milliseconds, {@code -1} if warm-up did not run
+   */
+  private volatile long myWarmUpTime = -1;
+
+  /**
+   * Number of running builds, which locks were loaded during warm-up
+   */
+  private volatile int myWarmUpBuilds;
+
+  /**
+   * Executor of the warm-up, {@code null} if warm-up is not running
+   */
+  @Nullable
+  private volatile ExecutorService myWarmUpExecutor;
+
   public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    this(dispatcher, null, false, null);
+  }
+
+  public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                          @NotNull final ServerPaths serverPaths,
+                          @NotNull final RunningBuildsManager runningBuildsManager) {
+    this(dispatcher, openJournal(serverPaths), TeamCityProperties.getBooleanOrTrue(WRITE_BEHIND_ENABLED_PROPERTY), runningBuildsManager);
+  }
+
+  LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                   @Nullable final LocksJournal journal,
+                   final boolean writeBehind,
+                   @Nullable final RunningBuildsManager runningBuildsManager) {
+    myJournal = journal;
+    myWriteBehind = writeBehind && journal == null
+                    ? new LocksWriteBehind(this::persistPending, TeamCityProperties.getInteger(WRITE_BEHIND_CAPACITY_PROPERTY, 1000))
+                    : null;
+    if (myJournal != null) {
+      updateExists(ids -> ids.addAll(myJournal.getPromotionIds()));
+    }
     CacheLoader<BuildPromotion, Map<String, Lock>> loader = new CacheLoader<BuildPromotion, Map<String, Lock>>() {
       @Override
       public Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion) {
+        if (myJournal != null) {
+          final Map<String, Lock> journaled = myJournal.get(buildPromotion.getId());
+          if (journaled != null) {
+            return journaled;
+          }
+        }
+        if (myWriteBehind != null) {
+          final Map<String, Lock> pending = myWriteBehind.getPending(buildPromotion.getId());
+          if (pending != null) {
+            return pending;
+          }
+        }
         final Map<String, Lock> result;
         final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
         if (artifact.exists()) {
@@ -95,7 +201,8 @@ public class LocksStorageImpl implements LocksStorage {
             for (String line : lines) {
               final Lock lock = deserializeTakenLock(line);
               if (lock != null) {
-                result.put(lock.getName(), lock);
+                // lock on several values is stored line by line
+                result.merge(lock.getName(), lock, (stored, next) -> Lock.createFrom(stored, stored.getValue() + Lock.VALUES_SEPARATOR + next.getValue()));
               } else {
                 if (log.isDebugEnabled()) {
                   log.debug("Wrong locks storage format in file {" + artifact.getAbsolutePath() + "} line: {" + line + "}");
@@ -112,21 +219,72 @@ public class LocksStorageImpl implements LocksStorage {
       }
     };
 
+    // entries of promotions with stored locks have zero weight and are removed explicitly when the build finishes
     myLocksCache = CacheBuilder.newBuilder()
-                               .maximumSize(TeamCityProperties.getInteger("teamcity.sharedResources.locksStorage.cacheSize", 300)) // each entry corresponds to a running build
+                               .maximumWeight(TeamCityProperties.getInteger(CACHE_SIZE_PROPERTY, 300))
+                               .weigher((BuildPromotion promotion, Map<String, Lock> locks) -> existsSet.get().contains(promotion.getId()) ? 0 : 1)
+                               .recordStats()
                                .build(loader);
 
     dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        if (runningBuildsManager == null) {
+          return;
+        }
+        final List<SRunningBuild> runningBuilds = runningBuildsManager.getRunningBuilds();
+        if (myJournal != null) {
+          // builds, that finished while the server was down, are dropped from the journal
+          final TLongHashSet running = new TLongHashSet();
+          runningBuilds.forEach(build -> running.add(build.getBuildPromotion().getId()));
+          try {
+            myJournal.retain(running);
+          } catch (IOException e) {
+            log.warn("Failed to remove taken locks of finished builds from the journal; Message is: " + e.getMessage());
+          }
+          updateExists(ids -> ids.retainAll(running.toArray()));
+          myLocksCache.invalidateAll();
+        }
+        warmUp(runningBuilds);
+      }
+
+      @Override
+      public void serverShutdown() {
+        final ExecutorService warmUpExecutor = myWarmUpExecutor;
+        if (warmUpExecutor != null) {
+          warmUpExecutor.shutdownNow();
+        }
+        if (myWriteBehind != null) {
+          myWriteBehind.shutdown();
+        }
+        if (myJournal != null) {
+          try {
+            myJournal.close();
+          } catch (IOException e) {
+            log.warn("Failed to close journal of taken locks; Message is: " + e.getMessage());
+          }
+        }
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        withLock(buildPromotionLock(build.getBuildPromotion()), () -> {
+          removeFromJournal(build.getBuildPromotion());
+          flushWriteBehind(build.getBuildPromotion());
+          forget(build.getBuildPromotion());
+          return null;
+        });
+      }
+
       @Override
       public void buildFinished(@NotNull SRunningBuild build) {
         withLock(buildPromotionLock(build.getBuildPromotion()),
                  () -> {
-                   withLock(myGlobalLock::writeLock,
-                            () -> {
-                              myLocksCache.invalidate(build.getBuildPromotion());
-                              existsSet.remove(build.getBuildPromotion().getId());
-                              return null;
-                            });
+                   if (myJournal != null) {
+                     exportFromJournal(build.getBuildPromotion());
+                   }
+                   flushWriteBehind(build.getBuildPromotion());
+                   forget(build.getBuildPromotion());
                    return null;
                  });
       }
@@ -138,41 +296,258 @@ public class LocksStorageImpl implements LocksStorage {
                     @NotNull final Map<Lock, String> takenLocks) {
     if (!takenLocks.isEmpty()) {
       withLock(buildPromotionLock(buildPromotion), () -> {
-        final Collection<String> serializedStrings = new ArrayList<>();
+        // locks, that are already held by the build, keep their acquisition time
+        final Map<String, Lock> stored = locksStored(buildPromotion) ? getFromCacheSafe(buildPromotion) : Collections.emptyMap();
+        final long now = System.currentTimeMillis();
         final Map<String, Lock> locksToStore = new HashMap<>();
         takenLocks.forEach((lock, value) -> {
-          serializedStrings.add(serializeTakenLock(lock, value));
-          locksToStore.put(lock.getName(), Lock.createFrom(lock, value));
+          final Lock held = stored.get(lock.getName());
+          final long acquired = held != null && held.getAcquired() > 0 && held.getValue().equals(value) ? held.getAcquired() : now;
+          locksToStore.put(lock.getName(), Lock.acquiredAt(Lock.createFrom(lock, value), acquired));
         });
+        write(buildPromotion, locksToStore);
+        return null;
+      });
+    }
+  }
+
+  @NotNull
+  @Override
+  public Map<String, Lock> release(@NotNull final BuildPromotion buildPromotion, @NotNull final Collection<String> lockNames) {
+    return withLock(buildPromotionLock(buildPromotion), () -> {
+      final Map<String, Lock> remaining = new HashMap<>(getFromCacheSafe(buildPromotion));
+      final Map<String, Lock> released = new HashMap<>();
+      lockNames.forEach(name -> {
+        final Lock lock = remaining.remove(name);
+        if (lock != null) {
+          released.put(name, lock);
+        }
+      });
+      if (!released.isEmpty()) {
+        write(buildPromotion, remaining);
+        myListeners.getMulticaster().locksReleased(buildPromotion, Collections.unmodifiableMap(released));
+      }
+      return released;
+    });
+  }
+
+  private void write(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Lock> locksToStore) {
+    try {
+      if (myJournal != null) {
+        myJournal.put(buildPromotion.getId(), locksToStore);
+      } else if ((myWriteBehind == null || !myWriteBehind.offer(buildPromotion, locksToStore)) // written synchronously when the queue is full
+                 && !writeArtifact(buildPromotion, locksToStore)) {
+        log.warn("Failed to create parent dirs for file with taken locks for build {" + buildPromotion + "}");
+        return;
+      }
+      // id is published before the cache is updated, so that the entry is weighed as stored.
+      // Readers, that see the id before the update, load the locks, that are already written
+      if (!existsSet.get().contains(buildPromotion.getId())) {
+        updateExists(ids -> ids.add(buildPromotion.getId()));
+      }
+      myLocksCache.put(buildPromotion, locksToStore);
+      myListeners.getMulticaster().locksStored(buildPromotion, Collections.unmodifiableMap(locksToStore));
+    } catch (IOException e) {
+      log.warn("Failed to store taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
+    }
+  }
+
+  private boolean writeArtifact(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Lock> locksToStore) throws IOException {
+    final Collection<String> serializedStrings = new ArrayList<>();
+    locksToStore.values().forEach(lock -> serializedStrings.add(serializeTakenLock(lock, lock.getValue())));
+    final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
+    if (FileUtil.createParentDirs(artifact)) {
+      // file is replaced atomically, loads are not serialized with writes and must never see partially written file
+      final File temp = new File(artifact.getParentFile(), FILE_NAME + ".tmp");
+      FileUtil.writeFile(temp, StringUtil.join(serializedStrings, "\n"), MY_ENCODING);
+      try {
+        Files.move(temp.toPath(), artifact.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), artifact.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Writes the latest pending locks of the promotion into artifacts. Writes of the same promotion are serialized
+   */
+  private void persistPending(@NotNull final BuildPromotion buildPromotion) {
+    withLock(buildPromotionLock(buildPromotion), () -> {
+      final LocksWriteBehind writeBehind = Objects.requireNonNull(myWriteBehind);
+      final Map<String, Lock> locks = writeBehind.getPending(buildPromotion.getId());
+      if (locks != null) {
+        boolean success = false;
         try {
-          final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
-          if (FileUtil.createParentDirs(artifact)) {
-            FileUtil.writeFile(artifact, StringUtil.join(serializedStrings, "\n"), MY_ENCODING);
-            withLock(myGlobalLock::writeLock, () -> {
-              myLocksCache.put(buildPromotion, locksToStore);
-              existsSet.add(buildPromotion.getId());
-              return null;
-            });
-          } else {
+          success = writeArtifact(buildPromotion, locks);
+          if (!success) {
             log.warn("Failed to create parent dirs for file with taken locks for build {" + buildPromotion + "}");
           }
         } catch (IOException e) {
           log.warn("Failed to store taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
+        } finally {
+          writeBehind.completed(buildPromotion.getId(), locks, success);
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Writes pending locks of the build, that is not running anymore.
+   * Pending write, that fails again, is dropped, otherwise it would be retried forever
+   */
+  private void flushWriteBehind(@NotNull final BuildPromotion buildPromotion) {
+    if (myWriteBehind == null) return;
+    myWriteBehind.flush(buildPromotion);
+    myWriteBehind.cancel(buildPromotion.getId());
+  }
+
+  /**
+   * Exports locks of the finished build from the journal into its artifacts and removes them from the journal
+   */
+  private void exportFromJournal(@NotNull final BuildPromotion buildPromotion) {
+    if (myJournal == null) return;
+    final Map<String, Lock> locks = myJournal.get(buildPromotion.getId());
+    if (locks == null) return;
+    try {
+      writeArtifact(buildPromotion, locks);
+    } catch (IOException e) {
+      log.warn("Failed to export taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
+    }
+    removeFromJournal(buildPromotion);
+  }
+
+  /**
+   * Removes locks of the build, that is not running anymore, from the exists set and from the cache.
+   * Id is removed first, so that readers, that see it, still find locks in the cache
+   */
+  private void forget(@NotNull final BuildPromotion buildPromotion) {
+    if (existsSet.get().contains(buildPromotion.getId())) {
+      updateExists(ids -> ids.remove(buildPromotion.getId()));
+    }
+    myLocksCache.invalidate(buildPromotion);
+  }
+
+  private void removeFromJournal(@NotNull final BuildPromotion buildPromotion) {
+    if (myJournal == null) return;
+    try {
+      myJournal.remove(buildPromotion.getId());
+    } catch (IOException e) {
+      log.warn("Failed to remove taken locks for build [" + buildPromotion + "] from the journal; Message is: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Loads taken locks of given running builds into the cache using a bounded thread pool.
+   * Returns immediately, locks of the builds that are not loaded yet are read on demand
+   *
+   * @param runningBuilds running builds to load locks for
+   */
+  void warmUp(@NotNull final Collection<? extends SRunningBuild> runningBuilds) {
+    final long start = System.currentTimeMillis();
+    final List<BuildPromotion> promotions = new ArrayList<>();
+    final TLongHashSet stored = existsSet.get();
+    runningBuilds.forEach(build -> {
+      if (!stored.contains(build.getBuildPromotion().getId())) {
+        promotions.add(build.getBuildPromotion());
+      }
+    });
+    if (promotions.isEmpty()) {
+      warmUpFinished(start, 0, runningBuilds.size());
+      return;
+    }
+    final int threads = Math.max(1, Math.min(promotions.size(), TeamCityProperties.getInteger(WARM_UP_THREADS_PROPERTY, Math.min(4, Runtime.getRuntime().availableProcessors()))));
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread thread = new Thread(r, "Shared resources locks warm-up");
+      thread.setDaemon(true);
+      return thread;
+    });
+    myWarmUpExecutor = executor;
+    final AtomicInteger loaded = new AtomicInteger();
+    final CompletableFuture<?>[] futures = new CompletableFuture<?>[promotions.size()];
+    for (int i = 0; i < futures.length; i++) {
+      final BuildPromotion promotion = promotions.get(i);
+      futures[i] = CompletableFuture.runAsync(() -> withLock(buildPromotionLock(promotion), () -> {
+        if (new File(promotion.getArtifactsDirectory(), FILE_PATH).isFile()) {
+          updateExists(ids -> ids.add(promotion.getId()));
+          getFromCacheSafe(promotion);
+          loaded.incrementAndGet();
         }
         return null;
-      });
+      }), executor);
+    }
+    CompletableFuture.allOf(futures).whenComplete((result, e) -> {
+      if (e != null) {
+        log.warn("Failed to load taken locks of running builds; Message is: " + e.getMessage());
+      }
+      myWarmUpExecutor = null;
+      executor.shutdown();
+      warmUpFinished(start, loaded.get(), runningBuilds.size());
+    });
+  }
+
+  private void warmUpFinished(final long start, final int loaded, final int total) {
+    myWarmUpBuilds = loaded;
+    myWarmUpTime = System.currentTimeMillis() - start;
+    log.info("Loaded taken locks of " + loaded + " of " + total + " running builds in " + myWarmUpTime + " ms");
+  }
+
+  @Nullable
+  private static LocksJournal openJournal(@NotNull final ServerPaths serverPaths) {
+    if (!TeamCityProperties.getBoolean(JOURNAL_ENABLED_PROPERTY)) {
+      return null;
+    }
+    final File file = new File(new File(serverPaths.getPluginDataDirectory(), SharedResourcesPluginConstants.PLUGIN_NAME), JOURNAL_FILE_NAME);
+    final LocksJournal result = new LocksJournal(file, TeamCityProperties.getBoolean(JOURNAL_SYNC_PROPERTY));
+    try {
+      result.open();
+      return result;
+    } catch (IOException e) {
+      log.warn("Failed to open journal of taken locks " + file.getAbsolutePath() + ", locks are stored in the artifacts; Message is: " + e.getMessage());
+      return null;
     }
   }
 
   @NotNull
   @Override
   public Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion) {
-    return withLock(buildPromotionLock(buildPromotion), () -> getFromCacheSafe(buildPromotion));
+    return getFromCacheSafe(buildPromotion);
   }
 
   @Override
   public boolean locksStored(@NotNull final BuildPromotion buildPromotion) {
-    return withLock(buildPromotionLock(buildPromotion), () -> withLock(myGlobalLock::readLock, () -> existsSet.contains(buildPromotion.getId())));
+    return existsSet.get().contains(buildPromotion.getId());
+  }
+
+  @Override
+  public void addListener(@NotNull final LocksStorageListener listener) {
+    myListeners.addListener(listener);
+  }
+
+  @NotNull
+  @Override
+  public Map<String, Number> getStatistics() {
+    final Map<String, Number> result = new TreeMap<>();
+    final CacheStats stats = myLocksCache.stats();
+    result.put("cacheSize", myLocksCache.size());
+    result.put("cacheHits", stats.hitCount());
+    result.put("cacheMisses", stats.missCount());
+    result.put("cacheEvictions", stats.evictionCount());
+    result.put("cacheLoadMs", TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()));
+    if (myWarmUpTime >= 0) {
+      result.put("warmUpMs", myWarmUpTime);
+      result.put("warmUpBuilds", myWarmUpBuilds);
+    }
+    if (myWriteBehind != null) {
+      result.put("pendingWrites", myWriteBehind.getPendingCount());
+      result.put("oldestPendingWriteMs", myWriteBehind.getOldestPendingAge());
+      result.put("maxWriteLagMs", myWriteBehind.getMaxLag());
+      result.put("backgroundWrites", myWriteBehind.getPersistedCount());
+      result.put("failedBackgroundWrites", myWriteBehind.getFailedCount());
+    }
+    return result;
   }
 
   @NotNull
@@ -187,24 +562,60 @@ public class LocksStorageImpl implements LocksStorage {
 
   @NotNull
   private String serializeTakenLock(@NotNull final Lock lock, @NotNull final String value) {
-    return StringUtil.join("\t", lock.getName(), lock.getType(), value.equals("") ? " " : value);
+    final List<String> values = Lock.splitValues(value);
+    if (values.size() > 1) {
+      // one line per value of the lock on several values
+      return values.stream().map(it -> serializeTakenLock(lock, it)).collect(Collectors.joining("\n"));
+    }
+    final String result = StringUtil.join("\t", lock.getName(), lock.getType(), value.equals("") ? " " : value);
+    if (lock.getAcquired() > 0) {
+      // acquisition time keeps the lease of the lock across server restarts
+      return result + "\t" + lock.getUnits() + "\t" + lock.getAcquired();
+    }
+    // units column is written only for weighted locks to keep the format readable by previous versions
+    return lock.getUnits() > 1 ? result + "\t" + lock.getUnits() : result;
   }
 
   @Nullable
   private Lock deserializeTakenLock(@NotNull final String line) {
     final List<String> strings = StringUtil.split(line, true, '\t'); // we need empty values for locks without values
     Lock result = null;
-    if (strings.size() == 3) {
+    if (strings.size() >= 3 && strings.size() <= 5) {
       String value = StringUtil.trim(strings.get(2));
       if (value == null) {
         value = "";
       }
+      int units = 1;
+      long acquired = 0;
+      try {
+        if (strings.size() >= 4) {
+          units = Integer.parseInt(strings.get(3).trim());
+        }
+        if (strings.size() == 5) {
+          acquired = Long.parseLong(strings.get(4).trim());
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
       final LockType type = LockType.byName(strings.get(1));
-      result = type == null ? null : new Lock(strings.get(0), type, value);
+      result = type == null ? null : new Lock(strings.get(0), type, value, units, acquired);
     }
     return result;
   }
 
+  /**
+   * Atomically replaces the published set of stored ids with the updated copy
+   *
+   * @param update modification of the copy, may be invoked several times on contention
+   */
+  private void updateExists(@NotNull final Consumer<TLongHashSet> update) {
+    existsSet.updateAndGet(current -> {
+      final TLongHashSet result = new TLongHashSet(current.toArray());
+      update.accept(result);
+      return result;
+    });
+  }
+
   private Supplier<java.util.concurrent.locks.Lock> buildPromotionLock(@NotNull final BuildPromotion promotion) {
     return () -> myGuards.get(promotion);
   }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.EventListener;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Listener for changes in {@link LocksStorage}
+ */
+public interface LocksStorageListener extends EventListener {
+
+  /**
+   * Called after taken locks of the build were stored
+   *
+   * @param buildPromotion build promotion locks were stored for
+   * @param locks stored locks in format {@code <Name, Lock>}. Values are resolved inside locks
+   */
+  default void locksStored(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Lock> locks) {
+  }
+
+  /**
+   * Called after some taken locks of the running build were released before the build finished.
+   * {@link #locksStored(BuildPromotion, Map)} is called for remaining locks before this method
+   *
+   * @param buildPromotion build promotion that released locks
+   * @param released released locks in format {@code <Name, Lock>}
+   */
+  default void locksReleased(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Lock> released) {
+  }
+}
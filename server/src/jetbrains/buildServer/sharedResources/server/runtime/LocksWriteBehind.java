@@ -0,0 +1,332 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongObjectHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded write-behind queue for the files with taken locks.
+ *
+ * Pending writes are coalesced per build promotion, only the latest locks of the promotion are written.
+ * Pending writes are persisted in batches by a single background thread.
+ * When the queue is full, {@link #offer} refuses the write and the caller is expected to write synchronously
+ * <p>
+ * Failed writes stay pending, so that {@link #getPending} keeps returning their locks, and are retried with backoff.
+ * Retries are scheduled only if the executor is a {@link ScheduledExecutorService},
+ * otherwise failed writes are retried with the next batch or on {@link #flush}
+ */
+final class LocksWriteBehind {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(LocksWriteBehind.class.getName());
+
+  private static final long RETRY_DELAY = 1000;
+
+  private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+  /**
+   * Persists the latest pending locks of the promotion
+   */
+  interface Persister {
+    void persist(@NotNull BuildPromotion promotion);
+  }
+
+  @NotNull
+  private final Persister myPersister;
+
+  private final int myCapacity;
+
+  @NotNull
+  private final Executor myExecutor;
+
+  /**
+   * Promotion id -> pending write
+   */
+  @NotNull
+  private final TLongObjectHashMap<Pending> myPending = new TLongObjectHashMap<>();
+
+  private boolean myScheduled;
+
+  private boolean myRetryScheduled;
+
+  @NotNull
+  private final AtomicLong myPersisted = new AtomicLong();
+
+  @NotNull
+  private final AtomicLong myFailed = new AtomicLong();
+
+  @NotNull
+  private final AtomicLong myMaxLag = new AtomicLong();
+
+  LocksWriteBehind(@NotNull final Persister persister, final int capacity) {
+    this(persister, capacity, createExecutor());
+  }
+
+  LocksWriteBehind(@NotNull final Persister persister, final int capacity, @NotNull final Executor executor) {
+    myPersister = persister;
+    myCapacity = capacity;
+    myExecutor = executor;
+  }
+
+  /**
+   * Queues locks of the promotion to be written
+   *
+   * @param promotion build promotion
+   * @param locks locks to write
+   * @return {@code false} if the queue is full and locks should be written synchronously
+   */
+  synchronized boolean offer(@NotNull final BuildPromotion promotion, @NotNull final Map<String, Lock> locks) {
+    final Pending existing = myPending.get(promotion.getId());
+    if (existing == null && myPending.size() >= myCapacity) {
+      return false;
+    }
+    // coalesced write keeps the time of the oldest unpersisted change and the backoff of the failed writes
+    myPending.put(promotion.getId(), existing == null
+                                     ? new Pending(promotion, locks, System.currentTimeMillis(), 0, 0)
+                                     : new Pending(promotion, locks, existing.mySubmitted, existing.myFailures, existing.myNextAttempt));
+    if (!myScheduled) {
+      myScheduled = true;
+      myExecutor.execute(this::drain);
+    }
+    return true;
+  }
+
+  /**
+   * @return locks of the promotion that are not written yet, {@code null} if there is no pending write
+   */
+  @Nullable
+  synchronized Map<String, Lock> getPending(final long promotionId) {
+    final Pending pending = myPending.get(promotionId);
+    return pending == null ? null : pending.myLocks;
+  }
+
+  /**
+   * Writes pending locks of the promotion in the calling thread
+   *
+   * @param promotion build promotion
+   */
+  void flush(@NotNull final BuildPromotion promotion) {
+    if (getPending(promotion.getId()) != null) {
+      myPersister.persist(promotion);
+    }
+  }
+
+  /**
+   * Drops pending write of the promotion, that could not be written before the build finished
+   *
+   * @param promotionId id of the promotion
+   */
+  synchronized void cancel(final long promotionId) {
+    final Pending pending = myPending.remove(promotionId);
+    if (pending != null) {
+      LOG.warn("Taken locks for build [" + pending.myPromotion + "] were not written after " + pending.myFailures + " attempts");
+    }
+  }
+
+  /**
+   * Writes all pending locks in the calling thread and stops background writes
+   */
+  void shutdown() {
+    if (myExecutor instanceof ExecutorService) {
+      ((ExecutorService)myExecutor).shutdown();
+      try {
+        ((ExecutorService)myExecutor).awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    persistPending(true);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Locks writer stopped. Persisted: " + myPersisted.get() + ", failed: " + myFailed.get() + ", max lag: " + myMaxLag.get() + " ms");
+    }
+  }
+
+  /**
+   * Marks pending write of the promotion as completed.
+   * Called by {@link Persister} for the locks obtained from {@link #getPending(long)}.
+   * Failed write stays pending and is retried later
+   *
+   * @param promotionId id of the promotion
+   * @param locks written locks
+   * @param success whether locks were written
+   */
+  synchronized void completed(final long promotionId, @NotNull final Map<String, Lock> locks, final boolean success) {
+    final Pending pending = myPending.get(promotionId);
+    if (pending == null || pending.myLocks != locks) {
+      // newer locks were offered while these were written
+      return;
+    }
+    if (success) {
+      myPending.remove(promotionId);
+      myPersisted.incrementAndGet();
+      final long lag = System.currentTimeMillis() - pending.mySubmitted;
+      myMaxLag.accumulateAndGet(lag, Math::max);
+    } else {
+      myFailed.incrementAndGet();
+      final int failures = pending.myFailures + 1;
+      final long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failures - 1, 16));
+      myPending.put(promotionId, new Pending(pending.myPromotion, locks, pending.mySubmitted, failures, System.currentTimeMillis() + delay));
+    }
+  }
+
+  synchronized int getPendingCount() {
+    return myPending.size();
+  }
+
+  /**
+   * @return age in milliseconds of the oldest change, that is not written yet. {@code 0} if all changes are written
+   */
+  synchronized long getOldestPendingAge() {
+    final long now = System.currentTimeMillis();
+    final long[] result = {0};
+    myPending.forEachValue(pending -> {
+      result[0] = Math.max(result[0], now - pending.mySubmitted);
+      return true;
+    });
+    return result[0];
+  }
+
+  long getPersistedCount() {
+    return myPersisted.get();
+  }
+
+  long getFailedCount() {
+    return myFailed.get();
+  }
+
+  long getMaxLag() {
+    return myMaxLag.get();
+  }
+
+  private void drain() {
+    synchronized (this) {
+      myScheduled = false;
+    }
+    persistPending(false);
+    scheduleRetry();
+  }
+
+  private void retry() {
+    synchronized (this) {
+      myRetryScheduled = false;
+    }
+    drain();
+  }
+
+  /**
+   * Schedules the next batch at the time of the earliest retry of the failed writes
+   */
+  private synchronized void scheduleRetry() {
+    if (myRetryScheduled || !(myExecutor instanceof ScheduledExecutorService) || ((ScheduledExecutorService)myExecutor).isShutdown()) {
+      return;
+    }
+    final long[] nextAttempt = {Long.MAX_VALUE};
+    myPending.forEachValue(pending -> {
+      if (pending.myFailures > 0) {
+        nextAttempt[0] = Math.min(nextAttempt[0], pending.myNextAttempt);
+      }
+      return true;
+    });
+    if (nextAttempt[0] != Long.MAX_VALUE) {
+      myRetryScheduled = true;
+      ((ScheduledExecutorService)myExecutor).schedule(this::retry, Math.max(0, nextAttempt[0] - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @param force whether failed writes are retried before their backoff is over
+   */
+  private void persistPending(final boolean force) {
+    final List<BuildPromotion> batch = new ArrayList<>();
+    final long now = System.currentTimeMillis();
+    synchronized (this) {
+      myPending.forEachValue(pending -> {
+        if (force || pending.myNextAttempt <= now) {
+          batch.add(pending.myPromotion);
+        }
+        return true;
+      });
+    }
+    for (BuildPromotion promotion : batch) {
+      try {
+        myPersister.persist(promotion);
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Failed to write taken locks for build [" + promotion + "]", e);
+      }
+    }
+  }
+
+  private static final class Pending {
+
+    @NotNull
+    private final BuildPromotion myPromotion;
+
+    @NotNull
+    private final Map<String, Lock> myLocks;
+
+    private final long mySubmitted;
+
+    /**
+     * Number of failed attempts to write the locks of the promotion
+     */
+    private final int myFailures;
+
+    /**
+     * Time of the next attempt after the failed write, {@code 0} if write did not fail
+     */
+    private final long myNextAttempt;
+
+    private Pending(@NotNull final BuildPromotion promotion,
+                    @NotNull final Map<String, Lock> locks,
+                    final long submitted,
+                    final int failures,
+                    final long nextAttempt) {
+      myPromotion = promotion;
+      myLocks = locks;
+      mySubmitted = submitted;
+      myFailures = failures;
+      myNextAttempt = nextAttempt;
+    }
+  }
+
+  @NotNull
+  private static ScheduledExecutorService createExecutor() {
+    final ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread thread = new Thread(r, "Shared resources locks writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // delayed retries are not awaited on shutdown, pending writes are persisted by the shutting down thread
+    result.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    return result;
+  }
+}
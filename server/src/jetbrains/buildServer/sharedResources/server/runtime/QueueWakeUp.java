@@ -0,0 +1,221 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Requests processing of the build queue as soon as locks on shared resources are freed.
+ *
+ * Without the request, builds, blocked by the locks, are distributed only on the next periodic processing
+ * of the queue. Processing is requested only if some queued build wants to lock one of the freed resources.
+ * Resources are matched by their project and id, so resources with the same name in other projects do not count.
+ * Build queue is checked on the executor, not on the thread that freed the locks.
+ * Requests are coalesced: while one request is pending, new ones are ignored, their resources are checked by the pending one.
+ *
+ * Requests can be switched off by {@code teamcity.sharedResources.queueWakeUp.enabled} property
+ */
+public class QueueWakeUp {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(QueueWakeUp.class.getName());
+
+  @NotNull
+  static final String ENABLED_PROPERTY = "teamcity.sharedResources.queueWakeUp.enabled";
+
+  @NotNull
+  private final BuildQueue myBuildQueue;
+
+  @NotNull
+  private final LockPlans myLockPlans;
+
+  @NotNull
+  private final Resources myResources;
+
+  @NotNull
+  private final Executor myExecutor;
+
+  @NotNull
+  private final Runnable myQueueProcessing;
+
+  @NotNull
+  private final AtomicBoolean myRequested = new AtomicBoolean();
+
+  /**
+   * Freed resources, not checked against the build queue yet
+   */
+  @NotNull
+  private final Set<Resource> myFreed = new HashSet<>();
+
+  public QueueWakeUp(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                     @NotNull final LocksStorage locksStorage,
+                     @NotNull final BuildQueue buildQueue,
+                     @NotNull final LockPlans lockPlans,
+                     @NotNull final Resources resources,
+                     @NotNull final BuildServerEx server) {
+    this(dispatcher, locksStorage, buildQueue, lockPlans, resources, createExecutor(dispatcher), server::flushQueue);
+  }
+
+  QueueWakeUp(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+              @NotNull final LocksStorage locksStorage,
+              @NotNull final BuildQueue buildQueue,
+              @NotNull final LockPlans lockPlans,
+              @NotNull final Resources resources,
+              @NotNull final Executor executor,
+              @NotNull final Runnable queueProcessing) {
+    myBuildQueue = buildQueue;
+    myLockPlans = lockPlans;
+    myResources = resources;
+    myExecutor = executor;
+    myQueueProcessing = queueProcessing;
+
+    locksStorage.addListener(new LocksStorageListener() {
+      @Override
+      public void locksReleased(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Lock> released) {
+        resourcesFreed(buildPromotion, released.keySet());
+      }
+    });
+
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        resourcesFreed(build);
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        resourcesFreed(build);
+      }
+    });
+  }
+
+  private void resourcesFreed(@NotNull final SRunningBuild build) {
+    final BuildPromotion promotion = build.getBuildPromotion();
+    final SBuildType buildType = promotion.getBuildType();
+    if (buildType != null) {
+      final LockPlan plan = myLockPlans.getPlan(buildType);
+      if (plan.hasFeatures()) {
+        resourcesFreed(promotion, plan.getLocks().keySet());
+      }
+    }
+  }
+
+  /**
+   * Requests processing of the queue if some queued build waits for one of the freed resources
+   *
+   * @param promotion promotion that freed the locks
+   * @param lockNames names of freed locks
+   */
+  void resourcesFreed(@NotNull final BuildPromotion promotion, @NotNull final Collection<String> lockNames) {
+    final String projectId = promotion.getProjectId();
+    if (lockNames.isEmpty() || projectId == null || !TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) {
+      return;
+    }
+    final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
+    final List<Resource> freed = new ArrayList<>(lockNames.size());
+    for (String name : lockNames) {
+      final Resource resource = resources.get(name);
+      if (resource != null) {
+        freed.add(resource);
+      }
+    }
+    if (freed.isEmpty()) {
+      return;
+    }
+    synchronized (myFreed) {
+      myFreed.addAll(freed);
+    }
+    if (myRequested.compareAndSet(false, true)) {
+      myExecutor.execute(() -> {
+        // releases during processing request one more run
+        myRequested.set(false);
+        final Set<Resource> toCheck;
+        synchronized (myFreed) {
+          toCheck = new HashSet<>(myFreed);
+          myFreed.clear();
+        }
+        try {
+          if (hasWaitingBuilds(toCheck)) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Requesting processing of the build queue, freed resources: " + toCheck);
+            }
+            myQueueProcessing.run();
+          }
+        } catch (Exception e) {
+          LOG.warnAndDebugDetails("Failed to process build queue after locks on shared resources were freed", e);
+        }
+      });
+    }
+  }
+
+  private boolean hasWaitingBuilds(@NotNull final Set<Resource> freed) {
+    if (freed.isEmpty()) {
+      return false;
+    }
+    // resources, visible in the projects of the queued builds
+    final Map<String, Map<String, Resource>> projectResources = new HashMap<>();
+    for (SQueuedBuild queuedBuild : myBuildQueue.getItems()) {
+      final BuildPromotion promotion = queuedBuild.getBuildPromotion();
+      final SBuildType buildType = promotion.getBuildType();
+      final String projectId = promotion.getProjectId();
+      if (buildType == null || projectId == null) {
+        continue;
+      }
+      final LockPlan plan = myLockPlans.getPlan(buildType);
+      if (plan.hasFeatures()) {
+        final Map<String, Resource> resources = projectResources.computeIfAbsent(projectId, myResources::getResourcesMap);
+        for (String name : plan.getLocks().keySet()) {
+          final Resource resource = resources.get(name);
+          if (resource != null && freed.contains(resource)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  @NotNull
+  private static Executor createExecutor(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    final ExecutorService result = Executors.newSingleThreadExecutor(r -> {
+      final Thread thread = new Thread(r, "Shared resources queue wake up");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        result.shutdownNow();
+      }
+    });
+    return result;
+  }
+}
@@ -16,13 +16,21 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongHashSet;
 import gnu.trove.TLongObjectHashMap;
 import gnu.trove.TLongObjectIterator;
+import gnu.trove.TObjectIntHashMap;
 import java.util.*;
+import java.util.function.Supplier;
 import javax.annotation.concurrent.NotThreadSafe;
 import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Storage for custom resource requested values during build distribution
@@ -33,10 +41,10 @@ import org.jetbrains.annotations.NotNull;
 public class ResourceAffinity {
 
   /**
-   * Storage for actual locked values associated with the build
-   * One value per resource per build is currently supported
+   * Storage for actual locked values associated with the build.
+   * Build can hold several values of a resource, joined into a single value of the lock
    */
-  private final Map<String, TLongObjectHashMap<String>> myLockedValues = new HashMap<>();
+  private final Map<String, AssignedValues> myLockedValues = new HashMap<>();
 
   /**
    * Storage for custom resources locked by the build
@@ -47,14 +55,15 @@ public class ResourceAffinity {
    * Stores resource affinity
    *
    * @param promotion promotion to store resource affinity for
-   * @param affinityMap map ({@code resourceId -> value}) of requested resource values
+   * @param affinityMap map ({@code resourceId -> value}) of requested resource values.
+   *                    Several values of the resource are joined as described in {@link Lock#joinValues(Collection)}
    */
   public void store(@NotNull final BuildPromotion promotion,
                     @NotNull final Map<String, String> affinityMap) {
     final long promotionId = promotion.getId();
     affinityMap.forEach((resourceId, value) -> {
       // store the value
-      myLockedValues.computeIfAbsent(resourceId, it -> new TLongObjectHashMap<>()).put(promotionId, value);
+      myLockedValues.computeIfAbsent(resourceId, it -> new AssignedValues()).assign(promotionId, value);
       Set<String> buildLockedResources = myBuildLockedResources.get(promotionId);
       if (buildLockedResources == null) {
         buildLockedResources = new HashSet<>();
@@ -66,48 +75,241 @@ public class ResourceAffinity {
   }
 
   /**
-   * Returns set of values assigned to other build promotions
+   * Returns number of instances of the value, assigned to build promotions other than the given one
    *
    * @param resource resource to compute for
-   * @param currentPromotion promotion to compute the set for
-   * @return list of values for the given resource,
-   * assigned to promotions other that the given one
+   * @param currentPromotion promotion to compute the number for
+   * @param value value of the resource
+   * @return number of instances of the value, assigned to other promotions.
+   * As we allow duplicate values in custom resources, multiple instances of a value can be locked by other builds
+   */
+  public int getOtherAssignedCount(@NotNull final Resource resource,
+                                   @NotNull final BuildPromotion currentPromotion,
+                                   @NotNull final String value) {
+    final AssignedValues assignedValues = myLockedValues.get(resource.getId());
+    return assignedValues == null ? 0 : assignedValues.getOtherCount(currentPromotion.getId(), value);
+  }
+
+  /**
+   * Returns positions of the values of custom resource, occupied by the taken lock and by the values,
+   * assigned to build promotions other than the given one.
+   * Positions are computed once per distribution cycle and are kept actual when the values are assigned and released,
+   * they are computed again only if the taken lock has changed
+   *
+   * @param resource resource to compute for
+   * @param takenLock locks of the resource, taken in current distribution cycle
+   * @param currentPromotion promotion to compute the positions for
+   * @return occupied positions in {@link CustomResource#getValues()}. Returned set must not be modified
    */
   @NotNull
-  public List<String> getOtherAssignedValues(@NotNull final Resource resource,
-                                            @NotNull final BuildPromotion currentPromotion) {
-    // every promotion can lock at most one value of the resource
-    final TLongObjectHashMap<String> allLockedValues = myLockedValues.get(resource.getId());
-    if (allLockedValues != null) {
-      final long promotionId = currentPromotion.getId();
-      // list, as we allow duplicate values in custom resources, multiple instances of a value can be locked by other builds
-      final List<String> result = new ArrayList<>();
-      allLockedValues.forEachEntry((promoId, value) -> {
-        if (promoId != promotionId) {
-          result.add(value);
-        }
-        return true;
-      });
-      return result;
-    }
-    return Collections.emptyList();
+  public TIntHashSet getOtherOccupiedPositions(@NotNull final CustomResource resource,
+                                               @Nullable final TakenLock takenLock,
+                                               @NotNull final BuildPromotion currentPromotion) {
+    return myLockedValues.computeIfAbsent(resource.getId(), it -> new AssignedValues()).getOtherOccupied(resource, takenLock, currentPromotion.getId());
   }
 
   /**
    * Clears stored resource affinity for builds that do not participate in current distribution cycle
    * Such builds appear when build is removed from the distribution cycle by other extensions
-   * after SharedResources plugin has already processed the build
+   * after SharedResources plugin has already processed the build, or after it was distributed.
+   * Ids of the promotions are requested only if some affinity is stored
    *
-   * @param currentPromotionIds ids of promotions that participate in current distribution cycle
+   * @param distributedIds ids of promotions, distributed in current cycle
+   * @param runningIds ids of running promotions, requested only for builds that are not distributed
    */
-  public void actualize(@NotNull final Set<Long> currentPromotionIds) {
+  public void actualize(@NotNull final Supplier<TLongHashSet> distributedIds,
+                        @NotNull final Supplier<TLongHashSet> runningIds) {
+    if (myBuildLockedResources.isEmpty()) {
+      return;
+    }
+    final TLongHashSet distributed = distributedIds.get();
+    TLongHashSet running = null;
     final TLongObjectIterator<Set<String>> iterator = myBuildLockedResources.iterator();
     while (iterator.hasNext()) {
       iterator.advance();
-      if (!currentPromotionIds.contains(iterator.key())) {
-        Optional.ofNullable(iterator.value()).ifPresent(it -> it.forEach(resourceId -> myLockedValues.get(resourceId).remove(iterator.key())));
+      if (distributed.contains(iterator.key())) {
+        continue;
+      }
+      if (running == null) {
+        running = runningIds.get();
+      }
+      if (!running.contains(iterator.key())) {
+        Optional.ofNullable(iterator.value()).ifPresent(it -> it.forEach(resourceId -> myLockedValues.get(resourceId).release(iterator.key())));
         iterator.remove();
       }
     }
   }
+
+  /**
+   * Values of a single resource, assigned to build promotions, together with number of assignments of every value
+   */
+  private static final class AssignedValues {
+
+    @NotNull
+    private final TLongObjectHashMap<List<String>> myValues = new TLongObjectHashMap<>();
+
+    @NotNull
+    private final TObjectIntHashMap<String> myCounts = new TObjectIntHashMap<>();
+
+    /**
+     * Positions, occupied by the taken lock and by all assigned values, {@code null} if not computed yet
+     */
+    @Nullable
+    private Occupancy myOccupancy;
+
+    private void assign(final long promotionId, @NotNull final String value) {
+      release(promotionId);
+      final List<String> values = Lock.splitValues(value);
+      myValues.put(promotionId, values);
+      values.forEach(it -> {
+        myCounts.put(it, myCounts.get(it) + 1);
+        if (myOccupancy != null) {
+          myOccupancy.occupy(it);
+        }
+      });
+    }
+
+    private void release(final long promotionId) {
+      final List<String> values = myValues.remove(promotionId);
+      if (values != null) {
+        values.forEach(it -> {
+          final int count = myCounts.get(it) - 1;
+          if (count > 0) {
+            myCounts.put(it, count);
+          } else {
+            myCounts.remove(it);
+          }
+          if (myOccupancy != null) {
+            myOccupancy.free(it);
+          }
+        });
+      }
+    }
+
+    @NotNull
+    private TIntHashSet getOtherOccupied(@NotNull final CustomResource resource,
+                                         @Nullable final TakenLock takenLock,
+                                         final long promotionId) {
+      if (myOccupancy == null || !myOccupancy.isActual(resource, takenLock)) {
+        final TObjectIntHashMap<String> counts = new TObjectIntHashMap<>();
+        if (takenLock != null) {
+          takenLock.addValueCounts(counts);
+        }
+        myCounts.forEachEntry((value, count) -> {
+          counts.put(value, counts.get(value) + count);
+          return true;
+        });
+        myOccupancy = new Occupancy(resource, takenLock, counts);
+      }
+      @Nullable final List<String> own = myValues.get(promotionId);
+      if (own == null) {
+        return myOccupancy.myPositions;
+      }
+      // values, assigned to the promotion itself, are not occupied for it
+      final Occupancy result = myOccupancy.copy();
+      own.forEach(result::free);
+      return result.myPositions;
+    }
+
+    private int getOtherCount(final long promotionId, @NotNull final String value) {
+      int count = myCounts.get(value);
+      if (count == 0) {
+        return 0;
+      }
+      @Nullable final List<String> own = myValues.get(promotionId);
+      if (own != null) {
+        for (String it : own) {
+          if (value.equals(it)) {
+            count--;
+          }
+        }
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Positions of the values of custom resource, occupied by given numbers of value instances
+   */
+  private static final class Occupancy {
+
+    @NotNull
+    private final CustomResource myResource;
+
+    @Nullable
+    private final TakenLock myTakenLock;
+
+    private final int myTakenLockVersion;
+
+    /**
+     * Value -> number of occupied instances of the value
+     */
+    @NotNull
+    private final TObjectIntHashMap<String> myCounts;
+
+    @NotNull
+    private final TIntHashSet myPositions;
+
+    private Occupancy(@NotNull final CustomResource resource,
+                      @Nullable final TakenLock takenLock,
+                      @NotNull final TObjectIntHashMap<String> counts) {
+      this(resource, takenLock, counts, resource.getPositions(counts));
+    }
+
+    private Occupancy(@NotNull final CustomResource resource,
+                      @Nullable final TakenLock takenLock,
+                      @NotNull final TObjectIntHashMap<String> counts,
+                      @NotNull final TIntHashSet positions) {
+      myResource = resource;
+      myTakenLock = takenLock;
+      myTakenLockVersion = takenLock == null ? 0 : takenLock.getVersion();
+      myCounts = counts;
+      myPositions = positions;
+    }
+
+    private boolean isActual(@NotNull final CustomResource resource, @Nullable final TakenLock takenLock) {
+      return myResource == resource && myTakenLock == takenLock && (takenLock == null || takenLock.getVersion() == myTakenLockVersion);
+    }
+
+    /**
+     * Occupies the first free occurrence of the value
+     */
+    private void occupy(@NotNull final String value) {
+      final int count = myCounts.get(value);
+      final int position = myResource.getPosition(value, count);
+      if (position != -1) {
+        myPositions.add(position);
+      }
+      myCounts.put(value, count + 1);
+    }
+
+    /**
+     * Frees the last occupied occurrence of the value
+     */
+    private void free(@NotNull final String value) {
+      final int count = myCounts.get(value) - 1;
+      if (count < 0) {
+        return;
+      }
+      final int position = myResource.getPosition(value, count);
+      if (position != -1) {
+        myPositions.remove(position);
+      }
+      if (count > 0) {
+        myCounts.put(value, count);
+      } else {
+        myCounts.remove(value);
+      }
+    }
+
+    @NotNull
+    private Occupancy copy() {
+      final TObjectIntHashMap<String> counts = new TObjectIntHashMap<>();
+      myCounts.forEachEntry((value, count) -> {
+        counts.put(value, count);
+        return true;
+      });
+      return new Occupancy(myResource, myTakenLock, counts, new TIntHashSet(myPositions.toArray()));
+    }
+  }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongObjectHashMap;
+import java.util.*;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Server-wide queue of builds, waiting for write locks on resources.
+ *
+ * When write lock on the resource cannot be acquired, the build gets a ticket in the queue of the resource.
+ * Tickets are kept across distribution cycles until the build starts or leaves the build queue.
+ * While there are tickets in the queue of the resource, read locks on the resource are not granted,
+ * and write locks are granted in the order of the tickets.
+ * Tickets are ordered by {@link TicketPriority}, aged by the time they wait: every
+ * {@code teamcity.sharedResources.waitQueue.priorityAging} milliseconds of waiting raise the priority of the ticket by one,
+ * so a ticket can be overtaken only by the tickets, issued not later than the difference of their priorities allows,
+ * and a steady stream of high-priority builds does not starve the low-priority one.
+ * Priority is refreshed every time the build is enqueued again, the queue is reordered when it changes.
+ *
+ * Ticket of the build that is not checked by the agents filter anymore (i.e. the build is not distributed
+ * for other reasons) expires after {@code teamcity.sharedResources.waitQueue.ticketTimeout} milliseconds,
+ * so such builds do not block the resource.
+ * Tickets of the build, that was granted all its locks {@code teamcity.sharedResources.waitQueue.maxGrants} times,
+ * but did not start (i.e. it is rejected by other agents filters), are released, so that it does not block readers
+ */
+public class ResourceWaitQueue {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ResourceWaitQueue.class.getName());
+
+  @NotNull
+  static final String TICKET_TIMEOUT_PROPERTY = "teamcity.sharedResources.waitQueue.ticketTimeout";
+
+  @NotNull
+  static final String MAX_GRANTS_PROPERTY = "teamcity.sharedResources.waitQueue.maxGrants";
+
+  private static final long DEFAULT_TICKET_TIMEOUT = 5 * 60 * 1000L;
+
+  @NotNull
+  static final String PRIORITY_AGING_PROPERTY = "teamcity.sharedResources.waitQueue.priorityAging";
+
+  private static final int DEFAULT_MAX_GRANTS = 10;
+
+  private static final long DEFAULT_PRIORITY_AGING = 10 * 1000L;
+
+  @NotNull
+  private final TicketPriority myPriority;
+
+  /**
+   * Resource id -> tickets, in order they are served
+   */
+  @NotNull
+  private final Map<String, List<Ticket>> myQueues = new HashMap<>();
+
+  /**
+   * Promotion id -> ids of resources, the promotion holds tickets for
+   */
+  @NotNull
+  private final TLongObjectHashMap<Set<String>> myPromotionTickets = new TLongObjectHashMap<>();
+
+  /**
+   * Sequence number of the next ticket, keeps the order of the tickets, issued in the same millisecond
+   */
+  private long myNextSequence;
+
+  public ResourceWaitQueue(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                           @NotNull final TicketPriority priority) {
+    myPriority = priority;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildStarted(@NotNull final SRunningBuild build) {
+        release(build.getBuildPromotion().getId());
+      }
+
+      @Override
+      public void buildRemovedFromQueue(@NotNull final SQueuedBuild queued, final User user, final String comment) {
+        release(queued.getBuildPromotion().getId());
+      }
+    });
+  }
+
+  /**
+   * Checks whether the queue of the resource allows given promotion to take a lock on the resource.
+   * Promotion without a ticket can take the lock only if nobody is waiting for write lock,
+   * promotion with a ticket can take the lock if it is the first one waiting
+   *
+   * @param resourceId id of the resource
+   * @param promotion promotion that requests the lock
+   * @return {@code true}, if the lock can be taken according to the queue
+   */
+  public synchronized boolean isTurnOf(@NotNull final String resourceId,
+                                       @NotNull final BuildPromotion promotion) {
+    final List<Ticket> queue = myQueues.get(resourceId);
+    if (queue == null) {
+      return true;
+    }
+    final long now = System.currentTimeMillis();
+    final long timeout = getTicketTimeout();
+    final Ticket own = find(queue, promotion.getId());
+    if (own != null) {
+      own.myLastSeen = now;
+    }
+    for (Ticket ticket : queue) {
+      if (ticket == own) {
+        // every ticket before ours has expired
+        return true;
+      }
+      if (now - ticket.myLastSeen <= timeout) {
+        // somebody is waiting for write lock before us
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Issues a ticket for given promotion in the queue of the resource, if the promotion does not have one.
+   * Refreshes priority of the existing ticket
+   *
+   * @param resourceId id of the resource
+   * @param promotion promotion that waits for write lock
+   */
+  public synchronized void enqueue(@NotNull final String resourceId, @NotNull final BuildPromotion promotion) {
+    final long now = System.currentTimeMillis();
+    final int priority = myPriority.getPriority(promotion);
+    final List<Ticket> queue = myQueues.computeIfAbsent(resourceId, id -> new ArrayList<>());
+    Ticket ticket = find(queue, promotion.getId());
+    if (ticket == null) {
+      ticket = new Ticket(resourceId, promotion, now, myNextSequence++, priority);
+      queue.add(ticket);
+      sort(queue);
+    } else if (ticket.myPriority != priority) {
+      ticket.myPriority = priority;
+      sort(queue);
+    }
+    ticket.myLastSeen = now;
+    Set<String> resourceIds = myPromotionTickets.get(promotion.getId());
+    if (resourceIds == null) {
+      resourceIds = new HashSet<>();
+      myPromotionTickets.put(promotion.getId(), resourceIds);
+    }
+    resourceIds.add(resourceId);
+  }
+
+  /**
+   * Records that the promotion was granted all the locks it requested.
+   * Tickets of the promotion, that was granted its locks too many times without starting, are released.
+   * Promotion, that is still blocked on some of its locks, must not be recorded, so it keeps its place in the queues
+   *
+   * @param promotion promotion that passed all its locks
+   */
+  public synchronized void granted(@NotNull final BuildPromotion promotion) {
+    final Set<String> resourceIds = myPromotionTickets.get(promotion.getId());
+    if (resourceIds == null) {
+      return;
+    }
+    final int maxGrants = TeamCityProperties.getInteger(MAX_GRANTS_PROPERTY, DEFAULT_MAX_GRANTS);
+    boolean exceeded = false;
+    for (String resourceId : resourceIds) {
+      final List<Ticket> queue = myQueues.get(resourceId);
+      final Ticket ticket = queue == null ? null : find(queue, promotion.getId());
+      if (ticket != null && ++ticket.myGrants >= maxGrants) {
+        exceeded = true;
+      }
+    }
+    if (exceeded) {
+      LOG.info("Build promotion " + promotion.getId() + " did not start after it was granted its locks " + maxGrants + " times, releasing its tickets");
+      release(promotion.getId());
+    }
+  }
+
+  /**
+   * Removes all tickets of the promotion
+   *
+   * @param promotionId id of the promotion
+   */
+  public synchronized void release(final long promotionId) {
+    final Set<String> resourceIds = myPromotionTickets.remove(promotionId);
+    if (resourceIds == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    for (String resourceId : resourceIds) {
+      final List<Ticket> queue = myQueues.get(resourceId);
+      if (queue != null) {
+        final Ticket ticket = find(queue, promotionId);
+        if (ticket != null) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Build promotion " + promotionId + " waited for write lock on resource " + resourceId + " for " + ticket.getWaitTime(now) + " ms");
+          }
+          remove(resourceId, queue, ticket);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns tickets in the queue of the resource
+   *
+   * @param resourceId id of the resource
+   * @return tickets in order they are served
+   */
+  @NotNull
+  public synchronized List<Ticket> getTickets(@NotNull final String resourceId) {
+    final List<Ticket> queue = myQueues.get(resourceId);
+    return queue == null ? Collections.emptyList() : new ArrayList<>(queue);
+  }
+
+  /**
+   * Gets time the promotion has been waiting for write lock on the resource
+   *
+   * @param resourceId id of the resource
+   * @param promotionId id of the promotion
+   * @return time in milliseconds, {@code -1} if the promotion does not hold a ticket for the resource
+   */
+  public synchronized long getWaitTime(@NotNull final String resourceId, final long promotionId) {
+    final List<Ticket> queue = myQueues.get(resourceId);
+    final Ticket ticket = queue == null ? null : find(queue, promotionId);
+    return ticket == null ? -1 : ticket.getWaitTime(System.currentTimeMillis());
+  }
+
+  private static void sort(@NotNull final List<Ticket> queue) {
+    final long aging = Math.max(1, TeamCityProperties.getLong(PRIORITY_AGING_PROPERTY, DEFAULT_PRIORITY_AGING));
+    queue.sort(Comparator.comparingLong((Ticket it) -> it.getOrder(aging)).thenComparingLong(it -> it.mySequence));
+  }
+
+  private void remove(@NotNull final String resourceId, @NotNull final List<Ticket> queue, @NotNull final Ticket ticket) {
+    queue.remove(ticket);
+    if (queue.isEmpty()) {
+      myQueues.remove(resourceId);
+    }
+  }
+
+  @Nullable
+  private static Ticket find(@NotNull final List<Ticket> queue, final long promotionId) {
+    for (Ticket ticket : queue) {
+      if (ticket.getPromotionId() == promotionId) {
+        return ticket;
+      }
+    }
+    return null;
+  }
+
+  private static long getTicketTimeout() {
+    return TeamCityProperties.getLong(TICKET_TIMEOUT_PROPERTY, DEFAULT_TICKET_TIMEOUT);
+  }
+
+  /**
+   * Ticket of the build, waiting for write lock on the resource
+   */
+  public static final class Ticket {
+
+    @NotNull
+    private final String myResourceId;
+
+    @NotNull
+    private final BuildPromotion myPromotion;
+
+    private final long myEnqueued;
+
+    private final long mySequence;
+
+    private volatile int myPriority;
+
+    /**
+     * Number of times the promotion was granted all its locks while holding the ticket
+     */
+    private int myGrants;
+
+    private volatile long myLastSeen;
+
+    private Ticket(@NotNull final String resourceId,
+                   @NotNull final BuildPromotion promotion,
+                   final long enqueued,
+                   final long sequence,
+                   final int priority) {
+      myResourceId = resourceId;
+      myPromotion = promotion;
+      myEnqueued = enqueued;
+      mySequence = sequence;
+      myPriority = priority;
+      myLastSeen = enqueued;
+    }
+
+    @NotNull
+    public String getResourceId() {
+      return myResourceId;
+    }
+
+    public long getPromotionId() {
+      return myPromotion.getId();
+    }
+
+    /**
+     * @return queued build promotion, that holds the ticket
+     */
+    @NotNull
+    public BuildPromotion getPromotion() {
+      return myPromotion;
+    }
+
+    public long getEnqueued() {
+      return myEnqueued;
+    }
+
+    public int getPriority() {
+      return myPriority;
+    }
+
+    /**
+     * Tickets age at the same rate, so the order of the tickets does not change with time
+     *
+     * @param aging time in milliseconds, that raises priority of the waiting ticket by one
+     * @return position of the ticket in the queue, lower value is served first
+     */
+    private long getOrder(final long aging) {
+      return myEnqueued - myPriority * aging;
+    }
+
+    /**
+     * @param now current time
+     * @return time in milliseconds, the ticket has been waiting
+     */
+    public long getWaitTime(final long now) {
+      return now - myEnqueued;
+    }
+  }
+}
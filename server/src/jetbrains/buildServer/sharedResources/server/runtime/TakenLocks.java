@@ -37,9 +37,9 @@ public interface TakenLocks {
   /**
    * For given project collects taken locks using both artifacts and build promotions.
    *
-   * For running builds :
-   *    looking first into artifact
-   *    secondly, if no artifact exists, looking into promotion+buildType
+   * For running builds locks are taken from {@link TakenLocksIndex}, which looks :
+   *    first into artifact
+   *    secondly, if no artifact exists, into promotion+buildType
    *
    * For queued builds looking only in promotion+buildType
    *
@@ -52,6 +52,23 @@ public interface TakenLocks {
   Map<Resource, TakenLock> collectTakenLocks(@NotNull final Collection<RunningBuildEx> runningBuilds,
                                              @NotNull final Collection<QueuedBuildInfo> queuedBuilds);
 
+  /**
+   * Returns taken locks for the current distribution cycle.
+   *
+   * Locks of running builds are collected once per cycle and stored in distribution data.
+   * On subsequent calls only the changes in distributed builds are applied:
+   * locks of newly distributed builds are added, locks of builds removed from distribution are removed
+   *
+   * @param runningBuilds running builds
+   * @param distributedBuilds builds, distributed in current cycle
+   * @param distributionDataAccessor accessor for custom data
+   * @return map of taken locks in format {@code <Resource, TakenLock>}
+   */
+  @NotNull
+  Map<Resource, TakenLock> getTakenLocks(@NotNull final Collection<RunningBuildEx> runningBuilds,
+                                         @NotNull final Collection<QueuedBuildInfo> distributedBuilds,
+                                         @NotNull final DistributionDataAccessor distributionDataAccessor);
+
   /**
    * Decides, whether required locks can be acquired by the build
    *
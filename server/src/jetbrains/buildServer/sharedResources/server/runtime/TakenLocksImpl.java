@@ -16,24 +16,21 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
 import java.util.*;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
 import jetbrains.buildServer.sharedResources.model.Lock;
-import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
-import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
-import jetbrains.buildServer.util.CollectionsUtil;
 import org.jetbrains.annotations.NotNull;
-
-import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.getReservedResourceAttributeKey;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
@@ -41,91 +38,94 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
 public class TakenLocksImpl implements TakenLocks {
 
   @NotNull
-  private final Locks myLocks;
+  private final Resources myResources;
 
   @NotNull
-  private final Resources myResources;
+  private final LockPlans myLockPlans;
+
+  @NotNull
+  private final TakenLocksIndex myIndex;
 
   @NotNull
-  private final LocksStorage myLocksStorage;
+  private final ResourceWaitQueue myWaitQueue;
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
+  private final BackfillPolicy myBackfillPolicy;
 
-  public TakenLocksImpl(@NotNull final Locks locks,
-                        @NotNull final Resources resources,
-                        @NotNull final LocksStorage locksStorage,
-                        @NotNull final SharedResourcesFeatures features) {
-    myLocks = locks;
+  public TakenLocksImpl(@NotNull final Resources resources,
+                        @NotNull final LockPlans lockPlans,
+                        @NotNull final TakenLocksIndex index,
+                        @NotNull final ResourceWaitQueue waitQueue,
+                        @NotNull final BackfillPolicy backfillPolicy) {
     myResources = resources;
-    myLocksStorage = locksStorage;
-    myFeatures = features;
+    myLockPlans = lockPlans;
+    myIndex = index;
+    myWaitQueue = waitQueue;
+    myBackfillPolicy = backfillPolicy;
   }
 
   @NotNull
   @Override
   public Map<Resource, TakenLock> collectTakenLocks(@NotNull final Collection<RunningBuildEx> runningBuilds,
                                                     @NotNull final Collection<QueuedBuildInfo> queuedBuilds) {
-    final Map<Resource, TakenLock> result = new HashMap<>();
+    final Map<Resource, TakenLock> result = myIndex.getTakenLocks(runningBuilds);
+    final Map<String, Map<String, Resource>> cachedResources = new HashMap<>();
+    for (QueuedBuildInfo build : queuedBuilds) {
+      addQueuedBuildLocks(result, (BuildPromotionEx) build.getBuildPromotionInfo(), cachedResources);
+    }
+    return result;
+  }
+
+  @NotNull
+  @Override
+  public Map<Resource, TakenLock> getTakenLocks(@NotNull final Collection<RunningBuildEx> runningBuilds,
+                                                @NotNull final Collection<QueuedBuildInfo> distributedBuilds,
+                                                @NotNull final DistributionDataAccessor distributionDataAccessor) {
+    Map<Resource, TakenLock> result = distributionDataAccessor.getTakenLocks();
+    if (result == null) {
+      result = collectTakenLocks(runningBuilds, Collections.emptyList());
+      distributionDataAccessor.setTakenLocks(result);
+    }
+    final TLongObjectHashMap<BuildPromotionEx> applied = distributionDataAccessor.getDistributedPromotions();
+    final TLongHashSet actual = new TLongHashSet(distributedBuilds.size());
     final Map<String, Map<String, Resource>> cachedResources = new HashMap<>();
-    for (RunningBuildEx build: runningBuilds) {
-      final SBuildType buildType = build.getBuildType();
-      if (buildType != null) {
-        final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
-        if (features.isEmpty()) continue;
-        // at this point we have features
-        final BuildPromotionEx bpEx = (BuildPromotionEx) build.getBuildPromotionInfo();
-        Map<String, Lock> locks;
-        if (myLocksStorage.locksStored(bpEx)) { // lock values are already resolved
-          locks = myLocksStorage.load(bpEx);
-        } else {
-          locks = myLocks.fromBuildFeaturesAsMap(features); // in future: <String, Set<Lock>>
+    for (QueuedBuildInfo build : distributedBuilds) {
+      final BuildPromotionEx bpEx = (BuildPromotionEx) build.getBuildPromotionInfo();
+      actual.add(bpEx.getId());
+      if (!applied.containsKey(bpEx.getId())) {
+        addQueuedBuildLocks(result, bpEx, cachedResources);
+        applied.put(bpEx.getId(), bpEx);
+      }
+    }
+    if (applied.size() > actual.size()) {
+      // some builds were removed from distribution by other extensions
+      for (long id : applied.keys()) {
+        if (!actual.contains(id)) {
+          final BuildPromotionEx removed = applied.remove(id);
+          result.values().forEach(takenLock -> takenLock.removeLock(removed));
         }
-        if (locks.isEmpty()) continue;
-        // get resources defined in project tree, respecting inheritance
-        final Map<String, Resource> resources = getResources(buildType.getProjectId(), cachedResources);
-        // resolve locks against resources defined in project tree
-        locks.forEach((name, lock) -> {
-          // collection, promotion, resource, lock
-          final Resource resource = resources.get(name);
-          if (resource != null) {
-            if (resource instanceof CustomResource
-                && lock.getType() == LockType.READ
-                && lock.getValue().equals("")) { // ANY LOCK
-              String reservedValue = (String)bpEx.getAttribute(getReservedResourceAttributeKey(resource.getId()));
-              if (reservedValue != null) {
-                addLockToTaken(result, bpEx, resource, Lock.createFrom(lock, reservedValue));
-              } else {
-                addLockToTaken(result, bpEx, resource, lock);
-              }
-            } else {
-              addLockToTaken(result, bpEx, resource, lock);
-            }
-          }
-        });
       }
     }
+    return result;
+  }
 
-    for (QueuedBuildInfo build : queuedBuilds) {
-      BuildPromotionEx bpEx = (BuildPromotionEx) build.getBuildPromotionInfo();
-      final BuildTypeEx buildType = bpEx.getBuildType();
-      if (buildType != null) {
-        final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
-        if (features.isEmpty()) continue;
-        Map<String, Lock> locks = myLocks.fromBuildFeaturesAsMap(features); // in future: <String, Set<Lock>>
-        if (locks.isEmpty()) continue;
-        // get resources defined in project tree, respecting inheritance
-        final Map<String, Resource> resources = getResources(buildType.getProjectId(), cachedResources);
-        for (Map.Entry<String, Lock> entry: locks.entrySet()) {
-          // collection, promotion, resource, lock
-          final Resource resource = resources.get(entry.getKey());
-          if (resource != null) {
-            addLockToTaken(result, bpEx, resource, entry.getValue());
-          }
+  private void addQueuedBuildLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                   @NotNull final BuildPromotionEx bpEx,
+                                   @NotNull final Map<String, Map<String, Resource>> cachedResources) {
+    final BuildTypeEx buildType = bpEx.getBuildType();
+    if (buildType != null) {
+      final Map<String, Lock> locks = myLockPlans.getPlan(buildType).getLocks(); // in future: <String, Set<Lock>>
+      if (locks.isEmpty()) return;
+      // get resources defined in project tree, respecting inheritance
+      final Map<String, Resource> resources = getResources(buildType.getProjectId(), cachedResources);
+      for (Map.Entry<String, Lock> entry: locks.entrySet()) {
+        // collection, promotion, resource, lock
+        final Resource resource = resources.get(entry.getKey());
+        if (resource != null) {
+          addLockToTaken(takenLocks, bpEx, resource, entry.getValue());
         }
       }
     }
-    return result;
   }
 
   @NotNull
@@ -135,7 +135,7 @@ public class TakenLocksImpl implements TakenLocks {
   }
 
   @NotNull
-  @Override // todo: support several locks on resource here too -> Map<Resource, Collection<Lock>>
+  @Override
   public Map<Resource, Lock> getUnavailableLocks(@NotNull Collection<Lock> locksToTake,
                                                  @NotNull Map<Resource, TakenLock> takenLocks,
                                                  @NotNull String projectId,
@@ -146,7 +146,7 @@ public class TakenLocksImpl implements TakenLocks {
     for (Lock lock : locksToTake) {
       final Resource resource = resources.get(lock.getName());
       if (resource != null) {
-        if (!resource.isEnabled() || !checkAgainstResource(lock, takenLocks, resource, distributionDataAccessor, buildPromotion)) {
+        if (!resource.isEnabled() || !checkAgainstResource(lock, takenLocks, resource, null, distributionDataAccessor, buildPromotion)) {
           result.put(resource, lock);
         }
       }
@@ -163,11 +163,12 @@ public class TakenLocksImpl implements TakenLocks {
                                                  @NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
                                                  @NotNull final BuildPromotion buildPromotion) {
     final Map<Resource, Lock> result = new HashMap<>();
-    Map<Resource, TakenLock> chainTakenLocks = purifyTakenLocks(takenLocks, chainLocks);
     locksToTake.forEach((name, lock) -> {
       final Resource resource = chainNodeResources.get(name);
       if (resource != null) {
-        if (!resource.isEnabled() || !checkAgainstResource(lock, chainTakenLocks, resource, distributionDataAccessor, buildPromotion)) {
+        // locks taken inside of the same build chain do not affect current node
+        final TLongHashSet chainPromotionIds = getPromotionIds(chainLocks.get(resource));
+        if (!resource.isEnabled() || !checkAgainstResource(lock, takenLocks, resource, chainPromotionIds, distributionDataAccessor, buildPromotion)) {
           result.put(resource, lock);
         }
       }
@@ -176,19 +177,13 @@ public class TakenLocksImpl implements TakenLocks {
     return result;
   }
 
-  private Map<Resource, TakenLock> purifyTakenLocks(final Map<Resource, TakenLock> takenLocks,
-                                                    final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks) {
-    Map<Resource, TakenLock> result = new HashMap<>();
-    takenLocks.forEach((rc, tl) -> {
-      Map<BuildPromotionEx, Lock> chainTakenLock = chainLocks.get(rc);
-      if (chainTakenLock != null) {
-        result.put(rc, new TakenLock(rc,
-                                     CollectionsUtil.filterMapByKeys(tl.getReadLocks(), key -> !chainTakenLock.containsKey(key)),
-                                     CollectionsUtil.filterMapByKeys(tl.getWriteLocks(), key -> !chainTakenLock.containsKey(key))));
-      } else {
-        result.put(rc, tl);
-      }
-    });
+  @Nullable
+  private static TLongHashSet getPromotionIds(@Nullable final Map<BuildPromotionEx, Lock> chainResourceLocks) {
+    if (chainResourceLocks == null || chainResourceLocks.isEmpty()) {
+      return null;
+    }
+    final TLongHashSet result = new TLongHashSet(chainResourceLocks.size());
+    chainResourceLocks.keySet().forEach(promotion -> result.add(promotion.getId()));
     return result;
   }
 
@@ -210,13 +205,14 @@ public class TakenLocksImpl implements TakenLocks {
   private boolean checkAgainstResource(@NotNull final Lock lock,
                                        @NotNull final Map<Resource, TakenLock> takenLocks,
                                        @NotNull final Resource resource,
+                                       @Nullable final TLongHashSet excluded,
                                        @NotNull final DistributionDataAccessor distributionDataAccessor,
                                        @NotNull final BuildPromotion buildPromotion) {
     boolean result = true;
     if (ResourceType.QUOTED.equals(resource.getType())) {
-      result = checkAgainstQuotedResource(lock, takenLocks, (QuotedResource) resource, distributionDataAccessor);
+      result = checkAgainstQuotedResource(lock, takenLocks, (QuotedResource) resource, excluded, distributionDataAccessor, buildPromotion);
     } else if (ResourceType.CUSTOM.equals(resource.getType())) {
-      result = checkAgainstCustomResource(lock, takenLocks, (CustomResource) resource, distributionDataAccessor, buildPromotion);
+      result = checkAgainstCustomResource(lock, takenLocks, (CustomResource) resource, excluded, distributionDataAccessor, buildPromotion);
     }
     return result;
   }
@@ -224,29 +220,30 @@ public class TakenLocksImpl implements TakenLocks {
   private boolean checkAgainstCustomResource(@NotNull final Lock lock,
                                              @NotNull final Map<Resource, TakenLock> takenLocks,
                                              @NotNull final CustomResource resource,
+                                             @Nullable final TLongHashSet excluded,
                                              @NotNull final DistributionDataAccessor distributionDataAccessor,
                                              @NotNull final BuildPromotion buildPromotion) {
     boolean result = true;
     // what type of lock do we have
     // write            -> all
     // read with value  -> specific
-    // read             -> any
+    // read             -> any (n values, where n is the number of units of the lock)
     final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
     switch (lock.getType()) {
-      case READ:   // check at least one value is available
-        // check for unique writeLocks
-        if (distributionDataAccessor.getFairSet().contains(lock.getName())) {
+      case READ:   // check enough values are available
+        // some build is waiting for write lock on the current resource and the build cannot finish before current holders
+        if (!isTurnOf(resource, distributionDataAccessor, buildPromotion) && !myBackfillPolicy.canBackfill(takenLock, buildPromotion)) {
           result = false;
           break;
         }
 
         // check for write locks
-        if (takenLock.hasWriteLocks()) { // ALL values are locked
+        if (takenLock.hasWriteLocks(excluded)) { // ALL values are locked
           result = false;
           break;
         }
-        // 2) check for quota (read + write)
-        if (resource.getValues().size() <= takenLock.getLocksCount()) {
+        // 2) check for quota (read + write). Every held value consumes one unit
+        if (takenLock.getUnits(excluded) + lock.getUnits() > resource.getValues().size()) {
           // quota exceeded
           result = false;
           break;
@@ -254,12 +251,9 @@ public class TakenLocksImpl implements TakenLocks {
         // 3) SPECIFIC case
         if (!"".equals(lock.getValue())) { // we have custom lock
           final String requiredValue = lock.getValue();
-          final Set<String> takenValues = new HashSet<>();
-          takenValues.addAll(takenLock.getReadLocks().values());
-          takenValues.addAll(takenLock.getWriteLocks().values());
-          // get resource value affinity with other builds
-          takenValues.addAll(distributionDataAccessor.getResourceAffinity().getOtherAssignedValues(resource, buildPromotion));
-          if (takenValues.contains(requiredValue)) {
+          // check locks of other builds and resource value affinity with other builds
+          if (takenLock.isValueLocked(requiredValue, excluded)
+              || distributionDataAccessor.getResourceAffinity().getOtherAssignedCount(resource, buildPromotion, requiredValue) > 0) {
             result = false;
             break;
           }
@@ -267,8 +261,8 @@ public class TakenLocksImpl implements TakenLocks {
         break;
       case WRITE:
         // 'ALL' case
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks()) {
-          distributionDataAccessor.getFairSet().add(lock.getName());
+        if (takenLock.hasReadLocks(excluded) || takenLock.hasWriteLocks(excluded) || !isTurnOf(resource, distributionDataAccessor, buildPromotion)) {
+          enqueue(resource, distributionDataAccessor, buildPromotion);
           result = false;
           break;
         }
@@ -280,37 +274,74 @@ public class TakenLocksImpl implements TakenLocks {
   private boolean checkAgainstQuotedResource(@NotNull final Lock lock,
                                              @NotNull final Map<Resource, TakenLock> takenLocks,
                                              @NotNull final QuotedResource resource,
-                                             @NotNull final DistributionDataAccessor distributionDataAccessor) {
+                                             @Nullable final TLongHashSet excluded,
+                                             @NotNull final DistributionDataAccessor distributionDataAccessor,
+                                             @NotNull final BuildPromotion buildPromotion) {
     boolean result = true;
     final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
     switch (lock.getType()) {
       case READ:
-        // some build requested write lock on the current resource before us
-        if (distributionDataAccessor.getFairSet().contains(resource.getId())) {
+        // some build is waiting for write lock on the current resource and the build cannot finish before current holders
+        if (!isTurnOf(resource, distributionDataAccessor, buildPromotion) && !myBackfillPolicy.canBackfill(takenLock, buildPromotion)) {
           result = false;
           break;
         }
         // Check that no write lock exists
-        if (takenLock.hasWriteLocks()) {
+        if (takenLock.hasWriteLocks(excluded)) {
           result = false;
           break;
         }
-        if (isOverQuota(takenLock, resource)) {
+        if (isOverQuota(takenLock, resource, excluded, lock.getUnits())) {
           result = false;
           break;
         }
         break;
       case WRITE:
         // if anyone is accessing the resource
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks() || isOverQuota(takenLock, resource)) {
-          distributionDataAccessor.getFairSet().add(resource.getId()); // remember write access request on the current resource
+        if (takenLock.hasReadLocks(excluded) || takenLock.hasWriteLocks(excluded) || isOverQuota(takenLock, resource, excluded, lock.getUnits())
+            || !isTurnOf(resource, distributionDataAccessor, buildPromotion)) {
+          enqueue(resource, distributionDataAccessor, buildPromotion); // remember write access request on the current resource
           result = false;
         }
     }
     return result;
   }
 
-  private boolean isOverQuota(@NotNull final TakenLock takenLock, @NotNull final QuotedResource resource) {
-    return !resource.isInfinite() && takenLock.getLocksCount() >= resource.getQuota();
+  private void enqueue(@NotNull final Resource resource,
+                       @NotNull final DistributionDataAccessor distributionDataAccessor,
+                       @NotNull final BuildPromotion buildPromotion) {
+    // emulated distribution must not affect the order of the real one
+    if (!distributionDataAccessor.isEmulationMode() && !isPlanned(distributionDataAccessor, buildPromotion)) {
+      myWaitQueue.enqueue(resource.getId(), buildPromotion);
+    }
+  }
+
+  private boolean isTurnOf(@NotNull final Resource resource,
+                           @NotNull final DistributionDataAccessor distributionDataAccessor,
+                           @NotNull final BuildPromotion buildPromotion) {
+    // admission plan of the cycle has already ordered the planned builds, other builds wait in the queue
+    return isPlanned(distributionDataAccessor, buildPromotion) || myWaitQueue.isTurnOf(resource.getId(), buildPromotion);
+  }
+
+  private static boolean isPlanned(@NotNull final DistributionDataAccessor distributionDataAccessor,
+                                   @NotNull final BuildPromotion buildPromotion) {
+    final AdmissionPlan plan = distributionDataAccessor.getAdmissionPlan();
+    return plan != null && plan.isPlanned(buildPromotion.getId());
+  }
+
+  /**
+   * Checks whether acquiring given number of units would exceed quota of the resource
+   *
+   * @param takenLock locks, taken on the resource
+   * @param resource resource to check
+   * @param excluded ids of promotions, which locks should be ignored
+   * @param units number of units, requested by the lock
+   * @return {@code true} if quota would be exceeded, {@code false} otherwise
+   */
+  private boolean isOverQuota(@NotNull final TakenLock takenLock,
+                              @NotNull final QuotedResource resource,
+                              @Nullable final TLongHashSet excluded,
+                              final int units) {
+    return !resource.isInfinite() && takenLock.getUnits(excluded) + units > resource.getQuota();
   }
 }
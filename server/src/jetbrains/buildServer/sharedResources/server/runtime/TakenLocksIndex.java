@@ -0,0 +1,423 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.getReservedResourceAttributeKey;
+
+/**
+ * Server-wide index of locks, held by running builds.
+ *
+ * Index is maintained incrementally from build server events and from {@link LocksStorage},
+ * so distribution does not have to re-collect locks from every running build on each call.
+ * {@link #sync(Collection)} reconciles the index with actual running builds
+ * for the builds, that were started before the index was populated.
+ *
+ * Locks are resolved against resources of the project of the build. Resolution is repeated when
+ * resources of the project change, so edited, disabled or deleted resources are not kept in the index
+ */
+public class TakenLocksIndex {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(TakenLocksIndex.class.getName());
+
+  @NotNull
+  private final Resources myResources;
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final LockPlans myLockPlans;
+
+  /**
+   * Guards {@code myHolders} and {@code myTakenLocks}
+   */
+  @NotNull
+  private final ReadWriteLock myGuard = new ReentrantReadWriteLock();
+
+  /**
+   * Promotion id -> resolved locks of the promotion. Promotions without locks are stored with empty locks
+   * to avoid resolving them again
+   */
+  @NotNull
+  private final TLongObjectHashMap<Holder> myHolders = new TLongObjectHashMap<>();
+
+  @NotNull
+  private final Map<Resource, TakenLock> myTakenLocks = new HashMap<>();
+
+  public TakenLocksIndex(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                         @NotNull final LocksStorage locksStorage,
+                         @NotNull final Resources resources,
+                         @NotNull final LockPlans lockPlans) {
+    myLocksStorage = locksStorage;
+    myResources = resources;
+    myLockPlans = lockPlans;
+
+    locksStorage.addListener(new LocksStorageListener() {
+      @Override
+      public void locksStored(@NotNull final BuildPromotion promotion, @NotNull final Map<String, Lock> storedLocks) {
+        final String projectId = promotion.getProjectId();
+        if (projectId != null) {
+          // stored locks contain resolved values and always replace indexed locks
+          put(new Holder((BuildPromotionEx)promotion, projectId, storedLocks), true, new HashMap<>());
+        }
+      }
+    });
+
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildStarted(@NotNull final SRunningBuild build) {
+        final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotion();
+        if (!isIndexed(promotion.getId())) {
+          index(build.getBuildType(), promotion, new HashMap<>());
+        }
+      }
+
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        remove(build.getBuildPromotion().getId());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        remove(build.getBuildPromotion().getId());
+      }
+
+      @Override
+      public void buildRemovedFromQueue(@NotNull final SQueuedBuild queued, final User user, final String comment) {
+        remove(queued.getBuildPromotion().getId());
+      }
+    });
+  }
+
+  /**
+   * Reconciles index with given running builds.
+   * Running builds that are not indexed yet get indexed, index entries for builds that are not running anymore are removed
+   *
+   * @param runningBuilds actual running builds
+   */
+  public void sync(@NotNull final Collection<? extends SRunningBuild> runningBuilds) {
+    sync(runningBuilds, new HashMap<>());
+  }
+
+  /**
+   * Reconciles index with given running builds and returns copy of all locks, taken by them
+   *
+   * @param runningBuilds actual running builds
+   * @return map of taken locks in format {@code <Resource, TakenLock>}
+   */
+  @NotNull
+  public Map<Resource, TakenLock> getTakenLocks(@NotNull final Collection<? extends SRunningBuild> runningBuilds) {
+    final Map<String, Map<String, Resource>> resources = new HashMap<>();
+    sync(runningBuilds, resources);
+    refresh(resources);
+    return copyTakenLocks();
+  }
+
+  private void sync(@NotNull final Collection<? extends SRunningBuild> runningBuilds,
+                    @NotNull final Map<String, Map<String, Resource>> resources) {
+    final TLongHashSet runningIds = new TLongHashSet(runningBuilds.size());
+    for (SRunningBuild build : runningBuilds) {
+      final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotionInfo();
+      runningIds.add(promotion.getId());
+      if (!isIndexed(promotion.getId())) {
+        index(build.getBuildType(), promotion, resources);
+      }
+    }
+    myGuard.writeLock().lock();
+    try {
+      for (long id : myHolders.keys()) {
+        if (!runningIds.contains(id)) {
+          removeUnderLock(id);
+        }
+      }
+    } finally {
+      myGuard.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns copy of the locks, taken on the given resource
+   *
+   * @param resource resource to get taken locks for
+   * @return taken locks on the resource. Empty {@code TakenLock} if resource is not locked
+   */
+  @NotNull
+  public TakenLock getTakenLock(@NotNull final Resource resource) {
+    refresh(new HashMap<>());
+    myGuard.readLock().lock();
+    try {
+      final TakenLock takenLock = myTakenLocks.get(resource);
+      return takenLock == null ? new TakenLock(resource) : copy(takenLock);
+    } finally {
+      myGuard.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns copy of all locks, taken by indexed builds
+   *
+   * @return map of taken locks in format {@code <Resource, TakenLock>}
+   */
+  @NotNull
+  public Map<Resource, TakenLock> getTakenLocks() {
+    refresh(new HashMap<>());
+    return copyTakenLocks();
+  }
+
+  @NotNull
+  private Map<Resource, TakenLock> copyTakenLocks() {
+    myGuard.readLock().lock();
+    try {
+      final Map<Resource, TakenLock> result = new HashMap<>(myTakenLocks.size());
+      myTakenLocks.forEach((resource, takenLock) -> result.put(resource, copy(takenLock)));
+      return result;
+    } finally {
+      myGuard.readLock().unlock();
+    }
+  }
+
+  boolean isIndexed(final long promotionId) {
+    myGuard.readLock().lock();
+    try {
+      return myHolders.containsKey(promotionId);
+    } finally {
+      myGuard.readLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes locks of the build, that was not indexed before.
+   * Locks are put only if the build is still not indexed, so locks from the plan never replace stored locks,
+   * indexed concurrently by the listener of {@link LocksStorage}
+   */
+  private void index(@Nullable final SBuildType buildType,
+                     @NotNull final BuildPromotionEx promotion,
+                     @NotNull final Map<String, Map<String, Resource>> resources) {
+    Map<String, Lock> locks = Collections.emptyMap();
+    String projectId = null;
+    if (buildType != null) {
+      final LockPlan plan = myLockPlans.getPlan(buildType);
+      if (plan.hasFeatures()) {
+        projectId = buildType.getProjectId();
+        if (myLocksStorage.locksStored(promotion)) { // lock values are already resolved
+          locks = myLocksStorage.load(promotion);
+        } else {
+          locks = plan.getLocks();
+        }
+      }
+    }
+    put(new Holder(promotion, projectId, locks), false, resources);
+  }
+
+  /**
+   * Resolves locks of the holders again, if resources of their projects were changed since the last resolution
+   *
+   * @param current resources of projects, resolved during current call
+   */
+  private void refresh(@NotNull final Map<String, Map<String, Resource>> current) {
+    final List<Holder> stale = new ArrayList<>();
+    myGuard.readLock().lock();
+    try {
+      myHolders.forEachValue(holder -> {
+        if (holder.myProjectId != null
+            && holder.myResources != current.computeIfAbsent(holder.myProjectId, myResources::getResourcesMap)) {
+          stale.add(holder);
+        }
+        return true;
+      });
+    } finally {
+      myGuard.readLock().unlock();
+    }
+    if (stale.isEmpty()) {
+      return;
+    }
+    myGuard.writeLock().lock();
+    try {
+      for (Holder holder : stale) {
+        // holder could be replaced or removed in the meantime
+        if (myHolders.get(holder.myPromotion.getId()) == holder) {
+          putUnderLock(holder.resolve(current.get(holder.myProjectId)));
+        }
+      }
+    } finally {
+      myGuard.writeLock().unlock();
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Resolved taken locks of " + stale.size() + " build promotion(s) against changed resources");
+    }
+  }
+
+  /**
+   * Resolves and puts locks of the holder into the index
+   *
+   * @param holder holder with locks to resolve
+   * @param replace {@code true} if locks should replace already indexed locks of the promotion
+   * @param resources resources of projects, resolved during current call
+   */
+  private void put(@NotNull final Holder holder,
+                   final boolean replace,
+                   @NotNull final Map<String, Map<String, Resource>> resources) {
+    final Holder resolved = holder.myProjectId == null
+                            ? holder
+                            : holder.resolve(resources.computeIfAbsent(holder.myProjectId, myResources::getResourcesMap));
+    myGuard.writeLock().lock();
+    try {
+      if (!replace && myHolders.containsKey(holder.myPromotion.getId())) {
+        return;
+      }
+      putUnderLock(resolved);
+    } finally {
+      myGuard.writeLock().unlock();
+    }
+    if (LOG.isDebugEnabled() && !resolved.myResolved.isEmpty()) {
+      LOG.debug("Indexed " + resolved.myResolved.size() + " taken lock(s) for build promotion " + holder.myPromotion.getId());
+    }
+  }
+
+  private void putUnderLock(@NotNull final Holder holder) {
+    final BuildPromotionEx promotion = holder.myPromotion;
+    removeUnderLock(promotion.getId());
+    myHolders.put(promotion.getId(), holder);
+    holder.myResolved.forEach((resource, lock) -> {
+      TakenLock takenLock = myTakenLocks.get(resource);
+      if (takenLock == null) {
+        takenLock = new TakenLock(resource);
+        myTakenLocks.put(resource, takenLock);
+      } else if (takenLock.getResource() != resource) {
+        // resource was changed, taken lock is moved to the current definition
+        takenLock = new TakenLock(resource, takenLock);
+        myTakenLocks.remove(resource);
+        myTakenLocks.put(resource, takenLock);
+      }
+      takenLock.addLock(promotion, lock);
+    });
+  }
+
+  private void remove(final long promotionId) {
+    myGuard.writeLock().lock();
+    try {
+      removeUnderLock(promotionId);
+    } finally {
+      myGuard.writeLock().unlock();
+    }
+  }
+
+  private void removeUnderLock(final long promotionId) {
+    final Holder holder = myHolders.remove(promotionId);
+    if (holder != null) {
+      holder.myResolved.keySet().forEach(resource -> {
+        final TakenLock takenLock = myTakenLocks.get(resource);
+        if (takenLock != null) {
+          takenLock.removeLock(holder.myPromotion);
+          if (takenLock.isEmpty()) {
+            myTakenLocks.remove(resource);
+          }
+        }
+      });
+    }
+  }
+
+  @NotNull
+  private static TakenLock copy(@NotNull final TakenLock takenLock) {
+    return new TakenLock(takenLock);
+  }
+
+  private static final class Holder {
+
+    @NotNull
+    private final BuildPromotionEx myPromotion;
+
+    /**
+     * Project, which resources the locks are resolved against. {@code null} if the promotion has no locks
+     */
+    @Nullable
+    private final String myProjectId;
+
+    /**
+     * Locks of the promotion by resource name, as stored or as defined in build features
+     */
+    @NotNull
+    private final Map<String, Lock> myLocks;
+
+    /**
+     * Resources of the project, the locks were resolved against. Compared by identity to detect changes of resources
+     */
+    @Nullable
+    private final Map<String, Resource> myResources;
+
+    @NotNull
+    private final Map<Resource, Lock> myResolved;
+
+    private Holder(@NotNull final BuildPromotionEx promotion,
+                   @Nullable final String projectId,
+                   @NotNull final Map<String, Lock> locks) {
+      this(promotion, locks.isEmpty() ? null : projectId, locks, null, Collections.emptyMap());
+    }
+
+    private Holder(@NotNull final BuildPromotionEx promotion,
+                   @Nullable final String projectId,
+                   @NotNull final Map<String, Lock> locks,
+                   @Nullable final Map<String, Resource> resources,
+                   @NotNull final Map<Resource, Lock> resolved) {
+      myPromotion = promotion;
+      myProjectId = projectId;
+      myLocks = locks;
+      myResources = resources;
+      myResolved = resolved;
+    }
+
+    @NotNull
+    private Holder resolve(@NotNull final Map<String, Resource> resources) {
+      final Map<Resource, Lock> result = new HashMap<>();
+      myLocks.forEach((name, lock) -> {
+        final Resource resource = resources.get(name);
+        if (resource != null) {
+          if (resource instanceof CustomResource
+              && lock.getType() == LockType.READ
+              && lock.getValue().equals("")) { // ANY LOCK
+            final String reservedValue = (String)myPromotion.getAttribute(getReservedResourceAttributeKey(resource.getId()));
+            result.put(resource, reservedValue != null ? Lock.createFrom(lock, reservedValue) : lock);
+          } else {
+            result.put(resource, lock);
+          }
+        }
+      });
+      return new Holder(myPromotion, myProjectId, myLocks, resources, result);
+    }
+  }
+}
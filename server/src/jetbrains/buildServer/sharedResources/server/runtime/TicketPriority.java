@@ -0,0 +1,49 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Priority of the tickets in {@link ResourceWaitQueue}.
+ *
+ * Ticket has the priority of the priority class of the build configuration, the build belongs to.
+ * Builds without build configuration have the priority of the default priority class
+ */
+public class TicketPriority {
+
+  static final int DEFAULT_PRIORITY = 0;
+
+  @NotNull
+  private final PriorityClassManager myPriorityClassManager;
+
+  public TicketPriority(@NotNull final PriorityClassManager priorityClassManager) {
+    myPriorityClassManager = priorityClassManager;
+  }
+
+  /**
+   * @param promotion queued build promotion
+   * @return priority of the ticket of given promotion, greater value means higher priority
+   */
+  public int getPriority(@NotNull final BuildPromotion promotion) {
+    final SBuildType buildType = promotion.getBuildType();
+    return buildType == null ? DEFAULT_PRIORITY : myPriorityClassManager.getBuildTypePriorityClass(buildType).getPriority();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.model.resources;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TObjectIntHashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = {CustomResource.class, ValueSpace.class})
+public class CustomResourceTest extends BaseTestCase {
+
+  @Test
+  public void testPlainValues() {
+    final CustomResource resource = create("a", "b", "a");
+    assertEquals(Arrays.asList("a", "b", "a"), resource.getValues());
+    assertTrue(resource.containsValue("b"));
+    assertFalse(resource.containsValue("c"));
+    assertEquals(0, resource.getOccurrence(0));
+    assertEquals(0, resource.getOccurrence(1));
+    assertEquals(1, resource.getOccurrence(2));
+  }
+
+  @Test
+  public void testBracketRange() {
+    final CustomResource resource = create("range:db-slot-[1..5000]");
+    final List<String> values = resource.getValues();
+    assertEquals(5000, values.size());
+    assertEquals("db-slot-1", values.get(0));
+    assertEquals("db-slot-5000", values.get(4999));
+    assertEquals(41, values.indexOf("db-slot-42"));
+    assertTrue(resource.containsValue("db-slot-5000"));
+    assertFalse(resource.containsValue("db-slot-0"));
+    assertFalse(resource.containsValue("db-slot-5001"));
+    assertFalse(resource.containsValue("db-slot-042"));
+    assertFalse(resource.containsValue("db-slot-"));
+    assertFalse(resource.containsValue("db-slot-4x"));
+  }
+
+  @Test
+  public void testNumericRange() {
+    final CustomResource resource = create("range:30000..39999");
+    assertEquals(10000, resource.getValues().size());
+    assertEquals("30000", resource.getValues().get(0));
+    assertEquals("39999", resource.getValues().get(9999));
+    assertTrue(resource.containsValue("35555"));
+    assertFalse(resource.containsValue("40000"));
+  }
+
+  @Test
+  public void testPaddedRange() {
+    final CustomResource resource = create("range:agent-[08..100].local");
+    final List<String> values = resource.getValues();
+    assertEquals(93, values.size());
+    assertEquals("agent-08.local", values.get(0));
+    assertEquals("agent-10.local", values.get(2));
+    assertEquals("agent-100.local", values.get(92));
+    assertTrue(resource.containsValue("agent-09.local"));
+    assertFalse(resource.containsValue("agent-9.local"));
+    assertFalse(resource.containsValue("agent-0100.local"));
+  }
+
+  @Test
+  public void testMixedDefinitions() {
+    final CustomResource resource = create("first", "range:[1..3]", "2", "last");
+    assertEquals(Arrays.asList("first", "1", "2", "3", "2", "last"), resource.getValues());
+    assertEquals(0, resource.getOccurrence(2));
+    assertEquals(1, resource.getOccurrence(4));
+    assertEquals(Arrays.asList("first", "range:[1..3]", "2", "last"), resource.getValueDefinitions());
+    assertEquals("first\nrange:[1..3]\n2\nlast", resource.getParameters().get("values"));
+  }
+
+  @Test
+  public void testInvalidRangesAreValues() {
+    final CustomResource resource = create("range:5..3", "range:[1..x]", "range:1234567890..1234567891");
+    assertEquals(Arrays.asList("range:5..3", "range:[1..x]", "range:1234567890..1234567891"), resource.getValues());
+    assertFalse(CustomResource.isRange("range:5..3"));
+    assertTrue(CustomResource.isRange("range:port-[1..2]"));
+  }
+
+  @Test
+  public void testValuesWithoutMarkerAreValues() {
+    // values, defined before ranges were supported, keep their meaning
+    final CustomResource resource = create("x[1..3]", "1..3", "a..b");
+    assertEquals(Arrays.asList("x[1..3]", "1..3", "a..b"), resource.getValues());
+    assertTrue(resource.containsValue("x[1..3]"));
+    assertFalse(resource.containsValue("x1"));
+    assertFalse(resource.containsValue("2"));
+    assertFalse(CustomResource.isRange("x[1..3]"));
+    assertFalse(CustomResource.isRange("1..3"));
+  }
+
+  @Test
+  public void testPositions() {
+    final CustomResource resource = create("2", "range:[1..3]", "a", "2", "a");
+    assertEquals(Arrays.asList("2", "1", "2", "3", "a", "2", "a"), resource.getValues());
+    assertEquals(0, resource.getOccurrence(0));
+    assertEquals(1, resource.getOccurrence(2));
+    assertEquals(2, resource.getOccurrence(5));
+    assertEquals(1, resource.getOccurrence(6));
+    final TObjectIntHashMap<String> counts = new TObjectIntHashMap<>();
+    counts.put("2", 2);
+    counts.put("a", 1);
+    counts.put("3", 5);
+    counts.put("unknown", 1);
+    final TIntHashSet positions = resource.getPositions(counts);
+    assertEquals(4, positions.size());
+    assertTrue(positions.contains(0));
+    assertTrue(positions.contains(2));
+    assertTrue(positions.contains(3));
+    assertTrue(positions.contains(4));
+    assertEquals(0, resource.getPosition("2", 0));
+    assertEquals(2, resource.getPosition("2", 1));
+    assertEquals(5, resource.getPosition("2", 2));
+    assertEquals(-1, resource.getPosition("2", 3));
+    assertEquals(6, resource.getPosition("a", 1));
+    assertEquals(-1, resource.getPosition("unknown", 0));
+  }
+
+  @Test
+  public void testEmpty() {
+    final CustomResource resource = create();
+    assertEquals(Collections.emptyList(), resource.getValues());
+    assertFalse(resource.containsValue(""));
+  }
+
+  @Test
+  public void testValueAgents() {
+    final Map<String, String> valueAgents = new LinkedHashMap<>();
+    valueAgents.put("device1", "lab-agent-*");
+    valueAgents.put("device2", "pool:Lab");
+    final CustomResource resource = (CustomResource)ResourceFactory.newCustomResource("id", "project", "resource", Arrays.asList("device1", "device2", "device3"), valueAgents, true);
+    assertTrue(resource.hasAgentRequirements());
+    assertEquals("lab-agent-*", resource.getAgentRequirement("device1"));
+    assertNull(resource.getAgentRequirement("device3"));
+    assertEquals("device1 => lab-agent-*\ndevice2 => pool:Lab", resource.getParameters().get("valueAgents"));
+    assertFalse(create("a").hasAgentRequirements());
+    assertNull(create("a").getParameters().get("valueAgents"));
+  }
+
+  @NotNull
+  private static CustomResource create(@NotNull final String... values) {
+    return CustomResource.newCustomResource("id", "project", "resource", Arrays.asList(values), Collections.emptyMap(), true);
+  }
+}
@@ -30,6 +30,7 @@ import org.testng.annotations.Test;
 import javax.servlet.http.HttpServletRequest;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created with IntelliJ IDEA.
@@ -201,6 +202,28 @@ public class ResourceHelperTest extends BaseTestCase {
     }
   }
 
+  @Test
+  public void testGetEditedParameters() {
+    final Resource rc = ResourceFactory.newQuotedResource(RESOURCE_NAME + "id", PROJECT_ID, RESOURCE_NAME, 1, true);
+    m.checking(new Expectations() {{
+      allowing(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE_TIMEOUT);
+      will(returnValue(" 30 "));
+
+      allowing(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE_ACTION);
+      will(returnValue(""));
+
+      allowing(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_VALUE_AGENTS);
+      will(returnValue(null));
+    }});
+    final Map<String, String> result = myHelper.getEditedParameters(rc, myRequest);
+    assertEquals("30", result.get(SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_TIMEOUT));
+    // sent empty value clears the setting
+    assertEquals("", result.get(SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_ACTION));
+    // setting, that is not sent, is kept as it is
+    assertFalse(result.containsKey(SharedResourcesPluginConstants.ProjectFeatureParameters.VALUE_AGENTS));
+    assertEquals("1", result.get(SharedResourcesPluginConstants.ProjectFeatureParameters.QUOTA));
+  }
+
   private void validateResourceParameters(@NotNull final Resource resource) {
     assertFalse(resource.getParameters().keySet().contains("id"));
   }
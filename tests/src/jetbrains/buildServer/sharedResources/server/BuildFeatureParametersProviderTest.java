@@ -24,10 +24,10 @@ import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.LocksImpl;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
@@ -57,11 +57,8 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"})      // todo: add test for resolved settings
   private ResolvedSettings myResolvedSettings;
 
-  /** SharedResources build feature descriptor */
-  private SharedResourcesFeature myFeature;
-
-  /** Build feature extractor mock*/
-  private SharedResourcesFeatures myFeatures;
+  /** Lock plans mock */
+  private LockPlans myLockPlans;
 
   /** Class under test */
   private BuildFeatureParametersProvider myBuildFeatureParametersProvider;
@@ -73,9 +70,8 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
     m = new Mockery();
     myBuild = m.mock(SBuild.class);
     myBuildType = m.mock(SBuildType.class);
-    myFeature = m.mock(SharedResourcesFeature.class);
     myResolvedSettings = m.mock(ResolvedSettings.class);
-    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myLockPlans = m.mock(LockPlans.class);
 
     final Locks locks = new LocksImpl();
     final LocksStorage storage = m.mock(LocksStorage.class);
@@ -93,7 +89,7 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
     }});
 
 
-    myBuildFeatureParametersProvider = new BuildFeatureParametersProvider(myFeatures, locks, storage);
+    myBuildFeatureParametersProvider = new BuildFeatureParametersProvider(myLockPlans, locks, storage);
   }
 
   /**
@@ -101,7 +97,7 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
    */
   @Test
   public void testNoFeaturePresent() {
-    addFeatureExpectations();
+    addPlanExpectations(LockPlan.EMPTY);
 
     Map<String, String> result = myBuildFeatureParametersProvider.getParameters(myBuild, false);
     assertNotNull(result);
@@ -115,12 +111,7 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
    */
   @Test
   public void testEmptyParams() {
-    addFeatureExpectations(myFeature);
-
-    m.checking(new Expectations() {{
-      oneOf(myFeature).getLockedResources();
-      will(returnValue(Collections.emptyMap()));
-    }});
+    addPlanExpectations(new LockPlan(true, Collections.emptyMap()));
 
     Map<String, String> result = myBuildFeatureParametersProvider.getParameters(myBuild, false);
     assertNotNull(result);
@@ -135,23 +126,13 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
    */
   @Test
   public void testNonEmptyParamsSomeLocks() {
-    final Collection<SharedResourcesFeature> descriptors = new ArrayList<SharedResourcesFeature>() {{
-      add(myFeature);
-    }};
-
     final Map<String, Lock> locksMap = new HashMap<String, Lock>() {{
       put("lock1", new Lock("lock1", LockType.READ));
       put("lock2", new Lock("lock2", LockType.WRITE));
       put("lock3", new Lock("lock3", LockType.READ));
     }};
 
-    m.checking(new Expectations() {{
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(descriptors));
-
-      oneOf(myFeature).getLockedResources();
-      will(returnValue(locksMap));
-    }});
+    addPlanExpectations(new LockPlan(true, locksMap));
 
     Map<String, String> result = myBuildFeatureParametersProvider.getParameters(myBuild, false);
     assertNotNull(result);
@@ -163,12 +144,10 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
   }
 
 
-  private void addFeatureExpectations(SharedResourcesFeature ... features) {
-    final Collection<SharedResourcesFeature> descriptors = Arrays.asList(features);
-
+  private void addPlanExpectations(final LockPlan plan) {
     m.checking(new Expectations() {{
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(descriptors));
+      oneOf(myLockPlans).getPlan(myBuildType);
+      will(returnValue(plan));
     }});
   }
 }
@@ -24,9 +24,10 @@ import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.testng.annotations.AfterMethod;
@@ -44,7 +45,7 @@ public class ConfigurationInspectorTest extends BaseTestCase {
 
   private Resources myResources;
 
-  private SharedResourcesFeatures myFeatures;
+  private LockPlans myLockPlans;
 
   private ConfigurationInspector myInspector;
 
@@ -58,8 +59,8 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     super.setUp();
     m = new Mockery();
     myResources = m.mock(Resources.class);
-    myFeatures = m.mock(SharedResourcesFeatures.class);
-    myInspector = new ConfigurationInspector(myFeatures, myResources);
+    myLockPlans = m.mock(LockPlans.class);
+    myInspector = new ConfigurationInspector(myLockPlans, myResources);
     myProject = m.mock(SProject.class, "My Project");
     myFeature = m.mock(SharedResourcesFeature.class, "my-default-feature");
   }
@@ -262,6 +263,86 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     assertEquals("Resource 'lock1' does not contain required value 'value1'", result.get(lock));
   }
 
+  @Test
+  public void testInspect_SingleFeature_RangeValue() {
+    final Lock matching = new Lock("lock1", LockType.READ, "port-30042");
+    final Lock missing = new Lock("lock2", LockType.READ, "port-40000");
+    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
+      put("lock1", matching);
+      put("lock2", missing);
+    }};
+
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Collections.singletonList("range:port-[30000..39999]"), true));
+      add(ResourceFactory.newCustomResource("lock2", PROJECT_ID, "lock2", Collections.singletonList("range:port-[30000..39999]"), true));
+    }};
+
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals(1, result.size());
+    assertEquals("Resource 'lock2' does not contain required value 'port-40000'", result.get(missing));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_Units() {
+    final Lock fits = new Lock("lock1", LockType.READ, "", 4);
+    final Lock exceeds = new Lock("lock2", LockType.READ, "", 5);
+    final Lock infinite = new Lock("lock3", LockType.READ, "", 100);
+    final Lock anyValues = new Lock("lock4", LockType.READ, "", 2);
+    final Lock tooManyValues = new Lock("lock5", LockType.READ, "", 3);
+    final Lock specificValue = new Lock("lock6", LockType.READ, "a", 2);
+    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
+      put("lock1", fits);
+      put("lock2", exceeds);
+      put("lock3", infinite);
+      put("lock4", anyValues);
+      put("lock5", tooManyValues);
+      put("lock6", specificValue);
+    }};
+
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newQuotedResource("lock1", PROJECT_ID, "lock1", 4, true));
+      add(ResourceFactory.newQuotedResource("lock2", PROJECT_ID, "lock2", 4, true));
+      add(ResourceFactory.newInfiniteResource("lock3", PROJECT_ID, "lock3", true));
+      add(ResourceFactory.newCustomResource("lock4", PROJECT_ID, "lock4", Arrays.asList("a", "b"), true));
+      add(ResourceFactory.newCustomResource("lock5", PROJECT_ID, "lock5", Arrays.asList("a", "b"), true));
+      add(ResourceFactory.newCustomResource("lock6", PROJECT_ID, "lock6", Arrays.asList("a", "b"), true));
+    }};
+
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals(3, result.size());
+    assertEquals("Lock on resource 'lock2' requires 5 units, but quota is 4", result.get(exceeds));
+    assertEquals("Lock on resource 'lock5' requires 3 values, but resource has 2", result.get(tooManyValues));
+    assertEquals("Only lock on any value of resource 'lock6' can request several values", result.get(specificValue));
+  }
+
   /**
    * If some resource triggers the inspection on some level of the project hierarchy,
    * but on the upper level resource with the same name is correct,
@@ -365,7 +446,6 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     final SProject parent = m.mock(SProject.class, "parent-project");
     final List<SProject> path = Arrays.asList(parent, myProject);
     final SBuildType buildType = m.mock(SBuildType.class);
-    final SharedResourcesFeature secondFeature = m.mock(SharedResourcesFeature.class, "second-feature");
 
     final Map<String, Lock> locked1 = new HashMap<String, Lock>() {{
       put("lock1", new Lock("lock1", LockType.READ));
@@ -385,18 +465,16 @@ public class ConfigurationInspectorTest extends BaseTestCase {
       add(ResourceFactory.newCustomResource("lock3", "PARENT", "lock3", Collections.singletonList("my value"), true));
     }};
 
+    final Map<String, Lock> planLocks = new HashMap<>(locked1);
+    planLocks.putAll(locked2);
+    final LockPlan plan = new LockPlan(true, planLocks);
+
     m.checking(new Expectations() {{
       oneOf(buildType).getProject();
       will(returnValue(myProject));
 
-      oneOf(myFeatures).searchForFeatures(buildType);
-      will(returnValue(Arrays.asList(myFeature, secondFeature)));
-
-      oneOf(myFeature).getLockedResources();
-      will(returnValue(locked1));
-
-      oneOf(secondFeature).getLockedResources();
-      will(returnValue(locked2));
+      oneOf(myLockPlans).getPlan(buildType);
+      will(returnValue(plan));
 
       oneOf(myProject).getProjectPath();
       will(returnValue(path));
@@ -25,10 +25,10 @@ import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.util.TestFor;
@@ -47,7 +47,7 @@ import org.testng.annotations.Test;
 public class ContextProcessorTest extends BaseTestCase {
   private final String PROJECT_ID = "PROJECT_ID";
   private Mockery m;
-  private SharedResourcesFeatures myFeatures;
+  private LockPlans myLockPlans;
   private Locks myLocks;
   private Resources myResources;
   private LocksStorage myLocksStorage;
@@ -69,7 +69,7 @@ public class ContextProcessorTest extends BaseTestCase {
     m = new Mockery() {{
       setImposteriser(ClassImposteriser.INSTANCE);
     }};
-    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myLockPlans = m.mock(LockPlans.class);
     myLocks = m.mock(Locks.class);
     myResources = m.mock(Resources.class);
     myLocksStorage = m.mock(LocksStorage.class);
@@ -79,7 +79,7 @@ public class ContextProcessorTest extends BaseTestCase {
     myBuildType = m.mock(BuildTypeEx.class);
     myBuildPromotion = m.mock(BuildPromotionEx.class, "my-build-promotion");
     myReport = m.mock(BuildUsedResourcesReport.class);
-    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, myReport);
+    myProcessor = new SharedResourcesContextProcessor(myLockPlans, myLocks, myResources, myLocksStorage, myReport);
     m.checking(createCommonExpectations());
   }
 
@@ -96,16 +96,10 @@ public class ContextProcessorTest extends BaseTestCase {
 
     final String lockParamName = "teamcity.locks.writeLock." + lock.getName();
 
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
-
     m.checking(new Expectations() {{
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(myTakenLocks));
+      oneOf(myLockPlans).getActualPlan(myBuildType);
+      will(returnValue(new LockPlan(true, myTakenLocks)));
 
       oneOf(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
@@ -135,15 +129,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
     final String lockParamName = "teamcity.locks.readLock." + lock.getName();
 
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
-
     m.checking(new Expectations() {{
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(myTakenLocks));
+      oneOf(myLockPlans).getActualPlan(myBuildType);
+      will(returnValue(new LockPlan(true, myTakenLocks)));
 
       oneOf(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
@@ -178,18 +166,12 @@ public class ContextProcessorTest extends BaseTestCase {
     final Map<String, Lock> otherTakenLocks = new HashMap<>();
     otherTakenLocks.put("CustomResource", new Lock("CustomResource", LockType.READ, "value1"));
 
-    final SharedResourcesFeature currentFeature = m.mock(SharedResourcesFeature.class, "my-build-feature");
-    final Collection<SharedResourcesFeature> currentFeatures = Collections.singleton(currentFeature);
-
     m.checking(new Expectations() {{
       allowing(otherRunningBuild).getBuildPromotion();
       will(returnValue(otherBuildPromotion));
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(currentFeatures));
-
-      oneOf(currentFeature).getLockedResources();
-      will(returnValue(myTakenLocks));
+      oneOf(myLockPlans).getActualPlan(myBuildType);
+      will(returnValue(new LockPlan(true, myTakenLocks)));
 
       oneOf(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
@@ -236,17 +218,11 @@ public class ContextProcessorTest extends BaseTestCase {
 
     final String lockParamName = "teamcity.locks.readLock." + lock.getName();
 
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
-
     m.checking(new Expectations() {{
       createCommonExpectations();
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(myTakenLocks));
+      oneOf(myLockPlans).getActualPlan(myBuildType);
+      will(returnValue(new LockPlan(true, myTakenLocks)));
 
       oneOf(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
@@ -277,8 +253,6 @@ public class ContextProcessorTest extends BaseTestCase {
     takenLocks.put(lock.getName(), lock);
 
     final String lockParamName = "teamcity.locks.readLock." + lock.getName();
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
     final SRunningBuild runningBuild = m.mock(SRunningBuild.class, "running-build");
     final BuildPromotionEx runningBuildPromotion = m.mock(BuildPromotionEx.class, "running-build-promotion");
@@ -287,11 +261,8 @@ public class ContextProcessorTest extends BaseTestCase {
 
     m.checking(new Expectations() {{
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(takenLocks));
+      oneOf(myLockPlans).getActualPlan(myBuildType);
+      will(returnValue(new LockPlan(true, takenLocks)));
 
       oneOf(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
@@ -351,8 +322,6 @@ public class ContextProcessorTest extends BaseTestCase {
     takenLocks.put(lock.getName(), lock);
 
     final String lockParamName = "teamcity.locks.readLock." + lock.getName();
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
     final SRunningBuild runningBuild1 = m.mock(SRunningBuild.class, "running-build-1");
     final BuildPromotionEx runningBuildPromotion1 = m.mock(BuildPromotionEx.class, "running-build-promotion-1");
@@ -365,11 +334,8 @@ public class ContextProcessorTest extends BaseTestCase {
     runningBuildLocks2.put(resource.getName(), new Lock(resource.getName(), LockType.READ, VALUE_HELD));
 
     m.checking(new Expectations() {{
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(takenLocks));
+      oneOf(myLockPlans).getActualPlan(myBuildType);
+      will(returnValue(new LockPlan(true, takenLocks)));
 
       oneOf(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
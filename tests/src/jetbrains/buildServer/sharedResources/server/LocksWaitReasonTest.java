@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = LocksWaitReason.class)
+public class LocksWaitReasonTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private BuildPromotionEx myHolder1;
+
+  private BuildPromotionEx myHolder2;
+
+  private BuildTypeEx myBuildType1;
+
+  private BuildTypeEx myBuildType2;
+
+  private Resource myResource1;
+
+  private Resource myResource2;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myHolder1 = m.mock(BuildPromotionEx.class, "holder1");
+    myHolder2 = m.mock(BuildPromotionEx.class, "holder2");
+    myBuildType1 = m.mock(BuildTypeEx.class, "bt1");
+    myBuildType2 = m.mock(BuildTypeEx.class, "bt2");
+    myResource1 = ResourceFactory.newInfiniteResource("id1", "project", "resource1", true);
+    myResource2 = ResourceFactory.newQuotedResource("id2", "project", "resource2", 1, true);
+
+    m.checking(new Expectations() {{
+      allowing(myHolder1).getId();
+      will(returnValue(1L));
+
+      allowing(myHolder2).getId();
+      will(returnValue(2L));
+    }});
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testDescriptionIsRenderedOnDemand() {
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock takenLock = new TakenLock(myResource1);
+    takenLock.addLock(myHolder2, new Lock("resource1", LockType.WRITE));
+    takenLock.addLock(myHolder1, new Lock("resource1", LockType.READ));
+    takenLocks.put(myResource1, takenLock);
+
+    final Map<Resource, Lock> unavailable = new HashMap<>();
+    unavailable.put(myResource1, new Lock("resource1", LockType.WRITE));
+    unavailable.put(myResource2, new Lock("resource2", LockType.READ));
+
+    m.checking(new Expectations() {{
+      never(myHolder1).getBuildType();
+      never(myHolder2).getBuildType();
+    }});
+    final LocksWaitReason reason = LocksWaitReason.create(takenLocks, unavailable);
+    m.assertIsSatisfied();
+
+    m.checking(new Expectations() {{
+      oneOf(myHolder1).getBuildType();
+      will(returnValue(myBuildType1));
+
+      oneOf(myHolder2).getBuildType();
+      will(returnValue(myBuildType2));
+
+      oneOf(myBuildType1).getExtendedFullName();
+      will(returnValue("Project / B"));
+
+      oneOf(myBuildType2).getExtendedFullName();
+      will(returnValue("Project / A"));
+    }});
+    final String expected = "Build is waiting for the following resources to become available: resource1 (locked by Project / A, Project / B), resource2";
+    assertEquals(expected, reason.getDescription());
+    // description is rendered once
+    assertEquals(expected, reason.getDescription());
+  }
+
+  @Test
+  public void testEqualBlockedStates() {
+    final TakenLock takenLock1 = new TakenLock(myResource1);
+    takenLock1.addLock(myHolder1, new Lock("resource1", LockType.READ));
+    takenLock1.addLock(myHolder2, new Lock("resource1", LockType.READ));
+    final TakenLock takenLock2 = new TakenLock(takenLock1);
+    final Map<Resource, Lock> unavailable = Collections.singletonMap(myResource1, new Lock("resource1", LockType.WRITE));
+
+    final LocksWaitReason reason1 = LocksWaitReason.create(Collections.singletonMap(myResource1, takenLock1), unavailable);
+    final LocksWaitReason reason2 = LocksWaitReason.create(Collections.singletonMap(myResource1, takenLock2), unavailable);
+    assertEquals(reason1, reason2);
+    assertEquals(reason1.hashCode(), reason2.hashCode());
+
+    takenLock2.removeLock(myHolder2);
+    final LocksWaitReason reason3 = LocksWaitReason.create(Collections.singletonMap(myResource1, takenLock2), unavailable);
+    assertFalse(reason1.equals(reason3));
+  }
+
+  @Test
+  public void testWaitTimeIsRendered() {
+    final Map<Resource, Lock> unavailable = Collections.singletonMap(myResource2, new Lock("resource2", LockType.WRITE));
+
+    final LocksWaitReason reason = LocksWaitReason.create(Collections.emptyMap(), unavailable, null,
+                                                          Collections.singletonMap(myResource2, 3 * 60 * 1000L + 500));
+    assertEquals("Build is waiting for the following resource to become available: resource2 (waiting in the queue for 3 minutes)", reason.getDescription());
+
+    // wait time is shown in full minutes, so the reason does not change within a minute
+    assertEquals(reason, LocksWaitReason.create(Collections.emptyMap(), unavailable, null,
+                                                Collections.singletonMap(myResource2, 3 * 60 * 1000L + 30 * 1000L)));
+    assertFalse(reason.equals(LocksWaitReason.create(Collections.emptyMap(), unavailable, null,
+                                                     Collections.singletonMap(myResource2, 4 * 60 * 1000L))));
+
+    final LocksWaitReason justQueued = LocksWaitReason.create(Collections.emptyMap(), unavailable, null,
+                                                              Collections.singletonMap(myResource2, 1000L));
+    assertEquals("Build is waiting for the following resource to become available: resource2", justQueued.getDescription());
+  }
+}
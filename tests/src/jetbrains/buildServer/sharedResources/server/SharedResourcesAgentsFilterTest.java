@@ -23,18 +23,18 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.*;
 import jetbrains.buildServer.serverSide.impl.ProjectEx;
 import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
-import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
-import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
-import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
-import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import jetbrains.buildServer.sharedResources.server.runtime.*;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -53,9 +53,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   private Mockery m;
 
-  private Locks myLocks;
-
-  private SharedResourcesFeatures myFeatures;
+  private LockPlans myLockPlans;
 
   private QueuedBuildInfo myQueuedBuild;
 
@@ -96,8 +94,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     m = new Mockery() {{
       setImposteriser(ClassImposteriser.INSTANCE);
     }};
-    myLocks = m.mock(Locks.class);
-    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myLockPlans = m.mock(LockPlans.class);
     myBuildType = m.mock(BuildTypeEx.class);
     myQueuedBuild = m.mock(QueuedBuildInfo.class);
     myQueuedBuildEx = m.mock(QueuedBuildEx.class);
@@ -125,23 +122,49 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resourceMap));
     }});
-    myAgentsFilter = new SharedResourcesAgentsFilter(myFeatures, myLocks, myTakenLocks, myRunningBuildsManager, myInspector, locksStorage, myResources);
+    final AdmissionPlanner planner = new AdmissionPlanner(m.mock(BuildQueue.class), myLockPlans, myResources);
+    m.checking(new Expectations() {{
+      allowing(locksStorage).addListener(with(any(LocksStorageListener.class)));
+    }});
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final TakenLocksIndex index = new TakenLocksIndex(dispatcher, locksStorage, myResources, myLockPlans);
+    // availability of the resources is covered by AvailabilityForecasterTest
+    final ResourceWaitQueue waitQueue = new ResourceWaitQueue(dispatcher, new TicketPriority(m.mock(PriorityClassManager.class)) {
+      @Override
+      public int getPriority(@NotNull final BuildPromotion promotion) {
+        return 0;
+      }
+    });
+    final AvailabilityForecaster forecaster = new AvailabilityForecaster(index, waitQueue) {
+      @NotNull
+      @Override
+      public LockForecasts forecastLocks(@NotNull final Map<Resource, TakenLock> takenLocks) {
+        return new LockForecasts(waitQueue, takenLocks) {
+          @Override
+          public long getAvailableIn(@NotNull final Resource resource,
+                                     @NotNull final Lock lock,
+                                     @NotNull final BuildPromotion promotion) {
+            return AvailabilityForecast.UNKNOWN;
+          }
+        };
+      }
+    };
+    myAgentsFilter = new SharedResourcesAgentsFilter(myLockPlans, myTakenLocks, myRunningBuildsManager, myInspector, locksStorage, myResources, planner, forecaster, waitQueue);
   }
   
   @Test
   public void testNullBuildType() {
     m.checking(new Expectations() {{
-      oneOf(myRunningBuildsManager).getRunningBuildsEx();
-      will(returnValue(Collections.emptyList()));
+      // build does not use shared resources, no runtime info is gathered
+      never(myRunningBuildsManager).getRunningBuildsEx();
 
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(null));
 
-      oneOf(myBuildPromotion).getProjectId();
-      will(returnValue(myProjectId));
+      never(myBuildPromotion).getProjectId();
 
       allowing(myBuildPromotion).isPartOfBuildChain();
       will(returnValue(false));
@@ -163,12 +186,15 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(myBuildType));
 
       oneOf(myBuildPromotion).getProjectId();
       will(returnValue(null));
 
+      allowing(myLockPlans).getPlan(myBuildType);
+      will(returnValue(new LockPlan(true, Collections.emptyMap())));
+
       allowing(myBuildPromotion).isPartOfBuildChain();
       will(returnValue(false));
 
@@ -181,26 +207,23 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   @Test
   public void testNoFeaturesPresent() {
-    final Collection<SharedResourcesFeature> features = Collections.emptyList();
-
     m.checking(new Expectations() {{
-      oneOf(myRunningBuildsManager).getRunningBuildsEx();
-      will(returnValue(Collections.emptyList()));
+      // build does not use shared resources, no runtime info is gathered
+      never(myRunningBuildsManager).getRunningBuildsEx();
 
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(myBuildType));
 
-      oneOf(myBuildPromotion).getProjectId();
-      will(returnValue(myProjectId));
+      never(myBuildPromotion).getProjectId();
 
       allowing(myBuildPromotion).isPartOfBuildChain();
       will(returnValue(false));
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
+      allowing(myLockPlans).getPlan(myBuildType);
+      will(returnValue(LockPlan.EMPTY));
 
     }});
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
@@ -211,8 +234,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   @Test
   public void testInvalidLocksPresent() {
-    final Collection<SharedResourcesFeature> features = new ArrayList<>();
-    features.add(m.mock(SharedResourcesFeature.class));
+    final LockPlan plan = new LockPlan(true, Collections.emptyMap());
 
     final Map<Lock, String> invalidLocks = new HashMap<>();
     invalidLocks.put(new Lock("lock1", LockType.READ), "");
@@ -224,14 +246,14 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(myBuildType));
 
       oneOf(myBuildPromotion).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
+      allowing(myLockPlans).getPlan(myBuildType);
+      will(returnValue(plan));
 
       oneOf(myInspector).inspect(myBuildType);
       will(returnValue(invalidLocks));
@@ -253,8 +275,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   @Test
   public void testNoLocksInFeatures() {
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+    final LockPlan plan = new LockPlan(true, Collections.emptyMap());
 
     m.checking(new Expectations() {{
       oneOf(myRunningBuildsManager).getRunningBuildsEx();
@@ -263,21 +284,18 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(myBuildType));
 
       oneOf(myBuildPromotion).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
+      allowing(myLockPlans).getPlan(myBuildType);
+      will(returnValue(plan));
 
       oneOf(myInspector).inspect(myBuildType);
       will(returnValue(Collections.emptyMap()));
 
-      oneOf(myLocks).fromBuildFeaturesAsMap(features);
-      will(returnValue(Collections.emptyMap()));
-
       allowing(myBuildPromotion).isPartOfBuildChain();
       will(returnValue(false));
 
@@ -326,9 +344,15 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
     final Lock lock2 = new Lock("resource2", LockType.READ);
 
+    final BuildPromotionEx someBuild = m.mock(BuildPromotionEx.class, "some-build");
+    m.checking(new Expectations() {{
+      allowing(someBuild).getId();
+      will(returnValue(1L));
+    }});
+
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
     final TakenLock tl = new TakenLock(resource2);
-    tl.addLock(m.mock(BuildPromotionEx.class, "some-build"), lock2);
+    tl.addLock(someBuild, lock2);
     takenLocks.put(tl.getResource(), tl);
 
     setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, Collections.emptyMap());
@@ -356,6 +380,10 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
     final BuildPromotionEx bpex = m.mock(BuildPromotionEx.class, "bpex-lock1");
     final Lock takenLock1 = new Lock("resource1", LockType.WRITE);
+    m.checking(new Expectations() {{
+      allowing(bpex).getId();
+      will(returnValue(1L));
+    }});
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
     final TakenLock tl = new TakenLock(resource1);
@@ -421,8 +449,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
   @Test
   @TestFor(issues = "TW-45949")
   public void testDuplicateResources() {
-    final Collection<SharedResourcesFeature> features = new ArrayList<>();
-    features.add(m.mock(SharedResourcesFeature.class));
+    final LockPlan plan = new LockPlan(true, Collections.emptyMap());
 
     final Map<Lock, String> invalidLocks = new HashMap<>();
     invalidLocks.put(new Lock("lock1", LockType.READ), "Resource 'lock1' has duplicate definition");
@@ -434,14 +461,14 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(myBuildType));
 
       oneOf(myBuildPromotion).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
+      allowing(myLockPlans).getPlan(myBuildType);
+      will(returnValue(plan));
 
       oneOf(myInspector).inspect(myBuildType);
       will(returnValue(invalidLocks));
@@ -465,21 +492,19 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
                           final Collection<RunningBuildEx> runningBuilds,
                           final Map<Resource, TakenLock> takenLocks,
                           final Map<Resource, Lock> unavailableLocks) {
+    final LockPlan plan = new LockPlan(!features.isEmpty(), locksToTake);
     m.checking(new Expectations() {{
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
 
-      oneOf(myBuildPromotion).getBuildType();
+      allowing(myBuildPromotion).getBuildType();
       will(returnValue(myBuildType));
 
       oneOf(myBuildPromotion).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myFeatures).searchForFeatures(myBuildType);
-      will(returnValue(features));
-
-      oneOf(myLocks).fromBuildFeaturesAsMap(features);
-      will(returnValue(locksToTake));
+      allowing(myLockPlans).getPlan(myBuildType);
+      will(returnValue(plan));
 
       oneOf(myInspector).inspect(myBuildType);
       will(returnValue(Collections.emptyMap()));
@@ -487,10 +512,10 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myRunningBuildsManager).getRunningBuildsEx();
       will(returnValue(runningBuilds));
 
-      oneOf(myTakenLocks).collectTakenLocks(runningBuilds, canBeStarted.keySet());
+      oneOf(myTakenLocks).getTakenLocks(with(equal(runningBuilds)), with(equal(canBeStarted.keySet())), with(any(DistributionDataAccessor.class)));
       will(returnValue(takenLocks));
 
-      oneOf(myTakenLocks).getUnavailableLocks(with(same(locksToTake.values())), with(same(takenLocks)), with(same(myProjectId)), with(any(DistributionDataAccessor.class)), with(same(myBuildPromotion)));
+      oneOf(myTakenLocks).getUnavailableLocks(with(same(plan.getLocks().values())), with(same(takenLocks)), with(same(myProjectId)), with(any(DistributionDataAccessor.class)), with(same(myBuildPromotion)));
       will(returnValue(unavailableLocks));
 
       allowing(myBuildPromotion).isPartOfBuildChain();
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = StepLocksReleaser.class)
+public class StepLocksReleaserTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private LocksStorage myLocksStorage;
+
+  private BuildUsedResourcesReport myReport;
+
+  private SRunningBuild myBuild;
+
+  private BuildPromotionEx myPromotion;
+
+  private final Map<String, String> myReleaseAfterStep = new HashMap<>();
+
+  private final List<SBuildRunnerDescriptor> mySteps = new ArrayList<>();
+
+  private final Set<String> myDisabledSteps = new HashSet<>();
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myLocksStorage = m.mock(LocksStorage.class);
+    myReport = m.mock(BuildUsedResourcesReport.class);
+    myBuild = m.mock(SRunningBuild.class);
+    myPromotion = m.mock(BuildPromotionEx.class);
+    myReleaseAfterStep.clear();
+    mySteps.clear();
+    myDisabledSteps.clear();
+
+    final SBuildType buildType = m.mock(SBuildType.class);
+    final LockPlans lockPlans = m.mock(LockPlans.class);
+    mySteps.add(createStep("RUNNER_1", "Build"));
+    mySteps.add(createStep("RUNNER_2", "Deploy"));
+
+    m.checking(new Expectations() {{
+      allowing(myBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(myPromotion).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(myPromotion).getId();
+      will(returnValue(1L));
+
+      allowing(myLocksStorage).locksStored(myPromotion);
+      will(returnValue(true));
+
+      allowing(lockPlans).getPlan(buildType);
+      will(new CustomAction("compile plan") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          return new LockPlan(true, Collections.emptyMap(), myReleaseAfterStep, Collections.emptyMap());
+        }
+      });
+
+      allowing(buildType).getBuildRunners();
+      will(returnValue(mySteps));
+
+      allowing(buildType).isEnabled(with(any(String.class)));
+      will(new CustomAction("step is enabled") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          return !myDisabledSteps.contains((String)invocation.getParameter(0));
+        }
+      });
+
+      allowing(buildType).getExternalId();
+      will(returnValue("bt"));
+    }});
+
+    new StepLocksReleaser(myDispatcher, lockPlans, myLocksStorage, myReport);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testReleaseAfterStep() {
+    myReleaseAfterStep.put("env", "RUNNER_2");
+    myReleaseAfterStep.put("db", "RUNNER_1");
+    final Map<String, Lock> released = Collections.singletonMap("db", new Lock("db", LockType.READ));
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).release(myPromotion, Collections.singletonList("db"));
+      will(returnValue(released));
+
+      oneOf(myReport).markReleased(myPromotion, released.keySet());
+
+      oneOf(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    stepFinished("Step 1/2: Build");
+  }
+
+  @Test
+  public void testOtherBlocksAreIgnored() {
+    myReleaseAfterStep.put("db", "RUNNER_1");
+    m.checking(new Expectations() {{
+      never(myLocksStorage).release(with(any(BuildPromotion.class)), with(any(Collection.class)));
+    }});
+    myDispatcher.getMulticaster().messageReceived(myBuild, DefaultMessagesInfo.createBlockEnd("Build", "target"));
+    stepFinished("Build");
+    stepFinished("Step 2/2: Build");
+    stepFinished("Step 1/3: Build");
+    stepFinished("Step 10/2: Build");
+  }
+
+  @Test
+  public void testStepsWithSameName() {
+    mySteps.set(1, createStep("RUNNER_3", "Build"));
+    myReleaseAfterStep.put("db", "RUNNER_3");
+    final Map<String, Lock> released = Collections.singletonMap("db", new Lock("db", LockType.READ));
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).release(myPromotion, Collections.singletonList("db"));
+      will(returnValue(released));
+
+      oneOf(myReport).markReleased(myPromotion, released.keySet());
+
+      oneOf(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    stepFinished("Step 1/2: Build");
+    stepFinished("Step 2/2: Build");
+  }
+
+  @Test
+  public void testDisabledStepsAreNotCounted() {
+    mySteps.add(0, createStep("RUNNER_0", "Prepare"));
+    myDisabledSteps.add("RUNNER_0");
+    myReleaseAfterStep.put("db", "RUNNER_1");
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).release(myPromotion, Collections.singletonList("db"));
+      will(returnValue(Collections.emptyMap()));
+    }});
+    stepFinished("Step 1/2: Build");
+  }
+
+  @Test
+  public void testNoLocksAfterStep() {
+    m.checking(new Expectations() {{
+      never(myLocksStorage).release(with(any(BuildPromotion.class)), with(any(Collection.class)));
+    }});
+    stepFinished("Step 1/2: Build");
+  }
+
+  @Test
+  public void testLockAlreadyReleased() {
+    myReleaseAfterStep.put("db", "RUNNER_1");
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).release(myPromotion, Collections.singletonList("db"));
+      will(returnValue(Collections.emptyMap()));
+
+      never(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    stepFinished("Step 1/2: Build");
+  }
+
+  private void stepFinished(@NotNull final String blockName) {
+    myDispatcher.getMulticaster().messageReceived(myBuild, DefaultMessagesInfo.createBlockEnd(blockName, DefaultMessagesInfo.BLOCK_TYPE_BUILD_STEP));
+  }
+
+  @NotNull
+  private SBuildRunnerDescriptor createStep(@NotNull final String id, @NotNull final String name) {
+    final SBuildRunnerDescriptor result = m.mock(SBuildRunnerDescriptor.class, id);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+
+      allowing(result).getName();
+      will(returnValue(name));
+    }});
+    return result;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.feature;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.SharedResourcesBuildFeature;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+
+@TestFor(testForClass = {LockPlans.class, LockPlansImpl.class})
+public class LockPlansImplTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private SharedResourcesFeatures myFeatures;
+
+  private Locks myLocks;
+
+  private SBuildType myBuildType;
+
+  private SBuildFeatureDescriptor myDescriptor;
+
+  private Map<String, String> myParameters;
+
+  private Collection<SharedResourcesFeature> mySearchResult;
+
+  private Map<String, Lock> myLocksMap;
+
+  /** Class under test */
+  private LockPlans myLockPlans;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myLocks = m.mock(Locks.class);
+    myBuildType = m.mock(SBuildType.class);
+    myDescriptor = m.mock(SBuildFeatureDescriptor.class);
+    myParameters = new HashMap<>();
+    myParameters.put(LOCKS_FEATURE_PARAM_KEY, "resource readLock");
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    mySearchResult = Collections.singleton(feature);
+    myLocksMap = Collections.singletonMap("resource", new Lock("resource", LockType.READ));
+
+    m.checking(new Expectations() {{
+      allowing(myDescriptor).getId();
+      will(returnValue("BUILD_EXT_1"));
+
+      allowing(myDescriptor).getType();
+      will(returnValue(SharedResourcesBuildFeature.FEATURE_TYPE));
+
+      allowing(myDescriptor).getParameters();
+      will(returnValue(myParameters));
+
+      allowing(myBuildType).isEnabled("BUILD_EXT_1");
+      will(returnValue(true));
+
+      allowing(feature).getReleaseAfterStep();
+      will(returnValue(Collections.singletonMap("resource", "RUNNER_1")));
+
+      allowing(feature).getLeaseTimeouts();
+      will(returnValue(Collections.singletonMap("resource", 30L)));
+    }});
+
+    myLockPlans = new LockPlansImpl(myFeatures, myLocks, myDispatcher);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testNoFeatures() {
+    m.checking(new Expectations() {{
+      allowing(myBuildType).getBuildFeatures();
+      will(returnValue(Collections.emptyList()));
+    }});
+    assertSame(LockPlan.EMPTY, myLockPlans.getPlan(myBuildType));
+    assertFalse(myLockPlans.getPlan(myBuildType).hasFeatures());
+  }
+
+  @Test
+  public void testPlanIsReused() {
+    expectCompilations(1);
+    final LockPlan plan = myLockPlans.getPlan(myBuildType);
+    assertTrue(plan.hasFeatures());
+    assertEquals(myLocksMap, plan.getLocks());
+    assertEquals(Collections.singletonMap("resource", "RUNNER_1"), plan.getReleaseAfterStep());
+    assertEquals(Collections.singletonMap("resource", 30L), plan.getLeaseTimeouts());
+    assertSame(plan, myLockPlans.getPlan(myBuildType));
+  }
+
+  @Test
+  public void testChangedLocksArePickedUpOnPersisting() {
+    expectCompilations(2);
+    final LockPlan plan = myLockPlans.getPlan(myBuildType);
+    myParameters.put(LOCKS_FEATURE_PARAM_KEY, "resource writeLock");
+    assertSame(plan, myLockPlans.getPlan(myBuildType));
+    myDispatcher.getMulticaster().buildTypePersisted(myBuildType);
+    assertNotSame(plan, myLockPlans.getPlan(myBuildType));
+  }
+
+  @Test
+  public void testInvalidatedOnBuildTypePersisted() {
+    expectCompilations(2);
+    final LockPlan plan = myLockPlans.getPlan(myBuildType);
+    myDispatcher.getMulticaster().buildTypePersisted(myBuildType);
+    assertNotSame(plan, myLockPlans.getPlan(myBuildType));
+  }
+
+  @Test
+  public void testInvalidatedOnProjectRestored() {
+    expectCompilations(2);
+    final LockPlan plan = myLockPlans.getPlan(myBuildType);
+    myDispatcher.getMulticaster().projectRestored("project");
+    assertNotSame(plan, myLockPlans.getPlan(myBuildType));
+  }
+
+  @Test
+  public void testPlanCompiledDuringInvalidationIsRecompiled() {
+    m.checking(new Expectations() {{
+      exactly(2).of(myBuildType).getBuildFeatures();
+      will(returnValue(Collections.singletonList(myDescriptor)));
+
+      exactly(2).of(myFeatures).searchForFeatures(myBuildType);
+      will(onConsecutiveCalls(
+        new CustomAction("settings are persisted while the plan is compiled") {
+          @Override
+          public Object invoke(final Invocation invocation) {
+            myDispatcher.getMulticaster().buildTypePersisted(myBuildType);
+            return mySearchResult;
+          }
+        },
+        returnValue(mySearchResult)));
+
+      exactly(2).of(myLocks).fromBuildFeaturesAsMap(mySearchResult);
+      will(returnValue(myLocksMap));
+    }});
+    final LockPlan plan = myLockPlans.getPlan(myBuildType);
+    final LockPlan recompiled = myLockPlans.getPlan(myBuildType);
+    assertNotSame(plan, recompiled);
+    assertSame(recompiled, myLockPlans.getPlan(myBuildType));
+  }
+
+  @Test
+  public void testActualPlanReplacesCachedOne() {
+    expectCompilations(2);
+    final LockPlan plan = myLockPlans.getPlan(myBuildType);
+    // settings are changed in memory, but are not persisted yet
+    myParameters.put(LOCKS_FEATURE_PARAM_KEY, "resource writeLock");
+    final LockPlan actual = myLockPlans.getActualPlan(myBuildType);
+    assertNotSame(plan, actual);
+    assertSame(actual, myLockPlans.getPlan(myBuildType));
+  }
+
+  private void expectCompilations(final int times) {
+    m.checking(new Expectations() {{
+      // features are walked only when the plan is compiled
+      exactly(times).of(myBuildType).getBuildFeatures();
+      will(returnValue(Collections.singletonList(myDescriptor)));
+
+      exactly(times).of(myFeatures).searchForFeatures(myBuildType);
+      will(returnValue(mySearchResult));
+
+      exactly(times).of(myLocks).fromBuildFeaturesAsMap(mySearchResult);
+      will(returnValue(myLocksMap));
+    }});
+  }
+}
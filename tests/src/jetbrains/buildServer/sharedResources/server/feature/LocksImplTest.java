@@ -29,7 +29,9 @@ import org.testng.annotations.Test;
 
 import java.util.*;
 
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LEASE_TIMEOUT_PARAM_KEY;
 import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.RELEASE_AFTER_STEP_PARAM_KEY;
 
 /**
  * Class {@code LocksImplTest}
@@ -293,4 +295,61 @@ public class LocksImplTest extends BaseTestCase {
       assertEquals(lock.getValue(), val);
     }
   }
+
+  @Test
+  public void testFromFeatureParams_Units() {
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, "memory readLock:8\nseats readLock\nslots readLock:2 value\nbroken readLock:x\nzero readLock:0");
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(params);
+    assertEquals(5, result.size());
+    assertEquals(new Lock("memory", LockType.READ, "", 8), result.get("memory"));
+    assertEquals(1, result.get("seats").getUnits());
+    assertEquals(new Lock("slots", LockType.READ, "value", 2), result.get("slots"));
+    // locks with malformed units are kept and take a single unit
+    assertEquals(new Lock("broken", LockType.READ, "", 1), result.get("broken"));
+    assertEquals(new Lock("zero", LockType.READ, "", 1), result.get("zero"));
+  }
+
+  @Test
+  public void testToFeatureParams_Units() {
+    final List<Lock> locks = Arrays.asList(new Lock("memory", LockType.READ, "", 8), new Lock("seats", LockType.READ));
+    final String str = myLocks.asFeatureParameter(locks);
+    assertEquals("memory readLock:8 \nseats readLock ", str);
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, str);
+    assertEquals(locks, new ArrayList<>(myLocks.fromFeatureParameters(params).values()));
+  }
+
+  @Test
+  public void testFromFeatureParams_MalformedUnits() {
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, "resource readLockX\nvalues writeLock:-3 value");
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(params);
+    assertEquals(new Lock("resource", LockType.READ, "", 1), result.get("resource"));
+    assertEquals(new Lock("values", LockType.WRITE, "value", 1), result.get("values"));
+  }
+
+  @Test
+  public void testReleaseAfterStep() {
+    assertEmpty(myLocks.releaseAfterStepFromFeatureParameters(Collections.emptyMap()));
+    final Map<String, String> params = new HashMap<>();
+    params.put(RELEASE_AFTER_STEP_PARAM_KEY, "db RUNNER_1\n\nshared env RUNNER_2\nbroken");
+    final Map<String, String> result = myLocks.releaseAfterStepFromFeatureParameters(params);
+    assertEquals(2, result.size());
+    assertEquals("RUNNER_1", result.get("db"));
+    assertEquals("RUNNER_2", result.get("shared env"));
+    assertEquals("db RUNNER_1\nshared env RUNNER_2", myLocks.asReleaseAfterStepParameter(result));
+  }
+
+  @Test
+  public void testLeaseTimeouts() {
+    assertEmpty(myLocks.leaseTimeoutsFromFeatureParameters(Collections.emptyMap()));
+    final Map<String, String> params = new HashMap<>();
+    params.put(LEASE_TIMEOUT_PARAM_KEY, "db 30\nshared env 0\nbroken\nnegative -1\nnot_a_number ten");
+    final Map<String, Long> result = myLocks.leaseTimeoutsFromFeatureParameters(params);
+    assertEquals(2, result.size());
+    assertEquals(Long.valueOf(30), result.get("db"));
+    assertEquals(Long.valueOf(0), result.get("shared env"));
+    assertEquals("db 30\nshared env 0", myLocks.asLeaseTimeoutParameter(result));
+  }
 }
@@ -73,6 +73,13 @@ public class ResourcesImplTest extends BaseTestCase {
     myRootProject = m.mock(SProject.class, "rootProject");
     myResourceProjectFeatures = m.mock(ResourceProjectFeatures.class);
     resources = new ResourcesImpl(myProjectManager, myResourceProjectFeatures);
+    m.checking(new Expectations() {{
+      allowing(myProject).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myRootProject).getProjectId();
+      will(returnValue(myRootProjectId));
+    }});
   }
 
   @Override
@@ -327,6 +334,78 @@ public class ResourcesImplTest extends BaseTestCase {
     assertEquals(1, resources.getCount(myProject));
   }
 
+  @Test
+  public void testResolvedResourcesReused() {
+    final List<ResourceProjectFeature> projectFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true))
+    );
+
+    final List<ResourceProjectFeature> rootFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("root1", myRootProjectId, "RESOURCE_2", true))
+    );
+
+    m.checking(new Expectations() {{
+      exactly(2).of(myProjectManager).findProjectById(myProjectId);
+      will(returnValue(myProject));
+
+      exactly(2).of(myProject).getProjectPath();
+      will(returnValue(Arrays.asList(myRootProject, myProject)));
+
+      exactly(2).of(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(projectFeatures));
+
+      exactly(2).of(myResourceProjectFeatures).getOwnFeatures(myRootProject);
+      will(returnValue(rootFeatures));
+    }});
+
+    final Map<String, Resource> first = resources.getResourcesMap(myProjectId);
+    assertEquals(2, first.size());
+    assertSame(first, resources.getResourcesMap(myProjectId));
+  }
+
+  @Test
+  public void testParentChangeInvalidatesResolvedResources() {
+    final List<ResourceProjectFeature> projectFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true))
+    );
+
+    final List<ResourceProjectFeature> rootFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("root1", myRootProjectId, "RESOURCE_2", true))
+    );
+
+    final List<ResourceProjectFeature> changedRootFeatures = Arrays.asList(
+      createFeature(ResourceFactory.newInfiniteResource("root1", myRootProjectId, "RESOURCE_2", true)),
+      createFeature(ResourceFactory.newInfiniteResource("root2", myRootProjectId, "RESOURCE_3", true))
+    );
+
+    m.checking(new Expectations() {{
+      exactly(2).of(myProject).getProjectPath();
+      will(returnValue(Arrays.asList(myRootProject, myProject)));
+
+      exactly(2).of(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(projectFeatures));
+
+      exactly(2).of(myResourceProjectFeatures).getOwnFeatures(myRootProject);
+      will(onConsecutiveCalls(returnValue(rootFeatures), returnValue(changedRootFeatures)));
+    }});
+
+    assertEquals(2, resources.getResources(myProject).size());
+    assertEquals(3, resources.getResources(myProject).size());
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void testResolvedResourcesAreUnmodifiable() {
+    m.checking(new Expectations() {{
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(Collections.emptyList()));
+    }});
+
+    resources.getResources(myProject).add(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true));
+  }
+
   private ResourceProjectFeature createFeature(@NotNull final Resource resource) {
     final SProjectFeatureDescriptor descriptor = m.mock(SProjectFeatureDescriptor.class, "descriptor" + resource.getProjectId() + "_" + resource.getId());
     m.checking(new Expectations() {{
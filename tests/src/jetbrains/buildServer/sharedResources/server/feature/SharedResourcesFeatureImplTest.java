@@ -176,5 +176,58 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
     lock = locks.get(newName);
     assertNotNull(lock);
   }
-}
 
+  @Test
+  public void testUpdateLock_ReleaseAfterStep() {
+    final Locks locks = new LocksImpl();
+    final Map<String, String> descriptorParams = new HashMap<>();
+    descriptorParams.put(FeatureParams.LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock");
+    descriptorParams.put(FeatureParams.RELEASE_AFTER_STEP_PARAM_KEY, "lock1 RUNNER_1\nlock2 RUNNER_2");
+    params.put(FeatureParams.LOCKS_FEATURE_PARAM_KEY, "lock1 readLock \nlock3 writeLock ");
+    params.put(FeatureParams.RELEASE_AFTER_STEP_PARAM_KEY, "lock1 RUNNER_1\nlock3 RUNNER_2");
+    m.checking(new Expectations() {{
+      allowing(myBuildFeatureDescriptor).getParameters();
+      will(returnValue(descriptorParams));
+
+      allowing(myBuildFeatureDescriptor).getId();
+      will(returnValue(""));
+
+      allowing(myBuildFeatureDescriptor).getType();
+      will(returnValue(""));
+
+      oneOf(myBuildType).updateBuildFeature("", "", params);
+      will(returnValue(true));
+    }});
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(locks, myBuildFeatureDescriptor);
+    assertEquals("RUNNER_2", feature.getReleaseAfterStep().get(oldName));
+    assertTrue(feature.updateLock(myBuildType, oldName, newName));
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testUpdateLock_LeaseTimeout() {
+    final Locks locks = new LocksImpl();
+    final Map<String, String> descriptorParams = new HashMap<>();
+    descriptorParams.put(FeatureParams.LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock");
+    descriptorParams.put(FeatureParams.LEASE_TIMEOUT_PARAM_KEY, "lock1 10\nlock2 20");
+    params.put(FeatureParams.LOCKS_FEATURE_PARAM_KEY, "lock1 readLock \nlock3 writeLock ");
+    params.put(FeatureParams.LEASE_TIMEOUT_PARAM_KEY, "lock1 10\nlock3 20");
+    m.checking(new Expectations() {{
+      allowing(myBuildFeatureDescriptor).getParameters();
+      will(returnValue(descriptorParams));
+
+      allowing(myBuildFeatureDescriptor).getId();
+      will(returnValue(""));
+
+      allowing(myBuildFeatureDescriptor).getType();
+      will(returnValue(""));
+
+      oneOf(myBuildType).updateBuildFeature("", "", params);
+      will(returnValue(true));
+    }});
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(locks, myBuildFeatureDescriptor);
+    assertEquals(Long.valueOf(20), feature.getLeaseTimeouts().get(oldName));
+    assertTrue(feature.updateLock(myBuildType, oldName, newName));
+    m.assertIsSatisfied();
+  }
+}
@@ -86,6 +86,69 @@ public class ResourceProjectFeaturesTest extends BaseTestCase {
     myFeatures.updateFeature(myProject, existing.getFirst(), resource.getParameters());
   }
 
+  @Test
+  public void testEditResource_KeepsLeaseSettings() {
+    final Pair<String, SProjectFeatureDescriptor> existing = createExistingResource("MyResource");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.LEASE_TIMEOUT, "30");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.LEASE_ACTION, "release");
+
+    final Resource resource = ResourceFactory.newQuotedResource(existing.getFirst(), myProjectId, "MyResource", 2, true);
+    final Map<String, String> expected = new HashMap<>(resource.getParameters());
+    expected.put(ProjectFeatureParameters.LEASE_TIMEOUT, "30");
+    expected.put(ProjectFeatureParameters.LEASE_ACTION, "release");
+    m.checking(new Expectations() {{
+      allowing(myProject).getOwnFeaturesOfType(FEATURE_TYPE);
+      will(returnValue(Collections.singletonList(existing.getSecond())));
+
+      oneOf(myProject).updateFeature(existing.getFirst(), FEATURE_TYPE, expected);
+    }});
+
+    myFeatures.updateFeature(myProject, existing.getFirst(), resource.getParameters());
+  }
+
+  @Test
+  public void testEditResource_ClearsLeaseSettings() {
+    final Pair<String, SProjectFeatureDescriptor> existing = createExistingResource("MyResource");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.LEASE_TIMEOUT, "30");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.LEASE_ACTION, "release");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.VALUE_AGENTS, "v1 => agent1");
+
+    final Resource resource = ResourceFactory.newQuotedResource(existing.getFirst(), myProjectId, "MyResource", 2, true);
+    final Map<String, String> parameters = new HashMap<>(resource.getParameters());
+    parameters.put(ProjectFeatureParameters.LEASE_TIMEOUT, "");
+    parameters.put(ProjectFeatureParameters.LEASE_ACTION, "");
+    parameters.put(ProjectFeatureParameters.VALUE_AGENTS, " ");
+    m.checking(new Expectations() {{
+      allowing(myProject).getOwnFeaturesOfType(FEATURE_TYPE);
+      will(returnValue(Collections.singletonList(existing.getSecond())));
+
+      oneOf(myProject).updateFeature(existing.getFirst(), FEATURE_TYPE, resource.getParameters());
+    }});
+
+    myFeatures.updateFeature(myProject, existing.getFirst(), parameters);
+  }
+
+  @Test
+  public void testEditResource_ChangesLeaseSettings() {
+    final Pair<String, SProjectFeatureDescriptor> existing = createExistingResource("MyResource");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.LEASE_TIMEOUT, "30");
+    existing.getSecond().getParameters().put(ProjectFeatureParameters.LEASE_ACTION, "release");
+
+    final Resource resource = ResourceFactory.newQuotedResource(existing.getFirst(), myProjectId, "MyResource", 2, true);
+    final Map<String, String> parameters = new HashMap<>(resource.getParameters());
+    parameters.put(ProjectFeatureParameters.LEASE_TIMEOUT, "60");
+    final Map<String, String> expected = new HashMap<>(parameters);
+    expected.put(ProjectFeatureParameters.LEASE_ACTION, "release");
+    m.checking(new Expectations() {{
+      allowing(myProject).getOwnFeaturesOfType(FEATURE_TYPE);
+      will(returnValue(Collections.singletonList(existing.getSecond())));
+
+      oneOf(myProject).updateFeature(existing.getFirst(), FEATURE_TYPE, expected);
+    }});
+
+    myFeatures.updateFeature(myProject, existing.getFirst(), parameters);
+  }
+
   @Test
   public void testDeleteResource() throws Exception {
     final Pair<String, SProjectFeatureDescriptor> existingResource = createExistingResource("MyResource");
@@ -99,6 +162,44 @@ public class ResourceProjectFeaturesTest extends BaseTestCase {
     myFeatures.removeFeature(myProject, existingResource.getFirst());
   }
 
+  @Test
+  public void testOwnFeaturesReused() {
+    final Pair<String, SProjectFeatureDescriptor> existing = createExistingResource("MyResource");
+    m.checking(new Expectations() {{
+      allowing(myProject).getOwnFeaturesOfType(FEATURE_TYPE);
+      will(returnValue(Collections.singletonList(existing.getSecond())));
+
+      allowing(existing.getSecond()).getProjectId();
+      will(returnValue(myProjectId));
+    }});
+
+    final List<ResourceProjectFeature> features = myFeatures.getOwnFeatures(myProject);
+    assertEquals(1, features.size());
+    assertSame(features, myFeatures.getOwnFeatures(myProject));
+  }
+
+  @Test
+  public void testOwnFeaturesParsedOnChange() {
+    final Pair<String, SProjectFeatureDescriptor> existing = createExistingResource("MyResource");
+    final Pair<String, SProjectFeatureDescriptor> added = createExistingResource("OtherResource");
+    m.checking(new Expectations() {{
+      allowing(existing.getSecond()).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(added.getSecond()).getProjectId();
+      will(returnValue(myProjectId));
+
+      exactly(2).of(myProject).getOwnFeaturesOfType(FEATURE_TYPE);
+      will(onConsecutiveCalls(returnValue(Collections.singletonList(existing.getSecond())),
+                              returnValue(Arrays.asList(existing.getSecond(), added.getSecond()))));
+    }});
+
+    final List<ResourceProjectFeature> features = myFeatures.getOwnFeatures(myProject);
+    final List<ResourceProjectFeature> changed = myFeatures.getOwnFeatures(myProject);
+    assertNotSame(features, changed);
+    assertEquals(2, changed.size());
+  }
+
   /**
    * Creates existing resource as a project feature
    * Adds expectations of the type 'allowing' for resource parameters access
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildQueue;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = {AdmissionPlanner.class, AdmissionPlan.class})
+public class AdmissionPlannerTest extends BaseTestCase {
+
+  private static final String PROJECT_ID = "PROJECT_ID";
+
+  private Mockery m;
+
+  private LockPlans myLockPlans;
+
+  private final List<SQueuedBuild> myQueue = new ArrayList<>();
+
+  private final Map<Resource, TakenLock> myTakenLocks = new HashMap<>();
+
+  private Resource myResource;
+
+  private long myNextId;
+
+  /** Class under test */
+  private AdmissionPlanner myPlanner;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myLockPlans = m.mock(LockPlans.class);
+    final BuildQueue buildQueue = m.mock(BuildQueue.class);
+    final Resources resources = m.mock(Resources.class);
+    myResource = ResourceFactory.newQuotedResource("resource_id", PROJECT_ID, "resource", 2, true);
+    myQueue.clear();
+    myTakenLocks.clear();
+    myNextId = 1;
+
+    m.checking(new Expectations() {{
+      allowing(buildQueue).getItems();
+      will(returnValue(myQueue));
+
+      allowing(resources).getResourcesMap(PROJECT_ID);
+      will(returnValue(Collections.singletonMap(myResource.getName(), myResource)));
+    }});
+    myPlanner = new AdmissionPlanner(buildQueue, myLockPlans, resources);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testNoLocks() {
+    final BuildPromotionEx promotion = enqueue("no_locks", null);
+    final AdmissionPlan plan = myPlanner.plan(myTakenLocks, new TLongHashSet());
+    assertTrue(plan.isAdmitted(promotion.getId()));
+    assertFalse(plan.isPlanned(promotion.getId()));
+    assertEquals(0, plan.getAdmittedCount());
+    assertEquals(0, plan.getDeferredCount());
+  }
+
+  @Test
+  public void testWriteDoesNotBlockReads() {
+    takeRead("running");
+    final BuildPromotionEx writer = enqueue("writer", LockType.WRITE);
+    final BuildPromotionEx reader1 = enqueue("reader1", LockType.READ);
+    final BuildPromotionEx reader2 = enqueue("reader2", LockType.READ);
+
+    final AdmissionPlan plan = myPlanner.plan(myTakenLocks, new TLongHashSet());
+    assertFalse(plan.isAdmitted(writer.getId()));
+    assertTrue(plan.isAdmitted(reader1.getId()));
+    // quota of 2 is used by running build and the first reader
+    assertFalse(plan.isAdmitted(reader2.getId()));
+    assertTrue(plan.isPlanned(writer.getId()));
+    assertTrue(plan.isPlanned(reader1.getId()));
+    assertEquals(1, plan.getAdmittedCount());
+    assertNotNull(plan.getWaitReason(writer.getId()));
+    assertEquals("Build is waiting for the following resource according to the admission plan: resource",
+                 plan.getWaitReason(writer.getId()).getDescription());
+  }
+
+  @Test
+  public void testStarvingWriteDrainsResource() {
+    setInternalProperty(AdmissionPlanner.STARVATION_TIMEOUT_PROPERTY, "0");
+    takeRead("running");
+    final BuildPromotionEx writer = enqueue("writer", LockType.WRITE);
+    final BuildPromotionEx reader = enqueue("reader", LockType.READ);
+
+    AdmissionPlan plan = myPlanner.plan(myTakenLocks, new TLongHashSet());
+    assertFalse(plan.isAdmitted(writer.getId()));
+    assertTrue(plan.isAdmitted(reader.getId()));
+
+    // writer is starving now: nobody else is admitted to the resource
+    plan = myPlanner.plan(myTakenLocks, new TLongHashSet());
+    assertFalse(plan.isAdmitted(writer.getId()));
+    assertFalse(plan.isAdmitted(reader.getId()));
+
+    // resource is drained
+    myTakenLocks.clear();
+    plan = myPlanner.plan(myTakenLocks, new TLongHashSet());
+    assertTrue(plan.isAdmitted(writer.getId()));
+    assertFalse(plan.isAdmitted(reader.getId()));
+  }
+
+  @Test
+  public void testDistributedBuildsAreNotPlanned() {
+    final BuildPromotionEx distributed = enqueue("distributed", LockType.WRITE);
+    final BuildPromotionEx reader = enqueue("reader", LockType.READ);
+    // locks of the distributed build are already taken
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(distributed, new Lock(myResource.getName(), LockType.WRITE));
+    myTakenLocks.put(myResource, takenLock);
+
+    final TLongHashSet distributedIds = new TLongHashSet();
+    distributedIds.add(distributed.getId());
+    final AdmissionPlan plan = myPlanner.plan(myTakenLocks, distributedIds);
+    assertTrue(plan.isAdmitted(distributed.getId()));
+    // distributed build is not ordered by the plan
+    assertFalse(plan.isPlanned(distributed.getId()));
+    assertFalse(plan.isAdmitted(reader.getId()));
+    assertEquals(0, plan.getAdmittedCount());
+  }
+
+  private void takeRead(@NotNull final String name) {
+    final BuildPromotionEx running = createPromotion(name);
+    myTakenLocks.computeIfAbsent(myResource, TakenLock::new).addLock(running, new Lock(myResource.getName(), LockType.READ));
+  }
+
+  @NotNull
+  private BuildPromotionEx enqueue(@NotNull final String name, @Nullable final LockType lockType) {
+    final BuildPromotionEx promotion = createPromotion(name);
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, "queued-" + name);
+    final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "bt-" + name);
+    final Map<String, Lock> locks = lockType == null
+                                    ? Collections.emptyMap()
+                                    : Collections.singletonMap(myResource.getName(), new Lock(myResource.getName(), lockType));
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(promotion).isPartOfBuildChain();
+      will(returnValue(false));
+
+      allowing(buildType).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myLockPlans).getPlan(buildType);
+      will(returnValue(locks.isEmpty() ? LockPlan.EMPTY : new LockPlan(true, locks)));
+    }});
+    myQueue.add(queuedBuild);
+    return promotion;
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(@NotNull final String name) {
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name);
+    final long id = myNextId++;
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
+}
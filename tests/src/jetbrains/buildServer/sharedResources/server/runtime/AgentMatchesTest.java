@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = AgentMatches.class)
+public class AgentMatchesTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private SBuildAgent myPhoneAgent;
+
+  private SBuildAgent myTabletAgent;
+
+  private AgentMatches myMatches;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myPhoneAgent = m.mock(SBuildAgent.class, "phone-agent");
+    myTabletAgent = m.mock(SBuildAgent.class, "tablet-agent");
+    myMatches = new AgentMatches();
+    m.checking(new Expectations() {{
+      allowing(myPhoneAgent).getId();
+      will(returnValue(1));
+
+      allowing(myTabletAgent).getId();
+      will(returnValue(2));
+    }});
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testAgentIsMatchedOnce() {
+    m.checking(new Expectations() {{
+      oneOf(myPhoneAgent).getAvailableParameters();
+      will(returnValue(Collections.singletonMap("env.DEVICE", "phone")));
+
+      oneOf(myTabletAgent).getAvailableParameters();
+      will(returnValue(Collections.singletonMap("env.DEVICE", "tablet")));
+    }});
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(myMatches.matches("param:env.DEVICE=phone", myPhoneAgent));
+      assertFalse(myMatches.matches("param:env.DEVICE=phone", myTabletAgent));
+    }
+  }
+
+  @Test
+  public void testRequirementsAreMatchedSeparately() {
+    m.checking(new Expectations() {{
+      exactly(2).of(myPhoneAgent).getAvailableParameters();
+      will(returnValue(Collections.singletonMap("env.DEVICE", "phone")));
+    }});
+
+    assertTrue(myMatches.matches("param:env.DEVICE=phone", myPhoneAgent));
+    assertFalse(myMatches.matches("param:env.DEVICE=tablet", myPhoneAgent));
+    assertTrue(myMatches.matches("param:env.DEVICE=phone", myPhoneAgent));
+    assertFalse(myMatches.matches("param:env.DEVICE=tablet", myPhoneAgent));
+  }
+}
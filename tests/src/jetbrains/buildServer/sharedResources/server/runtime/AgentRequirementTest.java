@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.agentPools.AgentPool;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = AgentRequirement.class)
+public class AgentRequirementTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private SBuildAgent myAgent;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myAgent = m.mock(SBuildAgent.class);
+    final AgentPool pool = m.mock(AgentPool.class);
+    m.checking(new Expectations() {{
+      allowing(myAgent).getName();
+      will(returnValue("Lab-Agent-01"));
+
+      allowing(myAgent).getAgentPoolId();
+      will(returnValue(3));
+
+      allowing(myAgent).getAgentPool();
+      will(returnValue(pool));
+
+      allowing(pool).getName();
+      will(returnValue("Lab"));
+
+      allowing(myAgent).getAvailableParameters();
+      will(returnValue(Collections.singletonMap("env.DEVICE", "phone")));
+    }});
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testAgentName() {
+    assertTrue(AgentRequirement.parse("lab-agent-01").matches(myAgent));
+    assertTrue(AgentRequirement.parse("lab-*").matches(myAgent));
+    assertFalse(AgentRequirement.parse("lab-agent-0").matches(myAgent));
+    assertFalse(AgentRequirement.parse("lab.agent*").matches(myAgent));
+  }
+
+  @Test
+  public void testPool() {
+    assertTrue(AgentRequirement.parse("pool:Lab").matches(myAgent));
+    assertTrue(AgentRequirement.parse("pool:3").matches(myAgent));
+    assertFalse(AgentRequirement.parse("pool:Default").matches(myAgent));
+  }
+
+  @Test
+  public void testParameter() {
+    assertTrue(AgentRequirement.parse("param:env.DEVICE=phone").matches(myAgent));
+    assertTrue(AgentRequirement.parse("param:env.DEVICE").matches(myAgent));
+    assertFalse(AgentRequirement.parse("param:env.DEVICE=tablet").matches(myAgent));
+    assertFalse(AgentRequirement.parse("param:env.OTHER").matches(myAgent));
+  }
+
+  @Test
+  public void testAlternatives() {
+    assertTrue(AgentRequirement.parse("pool:Default, other-agent, lab-*").matches(myAgent));
+    assertFalse(AgentRequirement.parse("pool:Default, other-agent").matches(myAgent));
+    assertFalse(AgentRequirement.parse("").matches(myAgent));
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.LocksWaitReason;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = {AvailabilityForecaster.class, AvailabilityForecast.class, LockForecasts.class})
+public class AvailabilityForecasterTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private Resource myResource;
+
+  private TakenLock myTakenLock;
+
+  private ResourceWaitQueue myWaitQueue;
+
+  private long myNextId;
+
+  /** Class under test */
+  private AvailabilityForecaster myForecaster;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myResource = ResourceFactory.newQuotedResource("resource_id", "PROJECT_ID", "resource", 2, true);
+    myTakenLock = new TakenLock(myResource);
+    myNextId = 1;
+
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final LocksStorage locksStorage = m.mock(LocksStorage.class);
+    m.checking(new Expectations() {{
+      allowing(locksStorage).addListener(with(any(LocksStorageListener.class)));
+    }});
+    final TakenLocksIndex index = new TakenLocksIndex(dispatcher, locksStorage, m.mock(Resources.class), m.mock(LockPlans.class));
+    myWaitQueue = new ResourceWaitQueue(dispatcher, new TicketPriority(m.mock(PriorityClassManager.class)) {
+      @Override
+      public int getPriority(@NotNull final BuildPromotion promotion) {
+        return DEFAULT_PRIORITY;
+      }
+    });
+    myForecaster = new AvailabilityForecaster(index, myWaitQueue);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testRunningHolders() {
+    hold(createRunning("holder1", 600, 100));
+    hold(createRunning("holder2", 300, 200));
+    final AvailabilityForecast.ResourceAvailability availability = forecast().getAvailability(myResource.getId());
+    assertNotNull(availability);
+    assertEquals(2, availability.getHolders());
+    assertEquals(0, availability.getWaiting());
+    // single unit is freed by the holder that finishes first
+    assertEquals(100, availability.getAvailableIn());
+  }
+
+  @Test
+  public void testWriteLockWaitsForAllHolders() {
+    hold(createRunning("holder1", 600, 100));
+    hold(createRunning("holder2", 300, 200));
+    assertEquals(500, getAvailableIn(new Lock(myResource.getName(), LockType.WRITE), createPromotion("writer")));
+  }
+
+  @Test
+  public void testUnitsAreFreedByEarliestHolders() {
+    myResource = ResourceFactory.newQuotedResource("resource_id", "PROJECT_ID", "resource", 4, true);
+    myTakenLock = new TakenLock(myResource);
+    myTakenLock.addLock(createRunning("holder1", 600, 100), new Lock(myResource.getName(), LockType.READ, "", 2));
+    myTakenLock.addLock(createRunning("holder2", 400, 100), new Lock(myResource.getName(), LockType.READ, "", 1));
+    myTakenLock.addLock(createRunning("holder3", 200, 100), new Lock(myResource.getName(), LockType.READ, "", 1));
+    final BuildPromotionEx requester = createPromotion("requester");
+    assertEquals(100, getAvailableIn(new Lock(myResource.getName(), LockType.READ, "", 1), requester));
+    assertEquals(300, getAvailableIn(new Lock(myResource.getName(), LockType.READ, "", 2), requester));
+    assertEquals(500, getAvailableIn(new Lock(myResource.getName(), LockType.READ, "", 3), requester));
+    // holder without estimate is released last
+    myTakenLock.addLock(createRunning("holder4", -1, 100), new Lock(myResource.getName(), LockType.READ, "", 1));
+    assertEquals(AvailabilityForecast.UNKNOWN, getAvailableIn(new Lock(myResource.getName(), LockType.WRITE), requester));
+  }
+
+  @Test
+  public void testCustomValueWaitsForItsHolder() {
+    myResource = ResourceFactory.newCustomResource("resource_id", "PROJECT_ID", "resource", Arrays.asList("a", "b"), true);
+    myTakenLock = new TakenLock(myResource);
+    myTakenLock.addLock(createRunning("holderA", 600, 100), new Lock(myResource.getName(), LockType.READ, "a"));
+    myTakenLock.addLock(createRunning("holderB", 200, 100), new Lock(myResource.getName(), LockType.READ, "b"));
+    final BuildPromotionEx requester = createPromotion("requester");
+    assertEquals(500, getAvailableIn(new Lock(myResource.getName(), LockType.READ, "a"), requester));
+    assertEquals(100, getAvailableIn(new Lock(myResource.getName(), LockType.READ), requester));
+  }
+
+  @Test
+  public void testOnlyTicketsAheadAreCounted() {
+    hold(createRunning("holder", 600, 100));
+    final BuildPromotionEx writer1 = enqueue("writer1", 120L);
+    final BuildPromotionEx writer2 = enqueue("writer2", 60L);
+    myWaitQueue.enqueue(myResource.getId(), writer1);
+    myWaitQueue.enqueue(myResource.getId(), writer2);
+    final Lock lock = new Lock(myResource.getName(), LockType.WRITE);
+    assertEquals(500, getAvailableIn(lock, writer1));
+    assertEquals(620, getAvailableIn(lock, writer2));
+    // build without a ticket waits for all writers
+    assertEquals(680, getAvailableIn(new Lock(myResource.getName(), LockType.READ), createPromotion("reader")));
+  }
+
+  @Test
+  public void testWaitingWriters() {
+    hold(createRunning("holder", 600, 100));
+    myWaitQueue.enqueue(myResource.getId(), enqueue("writer1", 120L));
+    myWaitQueue.enqueue(myResource.getId(), enqueue("writer2", 60L));
+    final AvailabilityForecast forecast = forecast();
+    assertEquals(680, forecast.getAvailableIn(myResource.getId()));
+    assertEquals(2, forecast.getAvailability(myResource.getId()).getWaiting());
+  }
+
+  @Test
+  public void testUnknownEstimates() {
+    hold(createRunning("holder", 600, 100));
+    myWaitQueue.enqueue(myResource.getId(), enqueue("no_estimate", null));
+    assertEquals(AvailabilityForecast.UNKNOWN, forecast().getAvailableIn(myResource.getId()));
+  }
+
+  @Test
+  public void testNotLockedResource() {
+    final AvailabilityForecast forecast = forecast();
+    assertNull(forecast.getAvailability(myResource.getId()));
+    assertEquals(0, forecast.getAvailableIn(myResource.getId()));
+  }
+
+  @Test
+  public void testLatestForecastIsReused() {
+    hold(createRunning("holder", 600, 100));
+    final AvailabilityForecast forecast = forecast();
+    assertSame(forecast, myForecaster.getForecast());
+  }
+
+  @Test
+  public void testWaitReason() {
+    final BuildPromotionEx holder = createRunning("holder", 600, 100);
+    final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "bt-holder");
+    m.checking(new Expectations() {{
+      allowing(holder).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(buildType).getExtendedFullName();
+      will(returnValue("Project / Holder"));
+    }});
+    hold(holder);
+    final Map<Resource, TakenLock> takenLocks = Collections.singletonMap(myResource, myTakenLock);
+    final Lock lock = new Lock(myResource.getName(), LockType.WRITE);
+    final Map<Resource, Lock> unavailable = Collections.singletonMap(myResource, lock);
+    final long availableIn = getAvailableIn(lock, createPromotion("writer"));
+
+    final LocksWaitReason reason = LocksWaitReason.create(takenLocks, unavailable, Collections.singletonMap(myResource, availableIn), null);
+    assertEquals("Build is waiting for the following resource to become available: " +
+                 "resource (locked by Project / Holder; expected to be available in about 9 minutes)", reason.getDescription());
+    // prediction is a part of the blocked state
+    assertFalse(reason.equals(LocksWaitReason.create(takenLocks, unavailable)));
+  }
+
+  @Test
+  public void testLockForecastsAreKeptForTheCycle() {
+    hold(createRunning("holder", 600, 100));
+    final LockForecasts forecasts = myForecaster.forecastLocks(Collections.singletonMap(myResource, myTakenLock));
+    final Lock lock = new Lock(myResource.getName(), LockType.WRITE);
+    assertEquals(500, forecasts.getAvailableIn(myResource, lock, createPromotion("writer1")));
+    // ticket, issued later in the same cycle, does not change predictions of the cycle
+    final BuildPromotionEx writer2 = enqueue("writer2", 60L);
+    myWaitQueue.enqueue(myResource.getId(), writer2);
+    assertEquals(500, forecasts.getAvailableIn(myResource, lock, createPromotion("reader")));
+    assertEquals(-1, forecasts.getWaitTime(myResource, writer2));
+    // next cycle sees the ticket
+    final LockForecasts next = myForecaster.forecastLocks(Collections.singletonMap(myResource, myTakenLock));
+    assertEquals(560, next.getAvailableIn(myResource, new Lock(myResource.getName(), LockType.READ), createPromotion("reader")));
+    assertTrue(next.getWaitTime(myResource, writer2) >= 0);
+  }
+
+  private long getAvailableIn(@NotNull final Lock lock, @NotNull final BuildPromotionEx promotion) {
+    return myForecaster.forecastLocks(Collections.singletonMap(myResource, myTakenLock)).getAvailableIn(myResource, lock, promotion);
+  }
+
+  @NotNull
+  private AvailabilityForecast forecast() {
+    return myForecaster.forecast(Collections.singletonMap(myResource, myTakenLock));
+  }
+
+  private void hold(@NotNull final BuildPromotionEx promotion) {
+    myTakenLock.addLock(promotion, new Lock(myResource.getName(), LockType.READ));
+  }
+
+  @NotNull
+  private BuildPromotionEx createRunning(@NotNull final String name, final long estimate, final long elapsed) {
+    final BuildPromotionEx promotion = createPromotion(name);
+    final SRunningBuild build = m.mock(SRunningBuild.class, "running-" + name);
+    m.checking(new Expectations() {{
+      allowing(promotion).getAssociatedBuild();
+      will(returnValue(build));
+
+      allowing(build).getDurationEstimate();
+      will(returnValue(estimate));
+
+      allowing(build).getElapsedTime();
+      will(returnValue(elapsed));
+    }});
+    return promotion;
+  }
+
+  @NotNull
+  private BuildPromotionEx enqueue(@NotNull final String name, @Nullable final Long estimate) {
+    final BuildPromotionEx promotion = createPromotion(name);
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, "queued-" + name);
+    final BuildEstimates estimates = m.mock(BuildEstimates.class, "estimates-" + name);
+    final TimeInterval interval = m.mock(TimeInterval.class, "interval-" + name);
+    m.checking(new Expectations() {{
+      allowing(promotion).getQueuedBuild();
+      will(returnValue(queuedBuild));
+
+      allowing(queuedBuild).getBuildEstimates();
+      will(returnValue(estimates));
+
+      allowing(estimates).getTimeInterval();
+      will(returnValue(interval));
+
+      allowing(interval).getDurationSeconds();
+      will(returnValue(estimate));
+    }});
+    return promotion;
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(@NotNull final String name) {
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name);
+    final long id = myNextId++;
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = BackfillPolicy.class)
+public class BackfillPolicyTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private TakenLock myTakenLock;
+
+  private long myNextId;
+
+  /** Class under test */
+  private BackfillPolicy myPolicy;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    final Resource resource = ResourceFactory.newInfiniteResource("resource_id", "PROJECT_ID", "resource", true);
+    myTakenLock = new TakenLock(resource);
+    myNextId = 1;
+    myPolicy = new BackfillPolicy();
+    setInternalProperty(BackfillPolicy.ENABLED_PROPERTY, "true");
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testDisabled() {
+    setInternalProperty(BackfillPolicy.ENABLED_PROPERTY, "false");
+    hold(createRunning("holder", 600, 100));
+    assertFalse(myPolicy.canBackfill(myTakenLock, createQueued("candidate", 60L)));
+  }
+
+  @Test
+  public void testFinishesBeforeHolders() {
+    hold(createRunning("holder1", 600, 100));
+    hold(createRunning("holder2", 300, 200));
+    // holders release the resource in 500 seconds
+    assertTrue(myPolicy.canBackfill(myTakenLock, createQueued("short", 500L)));
+    assertFalse(myPolicy.canBackfill(myTakenLock, createQueued("long", 501L)));
+  }
+
+  @Test
+  public void testDistributedHolder() {
+    hold(createQueued("distributed", 300L));
+    assertTrue(myPolicy.canBackfill(myTakenLock, createQueued("short", 200L)));
+  }
+
+  @Test
+  public void testUnknownEstimates() {
+    hold(createRunning("holder", -1, 100));
+    assertFalse(myPolicy.canBackfill(myTakenLock, createQueued("candidate", 10L)));
+
+    myTakenLock = new TakenLock(myTakenLock.getResource());
+    hold(createRunning("other_holder", 600, 100));
+    assertFalse(myPolicy.canBackfill(myTakenLock, createQueued("no_estimate", null)));
+  }
+
+  @Test
+  public void testNotQueued() {
+    hold(createRunning("holder", 600, 100));
+    final BuildPromotionEx candidate = createPromotion("candidate");
+    m.checking(new Expectations() {{
+      allowing(candidate).getQueuedBuild();
+      will(returnValue(null));
+    }});
+    assertFalse(myPolicy.canBackfill(myTakenLock, candidate));
+  }
+
+  @Test
+  public void testNoHolders() {
+    // build, waiting for write lock, gets the resource immediately
+    assertFalse(myPolicy.canBackfill(myTakenLock, createQueued("candidate", 10L)));
+  }
+
+  private void hold(@NotNull final BuildPromotionEx promotion) {
+    myTakenLock.addLock(promotion, new Lock(myTakenLock.getResource().getName(), LockType.READ));
+  }
+
+  @NotNull
+  private BuildPromotionEx createRunning(@NotNull final String name, final long estimate, final long elapsed) {
+    final BuildPromotionEx promotion = createPromotion(name);
+    final SRunningBuild build = m.mock(SRunningBuild.class, "running-" + name);
+    m.checking(new Expectations() {{
+      allowing(promotion).getAssociatedBuild();
+      will(returnValue(build));
+
+      allowing(build).getDurationEstimate();
+      will(returnValue(estimate));
+
+      allowing(build).getElapsedTime();
+      will(returnValue(elapsed));
+    }});
+    return promotion;
+  }
+
+  @NotNull
+  private BuildPromotionEx createQueued(@NotNull final String name, @Nullable final Long estimate) {
+    final BuildPromotionEx promotion = createPromotion(name);
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, "queued-" + name);
+    final BuildEstimates estimates = m.mock(BuildEstimates.class, "estimates-" + name);
+    final TimeInterval interval = m.mock(TimeInterval.class, "interval-" + name);
+    m.checking(new Expectations() {{
+      allowing(promotion).getAssociatedBuild();
+      will(returnValue(null));
+
+      allowing(promotion).getQueuedBuild();
+      will(returnValue(queuedBuild));
+
+      allowing(queuedBuild).getBuildEstimates();
+      will(returnValue(estimates));
+
+      allowing(estimates).getTimeInterval();
+      will(returnValue(interval));
+
+      allowing(interval).getDurationSeconds();
+      will(returnValue(estimate));
+    }});
+    return promotion;
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(@NotNull final String name) {
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name);
+    final long id = myNextId++;
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
+}
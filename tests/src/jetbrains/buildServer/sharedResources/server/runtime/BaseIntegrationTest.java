@@ -16,10 +16,8 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
+import java.util.stream.Collectors;
 import jetbrains.buildServer.agent.Constants;
 import jetbrains.buildServer.agentServer.AgentBuild;
 import jetbrains.buildServer.serverSide.*;
@@ -461,6 +459,62 @@ public class BaseIntegrationTest extends SharedResourcesIntegrationTest {
     assertContains(readArtifact(Objects.requireNonNull(qbTop3.getBuildPromotion().getAssociatedBuild())), "resource_top\treadLock\tvalue");
   }
 
+  @Test
+  public void testCustomResourceMixedDuplicateValues() {
+    final SProject top = myFixture.createProject("top");
+    final Resource resourceTop = addResource(myFixture, top, createCustomResource("resource_top", "value1", "value2", "value1"));
+    SBuildType btTop = top.createBuildType("btTop", "btTop");
+    addReadLock(btTop, resourceTop);
+    myFixture.createEnabledAgent("Ant");
+    myFixture.createEnabledAgent("Ant");
+
+    final List<SQueuedBuild> queued = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      final SQueuedBuild qb = enqueueCustomBuild(btTop);
+      assertNotNull(qb);
+      queued.add(qb);
+    }
+
+    myFixture.flushQueueAndWaitN(3);
+
+    final List<String> values = queued.stream()
+                                      .map(qb -> (String)((BuildPromotionEx)qb.getBuildPromotion()).getAttribute(getReservedResourceAttributeKey(resourceTop.getId())))
+                                      .sorted()
+                                      .collect(Collectors.toList());
+    assertEquals(Arrays.asList("value1", "value1", "value2"), values);
+  }
+
+  @Test
+  public void testCustomResourceAnySeveralValues() {
+    final SProject top = myFixture.createProject("top");
+    final Resource resourceTop = addResource(myFixture, top, createCustomResource("resource_top", "value1", "value2", "value3", "value4", "value5"));
+    SBuildType btTop = top.createBuildType("btTop", "btTop");
+    addAnyLock(btTop, resourceTop, 2);
+    myFixture.createEnabledAgent("Ant");
+    myFixture.createEnabledAgent("Ant");
+
+    final List<SQueuedBuild> queued = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      final SQueuedBuild qb = enqueueCustomBuild(btTop);
+      assertNotNull(qb);
+      queued.add(qb);
+    }
+
+    myFixture.flushQueueAndWaitN(2);
+    // only 2 builds can hold 2 of 5 values at once
+    assertEquals(2, myFixture.getBuildsManager().getRunningBuilds().size());
+
+    final List<String> values = new ArrayList<>();
+    myFixture.getBuildsManager().getRunningBuilds().forEach(build -> {
+      final String reserved = (String)((BuildPromotionEx)build.getBuildPromotion()).getAttribute(getReservedResourceAttributeKey(resourceTop.getId()));
+      assertNotNull(reserved);
+      final List<String> held = Lock.splitValues(reserved);
+      assertEquals(2, held.size());
+      values.addAll(held);
+    });
+    assertEquals(4, new HashSet<>(values).size());
+  }
+
   private SQueuedBuild enqueueCustomBuild(@NotNull final SBuildType buildType) {
     BuildCustomizerFactory factory = myFixture.getSingletonService(BuildCustomizerFactory.class);
     final BuildCustomizer customizer = factory.createBuildCustomizer(buildType, null);
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import jetbrains.buildServer.util.TimeService;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_ACTION;
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE_TIMEOUT;
+
+@TestFor(testForClass = {LeaseMonitor.class, Lease.class})
+public class LeaseMonitorTest extends BaseTestCase {
+
+  private static final String PROJECT_ID = "PROJECT_ID";
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private LocksStorage myLocksStorage;
+
+  private BuildUsedResourcesReport myReport;
+
+  private RunningBuildEx myBuild;
+
+  private BuildPromotionEx myPromotion;
+
+  private Resource myResource;
+
+  private final Map<String, String> myParameters = new HashMap<>();
+
+  private final Map<String, Lock> myLocks = new HashMap<>();
+
+  private final Map<String, Long> myLeaseTimeouts = new HashMap<>();
+
+  private long myNow;
+
+  /** Class under test */
+  private LeaseMonitor myMonitor;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myLocksStorage = m.mock(LocksStorage.class);
+    myReport = m.mock(BuildUsedResourcesReport.class);
+    myBuild = m.mock(RunningBuildEx.class);
+    myPromotion = m.mock(BuildPromotionEx.class);
+    myResource = ResourceFactory.newInfiniteResource("RESOURCE_1", PROJECT_ID, "resource", true);
+    myParameters.clear();
+    myLocks.clear();
+    myLocks.put("resource", new Lock("resource", LockType.WRITE));
+    myLeaseTimeouts.clear();
+    myNow = 24 * 3600 * 1000L;
+
+    final RunningBuildsManagerEx runningBuildsManager = m.mock(RunningBuildsManagerEx.class);
+    final Resources resources = m.mock(Resources.class);
+    final ProjectManager projectManager = m.mock(ProjectManager.class);
+    final SProject project = m.mock(SProject.class);
+    final ResourceProjectFeatures projectFeatures = m.mock(ResourceProjectFeatures.class);
+    final ResourceProjectFeature feature = m.mock(ResourceProjectFeature.class);
+    final SBuildType buildType = m.mock(SBuildType.class);
+    final LockPlans lockPlans = m.mock(LockPlans.class);
+
+    m.checking(new Expectations() {{
+      allowing(runningBuildsManager).getRunningBuildsEx();
+      will(returnValue(Collections.singletonList(myBuild)));
+
+      allowing(myBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(myPromotion).getId();
+      will(returnValue(1L));
+
+      allowing(myPromotion).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myLocksStorage).locksStored(myPromotion);
+      will(returnValue(true));
+
+      allowing(myLocksStorage).load(myPromotion);
+      will(returnValue(myLocks));
+
+      allowing(myPromotion).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(lockPlans).getPlan(buildType);
+      will(new CustomAction("compile plan") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          return new LockPlan(true, Collections.emptyMap(), Collections.emptyMap(), myLeaseTimeouts);
+        }
+      });
+
+      allowing(resources).getResourcesMap(PROJECT_ID);
+      will(returnValue(Collections.singletonMap(myResource.getName(), myResource)));
+
+      allowing(projectManager).findProjectById(PROJECT_ID);
+      will(returnValue(project));
+
+      allowing(projectFeatures).getOwnFeatures(project);
+      will(returnValue(Collections.singletonList(feature)));
+
+      allowing(feature).getId();
+      will(returnValue(myResource.getId()));
+
+      allowing(feature).getParameters();
+      will(returnValue(myParameters));
+    }});
+
+    final TimeService timeService = new TimeService() {
+      @Override
+      public long now() {
+        return myNow;
+      }
+    };
+    myMonitor = new LeaseMonitor(myDispatcher, runningBuildsManager, myLocksStorage, resources, projectManager, projectFeatures, lockPlans, myReport, timeService);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testNoLease() {
+    elapsed(24 * 3600);
+    myMonitor.check();
+    assertEquals(0, getExpiredCount());
+  }
+
+  @Test
+  public void testLeaseNotExpired() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    elapsed(9 * 60);
+    myMonitor.check();
+    assertEquals(0, getExpiredCount());
+  }
+
+  @Test
+  public void testWarnOnce() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    elapsed(10 * 60);
+    m.checking(new Expectations() {{
+      oneOf(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      oneOf(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    myMonitor.check();
+    myMonitor.check();
+    assertEquals(1, getExpiredCount());
+  }
+
+  @Test
+  public void testRelease() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    myParameters.put(LEASE_ACTION, LeaseAction.RELEASE.getName());
+    elapsed(11 * 60);
+    m.checking(new Expectations() {{
+      oneOf(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      oneOf(myLocksStorage).release(myPromotion, Collections.singleton("resource"));
+      will(returnValue(myLocks));
+      oneOf(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    myMonitor.check();
+  }
+
+  @Test
+  public void testStop() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    myParameters.put(LEASE_ACTION, LeaseAction.STOP.getName());
+    elapsed(11 * 60);
+    m.checking(new Expectations() {{
+      oneOf(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      oneOf(myBuild).stop(with(aNull(User.class)), with(any(String.class)));
+    }});
+    myMonitor.check();
+  }
+
+  @Test
+  public void testForgetsFinishedBuild() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    elapsed(10 * 60);
+    m.checking(new Expectations() {{
+      allowing(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      allowing(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    myMonitor.check();
+    assertEquals(1, getExpiredCount());
+    myDispatcher.getMulticaster().buildFinished(myBuild);
+    assertEquals(0, getExpiredCount());
+  }
+
+  @Test
+  public void testLeaseStartsWhenLockIsAcquired() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    // build started long before the lock was acquired, acquisition time is stored with the lock
+    acquired("resource", myNow);
+    elapsed(3600);
+    myNow += 10 * 60 * 1000L - 1;
+    myMonitor.check();
+    assertEquals(0, getExpiredCount());
+
+    myNow += 1;
+    m.checking(new Expectations() {{
+      oneOf(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      oneOf(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    myMonitor.check();
+    assertEquals(1, getExpiredCount());
+  }
+
+  @Test
+  public void testLockTimeoutOverridesResourceTimeout() {
+    myParameters.put(LEASE_TIMEOUT, "60");
+    myParameters.put(LEASE_ACTION, LeaseAction.STOP.getName());
+    myLeaseTimeouts.put("resource", 10L);
+    elapsed(10 * 60);
+    m.checking(new Expectations() {{
+      oneOf(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      // action of the resource is kept
+      oneOf(myBuild).stop(with(aNull(User.class)), with(any(String.class)));
+    }});
+    myMonitor.check();
+    assertEquals(1, getExpiredCount());
+  }
+
+  @Test
+  public void testLockTimeoutWithoutResourceLease() {
+    myLeaseTimeouts.put("resource", 10L);
+    elapsed(10 * 60);
+    m.checking(new Expectations() {{
+      oneOf(myReport).markLeaseExpired(myPromotion, Collections.singleton("resource"));
+      oneOf(myBuild).addBuildMessage(with(any(BuildMessage1.class)));
+    }});
+    myMonitor.check();
+    assertEquals(1, getExpiredCount());
+  }
+
+  @Test
+  public void testZeroLockTimeoutDisablesLease() {
+    myParameters.put(LEASE_TIMEOUT, "10");
+    myLeaseTimeouts.put("resource", 0L);
+    elapsed(24 * 3600);
+    myMonitor.check();
+    assertEquals(0, getExpiredCount());
+  }
+
+  @Test
+  public void testInvalidLeaseParameters() {
+    assertNull(Lease.fromParameters(Collections.singletonMap(LEASE_TIMEOUT, "not a number")));
+    assertNull(Lease.fromParameters(Collections.singletonMap(LEASE_TIMEOUT, "0")));
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(LEASE_TIMEOUT, "5");
+    parameters.put(LEASE_ACTION, "unknown");
+    final Lease lease = Lease.fromParameters(parameters);
+    assertNotNull(lease);
+    assertEquals(LeaseAction.WARN, lease.getAction());
+    assertFalse(lease.isExpired(299));
+    assertTrue(lease.isExpired(300));
+    // lock keeps the action of the resource lease
+    assertNull(Lease.forLock(lease, 0));
+    assertEquals(10, Lease.forLock(lease, 10).getTimeoutMinutes());
+    assertEquals(LeaseAction.WARN, Lease.forLock(null, 10).getAction());
+  }
+
+  private void acquired(final String name, final long time) {
+    myLocks.put(name, Lock.acquiredAt(myLocks.get(name), time));
+  }
+
+  private void elapsed(final long seconds) {
+    m.checking(new Expectations() {{
+      allowing(myBuild).getElapsedTime();
+      will(returnValue(seconds));
+    }});
+  }
+
+  private int getExpiredCount() {
+    return myMonitor.getExpiredLeases().getOrDefault(myResource, 0);
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = LocksJournal.class)
+public class LocksJournalTest extends BaseTestCase {
+
+  private File myFile;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = new File(createTempDir(), "journal/taken_locks.journal");
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    final Map<String, Lock> locks = locks();
+    try (LocksJournal journal = open()) {
+      journal.put(1, locks);
+      journal.put(2, locks);
+      journal.put(3, locks);
+      journal.remove(2);
+      assertEquals(locks, journal.get(1));
+      assertNull(journal.get(2));
+    }
+    try (LocksJournal journal = open()) {
+      assertEquals(locks, journal.get(1));
+      assertEquals(1000L, journal.get(1).get("lock2").getAcquired());
+      assertNull(journal.get(2));
+      assertEquals(locks, journal.get(3));
+      assertEquals(2, journal.getPromotionIds().length);
+    }
+  }
+
+  @Test
+  public void testTruncatedRecordIsDiscarded() throws Exception {
+    final long length;
+    try (LocksJournal journal = open()) {
+      journal.put(1, locks());
+      length = myFile.length();
+      journal.put(2, locks());
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(myFile, "rw")) {
+      raf.setLength(myFile.length() - 3);
+    }
+    try (LocksJournal journal = open()) {
+      assertNotNull(journal.get(1));
+      assertNull(journal.get(2));
+      assertEquals(length, myFile.length());
+      journal.put(3, locks());
+    }
+    try (LocksJournal journal = open()) {
+      assertNotNull(journal.get(1));
+      assertNotNull(journal.get(3));
+    }
+  }
+
+  @Test
+  public void testCorruptedRecordIsDiscarded() throws Exception {
+    final long length;
+    try (LocksJournal journal = open()) {
+      journal.put(1, locks());
+      length = myFile.length();
+      journal.put(2, locks());
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(myFile, "rw")) {
+      raf.seek(myFile.length() - 1);
+      raf.write(raf.read() ^ 0xFF);
+    }
+    try (LocksJournal journal = open()) {
+      assertNotNull(journal.get(1));
+      assertNull(journal.get(2));
+      assertEquals(length, myFile.length());
+    }
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    final long length;
+    try (LocksJournal journal = open()) {
+      journal.put(0, locks());
+      length = myFile.length();
+      for (int i = 1; i <= 1000; i++) {
+        journal.put(i, locks());
+        journal.remove(i);
+      }
+      assertEquals(length, myFile.length());
+      assertNotNull(journal.get(0));
+    }
+    try (LocksJournal journal = open()) {
+      assertEquals(1, journal.getPromotionIds().length);
+      assertEquals(locks(), journal.get(0));
+    }
+  }
+
+  @Test
+  public void testFailedCompactionKeepsJournalOpen() throws Exception {
+    // compacted file can not be created
+    final File compacted = new File(myFile.getPath() + ".tmp");
+    assertTrue(new File(compacted, "child").mkdirs());
+    try (LocksJournal journal = open()) {
+      journal.put(0, locks());
+      for (int i = 1; i <= 1000; i++) {
+        journal.put(i, locks());
+        journal.remove(i);
+      }
+      journal.put(1001, locks());
+    }
+    try (LocksJournal journal = open()) {
+      assertEquals(2, journal.getPromotionIds().length);
+      assertEquals(locks(), journal.get(0));
+      assertEquals(locks(), journal.get(1001));
+    }
+  }
+
+  @Test
+  public void testLongValues() throws Exception {
+    final StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 70000; i++) {
+      value.append(i % 2 == 0 ? 'x' : '\u044f');
+    }
+    final Map<String, Lock> locks = new HashMap<>();
+    locks.put("lock", new Lock("lock", LockType.READ, value.toString()));
+    try (LocksJournal journal = open()) {
+      journal.put(1, locks);
+    }
+    try (LocksJournal journal = open()) {
+      assertEquals(locks, journal.get(1));
+    }
+  }
+
+  @Test
+  public void testRetain() throws Exception {
+    try (LocksJournal journal = open()) {
+      journal.put(1, locks());
+      journal.put(2, locks());
+      final TLongHashSet running = new TLongHashSet();
+      running.add(2);
+      journal.retain(running);
+      assertNull(journal.get(1));
+      assertNotNull(journal.get(2));
+    }
+  }
+
+  @NotNull
+  private LocksJournal open() throws Exception {
+    final LocksJournal result = new LocksJournal(myFile, false);
+    result.open();
+    return result;
+  }
+
+  @NotNull
+  private static Map<String, Lock> locks() {
+    final Map<String, Lock> result = new HashMap<>();
+    for (Lock lock : Arrays.asList(new Lock("lock1", LockType.READ, ""),
+                                   new Lock("lock2", LockType.WRITE, "value", 1, 1000L),
+                                   new Lock("lock3", LockType.READ, "a" + Lock.VALUES_SEPARATOR + "b", 2))) {
+      result.put(lock.getName(), lock);
+    }
+    return result;
+  }
+}
@@ -17,9 +17,11 @@
 package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.google.common.cache.Cache;
+import com.google.common.util.concurrent.Striped;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
@@ -36,10 +38,16 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -54,6 +62,7 @@ public class LocksStorageImplTest extends BaseTestCase {
   private static final String file_Values = "lock1\treadLock\tMy Value 1\nlock2\twriteLock\tMy Value 2\n";
   private static final String file_Mixed = "lock1\treadLock\tMy Value 1\nlock2\twriteLock\tMy Value 2\nlock3\twriteLock\t ";
   private static final String file_Incorrect = "lock1\treadLock\t \nHELLO!\n";
+  private static final String file_Units = "lock1\treadLock\t \t4\nlock2\treadLock\tvalue1\t2\nlock2\treadLock\tvalue2\t2\n";
 
   private final Long id = 1L;
 
@@ -113,6 +122,19 @@ public class LocksStorageImplTest extends BaseTestCase {
     assertEquals(3, result.size());
   }
 
+  @Test
+  public void testLoad_Units() throws Exception {
+    final File artifactsDir = createTempFileWithContent(file_Units);
+    addSingleArtifactsAccessExpectations(artifactsDir);
+    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    assertNotNull(result);
+    assertEquals(2, result.size());
+    assertEquals(new Lock("lock1", LockType.READ, "", 4), result.get("lock1"));
+    // lock on several values is merged from several lines
+    assertEquals(new Lock("lock2", LockType.READ, "value1" + Lock.VALUES_SEPARATOR + "value2", 2), result.get("lock2"));
+    assertEquals(Arrays.asList("value1", "value2"), result.get("lock2").getValues());
+  }
+
   @Test
   public void testLoad_IgnoreIncorrectFormat() throws Exception {
     final File artifactsDir = createTempFileWithContent(file_Incorrect);
@@ -359,6 +381,283 @@ public class LocksStorageImplTest extends BaseTestCase {
     myLatch.await(10, TimeUnit.SECONDS);
   }
 
+  @Test
+  @SuppressWarnings({"unchecked", "UnstableApiUsage"})
+  public void testReadsDoNotWaitForPromotionLock() throws Exception {
+    final File artifactsDir = createTempDir();
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+    }});
+    storeSomeLocks(myPromotion, artifactsDir);
+    // hold the lock of the promotion, as writer would
+    final Field guardsField = myLocksStorage.getClass().getDeclaredField("myGuards");
+    guardsField.setAccessible(true);
+    final java.util.concurrent.locks.Lock guard = ((Striped<java.util.concurrent.locks.Lock>)guardsField.get(myLocksStorage)).get(myPromotion);
+    guard.lock();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<Integer> reader = executor.submit(() -> myLocksStorage.locksStored(myPromotion) ? myLocksStorage.load(myPromotion).size() : -1);
+      assertEquals(1, reader.get(10, TimeUnit.SECONDS).intValue());
+    } finally {
+      guard.unlock();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStoredLocksAreNotEvicted() throws Exception {
+    setInternalProperty(LocksStorageImpl.CACHE_SIZE_PROPERTY, "1");
+    myLocksStorage = new LocksStorageImpl(myDispatcher);
+    final BuildPromotion otherPromotion = m.mock(BuildPromotion.class, "other-promotion");
+    final File otherArtifactsDir = createTempDir();
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(otherPromotion).getId();
+      will(returnValue(2L));
+
+      oneOf(otherPromotion).getArtifactsDirectory();
+      will(returnValue(otherArtifactsDir));
+
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+    }});
+    storeSomeLocks(myPromotion);
+    myLocksStorage.store(otherPromotion, Collections.singletonMap(new Lock("otherLock", LockType.WRITE), ""));
+
+    // both promotions are served from the cache without disk access
+    assertEquals(1, myLocksStorage.load(myPromotion).size());
+    assertEquals(1, myLocksStorage.load(otherPromotion).size());
+    Map<String, Number> statistics = myLocksStorage.getStatistics();
+    assertEquals(2L, statistics.get("cacheSize"));
+    assertEquals(2L, statistics.get("cacheHits"));
+    assertEquals(0L, statistics.get("cacheMisses"));
+    assertEquals(0L, statistics.get("cacheEvictions"));
+
+    // locks of the finished build are removed explicitly
+    myDispatcher.getMulticaster().buildFinished(runningBuild);
+    assertFalse(myLocksStorage.locksStored(myPromotion));
+    statistics = myLocksStorage.getStatistics();
+    assertEquals(1L, statistics.get("cacheSize"));
+  }
+
+  @Test
+  public void testRelease() throws Exception {
+    final File artifactsDir = createTempDir();
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+    }});
+
+    final Map<Lock, String> takenLocks = new HashMap<>();
+    final Lock lock1 = new Lock("lock1", LockType.READ);
+    final Lock lock2 = new Lock("lock2", LockType.WRITE);
+    takenLocks.put(lock1, "_value_");
+    takenLocks.put(lock2, "");
+    myLocksStorage.store(myPromotion, takenLocks);
+
+    final Map<String, Map<String, Lock>> notified = new HashMap<>();
+    myLocksStorage.addListener(new LocksStorageListener() {
+      @Override
+      public void locksStored(@NotNull final BuildPromotion promotion, @NotNull final Map<String, Lock> locks) {
+        notified.put("locks", locks);
+      }
+    });
+
+    final Map<String, Lock> released = myLocksStorage.release(myPromotion, Arrays.asList("lock1", "unknown"));
+    assertEquals(1, released.size());
+    assertEquals("_value_", released.get("lock1").getValue());
+    assertEquals(Collections.singleton("lock2"), myLocksStorage.load(myPromotion).keySet());
+    assertEquals(Collections.singleton("lock2"), notified.get("locks").keySet());
+    // acquisition time is written together with the lock
+    final String content = FileUtil.readText(new File(artifactsDir, LocksStorageImpl.FILE_PATH), "UTF-8");
+    assertTrue(content, content.matches("lock2\twriteLock\t \t1\t\\d+"));
+
+    // nothing to release
+    notified.clear();
+    assertTrue(myLocksStorage.release(myPromotion, Collections.singleton("lock1")).isEmpty());
+    assertTrue(notified.isEmpty());
+
+    assertEquals(Collections.singleton("lock2"), myLocksStorage.release(myPromotion, Collections.singleton("lock2")).keySet());
+    assertTrue(myLocksStorage.load(myPromotion).isEmpty());
+    assertTrue(myLocksStorage.locksStored(myPromotion));
+  }
+
+  @Test
+  public void testAcquisitionTimeIsStored() throws Exception {
+    final File artifactsDir = createTempDir();
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+    }});
+    final long before = System.currentTimeMillis();
+    final Lock lock = new Lock("lock1", LockType.READ, "", 3);
+    myLocksStorage.store(myPromotion, Collections.singletonMap(lock, "value"));
+    final long acquired = myLocksStorage.load(myPromotion).get("lock1").getAcquired();
+    assertTrue(acquired >= before);
+
+    // lock, that is already held, keeps its acquisition time
+    final Lock other = new Lock("lock2", LockType.WRITE);
+    final Map<Lock, String> takenLocks = new HashMap<>();
+    takenLocks.put(lock, "value");
+    takenLocks.put(other, "");
+    Thread.sleep(5);
+    myLocksStorage.store(myPromotion, takenLocks);
+    assertEquals(acquired, myLocksStorage.load(myPromotion).get("lock1").getAcquired());
+    assertTrue(myLocksStorage.load(myPromotion).get("lock2").getAcquired() > acquired);
+
+    // acquisition time is read back after restart
+    final LocksStorage restarted = new LocksStorageImpl(EventDispatcher.create(BuildServerListener.class));
+    final Map<String, Lock> loaded = restarted.load(myPromotion);
+    assertEquals(new Lock("lock1", LockType.READ, "value", 3), loaded.get("lock1"));
+    assertEquals(acquired, loaded.get("lock1").getAcquired());
+    assertEquals(myLocksStorage.load(myPromotion).get("lock2").getAcquired(), loaded.get("lock2").getAcquired());
+  }
+
+  @Test
+  public void testJournal() throws Exception {
+    final File artifactsDir = createTempDir();
+    final File journalFile = new File(createTempDir(), "taken_locks.journal");
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+    }});
+    final LocksJournal journal = new LocksJournal(journalFile, false);
+    journal.open();
+    myLocksStorage = new LocksStorageImpl(myDispatcher, journal, false, null);
+    myLocksStorage.store(myPromotion, Collections.singletonMap(new Lock("someLock", LockType.READ), "SOME_VALUE"));
+    // locks of the running build are not written into artifacts
+    final File artifact = new File(artifactsDir, LocksStorageImpl.FILE_PATH);
+    assertFalse(artifact.exists());
+    // journal is closed when the server shuts down
+    myDispatcher.getMulticaster().serverShutdown();
+    try {
+      journal.put(id, Collections.emptyMap());
+      fail("Closed journal must not accept records");
+    } catch (IOException ignored) {
+    }
+
+    // locks are replayed from the journal
+    final LocksJournal replayed = new LocksJournal(journalFile, false);
+    replayed.open();
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final LocksStorage storage = new LocksStorageImpl(dispatcher, replayed, false, null);
+    assertTrue(storage.locksStored(myPromotion));
+    assertEquals(1, storage.load(myPromotion).size());
+
+    // locks are exported into artifacts when the build finishes
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+    }});
+    dispatcher.getMulticaster().buildFinished(runningBuild);
+    assertFalse(storage.locksStored(myPromotion));
+    assertTrue(artifact.isFile());
+    assertNull(replayed.get(id));
+    replayed.close();
+  }
+
+  @Test
+  public void testWarmUp() throws Exception {
+    final File artifactsDir = createTempFileWithContent(file_Values);
+    final BuildPromotion otherPromotion = m.mock(BuildPromotion.class, "other-promotion");
+    final File otherArtifactsDir = createTempDir();
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class, "running-build");
+    final SRunningBuild otherRunningBuild = m.mock(SRunningBuild.class, "other-running-build");
+    final RunningBuildsManager runningBuildsManager = m.mock(RunningBuildsManager.class);
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+
+      allowing(otherPromotion).getId();
+      will(returnValue(2L));
+
+      allowing(otherPromotion).getArtifactsDirectory();
+      will(returnValue(otherArtifactsDir));
+
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(otherRunningBuild).getBuildPromotion();
+      will(returnValue(otherPromotion));
+
+      allowing(runningBuildsManager).getRunningBuilds();
+      will(returnValue(Arrays.asList(runningBuild, otherRunningBuild)));
+    }});
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final LocksStorage storage = new LocksStorageImpl(dispatcher, null, false, runningBuildsManager);
+    assertFalse(storage.locksStored(myPromotion));
+
+    // warm-up does not block server startup
+    dispatcher.getMulticaster().serverStartup();
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (storage.getStatistics().get("warmUpMs") == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertNotNull(storage.getStatistics().get("warmUpMs"));
+    assertEquals(1, storage.getStatistics().get("warmUpBuilds"));
+    assertTrue(storage.locksStored(myPromotion));
+    assertEquals(2, storage.load(myPromotion).size());
+    // build without stored locks is not marked
+    assertFalse(storage.locksStored(otherPromotion));
+  }
+
+  @Test
+  public void testFailedBackgroundWriteIsKept() throws Exception {
+    // artifacts directory is a file, so the file with taken locks can not be written
+    final File artifactsDir = new File(createTempDir(), "artifacts");
+    FileUtil.writeFile(artifactsDir, "", "UTF-8");
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+    }});
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final LocksStorage storage = new LocksStorageImpl(dispatcher, null, true, null);
+    storage.store(myPromotion, Collections.singletonMap(new Lock("someLock", LockType.READ), "SOME_VALUE"));
+
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (storage.getStatistics().get("failedBackgroundWrites").longValue() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, storage.getStatistics().get("failedBackgroundWrites").longValue());
+    // locks are served from the pending write
+    assertEquals(1, storage.getStatistics().get("pendingWrites").intValue());
+    assertTrue(storage.locksStored(myPromotion));
+    assertEquals(1, storage.load(myPromotion).size());
+
+    // pending write is retried when the build finishes
+    FileUtil.delete(artifactsDir);
+    assertTrue(artifactsDir.mkdirs());
+    dispatcher.getMulticaster().buildFinished(runningBuild);
+    final String content = FileUtil.readText(new File(artifactsDir, LocksStorageImpl.FILE_PATH), "UTF-8");
+    assertTrue(content, content.matches("someLock\treadLock\tSOME_VALUE\t1\t\\d+"));
+    assertEquals(0, storage.getStatistics().get("pendingWrites").intValue());
+    assertFalse(storage.locksStored(myPromotion));
+  }
+
   /**
    * Creates temp file with specified content.
    * @param content content to write
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = LocksWriteBehind.class)
+public class LocksWriteBehindTest extends BaseTestCase {
+
+  private Mockery m;
+
+  /**
+   * Tasks, submitted to the executor and not run yet
+   */
+  private final List<Runnable> myTasks = new ArrayList<>();
+
+  /**
+   * Locks, written by the persister
+   */
+  private final List<Map<String, Lock>> myWritten = new ArrayList<>();
+
+  private boolean myFailWrites;
+
+  /** Class under test */
+  private LocksWriteBehind myWriteBehind;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myTasks.clear();
+    myWritten.clear();
+    myFailWrites = false;
+    myWriteBehind = new LocksWriteBehind(promotion -> {
+      final Map<String, Lock> locks = myWriteBehind.getPending(promotion.getId());
+      if (locks != null) {
+        if (!myFailWrites) {
+          myWritten.add(locks);
+        }
+        myWriteBehind.completed(promotion.getId(), locks, !myFailWrites);
+      }
+    }, 2, myTasks::add);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testWritesAreCoalesced() {
+    final BuildPromotion promotion = promotion(1);
+    final Map<String, Lock> first = locks("first");
+    final Map<String, Lock> second = locks("second");
+    assertTrue(myWriteBehind.offer(promotion, first));
+    assertTrue(myWriteBehind.offer(promotion, second));
+    assertEquals(1, myTasks.size());
+    assertSame(second, myWriteBehind.getPending(1));
+    assertEquals(1, myWriteBehind.getPendingCount());
+
+    runTasks();
+    assertEquals(Collections.singletonList(second), myWritten);
+    assertNull(myWriteBehind.getPending(1));
+    assertEquals(0, myWriteBehind.getPendingCount());
+    assertEquals(1, myWriteBehind.getPersistedCount());
+    assertEquals(0, myWriteBehind.getOldestPendingAge());
+  }
+
+  @Test
+  public void testFullQueueRefusesWrites() {
+    assertTrue(myWriteBehind.offer(promotion(1), locks("1")));
+    assertTrue(myWriteBehind.offer(promotion(2), locks("2")));
+    assertFalse(myWriteBehind.offer(promotion(3), locks("3")));
+    // pending promotion can still be updated
+    assertTrue(myWriteBehind.offer(promotion(2), locks("22")));
+    runTasks();
+    assertEquals(2, myWritten.size());
+    assertTrue(myWriteBehind.offer(promotion(3), locks("3")));
+  }
+
+  @Test
+  public void testFlush() {
+    final BuildPromotion promotion = promotion(1);
+    final Map<String, Lock> locks = locks("value");
+    myWriteBehind.offer(promotion, locks);
+    myWriteBehind.flush(promotion);
+    assertEquals(Collections.singletonList(locks), myWritten);
+    // background task has nothing to write
+    runTasks();
+    assertEquals(1, myWritten.size());
+  }
+
+  @Test
+  public void testShutdownWritesPending() {
+    myWriteBehind.offer(promotion(1), locks("1"));
+    myWriteBehind.offer(promotion(2), locks("2"));
+    myWriteBehind.shutdown();
+    assertEquals(2, myWritten.size());
+    assertEquals(0, myWriteBehind.getPendingCount());
+  }
+
+  @Test
+  public void testFailedWriteStaysPending() {
+    myFailWrites = true;
+    final BuildPromotion promotion = promotion(1);
+    final Map<String, Lock> locks = locks("1");
+    myWriteBehind.offer(promotion, locks);
+    runTasks();
+    assertEquals(1, myWriteBehind.getPendingCount());
+    assertSame(locks, myWriteBehind.getPending(1));
+    assertEquals(1, myWriteBehind.getFailedCount());
+    assertEquals(0, myWriteBehind.getPersistedCount());
+
+    // failed write is not retried by the next batch before the backoff is over
+    myFailWrites = false;
+    myWriteBehind.offer(promotion(2), locks("2"));
+    runTasks();
+    assertEquals(1, myWritten.size());
+    assertSame(locks, myWriteBehind.getPending(1));
+
+    myWriteBehind.flush(promotion);
+    assertEquals(Arrays.asList(locks("2"), locks), myWritten);
+    assertEquals(0, myWriteBehind.getPendingCount());
+    assertEquals(2, myWriteBehind.getPersistedCount());
+  }
+
+  @Test
+  public void testCancelFailedWrite() {
+    myFailWrites = true;
+    final BuildPromotion promotion = promotion(1);
+    myWriteBehind.offer(promotion, locks("1"));
+    myWriteBehind.flush(promotion);
+    assertEquals(1, myWriteBehind.getPendingCount());
+    myWriteBehind.cancel(1);
+    assertEquals(0, myWriteBehind.getPendingCount());
+    assertNull(myWriteBehind.getPending(1));
+  }
+
+  private void runTasks() {
+    final List<Runnable> tasks = new ArrayList<>(myTasks);
+    myTasks.clear();
+    tasks.forEach(Runnable::run);
+  }
+
+  @NotNull
+  private BuildPromotion promotion(final long id) {
+    final BuildPromotion result = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
+
+  @NotNull
+  private static Map<String, Lock> locks(@NotNull final String value) {
+    return Collections.singletonMap("lock", new Lock("lock", LockType.READ, value));
+  }
+}
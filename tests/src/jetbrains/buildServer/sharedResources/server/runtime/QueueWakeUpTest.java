@@ -0,0 +1,239 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = QueueWakeUp.class)
+public class QueueWakeUpTest extends BaseTestCase {
+
+  private static final String PROJECT_ID = "PROJECT_ID";
+
+  private static final String OTHER_PROJECT_ID = "OTHER_PROJECT_ID";
+
+  private Mockery m;
+
+  private LockPlans myLockPlans;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private final List<SQueuedBuild> myQueue = new ArrayList<>();
+
+  /**
+   * Tasks, submitted to the executor and not run yet
+   */
+  private final List<Runnable> myTasks = new ArrayList<>();
+
+  private final AtomicInteger myProcessingCount = new AtomicInteger();
+
+  /**
+   * Promotion, that frees the locks
+   */
+  private BuildPromotion myHolder;
+
+  /** Class under test */
+  private QueueWakeUp myWakeUp;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myLockPlans = m.mock(LockPlans.class);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    final BuildQueue buildQueue = m.mock(BuildQueue.class);
+    final LocksStorage locksStorage = m.mock(LocksStorage.class);
+    final Resources resources = m.mock(Resources.class);
+    myHolder = m.mock(BuildPromotion.class, "holder");
+    myQueue.clear();
+    myTasks.clear();
+    myProcessingCount.set(0);
+
+    m.checking(new Expectations() {{
+      allowing(buildQueue).getItems();
+      will(returnValue(myQueue));
+
+      allowing(locksStorage).addListener(with(any(LocksStorageListener.class)));
+
+      allowing(myHolder).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(resources).getResourcesMap(PROJECT_ID);
+      will(returnValue(createResources(PROJECT_ID, "resource", "other_resource")));
+
+      // resource with the same name and id in another project
+      allowing(resources).getResourcesMap(OTHER_PROJECT_ID);
+      will(returnValue(createResources(OTHER_PROJECT_ID, "resource")));
+    }});
+    myWakeUp = new QueueWakeUp(myDispatcher, locksStorage, buildQueue, myLockPlans, resources, myTasks::add, myProcessingCount::incrementAndGet);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testNoWaitingBuilds() {
+    enqueue("queued", "other_resource");
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    runTasks();
+    assertEquals(0, myProcessingCount.get());
+  }
+
+  @Test
+  public void testResourceOfOtherProject() {
+    enqueue("queued", OTHER_PROJECT_ID, "resource");
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    runTasks();
+    assertEquals(0, myProcessingCount.get());
+  }
+
+  @Test
+  public void testQueueIsCheckedOnExecutor() {
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    // build is queued after the resource is freed, but before the executor checks the queue
+    enqueue("queued", "resource");
+    runTasks();
+    assertEquals(1, myProcessingCount.get());
+  }
+
+  @Test
+  public void testCoalescedRequestChecksAllResources() {
+    enqueue("queued", "other_resource");
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("other_resource"));
+    assertEquals(1, myTasks.size());
+    runTasks();
+    assertEquals(1, myProcessingCount.get());
+  }
+
+  @Test
+  public void testRequestsProcessing() {
+    enqueue("queued", "resource");
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    runTasks();
+    assertEquals(1, myProcessingCount.get());
+  }
+
+  @Test
+  public void testRequestsAreCoalesced() {
+    enqueue("queued", "resource");
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    assertEquals(1, myTasks.size());
+    runTasks();
+    assertEquals(1, myProcessingCount.get());
+    // next release after processing requests processing again
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    runTasks();
+    assertEquals(2, myProcessingCount.get());
+  }
+
+  @Test
+  public void testDisabled() {
+    setInternalProperty(QueueWakeUp.ENABLED_PROPERTY, "false");
+    enqueue("queued", "resource");
+    myWakeUp.resourcesFreed(myHolder, Collections.singleton("resource"));
+    assertTrue(myTasks.isEmpty());
+  }
+
+  @Test
+  public void testBuildFinished() {
+    enqueue("queued", "resource");
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    final SBuildType buildType = m.mock(SBuildType.class, "bt-running");
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myHolder));
+
+      allowing(myHolder).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(myLockPlans).getPlan(buildType);
+      will(returnValue(createPlan("resource")));
+    }});
+    myDispatcher.getMulticaster().buildFinished(runningBuild);
+    runTasks();
+    assertEquals(1, myProcessingCount.get());
+  }
+
+  private void runTasks() {
+    final List<Runnable> tasks = new ArrayList<>(myTasks);
+    myTasks.clear();
+    tasks.forEach(Runnable::run);
+  }
+
+  private void enqueue(@NotNull final String name, @NotNull final String resourceName) {
+    enqueue(name, PROJECT_ID, resourceName);
+  }
+
+  private void enqueue(@NotNull final String name, @NotNull final String projectId, @NotNull final String resourceName) {
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, "queued-" + name);
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name);
+    final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "bt-" + name);
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(promotion).getProjectId();
+      will(returnValue(projectId));
+
+      allowing(myLockPlans).getPlan(buildType);
+      will(returnValue(createPlan(resourceName)));
+    }});
+    myQueue.add(queuedBuild);
+  }
+
+  @NotNull
+  private static Map<String, Resource> createResources(@NotNull final String projectId, @NotNull final String... names) {
+    final Map<String, Resource> result = new HashMap<>();
+    for (String name : names) {
+      result.put(name, ResourceFactory.newInfiniteResource(name.toUpperCase(), projectId, name, true));
+    }
+    return result;
+  }
+
+  @NotNull
+  private static LockPlan createPlan(@NotNull final String resourceName) {
+    return new LockPlan(true, Collections.singletonMap(resourceName, new Lock(resourceName, LockType.READ)));
+  }
+}
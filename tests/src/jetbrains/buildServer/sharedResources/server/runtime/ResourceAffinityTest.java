@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongHashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = ResourceAffinity.class)
+public class ResourceAffinityTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private Resource myResource;
+
+  private BuildPromotion myPromotion;
+
+  private BuildPromotion myOther;
+
+  /** Class under test */
+  private ResourceAffinity myAffinity;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myResource = ResourceFactory.newCustomResource("resource_id", "PROJECT_ID", "resource", Collections.singletonList("value"), true);
+    myPromotion = promotion(1);
+    myOther = promotion(2);
+    myAffinity = new ResourceAffinity();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testDistributedBuildKeepsAffinity() {
+    myAffinity.store(myPromotion, Collections.singletonMap(myResource.getId(), "value"));
+    myAffinity.actualize(() -> ids(1), () -> unexpected("running builds are not needed"));
+    assertEquals(1, myAffinity.getOtherAssignedCount(myResource, myOther, "value"));
+  }
+
+  @Test
+  public void testRemovedFromDistribution() {
+    myAffinity.store(myPromotion, Collections.singletonMap(myResource.getId(), "value"));
+    myAffinity.actualize(() -> ids(1), TLongHashSet::new);
+    // build is removed from distribution by other extension, nothing was stored since the last actualization
+    myAffinity.actualize(TLongHashSet::new, TLongHashSet::new);
+    assertEquals(0, myAffinity.getOtherAssignedCount(myResource, myOther, "value"));
+  }
+
+  @Test
+  public void testRunningBuildKeepsAffinity() {
+    myAffinity.store(myPromotion, Collections.singletonMap(myResource.getId(), "value"));
+    myAffinity.actualize(TLongHashSet::new, () -> ids(1));
+    assertEquals(1, myAffinity.getOtherAssignedCount(myResource, myOther, "value"));
+  }
+
+  @Test
+  public void testOccupiedPositions() {
+    final CustomResource resource = (CustomResource)ResourceFactory.newCustomResource("custom_id", "PROJECT_ID", "custom", Arrays.asList("a", "b", "a", "c"), true);
+    final TakenLock takenLock = new TakenLock(resource, Collections.singletonMap(promotionEx(3), "c"), Collections.emptyMap());
+    final TIntHashSet occupied = myAffinity.getOtherOccupiedPositions(resource, takenLock, myOther);
+    assertPositions(occupied, 3);
+    // positions are reused and kept actual when values are assigned
+    myAffinity.store(myPromotion, Collections.singletonMap(resource.getId(), "a"));
+    assertSame(occupied, myAffinity.getOtherOccupiedPositions(resource, takenLock, myOther));
+    assertPositions(occupied, 0, 3);
+    // values of the promotion itself are not occupied for it
+    assertPositions(myAffinity.getOtherOccupiedPositions(resource, takenLock, myPromotion), 3);
+    assertPositions(occupied, 0, 3);
+    myAffinity.store(myPromotion, Collections.singletonMap(resource.getId(), Lock.joinValues(Arrays.asList("a", "a"))));
+    assertPositions(occupied, 0, 2, 3);
+    // positions are computed again when taken lock changes
+    takenLock.addLock(promotionEx(4), new Lock("custom", LockType.READ, "b"));
+    assertPositions(myAffinity.getOtherOccupiedPositions(resource, takenLock, myOther), 0, 1, 2, 3);
+    // released values are freed
+    myAffinity.actualize(TLongHashSet::new, TLongHashSet::new);
+    assertPositions(myAffinity.getOtherOccupiedPositions(resource, takenLock, myOther), 1, 3);
+  }
+
+  @Test
+  public void testNothingIsRequestedWithoutAffinity() {
+    myAffinity.actualize(() -> unexpected("distributed builds are not needed"), () -> unexpected("running builds are not needed"));
+  }
+
+  @NotNull
+  private static TLongHashSet ids(final long... ids) {
+    return new TLongHashSet(ids);
+  }
+
+  @NotNull
+  private static TLongHashSet unexpected(@NotNull final String message) {
+    throw new AssertionError(message);
+  }
+
+  private static void assertPositions(@NotNull final TIntHashSet actual, final int... expected) {
+    assertEquals(new TIntHashSet(expected), actual);
+  }
+
+  @NotNull
+  private BuildPromotionEx promotionEx(final long id) {
+    final BuildPromotionEx result = m.mock(BuildPromotionEx.class, "promotion-ex-" + id);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
+
+  @NotNull
+  private BuildPromotion promotion(final long id) {
+    final BuildPromotion result = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongIntHashMap;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = ResourceWaitQueue.class)
+public class ResourceWaitQueueTest extends BaseTestCase {
+
+  private static final String RESOURCE_ID = "resource_id";
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private BuildPromotion myWriter1;
+
+  private BuildPromotion myWriter2;
+
+  private BuildPromotion myReader;
+
+  /**
+   * Promotion id -> priority of the promotion
+   */
+  private TLongIntHashMap myPriorities;
+
+  /** Class under test */
+  private ResourceWaitQueue myQueue;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myWriter1 = createPromotion("writer1", 1L);
+    myWriter2 = createPromotion("writer2", 2L);
+    myReader = createPromotion("reader", 3L);
+    myPriorities = new TLongIntHashMap();
+    myQueue = new ResourceWaitQueue(myDispatcher, new TicketPriority(m.mock(PriorityClassManager.class)) {
+      @Override
+      public int getPriority(@NotNull final BuildPromotion promotion) {
+        return myPriorities.containsKey(promotion.getId()) ? myPriorities.get(promotion.getId()) : DEFAULT_PRIORITY;
+      }
+    });
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testEmptyQueue() {
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myReader));
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+  }
+
+  @Test
+  public void testWritersAreServedInOrder() {
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    // enqueue of the same promotion keeps its place
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter2));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myReader));
+    assertTrue(myQueue.isTurnOf("other_resource", myReader));
+
+    myQueue.release(myWriter2.getId());
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myReader));
+
+    myQueue.release(myWriter1.getId());
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myReader));
+    assertEmpty(myQueue.getTickets(RESOURCE_ID));
+  }
+
+  @Test
+  public void testTicketReleasedOnBuildStart() {
+    final SRunningBuild build = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildPromotion();
+      will(returnValue(myWriter1));
+    }});
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myReader));
+
+    myDispatcher.getMulticaster().buildStarted(build);
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myReader));
+  }
+
+  @Test
+  public void testTicketExpires() throws Exception {
+    setInternalProperty(ResourceWaitQueue.TICKET_TIMEOUT_PROPERTY, "1");
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+    Thread.sleep(10);
+    // writer1 is not distributed anymore, its ticket does not block others
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter2));
+    assertEquals(2, myQueue.getTickets(RESOURCE_ID).size());
+    assertTrue(myQueue.getTickets(RESOURCE_ID).get(0).getWaitTime(System.currentTimeMillis()) >= 10);
+  }
+
+  @Test
+  public void testTicketsAreOrderedByPriority() {
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    myPriorities.put(myWriter2.getId(), 10);
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter2));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+
+    // priority of writer1 is raised while it waits
+    myPriorities.put(myWriter1.getId(), 20);
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myWriter2));
+    assertEquals(20, myQueue.getTickets(RESOURCE_ID).get(0).getPriority());
+  }
+
+  @Test
+  public void testSamePriorityKeepsEnqueueOrder() {
+    myPriorities.put(myWriter1.getId(), 5);
+    myPriorities.put(myWriter2.getId(), 5);
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter2));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+  }
+
+  @Test
+  public void testPriorityIsAged() throws Exception {
+    setInternalProperty(ResourceWaitQueue.PRIORITY_AGING_PROPERTY, "1");
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    Thread.sleep(50);
+    // writer2 has higher priority, but writer1 has been waiting longer than the difference of priorities allows
+    myPriorities.put(myWriter2.getId(), 10);
+    myQueue.enqueue(RESOURCE_ID, myWriter2);
+
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myWriter1));
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myWriter2));
+  }
+
+  @Test
+  public void testTicketsReleasedAfterMaxGrants() {
+    setInternalProperty(ResourceWaitQueue.MAX_GRANTS_PROPERTY, "3");
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    myQueue.enqueue("other_resource", myWriter1);
+    myQueue.granted(myWriter1);
+    myQueue.granted(myWriter1);
+    // writer1 is granted its locks, but other agents filters keep rejecting it
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myReader));
+
+    myQueue.granted(myWriter1);
+    assertTrue(myQueue.isTurnOf(RESOURCE_ID, myReader));
+    assertTrue(myQueue.isTurnOf("other_resource", myReader));
+    assertEmpty(myQueue.getTickets(RESOURCE_ID));
+    assertEmpty(myQueue.getTickets("other_resource"));
+
+    // ticket is issued again, if writer1 still waits for the lock
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    assertFalse(myQueue.isTurnOf(RESOURCE_ID, myReader));
+  }
+
+  @Test
+  public void testGrantedWithoutTicket() {
+    myQueue.granted(myWriter1);
+    assertEmpty(myQueue.getTickets(RESOURCE_ID));
+  }
+
+  @Test
+  public void testWaitTime() throws Exception {
+    assertEquals(-1, myQueue.getWaitTime(RESOURCE_ID, myWriter1.getId()));
+    myQueue.enqueue(RESOURCE_ID, myWriter1);
+    Thread.sleep(10);
+    assertTrue(myQueue.getWaitTime(RESOURCE_ID, myWriter1.getId()) >= 10);
+    assertEquals(-1, myQueue.getWaitTime("other_resource", myWriter1.getId()));
+
+    myQueue.release(myWriter1.getId());
+    assertEquals(-1, myQueue.getWaitTime(RESOURCE_ID, myWriter1.getId()));
+  }
+
+  @NotNull
+  private BuildPromotion createPromotion(@NotNull final String name, final long id) {
+    final BuildPromotion result = m.mock(BuildPromotion.class, name);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
+}
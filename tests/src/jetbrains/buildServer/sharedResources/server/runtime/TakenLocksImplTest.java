@@ -18,20 +18,22 @@ package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.intellij.openapi.util.Trinity;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.BuildDistributorInput;
 import jetbrains.buildServer.serverSide.buildDistribution.DefaultAgentsFilterContext;
 import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
-import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -53,8 +55,6 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   private Mockery m;
 
-  private Locks myLocks;
-
   private Resources myResources;
 
   private LocksStorage myLocksStorage;
@@ -64,14 +64,18 @@ public class TakenLocksImplTest extends BaseTestCase {
    */
   private TakenLocks myTakenLocks;
 
-  private SharedResourcesFeatures myFeatures;
+  private LockPlans myLockPlans;
 
   private BuildPromotion myPromotion;
 
   private DistributionDataAccessor myAccessor;
 
+  private ResourceWaitQueue myWaitQueue;
+
   private final String myProjectId = "MY_PROJECT_ID";
 
+  private final AtomicLong myPromotionIds = new AtomicLong();
+
   @BeforeMethod
   @Override
   protected void setUp() throws Exception {
@@ -79,11 +83,10 @@ public class TakenLocksImplTest extends BaseTestCase {
     m = new Mockery() {{
       setImposteriser(ClassImposteriser.INSTANCE);
     }};
-    myLocks = m.mock(Locks.class);
     myResources = m.mock(Resources.class);
     myLocksStorage = m.mock(LocksStorage.class);
-    myFeatures = m.mock(SharedResourcesFeatures.class);
-    myPromotion = m.mock(BuildPromotion.class);
+    myLockPlans = m.mock(LockPlans.class);
+    myPromotion = createPromotion("promotion");
 
     myAccessor = new DistributionDataAccessor(new DefaultAgentsFilterContext(new HashMap<>()) {
       @NotNull
@@ -115,7 +118,17 @@ public class TakenLocksImplTest extends BaseTestCase {
         return false;
       }
     });
-    myTakenLocks = new TakenLocksImpl(myLocks, myResources, myLocksStorage, myFeatures);
+    m.checking(new Expectations() {{
+      allowing(myLocksStorage).addListener(with(any(LocksStorageListener.class)));
+    }});
+    final TakenLocksIndex index = new TakenLocksIndex(EventDispatcher.create(BuildServerListener.class), myLocksStorage, myResources, myLockPlans);
+    myWaitQueue = new ResourceWaitQueue(EventDispatcher.create(BuildServerListener.class), new TicketPriority(m.mock(PriorityClassManager.class)) {
+      @Override
+      public int getPriority(@NotNull final BuildPromotion promotion) {
+        return DEFAULT_PRIORITY;
+      }
+    });
+    myTakenLocks = new TakenLocksImpl(myResources, myLockPlans, index, myWaitQueue, new BackfillPolicy());
   }
 
   @Test
@@ -128,9 +141,6 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   @Test
   public void testCollectRunningBuilds_Stored() {
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
-
     final Resource resource1 = ResourceFactory.newInfiniteResource("resource1_id", myProjectId, "resource1", true);
     final Resource resource2 = ResourceFactory.newInfiniteResource("resource2_id", myProjectId, "resource2", true);
 
@@ -167,12 +177,15 @@ public class TakenLocksImplTest extends BaseTestCase {
       oneOf(rb1).getBuildType();
       will(returnValue(rb1_bt));
 
-      oneOf(myFeatures).searchForFeatures(rb1_bt);
-      will(returnValue(features));
+      oneOf(myLockPlans).getPlan(rb1_bt);
+      will(returnValue(new LockPlan(true, takenLocks1)));
 
       oneOf(rb1).getBuildPromotionInfo();
       will(returnValue(bp1));
 
+      allowing(bp1).getId();
+      will(returnValue(1L));
+
       oneOf(myLocksStorage).locksStored(bp1);
       will(returnValue(true));
 
@@ -188,12 +201,15 @@ public class TakenLocksImplTest extends BaseTestCase {
       oneOf(rb2).getBuildType();
       will(returnValue(rb2_bt));
 
-      oneOf(myFeatures).searchForFeatures(rb2_bt);
-      will(returnValue(features));
+      oneOf(myLockPlans).getPlan(rb2_bt);
+      will(returnValue(new LockPlan(true, takenLocks2)));
 
       oneOf(rb2).getBuildPromotionInfo();
       will(returnValue(bp2));
 
+      allowing(bp2).getId();
+      will(returnValue(2L));
+
       oneOf(myLocksStorage).locksStored(bp2);
       will(returnValue(true));
 
@@ -224,6 +240,7 @@ public class TakenLocksImplTest extends BaseTestCase {
   public void testShouldNotAskParametersNoFeatures() {
     final RunningBuildEx rb = m.mock(RunningBuildEx.class, "rb");
     final SBuildType rb_bt = m.mock(SBuildType.class, "rb_bt");
+    final BuildPromotionEx bp = m.mock(BuildPromotionEx.class, "bp");
     final Collection<RunningBuildEx> runningBuilds = new ArrayList<RunningBuildEx>() {{
       add(rb);
     }};
@@ -232,8 +249,14 @@ public class TakenLocksImplTest extends BaseTestCase {
       oneOf(rb).getBuildType();
       will(returnValue(rb_bt));
 
-      oneOf(myFeatures).searchForFeatures(rb_bt);
-      will(returnValue(Collections.emptyList()));
+      oneOf(rb).getBuildPromotionInfo();
+      will(returnValue(bp));
+
+      allowing(bp).getId();
+      will(returnValue(1L));
+
+      oneOf(myLockPlans).getPlan(rb_bt);
+      will(returnValue(LockPlan.EMPTY));
 
     }});
 
@@ -245,12 +268,6 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   @Test
   public void testCollectRunningQueued_Promotions() {
-    final SharedResourcesFeature rFeature = m.mock(SharedResourcesFeature.class, "r-feature");
-    final Collection<SharedResourcesFeature> rFeatures = Collections.singleton(rFeature);
-
-    final SharedResourcesFeature qFeature = m.mock(SharedResourcesFeature.class, "q-feature");
-    final Collection<SharedResourcesFeature> qFeatures = Collections.singleton(qFeature);
-
     final Resource resource1 = ResourceFactory.newInfiniteResource("resource1_id", myProjectId, "resource1", true);
     final Resource resource2 = ResourceFactory.newInfiniteResource("resource2_id", myProjectId, "resource2", true);
 
@@ -274,7 +291,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final QueuedBuildInfo qb1 = m.mock(QueuedBuildInfo.class, "qb-1");
     final BuildTypeEx qb1_bt = m.mock(BuildTypeEx.class, "qb1_bt");
-    final BuildPromotionEx bp2 = m.mock(BuildPromotionEx.class, "bp-2");
+    final BuildPromotionEx bp2 = createPromotion("bp-2");
     final Collection<RunningBuildEx> runningBuilds = new ArrayList<RunningBuildEx>() {{
       add(rb1);
     }};
@@ -290,19 +307,19 @@ public class TakenLocksImplTest extends BaseTestCase {
       oneOf(rb1).getBuildPromotionInfo();
       will(returnValue(bp1));
 
+      allowing(bp1).getId();
+      will(returnValue(1L));
+
       oneOf(myLocksStorage).locksStored(bp1);
       will(returnValue(false));
 
-      oneOf(myFeatures).searchForFeatures(rb1_bt);
-      will(returnValue(rFeatures));
-
-      oneOf(myLocks).fromBuildFeaturesAsMap(rFeatures);
-      will(returnValue(takenLocks1));
+      oneOf(myLockPlans).getPlan(rb1_bt);
+      will(returnValue(new LockPlan(true, takenLocks1)));
 
       oneOf(rb1_bt).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myResources).getResourcesMap(myProjectId);
+      exactly(2).of(myResources).getResourcesMap(myProjectId); // running builds are resolved by the index
       will(returnValue(resources));
 
       oneOf(qb1).getBuildPromotionInfo();
@@ -311,11 +328,8 @@ public class TakenLocksImplTest extends BaseTestCase {
       oneOf(bp2).getBuildType();
       will(returnValue(qb1_bt));
 
-      oneOf(myFeatures).searchForFeatures(qb1_bt);
-      will(returnValue(qFeatures));
-
-      oneOf(myLocks).fromBuildFeaturesAsMap(qFeatures);
-      will(returnValue(takenLocks2));
+      oneOf(myLockPlans).getPlan(qb1_bt);
+      will(returnValue(new LockPlan(true, takenLocks2)));
 
       oneOf(qb1_bt).getProjectId();
       will(returnValue(myProjectId));
@@ -336,6 +350,49 @@ public class TakenLocksImplTest extends BaseTestCase {
     m.assertIsSatisfied();
   }
 
+  @Test
+  public void testGetTakenLocks_CycleSnapshot() {
+    final Resource resource = ResourceFactory.newInfiniteResource("resource1_id", myProjectId, "resource1", true);
+    final Map<String, Lock> locks = Collections.singletonMap(resource.getName(), new Lock(resource.getName(), LockType.READ));
+
+    final QueuedBuildInfo qb = m.mock(QueuedBuildInfo.class, "qb");
+    final BuildTypeEx qb_bt = m.mock(BuildTypeEx.class, "qb_bt");
+    final BuildPromotionEx bp = m.mock(BuildPromotionEx.class, "bp");
+
+    m.checking(new Expectations() {{
+      allowing(qb).getBuildPromotionInfo();
+      will(returnValue(bp));
+
+      allowing(bp).getId();
+      will(returnValue(1L));
+
+      // locks of the distributed build are resolved only once per cycle
+      oneOf(bp).getBuildType();
+      will(returnValue(qb_bt));
+
+      oneOf(myLockPlans).getPlan(qb_bt);
+      will(returnValue(new LockPlan(true, locks)));
+
+      oneOf(qb_bt).getProjectId();
+      will(returnValue(myProjectId));
+
+      oneOf(myResources).getResourcesMap(myProjectId);
+      will(returnValue(Collections.singletonMap(resource.getName(), resource)));
+    }});
+
+    final Map<Resource, TakenLock> first = myTakenLocks.getTakenLocks(Collections.emptyList(), Collections.singleton(qb), myAccessor);
+    assertEquals(1, first.get(resource).getReadLocks().size());
+
+    final Map<Resource, TakenLock> second = myTakenLocks.getTakenLocks(Collections.emptyList(), Collections.singleton(qb), myAccessor);
+    assertSame(first, second);
+    assertEquals(1, second.get(resource).getReadLocks().size());
+
+    // build was removed from distribution by other extension
+    final Map<Resource, TakenLock> third = myTakenLocks.getTakenLocks(Collections.emptyList(), Collections.emptyList(), myAccessor);
+    assertTrue(third.get(resource).isEmpty());
+    m.assertIsSatisfied();
+  }
+
   @Test
   public void testGetUnavailableLocks_Custom_All() {
     final Map<String, Resource> resources = new HashMap<>();
@@ -348,7 +405,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class), new Lock("custom_resource1", LockType.READ));
+      tl1.addLock(createPromotion("bp"), new Lock("custom_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -374,7 +431,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class), new Lock("custom_resource1", LockType.READ, "v1"));
+      tl1.addLock(createPromotion("bp"), new Lock("custom_resource1", LockType.READ, "v1"));
       put(tl1.getResource(), tl1);
     }};
 
@@ -402,7 +459,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class), new Lock("custom_resource1", LockType.WRITE));
+      tl1.addLock(createPromotion("bp"), new Lock("custom_resource1", LockType.WRITE));
       put(tl1.getResource(), tl1);
     }};
 
@@ -418,6 +475,34 @@ public class TakenLocksImplTest extends BaseTestCase {
     assertEquals(1, result.size());
   }
 
+  @Test
+  public void testGetUnavailableLocks_Custom_AnySeveral() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource customResource = ResourceFactory.newCustomResource("custom_resource1_id", myProjectId, "custom_resource1",
+                                                                      Arrays.asList("value1", "value2", "value3", "value4", "value5"), true);
+    resources.put(customResource.getName(), customResource);
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
+      TakenLock tl1 = new TakenLock(customResource);
+      tl1.addLock(createPromotion("bp1"), new Lock("custom_resource1", LockType.READ, Lock.joinValues(Arrays.asList("value1", "value3")), 2));
+      put(tl1.getResource(), tl1);
+    }};
+    assertTrue(takenLocks.get(customResource).isValueLocked("value3", null));
+    assertEquals(1, takenLocks.get(customResource).getValueCount("value1"));
+
+    m.checking(new Expectations() {{
+      exactly(2).of(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    // 3 of 5 values are free
+    final Collection<Lock> fitting = Collections.singletonList(new Lock("custom_resource1", LockType.READ, "", 3));
+    assertEmpty(myTakenLocks.getUnavailableLocks(fitting, takenLocks, myProjectId, myAccessor, myPromotion));
+
+    final Collection<Lock> exceeding = Collections.singletonList(new Lock("custom_resource1", LockType.READ, "", 4));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(exceeding, takenLocks, myProjectId, myAccessor, myPromotion).size());
+  }
+
   @Test
   public void testGetUnavailableLocks_Custom_Any_NoValuesAvailable() {
     final Map<String, Resource> resources = new HashMap<>();
@@ -430,8 +515,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp2"), new Lock("custom_resource1", LockType.READ, "v2"));
+      tl1.addLock(createPromotion("bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
+      tl1.addLock(createPromotion("bp2"), new Lock("custom_resource1", LockType.READ, "v2"));
       put(tl1.getResource(), tl1);
     }};
 
@@ -458,8 +543,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp2"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(createPromotion("bp1"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(createPromotion("bp2"), new Lock("quoted_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -475,6 +560,34 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   }
 
+  @Test
+  public void testGetUnavailableLocks_WeightedQuota() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1_id", myProjectId, "quoted_resource1", 8, true);
+    resources.put(quotedResource.getName(), quotedResource);
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
+      TakenLock tl1 = new TakenLock(quotedResource);
+      tl1.addLock(createPromotion("bp1"), new Lock("quoted_resource1", LockType.READ, "", 4));
+      tl1.addLock(createPromotion("bp2"), new Lock("quoted_resource1", LockType.READ, "", 2));
+      put(tl1.getResource(), tl1);
+    }};
+    assertEquals(6, takenLocks.get(quotedResource).getUnits());
+
+    m.checking(new Expectations() {{
+      exactly(2).of(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    // 6 of 8 units are taken, 2 units fit
+    final Collection<Lock> fitting = Collections.singletonList(new Lock("quoted_resource1", LockType.READ, "", 2));
+    assertEmpty(myTakenLocks.getUnavailableLocks(fitting, takenLocks, myProjectId, myAccessor, myPromotion));
+
+    // 3 units do not fit
+    final Collection<Lock> exceeding = Collections.singletonList(new Lock("quoted_resource1", LockType.READ, "", 3));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(exceeding, takenLocks, myProjectId, myAccessor, myPromotion).size());
+  }
+
   @Test
   public void testGetUnavailableLocks_ReadWrite() {
     final Map<String, Resource> resources = new HashMap<>();
@@ -487,7 +600,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("quoted_resource1", LockType.WRITE));
+      tl1.addLock(createPromotion("bp1"), new Lock("quoted_resource1", LockType.WRITE));
       put(tl1.getResource(), tl1);
     }};
 
@@ -513,7 +626,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(createPromotion("bp1"), new Lock("quoted_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -532,14 +645,14 @@ public class TakenLocksImplTest extends BaseTestCase {
   /**
    *
    * Test setup:
-   * - fairSet is empty
+   * - wait queue is empty
    * - 1 infinite resource
    * - 1 build holds read lock
    * - 1 build tries to pass through agents filter (with write lock request)
    *
    * Expected results:
    *  - wait reason is returned
-   *  - fairSet should contain write lock name requested
+   *  - build gets a ticket in the wait queue of the resource
    *
    */
   @Test
@@ -556,7 +669,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(infiniteResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
+      tl1.addLock(createPromotion("bp1"), new Lock(infiniteResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -570,14 +683,14 @@ public class TakenLocksImplTest extends BaseTestCase {
     assertEquals(1, result.size());
     assertEquals(infiniteResource.getName(), result.get(infiniteResource).getName());
 
-    assertNotEmpty(myAccessor.getFairSet());
-    assertEquals(1, myAccessor.getFairSet().size());
-    assertEquals(infiniteResource.getId(), myAccessor.getFairSet().iterator().next());
+    final List<ResourceWaitQueue.Ticket> tickets = myWaitQueue.getTickets(infiniteResource.getId());
+    assertEquals(1, tickets.size());
+    assertEquals(myPromotion.getId(), tickets.get(0).getPromotionId());
   }
 
   /**
    * Test setup:
-   * - fairSet is empty
+   * - wait queue is empty
    * - 1 infinite resource
    * - 1 build holds read lock
    * - 1 build tries to pass through agents filter (with write lock request)
@@ -605,10 +718,12 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(infiniteResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
+      tl1.addLock(createPromotion("bp1"), new Lock(infiniteResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
+    final BuildPromotion reader = createPromotion("reader");
+
     m.checking(new Expectations() {{
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resources));
@@ -618,27 +733,25 @@ public class TakenLocksImplTest extends BaseTestCase {
     
 
     { // 1) Check that read-read locks are working
-      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(readLockToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(readLockToTake, takenLocks, myProjectId, myAccessor, reader);
       assertNotNull(result);
       assertEquals(0, result.size());
-      assertEmpty(myAccessor.getFairSet());
+      assertEmpty(myWaitQueue.getTickets(infiniteResource.getId()));
     }
 
-    { // 2) Check that fair set influences read lock processing
+    { // 2) Check that wait queue influences read lock processing
       Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(writeLockToTake, takenLocks, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(infiniteResource.getName(), result.get(infiniteResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(infiniteResource.getId(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myWaitQueue.getTickets(infiniteResource.getId()).size());
 
-      // now we have lock name in fair set. read lock must not be acquired
-      result = myTakenLocks.getUnavailableLocks(readLockToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+      // now somebody is waiting for write lock. read lock must not be acquired
+      result = myTakenLocks.getUnavailableLocks(readLockToTake, takenLocks, myProjectId, myAccessor, reader);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(infiniteResource.getName(), result.get(infiniteResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(infiniteResource.getId(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myWaitQueue.getTickets(infiniteResource.getId()).size());
     }
   }
 
@@ -663,16 +776,18 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocksAny = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(customResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock(customResource.getName(), LockType.READ));
+      tl1.addLock(createPromotion("bp1"), new Lock(customResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
     final Map<Resource, TakenLock> takenLocksSpecific = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl = new TakenLock(customResource);
-      tl.addLock(m.mock(BuildPromotionEx.class, "bp2"), new Lock(customResource.getName(), LockType.READ, "val1"));
+      tl.addLock(createPromotion("bp2"), new Lock(customResource.getName(), LockType.READ, "val1"));
       put(tl.getResource(), tl);
     }};
 
+    final BuildPromotion reader = createPromotion("reader");
+
     m.checking(new Expectations() {{
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resources));
@@ -680,34 +795,32 @@ public class TakenLocksImplTest extends BaseTestCase {
 
 
     { // Check that any-any locks are working
-      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksAny, myProjectId, myAccessor, myPromotion);
+      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksAny, myProjectId, myAccessor, reader);
       assertNotNull(result);
       assertEquals(0, result.size());
-      assertEmpty(myAccessor.getFairSet());
+      assertEmpty(myWaitQueue.getTickets(customResource.getId()));
     }
 
     { // Check that any-specific locks are working
-      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksSpecific, myProjectId, myAccessor, myPromotion);
+      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksSpecific, myProjectId, myAccessor, reader);
       assertNotNull(result);
       assertEquals(0, result.size());
-      assertEmpty(myAccessor.getFairSet());
+      assertEmpty(myWaitQueue.getTickets(customResource.getId()));
     }
 
-    { // Check that fair set influences read lock processing
+    { // Check that wait queue influences read lock processing
       Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(allLockToTake, takenLocksAny, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(customResource.getName(), result.get(customResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(customResource.getName(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myWaitQueue.getTickets(customResource.getId()).size());
 
-      // now we have lock name in fair set. any lock must not be acquired
-      result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksAny, myProjectId, myAccessor, myPromotion);
+      // now somebody is waiting for write lock. any lock must not be acquired
+      result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksAny, myProjectId, myAccessor, reader);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(customResource.getName(), result.get(customResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(customResource.getName(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myWaitQueue.getTickets(customResource.getId()).size());
     }
   }
 
@@ -837,15 +950,6 @@ public class TakenLocksImplTest extends BaseTestCase {
     final Resource existingResource = ResourceFactory.newInfiniteResource("existing_1_id", myProjectId, "existing", true);
     resources.put(existingResource.getName(), existingResource);
 
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
-
-    final SharedResourcesFeature featureWithAllResources = m.mock(SharedResourcesFeature.class, "feature-with-all-resources");
-    final Collection<SharedResourcesFeature> featuresWithAllResources = Collections.singleton(featureWithAllResources);
-
-    final SharedResourcesFeature featureWithDeletedResources = m.mock(SharedResourcesFeature.class, "feature-with-deleted-resources");
-    final Collection<SharedResourcesFeature> featuresWithDeletedResources = Collections.singleton(featureWithDeletedResources);
-
     final Map<String, Lock> allExistingLocks = new HashMap<String, Lock>() {{
       put(existingResource.getName(), new Lock(existingResource.getName(), LockType.READ, ""));
     }};
@@ -872,11 +976,11 @@ public class TakenLocksImplTest extends BaseTestCase {
     }};
 
     m.checking(new Expectations() {{
-      allowing(myFeatures).searchForFeatures(rb1.getSecond());
-      will(returnValue(features));
+      allowing(myLockPlans).getPlan(rb1.getSecond());
+      will(returnValue(new LockPlan(true, allExistingLocks)));
 
-      allowing(myFeatures).searchForFeatures(rb2.getSecond());
-      will(returnValue(features));
+      allowing(myLockPlans).getPlan(rb2.getSecond());
+      will(returnValue(new LockPlan(true, withDeletedLocks)));
 
       allowing(myLocksStorage).locksStored(with(any(BuildPromotion.class)));
       will(returnValue(true));
@@ -890,17 +994,11 @@ public class TakenLocksImplTest extends BaseTestCase {
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resources));
 
-      allowing(myFeatures).searchForFeatures(qb1.getSecond());
-      will(returnValue(featuresWithAllResources));
-
-      oneOf(myLocks).fromBuildFeaturesAsMap(featuresWithAllResources);
-      will(returnValue(allExistingLocks));
+      allowing(myLockPlans).getPlan(qb1.getSecond());
+      will(returnValue(new LockPlan(true, allExistingLocks)));
 
-      allowing(myFeatures).searchForFeatures(qb2.getSecond());
-      will(returnValue(featuresWithDeletedResources));
-
-      oneOf(myLocks).fromBuildFeaturesAsMap(featuresWithDeletedResources);
-      will(returnValue(withDeletedLocks));
+      allowing(myLockPlans).getPlan(qb2.getSecond());
+      will(returnValue(new LockPlan(true, withDeletedLocks)));
     }});
 
 
@@ -920,12 +1018,38 @@ public class TakenLocksImplTest extends BaseTestCase {
     assertContains(readLockPromotions, qb2.getThird());
   }
 
+  @Test
+  public void testGetUnavailableLocks_Chain_IgnoresChainLocks() {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1_id", myProjectId, "quoted_resource1", 1, true);
+    final Map<String, Resource> chainNodeResources = Collections.singletonMap(quotedResource.getName(), quotedResource);
+    final Map<String, Lock> locksToTake = Collections.singletonMap(quotedResource.getName(), new Lock(quotedResource.getName(), LockType.READ));
+
+    final BuildPromotionEx chainPromotion = createPromotion("chain-bp");
+    final BuildPromotionEx otherPromotion = createPromotion("other-bp");
+    final Lock takenLock = new Lock(quotedResource.getName(), LockType.READ);
+
+    final TakenLock chainTakenLock = new TakenLock(quotedResource);
+    chainTakenLock.addLock(chainPromotion, takenLock);
+    final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks = new HashMap<>();
+    chainLocks.computeIfAbsent(quotedResource, k -> new HashMap<>()).put(chainPromotion, takenLock);
+
+    Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, new HashMap<>(Collections.singletonMap(quotedResource, chainTakenLock)),
+                                                                  myAccessor, chainNodeResources, chainLocks, myPromotion);
+    assertTrue("Locks taken inside of the chain must be ignored", result.isEmpty());
+
+    final TakenLock otherTakenLock = new TakenLock(quotedResource);
+    otherTakenLock.addLock(otherPromotion, takenLock);
+    result = myTakenLocks.getUnavailableLocks(locksToTake, new HashMap<>(Collections.singletonMap(quotedResource, otherTakenLock)),
+                                              myAccessor, chainNodeResources, chainLocks, myPromotion);
+    assertEquals(1, result.size());
+  }
+
   @SuppressWarnings("SameParameterValue")
   private Trinity<RunningBuildEx, BuildTypeEx, BuildPromotionEx> createMockRunningBuild(@NotNull final String projectId) {
     final String name = generateRandomName();
     final RunningBuildEx build = m.mock(RunningBuildEx.class, "runningBuild_" + name);
     final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "runningBuild_ " + name + "-buildType");
-    final BuildPromotionEx buildPromotion = m.mock(BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
+    final BuildPromotionEx buildPromotion = createPromotion("runningBuild_" + name + "-buildPromotion");
     m.checking(new Expectations() {{
       allowing(build).getBuildType();
       will(returnValue(buildType));
@@ -944,7 +1068,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     final String name = generateRandomName();
     final QueuedBuildInfo build = m.mock(QueuedBuildInfo.class, "queuedBuildInfo" + name);
     final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "runningBuild_ " + name + "-buildType");
-    final BuildPromotionEx buildPromotion = m.mock(BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
+    final BuildPromotionEx buildPromotion = createPromotion("runningBuild_" + name + "-buildPromotion");
     m.checking(new Expectations() {{
       allowing(build).getBuildPromotionInfo();
       will(returnValue(buildPromotion));
@@ -957,4 +1081,15 @@ public class TakenLocksImplTest extends BaseTestCase {
     }});
     return new Trinity<>(build, buildType, buildPromotion);
   }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(@NotNull final String name) {
+    final BuildPromotionEx result = m.mock(BuildPromotionEx.class, name);
+    final long id = myPromotionIds.incrementAndGet();
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
 }
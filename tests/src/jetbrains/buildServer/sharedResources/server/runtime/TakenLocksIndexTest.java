@@ -0,0 +1,219 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlan;
+import jetbrains.buildServer.sharedResources.server.feature.LockPlans;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = TakenLocksIndex.class)
+public class TakenLocksIndexTest extends BaseTestCase {
+
+  private final String myProjectId = "MY_PROJECT_ID";
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private LocksStorage myLocksStorage;
+
+  private BuildPromotionEx myPromotion;
+
+  private Resource myResource;
+
+  /**
+   * Current resources of the project
+   */
+  private Map<String, Resource> myResourcesMap;
+
+  /**
+   * Called when resources of the project are requested
+   */
+  private Runnable myOnResolve;
+
+  private LockPlans myLockPlans;
+
+  /**
+   * Class under test
+   */
+  private TakenLocksIndex myIndex;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myLocksStorage = new LocksStorageImpl(myDispatcher);
+    myPromotion = m.mock(BuildPromotionEx.class);
+    myResource = ResourceFactory.newInfiniteResource("resource_id", myProjectId, "resource", true);
+    myResourcesMap = Collections.singletonMap(myResource.getName(), myResource);
+    myOnResolve = null;
+    myLockPlans = m.mock(LockPlans.class);
+    final Resources resources = m.mock(Resources.class);
+    final File artifactsDir = createTempDir();
+
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(1L));
+
+      allowing(myPromotion).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+
+      allowing(resources).getResourcesMap(myProjectId);
+      will(new CustomAction("current resources") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          final Runnable onResolve = myOnResolve;
+          myOnResolve = null;
+          if (onResolve != null) {
+            onResolve.run();
+          }
+          return myResourcesMap;
+        }
+      });
+    }});
+
+    myIndex = new TakenLocksIndex(myDispatcher, myLocksStorage, resources, myLockPlans);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testIndexesStoredLocks() {
+    storeWriteLock();
+    final TakenLock takenLock = myIndex.getTakenLock(myResource);
+    assertTrue(takenLock.hasWriteLocks());
+    assertEquals(1, takenLock.getLocksCount());
+    assertEquals(1, myIndex.getTakenLocks().size());
+  }
+
+  @Test
+  public void testRemovesLocksOnBuildFinish() {
+    storeWriteLock();
+    final SRunningBuild build = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildPromotion();
+      will(returnValue(myPromotion));
+    }});
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertTrue(myIndex.getTakenLock(myResource).isEmpty());
+    assertTrue(myIndex.getTakenLocks().isEmpty());
+  }
+
+  @Test
+  public void testSyncRemovesNotRunningBuilds() {
+    storeWriteLock();
+    myIndex.sync(Collections.emptyList());
+    assertFalse(myIndex.isIndexed(myPromotion.getId()));
+    assertTrue(myIndex.getTakenLocks().isEmpty());
+  }
+
+  @Test
+  public void testReturnsCopies() {
+    storeWriteLock();
+    myIndex.getTakenLock(myResource).removeLock(myPromotion);
+    assertTrue(myIndex.getTakenLock(myResource).hasWriteLocks());
+  }
+
+  @Test
+  public void testResolvesChangedResources() {
+    storeWriteLock();
+    // resource is changed while the build holds it
+    final Resource changed = ResourceFactory.newQuotedResource(myResource.getId(), myProjectId, myResource.getName(), 1, true);
+    myResourcesMap = Collections.singletonMap(changed.getName(), changed);
+    final Map<Resource, TakenLock> takenLocks = myIndex.getTakenLocks();
+    assertEquals(1, takenLocks.size());
+    assertSame(changed, takenLocks.keySet().iterator().next());
+    assertSame(changed, takenLocks.get(changed).getResource());
+    assertTrue(takenLocks.get(changed).hasWriteLocks());
+
+    // resource is deleted
+    myResourcesMap = Collections.emptyMap();
+    assertTrue(myIndex.getTakenLocks().isEmpty());
+    assertTrue(myIndex.isIndexed(myPromotion.getId()));
+  }
+
+  @Test
+  public void testPlanLocksDoNotReplaceStoredLocks() {
+    final Resource custom = ResourceFactory.newCustomResource("custom_id", myProjectId, "custom", Collections.singletonList("v1"), true);
+    myResourcesMap = Collections.singletonMap(custom.getName(), custom);
+    final Lock anyLock = new Lock(custom.getName(), LockType.READ);
+    final SRunningBuild build = m.mock(SRunningBuild.class);
+    final SBuildType buildType = m.mock(SBuildType.class);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(build).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(buildType).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myLockPlans).getPlan(buildType);
+      will(returnValue(new LockPlan(true, Collections.singletonMap(anyLock.getName(), anyLock))));
+
+      allowing(myPromotion).getAttribute(with(any(String.class)));
+      will(returnValue(null));
+    }});
+    // locks with chosen value are stored after the index decided to take locks from the plan
+    myOnResolve = () -> myLocksStorage.store(myPromotion, Collections.singletonMap(anyLock, "v1"));
+    myDispatcher.getMulticaster().buildStarted(build);
+
+    final TakenLock takenLock = myIndex.getTakenLock(custom);
+    assertEquals(1, takenLock.getLocksCount());
+    assertEquals(1, takenLock.getValueCount("v1"));
+  }
+
+  private void storeWriteLock() {
+    final Map<Lock, String> locks = new HashMap<>();
+    locks.put(new Lock(myResource.getName(), LockType.WRITE), "");
+    myLocksStorage.store(myPromotion, locks);
+  }
+}
@@ -22,6 +22,7 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.ProjectFeatureDescriptorFactory;
 import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
 import jetbrains.buildServer.serverSide.parameters.BuildParametersProvider;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
@@ -63,23 +64,28 @@ public class SharedResourcesIntegrationTestsSupport {
     final Locks locks = new LocksImpl();
     final SharedResourcesFeatureFactory factory = new SharedResourcesFeatureFactoryImpl(locks);
     final SharedResourcesFeatures features = new SharedResourcesFeaturesImpl(factory);
+    final LockPlans lockPlans = new LockPlansImpl(features, locks, fixture.getEventDispatcher());
     final LocksStorage locksStorage = new LocksStorageImpl(fixture.getEventDispatcher());
 
     final BuildUsedResourcesReport buildUsedResourcesReport = new BuildUsedResourcesReport(new UsedResourcesSerializer());
 
-    final BuildFeatureParametersProvider provider = new BuildFeatureParametersProvider(features, locks, locksStorage);
+    final BuildFeatureParametersProvider provider = new BuildFeatureParametersProvider(lockPlans, locks, locksStorage);
 
     final ResourceProjectFeaturesImpl projectFeatures = new ResourceProjectFeaturesImpl();
     final Resources resources = new ResourcesImpl(fixture.getProjectManager(), projectFeatures);
 
-    final TakenLocks takenLocks = new TakenLocksImpl(locks, resources, locksStorage, features);
-    final ConfigurationInspector inspector = new ConfigurationInspector(features, resources);
+    final TakenLocksIndex takenLocksIndex = new TakenLocksIndex(fixture.getEventDispatcher(), locksStorage, resources, lockPlans);
+    final ResourceWaitQueue waitQueue = new ResourceWaitQueue(fixture.getEventDispatcher(), new TicketPriority(fixture.getSingletonService(PriorityClassManager.class)));
+    final TakenLocks takenLocks = new TakenLocksImpl(resources, lockPlans, takenLocksIndex, waitQueue, new BackfillPolicy());
+    final ConfigurationInspector inspector = new ConfigurationInspector(lockPlans, resources);
+    final AdmissionPlanner planner = new AdmissionPlanner(fixture.getBuildQueue(), lockPlans, resources);
+    final AvailabilityForecaster forecaster = new AvailabilityForecaster(takenLocksIndex, waitQueue);
 
     final SharedResourcesAgentsFilter filter =
-      new SharedResourcesAgentsFilter(features, locks, takenLocks, fixture.getSingletonService(RunningBuildsManagerEx.class), inspector, locksStorage, resources);
+      new SharedResourcesAgentsFilter(lockPlans, takenLocks, fixture.getSingletonService(RunningBuildsManagerEx.class), inspector, locksStorage, resources, planner, forecaster, waitQueue);
 
     final SharedResourcesContextProcessor processor =
-      new SharedResourcesContextProcessor(features, locks, resources, locksStorage, buildUsedResourcesReport);
+      new SharedResourcesContextProcessor(lockPlans, locks, resources, locksStorage, buildUsedResourcesReport);
 
     final ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(resources, features);
     final ResourceHelper resourceHelper = new ResourceHelper();
@@ -90,9 +96,14 @@ public class SharedResourcesIntegrationTestsSupport {
 
     fixture.getServer().registerExtension(BuildParametersProvider.class, "tests", provider);
     fixture.addService(locksStorage);
+    fixture.addService(takenLocksIndex);
+    fixture.addService(waitQueue);
+    fixture.addService(planner);
+    fixture.addService(forecaster);
     fixture.addService(messages);
     fixture.addService(resourceHelper);
     fixture.addService(features);
+    fixture.addService(lockPlans);
     fixture.addService(projectFeatures);
     fixture.addService(buildUsedResourcesReport);
     fixture.addService(filter);
@@ -134,6 +145,7 @@ public class SharedResourcesIntegrationTestsSupport {
 
   public static Lock addWriteLock(@NotNull final BuildTypeSettings settings, @NotNull final String resourceName) {
     settings.addBuildFeature(SharedResourcesBuildFeature.FEATURE_TYPE, createWriteLock(resourceName));
+    persist(settings);
     return new Lock(resourceName, LockType.WRITE);
   }
 
@@ -143,17 +155,37 @@ public class SharedResourcesIntegrationTestsSupport {
 
   public static Lock addReadLock(@NotNull final BuildTypeSettings settings, @NotNull final String resourceName) {
     settings.addBuildFeature(SharedResourcesBuildFeature.FEATURE_TYPE, createReadLock(resourceName));
+    persist(settings);
     return new Lock(resourceName, LockType.READ);
   }
 
+  public static Lock addAnyLock(@NotNull final BuildTypeSettings settings,
+                                @NotNull final Resource resource,
+                                final int count) {
+    settings.addBuildFeature(SharedResourcesBuildFeature.FEATURE_TYPE,
+                             CollectionsUtil.asMap(LOCKS_FEATURE_PARAM_KEY, resource.getName() + " readLock:" + count));
+    persist(settings);
+    return new Lock(resource.getName(), LockType.READ, "", count);
+  }
+
   @SuppressWarnings("UnusedReturnValue")
   public static Lock addSpecificLock(@NotNull final BuildTypeSettings settings,
                                      @NotNull final String resourceName,
                                      @NotNull final String value) {
     settings.addBuildFeature(SharedResourcesPluginConstants.FEATURE_TYPE, createSpecificLock(resourceName, value));
+    persist(settings);
     return new Lock(resourceName, LockType.READ, value);
   }
 
+  /**
+   * Lock plans are recompiled when the settings are persisted
+   */
+  private static void persist(@NotNull final BuildTypeSettings settings) {
+    if (settings instanceof SPersistentEntity) {
+      ((SPersistentEntity)settings).persist();
+    }
+  }
+
   public static Map<String, String> createInfiniteResource(final String name) {
     return createQuotedResource(name, -1);
   }